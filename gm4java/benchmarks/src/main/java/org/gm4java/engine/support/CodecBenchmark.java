@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link GMBatchCodec}, which quotes and encodes the commands sent by {@link BasicGMConnection} and parses
+ * the results read back when the process exposes its byte streams, as the real GraphicsMagick process does. The
+ * commands go to a stream that discards them and the results come from a stream that repeats the same reply, so
+ * nothing but the codec is measured.
+ *
+ * @author Kenneth Xu
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+    private static final List<String> ASCII_COMMAND = Arrays.asList("convert", "-resize", "800x600",
+            "/data/images/input image.jpg", "-quality", "85", "/data/images/output \"1\".jpg");
+    private static final List<String> UNICODE_COMMAND = Arrays.asList("convert", "-resize", "800x600",
+            "/data/images/\u5165\u529b \u753b\u50cf.jpg", "-quality", "85", "/data/images/\u51fa\u529b \"1\".jpg");
+
+    /**
+     * Whether the arguments are plain ASCII, which takes the fast path, or need the charset encoder.
+     */
+    @Param({ "ascii", "unicode" })
+    public String arguments;
+
+    /**
+     * The number of output lines before the pass marker.
+     */
+    @Param({ "0", "10" })
+    public int outputLines;
+
+    private List<String> command;
+    private GMBatchCodec writer;
+    private GMBatchCodec reader;
+
+    @Setup
+    public void setup() {
+        command = "ascii".equals(arguments) ? ASCII_COMMAND : UNICODE_COMMAND;
+        writer = new GMBatchCodec(new RepeatingStream(StubProcess.reply(0)), new DiscardingStream(),
+                StubProcess.CHARSET);
+        reader = new GMBatchCodec(new RepeatingStream(StubProcess.reply(outputLines)), new DiscardingStream(),
+                StubProcess.CHARSET);
+    }
+
+    /**
+     * Quotes, encodes and sends one command, as {@link BasicGMConnection} does for every command.
+     */
+    @Benchmark
+    public int writeCommand() throws IOException {
+        int length = writer.writeCommand(null, command);
+        writer.flush();
+        return length;
+    }
+
+    /**
+     * Reads and parses one result, keeping the output for the caller.
+     */
+    @Benchmark
+    public String readResult() throws IOException {
+        if (!reader.readResult()) throw new IllegalStateException("Unexpected failure.");
+        return reader.output();
+    }
+
+    /**
+     * Reads and parses one result, discarding the output as {@link BasicGMConnection#executeNoOutput(List)} does.
+     */
+    @Benchmark
+    public boolean readResultNoOutput() throws IOException {
+        return reader.readResult();
+    }
+
+    private static final class DiscardingStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+
+    private static final class RepeatingStream extends InputStream {
+        private static final int BYTE_MASK = 0xFF;
+        private final byte[] data;
+        private int position;
+
+        private RepeatingStream(byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public int read() {
+            int b = data[position] & BYTE_MASK;
+            position = (position + 1) % data.length;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            int n = Math.min(len, data.length - position);
+            System.arraycopy(data, position, b, off, n);
+            position = (position + n) % data.length;
+            return n;
+        }
+    }
+}
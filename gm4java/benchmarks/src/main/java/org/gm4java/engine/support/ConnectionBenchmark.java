@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import org.gm4java.engine.GMException;
+import org.gm4java.engine.GMServiceException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures one command through {@link BasicGMConnection}: quoting, encoding and sending the command, then reading and
+ * parsing the result, against a {@link StubProcess} that answers at once. With <code>streams=true</code> the
+ * connection uses {@link GMBatchCodec} as it does with a real GraphicsMagick process, otherwise it uses the reader and
+ * writer of the process.
+ *
+ * @author Kenneth Xu
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConnectionBenchmark {
+    private static final List<String> COMMAND = Arrays.asList("convert", "-resize", "800x600",
+            "/data/images/input image.jpg", "-quality", "85", "/data/images/output.jpg");
+
+    /**
+     * Whether the connection talks to the process through the byte streams or the reader and writer.
+     */
+    @Param({ "true", "false" })
+    public boolean streams;
+
+    /**
+     * The number of output lines of each command.
+     */
+    @Param({ "0", "10" })
+    public int outputLines;
+
+    private BasicGMConnection connection;
+
+    @Setup
+    public void setup() throws Exception {
+        connection = new BasicGMConnection(StubProcess.factory(outputLines, streams).getProcess(), StubProcess.CHARSET);
+    }
+
+    @Benchmark
+    public String execute() throws GMException, GMServiceException {
+        return connection.execute(COMMAND);
+    }
+
+    @Benchmark
+    public void executeNoOutput() throws GMException, GMServiceException {
+        connection.executeNoOutput(COMMAND);
+    }
+}
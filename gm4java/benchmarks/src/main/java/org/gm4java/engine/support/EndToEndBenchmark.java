@@ -0,0 +1,434 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import org.gm4java.engine.GMService;
+import org.gm4java.im4java.GMBatchCommand;
+import org.im4java.core.ConvertCmd;
+import org.im4java.core.IMOperation;
+import org.im4java.core.IdentifyCmd;
+import org.im4java.core.ImageCommand;
+import org.im4java.process.OutputConsumer;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Compares the ways of running the same GraphicsMagick command end to end: im4java's {@link ConvertCmd} and
+ * {@link IdentifyCmd} that start a process per command, {@link SimpleGMService} that starts a <code>gm batch</code>
+ * process per command, {@link PooledGMService} at several pool sizes and {@link GMBatchCommand} on top of the pooled
+ * service. It is not a JMH benchmark because the CPU used by the GraphicsMagick processes must be accounted for. Run it
+ * with
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar org.gm4java.engine.support.EndToEndBenchmark [--option=value ...]
+ * </pre>
+ *
+ * The options are
+ * <ul>
+ * <li><code>--gm=path</code>: the GraphicsMagick executable. Default to <code>gm</code> found in the <code>PATH</code>,
+ * or a stub that answers at once, backed by {@link GMBatchEmulator}, when there is none.</li>
+ * <li><code>--operations=convert,identify</code>: the commands to measure.</li>
+ * <li><code>--scenarios=ConvertCmd,SimpleGMService,PooledGMService,GMBatchCommand</code>: the ways to run them.</li>
+ * <li><code>--pools=1,2,...</code>: the pool sizes of {@link PooledGMService}. Default to 1, half and all of the
+ * threads.</li>
+ * <li><code>--threads=n</code>: the number of threads running the commands. Default to the number of CPUs.</li>
+ * <li><code>--warmup=seconds</code> and <code>--time=seconds</code>: the length of the warm up and the measurement.
+ * Default to 5 and 10.</li>
+ * <li><code>--out=file</code>: where to write the results. Default to the standard output.</li>
+ * </ul>
+ * Each measurement is written as one line of JSON with the throughput in operations per second, the mean, median,
+ * 99th and 99.9th percentile latency in microseconds, and the CPU time per operation in microseconds, both of the
+ * whole system and of this JVM alone. The CPU time of the whole system includes the GraphicsMagick processes, so it is
+ * only meaningful on an otherwise idle machine, and only available on Linux; -1 is written when it is not available.
+ *
+ * @author Kenneth Xu
+ *
+ */
+public final class EndToEndBenchmark {
+    private static final String CONVERT = "convert";
+    private static final String IDENTIFY = "identify";
+    private static final int IMAGE_WIDTH = 640;
+    private static final int IMAGE_HEIGHT = 480;
+    private static final int RESIZE_WIDTH = 320;
+    private static final int RESIZE_HEIGHT = 240;
+    private static final double PERCENTILE_50 = 0.5;
+    private static final int DEFAULT_WARMUP_SECONDS = 5;
+    private static final int DEFAULT_TIME_SECONDS = 10;
+    private static final long NANOS_PER_MICRO = TimeUnit.MICROSECONDS.toNanos(1);
+    private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+    private static final long NANOS_PER_TICK = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final int PROC_STAT_IDLE = 4;
+    private static final int PROC_STAT_IOWAIT = 5;
+    private static final int PROC_STAT_GUEST = 9;
+    private static final OutputConsumer DISCARD = new OutputConsumer() {
+        @Override
+        public void consumeOutput(InputStream in) throws IOException {
+            byte[] buffer = new byte[IMAGE_WIDTH];
+            while (in.read(buffer) >= 0) {
+                continue;
+            }
+        }
+    };
+
+    private final String gmPath;
+    private final String gmDescription;
+    private final File workDirectory;
+    private final File input;
+    private final int threads;
+    private final long warmupNanos;
+    private final long timeNanos;
+    private final PrintStream out;
+
+    private EndToEndBenchmark(String gm, int threads, int warmupSeconds, int timeSeconds, PrintStream out)
+            throws IOException {
+        this.threads = threads;
+        this.warmupNanos = TimeUnit.SECONDS.toNanos(warmupSeconds);
+        this.timeNanos = TimeUnit.SECONDS.toNanos(timeSeconds);
+        this.out = out;
+        workDirectory = File.createTempFile("gm4java-e2e", "");
+        if (!workDirectory.delete() || !workDirectory.mkdir()) throw new IOException("Cannot create " + workDirectory);
+        input = new File(workDirectory, "input.jpg");
+        ImageIO.write(new BufferedImage(IMAGE_WIDTH, IMAGE_HEIGHT, BufferedImage.TYPE_INT_RGB), "jpg", input);
+        String found = gm == null ? findInPath("gm") : gm;
+        if (found != null) {
+            gmPath = found;
+            gmDescription = found;
+        } else {
+            gmPath = writeStub().getPath();
+            gmDescription = "stub";
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        String gm = null;
+        String out = null;
+        List<String> operations = Arrays.asList(CONVERT, IDENTIFY);
+        List<String> scenarios = Arrays.asList("ConvertCmd", "SimpleGMService", "PooledGMService", "GMBatchCommand");
+        List<String> pools = null;
+        int threads = cpus;
+        int warmup = DEFAULT_WARMUP_SECONDS;
+        int time = DEFAULT_TIME_SECONDS;
+        for (String arg : args) {
+            int equal = arg.indexOf('=');
+            if (!arg.startsWith("--") || equal < 0) throw new IllegalArgumentException("Expected --option=value: " + arg);
+            String name = arg.substring(2, equal);
+            String value = arg.substring(equal + 1);
+            if ("gm".equals(name)) {
+                gm = value;
+            } else if ("operations".equals(name)) {
+                operations = Arrays.asList(value.split(","));
+            } else if ("scenarios".equals(name)) {
+                scenarios = Arrays.asList(value.split(","));
+            } else if ("pools".equals(name)) {
+                pools = Arrays.asList(value.split(","));
+            } else if ("threads".equals(name)) {
+                threads = Integer.parseInt(value);
+            } else if ("warmup".equals(name)) {
+                warmup = Integer.parseInt(value);
+            } else if ("time".equals(name)) {
+                time = Integer.parseInt(value);
+            } else if ("out".equals(name)) {
+                out = value;
+            } else {
+                throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+        if (pools == null) {
+            pools = new ArrayList<String>();
+            for (int size : new int[] { 1, threads / 2, threads }) {
+                if (size > 0 && !pools.contains(String.valueOf(size))) pools.add(String.valueOf(size));
+            }
+        }
+        PrintStream stream = out == null ? System.out : new PrintStream(new FileOutputStream(out, true), true, "UTF-8");
+        EndToEndBenchmark benchmark = new EndToEndBenchmark(gm, threads, warmup, time, stream);
+        for (String operation : operations) {
+            for (String scenario : scenarios) {
+                if ("PooledGMService".equals(scenario)) {
+                    for (String pool : pools) {
+                        benchmark.run(operation, scenario, Integer.parseInt(pool));
+                    }
+                } else {
+                    benchmark.run(operation, scenario, "GMBatchCommand".equals(scenario) ? threads : 0);
+                }
+            }
+        }
+        stream.close();
+        System.exit(0);
+    }
+
+    private void run(String operation, String scenario, int poolSize) throws Exception {
+        if (!CONVERT.equals(operation) && !IDENTIFY.equals(operation)) {
+            throw new IllegalArgumentException("Unknown operation " + operation);
+        }
+        ConnectionPool pool = null;
+        Invoker invoker;
+        if ("ConvertCmd".equals(scenario)) {
+            invoker = im4java(operation, null);
+        } else if ("SimpleGMService".equals(scenario)) {
+            SimpleGMService service = new SimpleGMService();
+            service.setGMPath(gmPath);
+            invoker = service(operation, service);
+        } else if ("PooledGMService".equals(scenario) || "GMBatchCommand".equals(scenario)) {
+            GMConnectionPoolConfig config = new GMConnectionPoolConfig();
+            config.setGMPath(gmPath);
+            config.setMaxActive(poolSize);
+            config.setMaxIdle(poolSize);
+            pool = config.getPoolEngine() == PoolEngine.CONCURRENT ? new ConcurrentGMConnectionPool(config)
+                    : new GMConnectionPool(config);
+            PooledGMService service = new PooledGMService(pool, config);
+            invoker = "GMBatchCommand".equals(scenario) ? im4java(operation, service) : service(operation, service);
+        } else {
+            throw new IllegalArgumentException("Unknown scenario " + scenario);
+        }
+        try {
+            runFor(invoker, warmupNanos, new Histogram(), new AtomicLong());
+            Histogram latency = new Histogram();
+            AtomicLong errors = new AtomicLong();
+            long systemCpu = systemCpuNanos();
+            long jvmCpu = jvmCpuNanos();
+            long elapsed = runFor(invoker, timeNanos, latency, errors);
+            jvmCpu = jvmCpu < 0 ? -1 : jvmCpuNanos() - jvmCpu;
+            systemCpu = systemCpu < 0 ? -1 : systemCpuNanos() - systemCpu;
+            report(operation, scenario, poolSize, elapsed, latency.snapshot(), errors.get(), systemCpu, jvmCpu);
+        } finally {
+            if (pool != null) pool.close();
+        }
+    }
+
+    private long runFor(final Invoker invoker, long nanos, final Histogram latency, final AtomicLong errors)
+            throws InterruptedException {
+        final long start = System.nanoTime();
+        final long deadline = start + nanos;
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final int index = i;
+            workers[i] = new Thread("E2E-" + i) {
+                @Override
+                public void run() {
+                    for (long now = System.nanoTime(); now < deadline;) {
+                        try {
+                            invoker.invoke(index);
+                        } catch (Exception e) {
+                            if (errors.getAndIncrement() == 0) e.printStackTrace();
+                        }
+                        long end = System.nanoTime();
+                        latency.record(end - now);
+                        now = end;
+                    }
+                }
+            };
+            workers[i].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return System.nanoTime() - start;
+    }
+
+    private void report(String operation, String scenario, int poolSize, long elapsedNanos, HistogramSnapshot latency,
+            long errors, long systemCpuNanos, long jvmCpuNanos) {
+        long count = latency.getCount();
+        out.println(String.format(Locale.ROOT, "{\"benchmark\":\"gm4java-e2e\",\"version\":\"%s\",\"gm\":\"%s\","
+                + "\"operation\":\"%s\",\"scenario\":\"%s\",\"poolSize\":%d,\"threads\":%d,\"seconds\":%.3f,"
+                + "\"operations\":%d,\"errors\":%d,\"throughput\":%.2f,\"meanMicros\":%.1f,\"p50Micros\":%.1f,"
+                + "\"p99Micros\":%.1f,\"p999Micros\":%.1f,\"maxMicros\":%.1f,\"cpuMicrosPerOp\":%.1f,"
+                + "\"jvmCpuMicrosPerOp\":%.1f}", version(), escape(gmDescription), operation, scenario, poolSize,
+                threads, elapsedNanos / NANOS_PER_SECOND, count, errors, count * NANOS_PER_SECOND / elapsedNanos,
+                latency.getMean() / NANOS_PER_MICRO, micros(latency.getPercentile(PERCENTILE_50)),
+                micros(latency.get99thPercentile()), micros(latency.get999thPercentile()), micros(latency.getMax()),
+                perOp(systemCpuNanos, count), perOp(jvmCpuNanos, count)));
+    }
+
+    private Invoker service(String operation, final GMService service) {
+        if (IDENTIFY.equals(operation)) {
+            final List<String> command = Arrays.asList(IDENTIFY, input.getPath());
+            return new Invoker() {
+                @Override
+                public void invoke(int thread) throws Exception {
+                    service.execute(command);
+                }
+            };
+        }
+        final List<List<String>> commands = new ArrayList<List<String>>();
+        for (int i = 0; i < threads; i++) {
+            commands.add(Arrays.asList(CONVERT, input.getPath(), "-resize", RESIZE_WIDTH + "x" + RESIZE_HEIGHT,
+                    output(i)));
+        }
+        return new Invoker() {
+            @Override
+            public void invoke(int thread) throws Exception {
+                service.executeNoOutput(commands.get(thread));
+            }
+        };
+    }
+
+    /**
+     * Runs the operation with im4java, through {@link GMBatchCommand} when the service is given, otherwise by
+     * starting a process per command.
+     */
+    private Invoker im4java(final String operation, final GMService service) {
+        final List<IMOperation> operations = new ArrayList<IMOperation>();
+        for (int i = 0; i < threads; i++) {
+            IMOperation op = new IMOperation();
+            op.addImage(input.getPath());
+            if (CONVERT.equals(operation)) {
+                op.resize(RESIZE_WIDTH, RESIZE_HEIGHT);
+                op.addImage(output(i));
+            }
+            operations.add(op);
+        }
+        final String searchPath = new File(gmPath).getParent();
+        return new Invoker() {
+            @Override
+            public void invoke(int thread) throws Exception {
+                ImageCommand command;
+                if (service != null) {
+                    command = new GMBatchCommand(service, operation);
+                } else {
+                    command = CONVERT.equals(operation) ? new ConvertCmd(true) : new IdentifyCmd(true);
+                    if (searchPath != null) command.setSearchPath(searchPath);
+                }
+                if (IDENTIFY.equals(operation)) command.setOutputConsumer(DISCARD);
+                command.run(operations.get(thread));
+            }
+        };
+    }
+
+    private String output(int thread) {
+        return new File(workDirectory, "output-" + thread + ".jpg").getPath();
+    }
+
+    /**
+     * Writes a <code>gm</code> script that runs {@link GMBatchEmulator} for <code>gm batch</code> and does nothing
+     * for any other command, so that each way of running a command pays for a real process start.
+     */
+    private File writeStub() throws IOException {
+        File stub = new File(workDirectory, "gm");
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        String classPath;
+        try {
+            classPath = new File(GMBatchEmulator.class.getProtectionDomain().getCodeSource().getLocation().toURI())
+                    .getPath();
+        } catch (java.net.URISyntaxException e) {
+            throw new IOException(e);
+        }
+        Writer writer = new OutputStreamWriter(new FileOutputStream(stub), "UTF-8");
+        try {
+            writer.write("#!/bin/sh\nif [ \"$1\" = batch ]; then\n  exec '" + java
+                    + "' -XX:TieredStopAtLevel=1 -XX:+UseSerialGC -Xmx16m -cp '" + classPath + "' "
+                    + GMBatchEmulator.class.getName() + " \"$@\"\nfi\n");
+        } finally {
+            writer.close();
+        }
+        if (!stub.setExecutable(true)) throw new IOException("Cannot make " + stub + " executable.");
+        return stub;
+    }
+
+    private static String findInPath(String name) {
+        String path = System.getenv("PATH");
+        if (path == null) return null;
+        for (String directory : path.split(File.pathSeparator)) {
+            File file = new File(directory, name);
+            if (file.isFile() && file.canExecute()) return file.getPath();
+        }
+        return null;
+    }
+
+    private static String version() {
+        InputStream in = GMService.class.getResourceAsStream("/META-INF/maven/com.sharneng/gm4java/pom.properties");
+        if (in == null) return "unknown";
+        try {
+            Properties properties = new Properties();
+            properties.load(in);
+            in.close();
+            return properties.getProperty("version", "unknown");
+        } catch (IOException e) {
+            return "unknown";
+        }
+    }
+
+    private static long jvmCpuNanos() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        }
+        return -1;
+    }
+
+    /**
+     * Reads the busy time of all CPUs from <code>/proc/stat</code>, assuming the usual 100 ticks per second. The guest
+     * time is left out as it is already counted in the user time.
+     */
+    private static long systemCpuNanos() {
+        File stat = new File("/proc/stat");
+        if (!stat.canRead()) return -1;
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(stat), "US-ASCII"));
+            try {
+                String[] fields = reader.readLine().trim().split("\\s+");
+                long ticks = 0;
+                for (int i = 1; i < Math.min(fields.length, PROC_STAT_GUEST); i++) {
+                    if (i != PROC_STAT_IDLE && i != PROC_STAT_IOWAIT) ticks += Long.parseLong(fields[i]);
+                }
+                return ticks * NANOS_PER_TICK;
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            return -1;
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
+    private static double micros(long nanos) {
+        return (double) nanos / NANOS_PER_MICRO;
+    }
+
+    private static double perOp(long nanos, long count) {
+        return nanos < 0 || count == 0 ? -1 : (double) nanos / count / NANOS_PER_MICRO;
+    }
+
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    private interface Invoker {
+        void invoke(int thread) throws Exception;
+    }
+}
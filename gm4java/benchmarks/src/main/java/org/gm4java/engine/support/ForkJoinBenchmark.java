@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import org.gm4java.engine.GMException;
+import org.gm4java.engine.GMServiceException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures an image pipeline run by a {@link ForkJoinPool}, the way a parallel stream runs it: the images are split in
+ * halves down to one {@link PooledGMService#execute(List)} per image. The {@link StubProcess}es take
+ * <i>latencyMicros</i> to answer each command, so the workers spend most of their time blocked on GraphicsMagick.
+ * <p>
+ * The fork/join pool has fewer workers than the GM pool has processes. As the blocking is managed by
+ * {@link ManagedBlocking}, the fork/join pool compensates for the blocked workers and the throughput grows with
+ * <i>maxActive</i>, until the CPUs are saturated, instead of being capped by <i>parallelism</i> processes at work.
+ *
+ * @author Kenneth Xu
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ForkJoinBenchmark {
+    private static final int IMAGES = 64;
+    private static final List<String> COMMAND = Arrays.asList("convert", "-resize", "800x600",
+            "/data/images/input image.jpg", "-quality", "85", "/data/images/output.jpg");
+
+    /**
+     * The maximum number of GraphicsMagick processes.
+     */
+    @Param({ "1", "2", "4", "8" })
+    public int maxActive;
+
+    /**
+     * The parallelism of the fork/join pool.
+     */
+    @Param({ "1" })
+    public int parallelism;
+
+    /**
+     * The time each command takes in GraphicsMagick.
+     */
+    @Param({ "2000" })
+    public int latencyMicros;
+
+    private PooledGMService service;
+    private ForkJoinPool pool;
+
+    @Setup
+    public void setup() {
+        GMConnectionPoolConfig config = new GMConnectionPoolConfig();
+        config.setMaxActive(maxActive);
+        config.setMaxIdle(maxActive);
+        service = new PooledGMService(config);
+        service.setProcessFactory(StubProcess.factory(1, true, latencyMicros));
+        pool = new ForkJoinPool(parallelism);
+    }
+
+    @TearDown
+    public void teardown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(IMAGES)
+    public void pipeline() {
+        pool.invoke(new Images(0, IMAGES));
+    }
+
+    /**
+     * Converts a range of the images.
+     */
+    private final class Images extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int start;
+        private final int end;
+
+        private Images(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start > 1) {
+                int middle = (start + end) >>> 1;
+                invokeAll(new Images(start, middle), new Images(middle, end));
+                return;
+            }
+            try {
+                service.execute(COMMAND);
+            } catch (GMException e) {
+                throw new IllegalStateException(e);
+            } catch (GMServiceException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
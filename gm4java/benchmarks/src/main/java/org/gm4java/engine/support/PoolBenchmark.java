@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import org.gm4java.engine.GMServiceException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures borrowing a connection from the pool and returning it right away, with 1, 4 and as many threads as there
+ * are CPUs sharing one pool. The connections are created on the first borrows during the warm-up, so only the pool
+ * itself is measured. When there are more threads than <i>maxActive</i>, the threads block waiting for each other.
+ *
+ * @author Kenneth Xu
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PoolBenchmark {
+    /**
+     * The pool implementation.
+     */
+    @Param({ "COMMONS_POOL", "CONCURRENT" })
+    public PoolEngine engine;
+
+    /**
+     * The maximum number of connections.
+     */
+    @Param({ "8" })
+    public int maxActive;
+
+    /**
+     * Whether a thread reclaims the connection it returned last, only supported by {@link PoolEngine#CONCURRENT}.
+     */
+    @Param({ "false" })
+    public boolean threadAffinity;
+
+    private ConnectionPool pool;
+
+    @Setup
+    public void setup() {
+        GMConnectionPoolConfig config = new GMConnectionPoolConfig();
+        config.setPoolEngine(engine);
+        config.setMaxActive(maxActive);
+        config.setMaxIdle(maxActive);
+        config.setThreadAffinity(threadAffinity);
+        pool = engine == PoolEngine.CONCURRENT ? new ConcurrentGMConnectionPool(config) : new GMConnectionPool(config);
+        pool.setProcessFactory(StubProcess.factory(0, true));
+    }
+
+    @TearDown
+    public void teardown() throws Exception {
+        pool.close();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void borrowReturn1() throws GMServiceException {
+        pool.returnObject(pool.borrowObject());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void borrowReturn4() throws GMServiceException {
+        pool.returnObject(pool.borrowObject());
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void borrowReturnMax() throws GMServiceException {
+        pool.returnObject(pool.borrowObject());
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import org.gm4java.engine.GMException;
+import org.gm4java.engine.GMServiceException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link PooledGMService#execute(List)} end to end, from borrowing a connection to returning it with the
+ * result, against {@link StubProcess}es that answer at once. It runs with 1, 4 and as many threads as there are CPUs
+ * sharing one service.
+ *
+ * @author Kenneth Xu
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServiceBenchmark {
+    private static final List<String> COMMAND = Arrays.asList("convert", "-resize", "800x600",
+            "/data/images/input image.jpg", "-quality", "85", "/data/images/output.jpg");
+
+    /**
+     * The pool implementation.
+     */
+    @Param({ "COMMONS_POOL", "CONCURRENT" })
+    public PoolEngine engine;
+
+    /**
+     * The maximum number of GraphicsMagick processes.
+     */
+    @Param({ "8" })
+    public int maxActive;
+
+    /**
+     * The number of commands in flight per process, 1 disables pipelining.
+     */
+    @Param({ "1" })
+    public int pipelineDepth;
+
+    /**
+     * The number of output lines of each command.
+     */
+    @Param({ "1" })
+    public int outputLines;
+
+    private PooledGMService service;
+
+    @Setup
+    public void setup() {
+        GMConnectionPoolConfig config = new GMConnectionPoolConfig();
+        config.setPoolEngine(engine);
+        config.setMaxActive(maxActive);
+        config.setMaxIdle(maxActive);
+        config.setPipelineDepth(pipelineDepth);
+        service = new PooledGMService(config);
+        service.setProcessFactory(StubProcess.factory(outputLines, true));
+    }
+
+    @Benchmark
+    @Threads(1)
+    public String execute1() throws GMException, GMServiceException {
+        return service.execute(COMMAND);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String execute4() throws GMException, GMServiceException {
+        return service.execute(COMMAND);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public String executeMax() throws GMException, GMServiceException {
+        return service.execute(COMMAND);
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An in-process stand-in of a GraphicsMagick process in batch mode. Every command line written to it is answered at
+ * once with the given number of output lines followed by the pass marker. Nothing is allocated per command, so only the
+ * cost of gm4java is measured. A latency can be given to make the reader wait for every reply, as if the command took
+ * that long to process.
+ * <p>
+ * The command is written by one thread and the result may be read by another, as in pipelined mode, but there is only
+ * one writer and one reader at a time.
+ *
+ * @author Kenneth Xu
+ *
+ */
+final class StubProcess implements StreamProcess {
+    static final Charset CHARSET = Charset.forName("UTF-8");
+    private static final int BYTE_MASK = 0xFF;
+    private static final String OUTPUT_LINE = "input.jpg JPEG 800x600+0+0 DirectClass 8-bit 95.2K 0.000u 0:01";
+
+    private final byte[] reply;
+    private final long latencyNanos;
+    private final AtomicInteger pending = new AtomicInteger();
+    private final OutputStream out;
+    private final InputStream in;
+    private final Writer writer;
+    private final BufferedReader reader;
+
+    private StubProcess(int outputLines, long latencyNanos) {
+        reply = reply(outputLines);
+        this.latencyNanos = latencyNanos;
+        out = new CommandStream();
+        in = new ReplyStream();
+        writer = new OutputStreamWriter(out, CHARSET);
+        reader = new BufferedReader(new InputStreamReader(in, CHARSET));
+    }
+
+    /**
+     * Gets the bytes the stub answers a command with.
+     *
+     * @param outputLines
+     *            the number of output lines before the pass marker
+     * @return the reply
+     */
+    static byte[] reply(int outputLines) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < outputLines; i++) {
+            sb.append(OUTPUT_LINE).append('\n');
+        }
+        return sb.append(Constants.GM_PASS).append('\n').toString().getBytes(CHARSET);
+    }
+
+    /**
+     * Gets a factory of the stub processes.
+     *
+     * @param outputLines
+     *            the number of output lines of every command
+     * @param streams
+     *            true to expose the byte streams so that the connections use {@link GMBatchCodec}, or false to make
+     *            the connections use the reader and writer.
+     * @return the factory
+     */
+    static ReaderWriterProcess.Factory factory(int outputLines, boolean streams) {
+        return factory(outputLines, streams, 0);
+    }
+
+    /**
+     * Gets a factory of the stub processes that take some time to answer every command.
+     *
+     * @param outputLines
+     *            the number of output lines of every command
+     * @param streams
+     *            true to expose the byte streams so that the connections use {@link GMBatchCodec}, or false to make
+     *            the connections use the reader and writer.
+     * @param latencyMicros
+     *            the time the reader waits before each reply, 0 to answer at once
+     * @return the factory
+     */
+    static ReaderWriterProcess.Factory factory(final int outputLines, final boolean streams, int latencyMicros) {
+        final long latencyNanos = TimeUnit.MICROSECONDS.toNanos(latencyMicros);
+        return new ReaderWriterProcess.Factory() {
+            @Override
+            public ReaderWriterProcess getProcess(String... command) {
+                StubProcess process = new StubProcess(outputLines, latencyNanos);
+                return streams ? process : new ReaderWriterOnly(process);
+            }
+        };
+    }
+
+    @Override
+    public Writer getWriter() {
+        return writer;
+    }
+
+    @Override
+    public BufferedReader getReader() {
+        return reader;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return out;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return in;
+    }
+
+    @Override
+    public boolean isAlive() {
+        return true;
+    }
+
+    @Override
+    public long getPid() {
+        return -1;
+    }
+
+    @Override
+    public void destroy() {
+    }
+
+    /**
+     * Counts the command lines written.
+     */
+    private final class CommandStream extends OutputStream {
+        @Override
+        public void write(int b) {
+            if (b == '\n') pending.incrementAndGet();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            for (int i = off, end = off + len; i < end; i++) {
+                if (b[i] == '\n') pending.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Serves one reply per command line written. Only the bytes of the replies due are available, like a pipe.
+     */
+    private final class ReplyStream extends InputStream {
+        private int position = reply.length;
+
+        @Override
+        public int read() {
+            if (!next()) return -1;
+            return reply[position++] & BYTE_MASK;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) return 0;
+            int n = 0;
+            while (n < len && next()) {
+                int count = Math.min(len - n, reply.length - position);
+                System.arraycopy(reply, position, b, off + n, count);
+                position += count;
+                n += count;
+            }
+            return n == 0 ? -1 : n;
+        }
+
+        @Override
+        public int available() {
+            return reply.length - position + pending.get() * reply.length;
+        }
+
+        private boolean next() {
+            if (position < reply.length) return true;
+            for (int p = pending.get(); p > 0; p = pending.get()) {
+                if (pending.compareAndSet(p, p - 1)) {
+                    if (latencyNanos > 0) LockSupport.parkNanos(latencyNanos);
+                    position = 0;
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Hides the byte streams.
+     */
+    private static final class ReaderWriterOnly implements ReaderWriterProcess {
+        private final StubProcess process;
+
+        private ReaderWriterOnly(StubProcess process) {
+            this.process = process;
+        }
+
+        @Override
+        public Writer getWriter() {
+            return process.getWriter();
+        }
+
+        @Override
+        public BufferedReader getReader() {
+            return process.getReader();
+        }
+
+        @Override
+        public boolean isAlive() {
+            return process.isAlive();
+        }
+
+        @Override
+        public long getPid() {
+            return process.getPid();
+        }
+
+        @Override
+        public void destroy() {
+            process.destroy();
+        }
+    }
+}
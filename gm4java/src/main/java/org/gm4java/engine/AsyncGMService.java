@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine;
+
+import java.util.List;
+import java.util.concurrent.Future;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * A {@link GMService} that can also execute commands asynchronously. The caller thread only submits the command and
+ * returns immediately, the command is executed later by a thread owned by the service.
+ * <p>
+ * Implementations of this interface must ensure all the methods defined in this interface are thread safe.
+ * 
+ * @author Kenneth Xu
+ * 
+ */
+public interface AsyncGMService extends GMService {
+    /**
+     * Submits the command for asynchronous execution. This is same as calling
+     * {@link #executeAsync(List, GMCallback) executeAsync(command, null)}.
+     * 
+     * @param command
+     *            the command and arguments to be executed
+     * @return a {@link Future} representing the pending output from GraphicsMagick. Its {@link Future#get() get}
+     *         method throws {@link java.util.concurrent.ExecutionException} whose cause is the {@link GMException} or
+     *         {@link GMServiceException} that the synchronous {@link #execute(List)} would have thrown.
+     * @throws NullPointerException
+     *             when command is null
+     * @throws IllegalArgumentException
+     *             when command is an empty list.
+     * @throws GMServiceException
+     *             when the command cannot be accepted for execution, e.g. the submission queue is full.
+     * @see #executeAsync(List, GMCallback)
+     */
+    @Nonnull
+    Future<String> executeAsync(@Nonnull List<String> command) throws GMServiceException;
+
+    /**
+     * Submits the command for asynchronous execution and notifies the given callback upon completion.
+     * <p>
+     * This method is thread safe.
+     * 
+     * @param command
+     *            the command and arguments to be executed
+     * @param callback
+     *            callback to be notified when the execution completes, or null if no notification is needed.
+     * @return a {@link Future} representing the pending output from GraphicsMagick. Its {@link Future#get() get}
+     *         method throws {@link java.util.concurrent.ExecutionException} whose cause is the {@link GMException} or
+     *         {@link GMServiceException} that the synchronous {@link #execute(List)} would have thrown.
+     * @throws NullPointerException
+     *             when command is null
+     * @throws IllegalArgumentException
+     *             when command is an empty list.
+     * @throws GMServiceException
+     *             when the command cannot be accepted for execution, e.g. the submission queue is full. The callback is
+     *             not notified in this case.
+     */
+    @Nonnull
+    Future<String> executeAsync(@Nonnull List<String> command, @CheckForNull GMCallback callback)
+            throws GMServiceException;
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Receives the completion notification of a command submitted to {@link AsyncGMService}.
+ * <p>
+ * Callbacks are invoked by the thread that executed the command. Implementations should return quickly and must not
+ * block, otherwise they hold up the threads that feed the GraphicsMagick processes.
+ * 
+ * @author Kenneth Xu
+ * 
+ */
+public interface GMCallback {
+    /**
+     * Called when the command completed successfully.
+     * 
+     * @param output
+     *            the output from GraphicsMagick as the result of executing the command
+     */
+    void onSuccess(String output);
+
+    /**
+     * Called when the command failed or was cancelled.
+     * 
+     * @param cause
+     *            {@link GMException} when GraphicsMagick returns error executing the command,
+     *            {@link GMServiceException} when there is error communicating with the underlying GraphicsMagick
+     *            process, {@link java.util.concurrent.CancellationException} when the command was cancelled, or any
+     *            other unexpected exception.
+     */
+    void onFailure(@Nonnull Throwable cause);
+}
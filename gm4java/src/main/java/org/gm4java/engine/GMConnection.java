@@ -90,6 +90,84 @@ public interface GMConnection {
      */
     String execute(@Nonnull List<String> command) throws GMException, GMServiceException;
 
+    /**
+     * Executes the command using the underlying GraphicsMagick process, and passes the output to the handler line by
+     * line while it is being read, instead of returning it as one string.
+     * <p>
+     * When GraphicsMagick returns error, the {@link GMException} thrown carries the last part of the output as its
+     * message. The lines of that output have already been passed to the handler unless it asked to stop.
+     * 
+     * @param command
+     *            the command and arguments to be executed
+     * @param handler
+     *            the handler to receive the output
+     * @throws NullPointerException
+     *             when command or handler is null
+     * @throws IllegalArgumentException
+     *             when command is an empty list.
+     * @throws GMException
+     *             when GraphicsMagick returns error executing the command
+     * @throws GMServiceException
+     *             when there is error communicating with the underlying GraphicsMagick process
+     * @see #execute(List)
+     * @see GMOutputHandler
+     */
+    void execute(@Nonnull List<String> command, @Nonnull GMOutputHandler handler) throws GMException,
+            GMServiceException;
+
+    /**
+     * Executes the command using the underlying GraphicsMagick process for its effect only, e.g. <code>convert</code>
+     * that writes to a file. The output is not kept unless GraphicsMagick returns error, in which case it becomes the
+     * message of the {@link GMException} thrown.
+     * 
+     * @param command
+     *            the command and arguments to be executed
+     * @throws NullPointerException
+     *             when command is null
+     * @throws IllegalArgumentException
+     *             when command is an empty list.
+     * @throws GMException
+     *             when GraphicsMagick returns error executing the command
+     * @throws GMServiceException
+     *             when there is error communicating with the underlying GraphicsMagick process
+     * @see #execute(List)
+     */
+    void executeNoOutput(@Nonnull List<String> command) throws GMException, GMServiceException;
+
+    /**
+     * Executes a batch of commands using the underlying GraphicsMagick process. Each command and its arguments are
+     * passed in as a list of strings like {@link #execute(List)}.
+     * <p>
+     * The commands are sent to GraphicsMagick together, with one flush for as many commands as possible, and the
+     * results are read back afterwards. This amortizes the per command communication overhead which dominates the
+     * execution of large number of small commands.
+     * 
+     * @param commands
+     *            the commands to be executed, each is a list of command and arguments
+     * @return the results of the commands in the same order as the commands. A command that GraphicsMagick returned
+     *         error for, or that couldn't be executed because the communication with GraphicsMagick process failed
+     *         during the batch, has a failed {@link GMResult}.
+     * @throws NullPointerException
+     *             when commands or any command in it is null
+     * @throws IllegalArgumentException
+     *             when any command is an empty list.
+     * @throws GMServiceException
+     *             when the connection is closed
+     * @see #execute(List)
+     */
+    @Nonnull
+    List<GMResult> executeBatch(@Nonnull List<List<String>> commands) throws GMServiceException;
+
+    /**
+     * Sets the maximum time each of the subsequent commands may take. When GraphicsMagick doesn't complete a command in
+     * time, e.g. it hangs on a corrupted image, the underlying GraphicsMagick process is destroyed, the command fails
+     * with {@link GMServiceTimeoutException} and this connection can no longer be used.
+     * 
+     * @param commandTimeoutMillis
+     *            the timeout of each command in milliseconds, non-positive value means no timeout.
+     */
+    void setCommandTimeoutMillis(long commandTimeoutMillis);
+
     /**
      * Close {@linkplain GMConnection} and destroy the underlying GraphicsMagick process.
      * 
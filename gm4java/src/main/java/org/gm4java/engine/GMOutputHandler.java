@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Receives the output of a GraphicsMagick command line by line as it is read from the GraphicsMagick process. This
+ * allows large output, e.g. from <code>identify -verbose</code>, to be parsed incrementally without ever being held in
+ * memory as a whole.
+ *
+ * @author Kenneth Xu
+ *
+ * @see GMConnection#execute(java.util.List, GMOutputHandler)
+ */
+public interface GMOutputHandler {
+    /**
+     * Handles one line of the output.
+     * <p>
+     * Returning false stops the delivery of the output of current command. The rest of the output is still read from
+     * GraphicsMagick, so that the connection stays usable, but is discarded. If this method throws a runtime exception,
+     * the rest of the output is discarded the same way and then the exception is propagated to the caller of execute.
+     *
+     * @param line
+     *            the line of output without line separator
+     * @return true to continue receiving the output, or false to discard the rest of it.
+     */
+    boolean handleLine(@Nonnull String line);
+}
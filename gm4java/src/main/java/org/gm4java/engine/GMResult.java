@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * The result of one command executed as part of a batch. It holds either the output from GraphicsMagick or the
+ * exception that {@link GMConnection#execute(java.util.List)} would have thrown for the command.
+ * 
+ * @author Kenneth Xu
+ * 
+ * @see GMConnection#executeBatch(java.util.List)
+ */
+public final class GMResult {
+    private final String output;
+    private final Exception exception;
+
+    private GMResult(String output, Exception exception) {
+        this.output = output;
+        this.exception = exception;
+    }
+
+    /**
+     * Creates a result of a command that was executed successfully.
+     * 
+     * @param output
+     *            the output from GraphicsMagick
+     * @return the successful result
+     */
+    @Nonnull
+    public static GMResult success(String output) {
+        return new GMResult(output, null);
+    }
+
+    /**
+     * Creates a result of a command that GraphicsMagick returned error.
+     * 
+     * @param exception
+     *            the error returned by GraphicsMagick
+     * @return the failed result
+     */
+    @Nonnull
+    public static GMResult failure(@Nonnull GMException exception) {
+        if (exception == null) throw new NullPointerException("exception");
+        return new GMResult(null, exception);
+    }
+
+    /**
+     * Creates a result of a command that could not be executed due to error communicating with the GraphicsMagick
+     * process.
+     * 
+     * @param exception
+     *            the communication error
+     * @return the failed result
+     */
+    @Nonnull
+    public static GMResult failure(@Nonnull GMServiceException exception) {
+        if (exception == null) throw new NullPointerException("exception");
+        return new GMResult(null, exception);
+    }
+
+    /**
+     * Tells whether the command was executed successfully.
+     * 
+     * @return true if the command was executed successfully, otherwise false
+     */
+    public boolean isSuccess() {
+        return exception == null;
+    }
+
+    /**
+     * Gets the output of the command, or throws the exception if the command has failed.
+     * 
+     * @return the output from GraphicsMagick as the result of executing the command
+     * @throws GMException
+     *             when GraphicsMagick returned error executing the command
+     * @throws GMServiceException
+     *             when there was error communicating with the underlying GraphicsMagick process
+     */
+    public String getOutput() throws GMException, GMServiceException {
+        if (exception instanceof GMException) throw (GMException) exception;
+        if (exception instanceof GMServiceException) throw (GMServiceException) exception;
+        return output;
+    }
+
+    /**
+     * Gets the exception of a failed command.
+     * 
+     * @return a {@link GMException} or {@link GMServiceException} if the command failed, or null if the command was
+     *         executed successfully.
+     */
+    @CheckForNull
+    public Exception getException() {
+        return exception;
+    }
+
+    @Override
+    public String toString() {
+        return isSuccess() ? "GMResult[success: " + output + "]" : "GMResult[failure: " + exception + "]";
+    }
+}
@@ -15,6 +15,8 @@
  */
 package org.gm4java.engine;
 
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.List;
 
 import javax.annotation.Nonnull;
@@ -28,6 +30,19 @@ import javax.annotation.Nonnull;
  * 
  */
 public interface GMService {
+    /**
+     * Placeholder of the path to the input image in the command passed to {@link #executeImage(List, ByteBuffer)}. It
+     * can be prefixed by the format, e.g. <code>"png:" + INPUT</code>.
+     */
+    String INPUT = "${input}";
+
+    /**
+     * Placeholder of the path to the output image in the command passed to {@link #executeImage(List, ByteBuffer)}. The
+     * path has no file extension, so GraphicsMagick writes the output in the format of the input unless it is prefixed
+     * by the format, e.g. <code>"jpg:" + OUTPUT</code>.
+     */
+    String OUTPUT = "${output}";
+
     /**
      * Executes the GraphisMagick command and return the result.
      * <p>
@@ -95,6 +110,192 @@ public interface GMService {
      */
     String execute(@Nonnull List<String> command) throws GMException, GMServiceException;
 
+    /**
+     * Executes the command using the underlying GraphicsMagick process, and passes the output to the handler line by
+     * line while it is being read.
+     * <p>
+     * This is a convenient method to {@link #getConnection() get the connection},
+     * {@link GMConnection#execute(List, GMOutputHandler) execute} the command once and {@link GMConnection#close()
+     * close} it. It is functionally equivalent to code below, but actual implementation may optimize this for better
+     * efficiency.
+     * 
+     * <pre>
+     * final GMConnection connection = gmService.getConnection();
+     * try {
+     *     connection.execute(command, handler);
+     * } finally {
+     *     connection.close();
+     * }
+     * </pre>
+     * <p>
+     * This method is thread safe.
+     * 
+     * @param command
+     *            the command and arguments to be executed
+     * @param handler
+     *            the handler to receive the output
+     * @throws NullPointerException
+     *             when command or handler is null
+     * @throws IllegalArgumentException
+     *             when command is an empty list.
+     * @throws GMException
+     *             when GraphicsMagick returns error executing the command
+     * @throws GMServiceException
+     *             when there is error communicating with the underlying GraphicsMagick process
+     * @see GMConnection#execute(List, GMOutputHandler)
+     */
+    void execute(@Nonnull List<String> command, @Nonnull GMOutputHandler handler) throws GMException,
+            GMServiceException;
+
+    /**
+     * Executes the command using the underlying GraphicsMagick process for its effect only. The output is not kept
+     * unless GraphicsMagick returns error.
+     * <p>
+     * This is a convenient method to {@link #getConnection() get the connection},
+     * {@link GMConnection#executeNoOutput(List) execute} the command once and {@link GMConnection#close() close} it. It
+     * is functionally equivalent to code below, but actual implementation may optimize this for better efficiency.
+     * 
+     * <pre>
+     * final GMConnection connection = gmService.getConnection();
+     * try {
+     *     connection.executeNoOutput(command);
+     * } finally {
+     *     connection.close();
+     * }
+     * </pre>
+     * <p>
+     * This method is thread safe.
+     * 
+     * @param command
+     *            the command and arguments to be executed
+     * @throws NullPointerException
+     *             when command is null
+     * @throws IllegalArgumentException
+     *             when command is an empty list.
+     * @throws GMException
+     *             when GraphicsMagick returns error executing the command
+     * @throws GMServiceException
+     *             when there is error communicating with the underlying GraphicsMagick process
+     * @see GMConnection#executeNoOutput(List)
+     */
+    void executeNoOutput(@Nonnull List<String> command) throws GMException, GMServiceException;
+
+    /**
+     * Executes a batch of commands using the underlying GraphicsMagick process.
+     * <p>
+     * This is a convenient method to {@link #getConnection() get the connection},
+     * {@link GMConnection#executeBatch(List) execute} the commands and {@link GMConnection#close() close} it. It is
+     * functionally equivalent to code below, but actual implementation may optimize this for better efficiency.
+     * 
+     * <pre>
+     * final GMConnection connection = gmService.getConnection();
+     * try {
+     *     return connection.executeBatch(commands);
+     * } finally {
+     *     connection.close();
+     * }
+     * </pre>
+     * <p>
+     * This method is thread safe.
+     * 
+     * @param commands
+     *            the commands to be executed, each is a list of command and arguments
+     * @return the results of the commands in the same order as the commands
+     * @throws NullPointerException
+     *             when commands or any command in it is null
+     * @throws IllegalArgumentException
+     *             when any command is an empty list.
+     * @throws GMServiceException
+     *             when communicate error occurs between the physical GraphicsMagick process.
+     * @see GMConnection#executeBatch(List)
+     */
+    @Nonnull
+    List<GMResult> executeBatch(@Nonnull List<List<String>> commands) throws GMServiceException;
+
+    /**
+     * Executes the command on an image held in memory and returns the image written by GraphicsMagick. The command
+     * refers to the input image by {@link #INPUT} and to the output image by {@link #OUTPUT}, e.g.
+     * 
+     * <pre>
+     * List&lt;String&gt; command = Arrays.asList(&quot;convert&quot;, GMService.INPUT, &quot;-resize&quot;,
+     *         &quot;100x100&quot;, &quot;jpg:&quot; + GMService.OUTPUT);
+     * ByteBuffer thumbnail = gmService.executeImage(command, image);
+     * </pre>
+     * <p>
+     * The images are passed through temporary files in a memory backed file system when available, which are deleted
+     * before this method returns.
+     * <p>
+     * This method is thread safe.
+     * 
+     * @param command
+     *            the command and arguments to be executed, with the placeholders of input and output image
+     * @param input
+     *            the input image from its position to its limit, the position is not changed
+     * @return the output image
+     * @throws NullPointerException
+     *             when command or input is null
+     * @throws IllegalArgumentException
+     *             when command has no {@link #INPUT} or {@link #OUTPUT} placeholder
+     * @throws GMException
+     *             when GraphicsMagick returns error executing the command
+     * @throws GMServiceException
+     *             when there is error communicating with the underlying GraphicsMagick process or staging the images
+     */
+    @Nonnull
+    ByteBuffer executeImage(@Nonnull List<String> command, @Nonnull ByteBuffer input) throws GMException,
+            GMServiceException;
+
+    /**
+     * Executes the command on an image held in memory and returns the image written by GraphicsMagick. This is
+     * equivalent to <code>executeImage(command, ByteBuffer.wrap(input))</code>.
+     * <p>
+     * This method is thread safe.
+     * 
+     * @param command
+     *            the command and arguments to be executed, with the placeholders of input and output image
+     * @param input
+     *            the input image
+     * @return the output image
+     * @throws NullPointerException
+     *             when command or input is null
+     * @throws IllegalArgumentException
+     *             when command has no {@link #INPUT} or {@link #OUTPUT} placeholder
+     * @throws GMException
+     *             when GraphicsMagick returns error executing the command
+     * @throws GMServiceException
+     *             when there is error communicating with the underlying GraphicsMagick process or staging the images
+     * @see #executeImage(List, ByteBuffer)
+     */
+    @Nonnull
+    ByteBuffer executeImage(@Nonnull List<String> command, @Nonnull byte[] input) throws GMException,
+            GMServiceException;
+
+    /**
+     * Executes the command on an image read from the stream and returns the image written by GraphicsMagick. The
+     * stream is read to its end but not closed.
+     * <p>
+     * This method is thread safe.
+     * 
+     * @param command
+     *            the command and arguments to be executed, with the placeholders of input and output image
+     * @param input
+     *            the stream of the input image
+     * @return the output image
+     * @throws NullPointerException
+     *             when command or input is null
+     * @throws IllegalArgumentException
+     *             when command has no {@link #INPUT} or {@link #OUTPUT} placeholder
+     * @throws GMException
+     *             when GraphicsMagick returns error executing the command
+     * @throws GMServiceException
+     *             when there is error communicating with the underlying GraphicsMagick process, reading the stream or
+     *             staging the images
+     * @see #executeImage(List, ByteBuffer)
+     */
+    @Nonnull
+    ByteBuffer executeImage(@Nonnull List<String> command, @Nonnull InputStream input) throws GMException,
+            GMServiceException;
+
     /**
      * Gets an instance of {@link GMConnection}. Depends on the implementation, the instance can be newly created or
      * from a pool.
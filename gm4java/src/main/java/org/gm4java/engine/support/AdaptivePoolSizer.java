@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Decides the size of a pool from the load observed between two runs of the idle connection evictor.
+ * <p>
+ * The number of connections needed is estimated by Little's law, the rate of borrowing times the average time a
+ * connection is held, plus some headroom. The pool grows faster when borrowers wait longer than the target wait time,
+ * but it doesn't grow while the CPU is saturated as more GraphicsMagick processes wouldn't do more work then. It
+ * shrinks by half of the surplus per run so that a short lull doesn't throw away all the processes. The size always
+ * stays between <i>minIdle</i> (at least one) and <i>maxActive</i>.
+ *
+ * @author Kenneth Xu
+ *
+ * @see GMConnectionPoolConfig#setAdaptiveSizing(boolean)
+ */
+class AdaptivePoolSizer {
+    private static final double HEADROOM = 1.25;
+    private static final int GROWTH_DIVISOR = 4;
+
+    private final int lower;
+    private final int upper;
+    private final long targetWaitNanos;
+    private final double maxCpuLoad;
+
+    private final AtomicLong borrows = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong returns = new AtomicLong();
+    private final AtomicLong holdNanos = new AtomicLong();
+
+    private long lastAdjustNanos = System.nanoTime();
+    private long serviceNanos;
+    private volatile int size;
+
+    AdaptivePoolSizer(@Nonnull GMConnectionPoolConfig config) {
+        upper = config.getMaxActive() > 0 ? config.getMaxActive() : Integer.MAX_VALUE;
+        lower = Math.min(Math.max(config.getMinIdle(), 1), upper);
+        targetWaitNanos = TimeUnit.MILLISECONDS.toNanos(config.getTargetBorrowWaitMillis());
+        maxCpuLoad = config.getMaxCpuLoad();
+        size = upper;
+    }
+
+    /**
+     * Records the time a borrower waited for a connection.
+     */
+    void recordBorrow(long waitedNanos) {
+        borrows.incrementAndGet();
+        waitNanos.addAndGet(waitedNanos);
+    }
+
+    /**
+     * Records the time a connection was held by the borrower.
+     */
+    void recordReturn(long heldNanos) {
+        returns.incrementAndGet();
+        holdNanos.addAndGet(heldNanos);
+    }
+
+    /**
+     * Gets the current size.
+     *
+     * @return the maximum number of connections the pool should keep
+     */
+    int getSize() {
+        return size;
+    }
+
+    /**
+     * Computes the new size from the load observed since last call. It is only called by the evictor.
+     *
+     * @param nowNanos
+     *            current value of {@link System#nanoTime()}
+     * @return the new size
+     */
+    int adjust(long nowNanos) {
+        long elapsed = nowNanos - lastAdjustNanos;
+        if (elapsed <= 0) return size;
+        lastAdjustNanos = nowNanos;
+        long borrowed = borrows.getAndSet(0);
+        long waited = waitNanos.getAndSet(0);
+        long returned = returns.getAndSet(0);
+        long held = holdNanos.getAndSet(0);
+        if (returned > 0) serviceNanos = held / returned;
+
+        int current = size;
+        double demand = (double) borrowed * serviceNanos / elapsed;
+        long target = (long) Math.ceil(demand * HEADROOM);
+        if (borrowed > 0 && waited / borrowed > targetWaitNanos) {
+            target = Math.max(target, (long) current + Math.max(1, current / GROWTH_DIVISOR));
+        }
+        if (target > current && cpuLoad() >= maxCpuLoad) target = current;
+        if (target < current) target = current - Math.max(1, (current - target) / 2);
+        size = (int) Math.max(lower, Math.min(upper, target));
+        return size;
+    }
+
+    /**
+     * Gets the recent CPU usage of the whole system.
+     *
+     * @return a value between 0 and 1, or a negative value if it is not available.
+     */
+    double cpuLoad() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getSystemCpuLoad();
+        }
+        double load = os.getSystemLoadAverage();
+        return load < 0 ? load : load / os.getAvailableProcessors();
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import org.gm4java.engine.GMCallback;
+import org.gm4java.engine.GMService;
+import org.gm4java.engine.GMServiceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * Executes commands on behalf of {@link PooledGMService#executeAsync(List, GMCallback)} using a fixed number of daemon
+ * threads fed by a bounded submission queue.
+ * <p>
+ * Threads are started on demand and die after being idle for a while, so an unused dispatcher costs nothing.
+ * 
+ * @author Kenneth Xu
+ * 
+ */
+final class AsyncDispatcher {
+    private static final Logger LOGGER = LoggerFactory.getLogger(AsyncDispatcher.class);
+    private static final long KEEP_ALIVE_SECONDS = 60;
+    private static final AtomicInteger DISPATCHER_SEQUENCE = new AtomicInteger();
+
+    private final GMService service;
+    private final ThreadPoolExecutor executor;
+
+    AsyncDispatcher(@Nonnull GMService service, int threads, int queueSize, @Nonnull WhenQueueFullAction action) {
+        if (service == null) throw new NullPointerException("service");
+        if (action == null) throw new NullPointerException("action");
+        if (threads <= 0) throw new IllegalArgumentException("threads must be positive but was " + threads);
+        if (queueSize <= 0) throw new IllegalArgumentException("queueSize must be positive but was " + queueSize);
+        this.service = service;
+        executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new DaemonThreadFactory(), rejectionHandler(action));
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    @Nonnull
+    Future<String> submit(@Nonnull final List<String> command, @CheckForNull GMCallback callback)
+            throws GMServiceException {
+        if (command == null) throw new NullPointerException("Argument 'command' must not be null");
+        if (command.size() == 0) throw new IllegalArgumentException("Argument 'command' must not be empty");
+        Task task = new Task(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return service.execute(command);
+            }
+        }, callback);
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            throw new GMServiceException("Unable to accept command for asynchronous execution: " + e.getMessage(), e);
+        }
+        return task;
+    }
+
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    private static RejectedExecutionHandler rejectionHandler(WhenQueueFullAction action) {
+        switch (action) {
+        case BLOCK:
+            return new BlockPolicy();
+        case CALLER_RUNS:
+            return new ThreadPoolExecutor.CallerRunsPolicy();
+        case FAIL:
+            return new ThreadPoolExecutor.AbortPolicy();
+        default:
+            throw new IllegalArgumentException("WhenQueueFullAction " + action + " not recognized.");
+        }
+    }
+
+    private static final class Task extends FutureTask<String> {
+        private final GMCallback callback;
+
+        private Task(Callable<String> callable, GMCallback callback) {
+            super(callable);
+            this.callback = callback;
+        }
+
+        @Override
+        protected void done() {
+            if (callback == null) return;
+            try {
+                String output;
+                try {
+                    output = get();
+                } catch (ExecutionException e) {
+                    callback.onFailure(e.getCause());
+                    return;
+                } catch (RuntimeException e) { // CancellationException
+                    callback.onFailure(e);
+                    return;
+                }
+                callback.onSuccess(output);
+            } catch (InterruptedException e) {
+                // cannot happen as done() is only called after completion.
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                LOGGER.warn("Callback " + callback + " threw exception.", e);
+            }
+        }
+    }
+
+    private static final class BlockPolicy implements RejectedExecutionHandler {
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) throw new RejectedExecutionException("Dispatcher is shutdown.");
+            try {
+                executor.getQueue().put(r);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("Interrupted while waiting for room in the queue.");
+            }
+        }
+    }
+
+    private static final class DaemonThreadFactory implements ThreadFactory {
+        private final String prefix = "gm4java-async-" + DISPATCHER_SEQUENCE.incrementAndGet() + "-";
+        private final AtomicInteger threadSequence = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, prefix + threadSequence.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -17,13 +17,20 @@ package org.gm4java.engine.support;
 
 import org.gm4java.engine.GMConnection;
 import org.gm4java.engine.GMException;
+import org.gm4java.engine.GMOutputHandler;
+import org.gm4java.engine.GMResult;
 import org.gm4java.engine.GMServiceException;
+import org.gm4java.engine.GMServiceTimeoutException;
 
 import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Semaphore;
 
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
@@ -39,94 +46,520 @@ import javax.annotation.Nonnull;
 class BasicGMConnection implements GMConnection {
     private static final List<String> empty = Arrays.asList(new String[0]);
     private static final int NORMAL_BUFFER_SIZE = 4096;
+    /**
+     * Maximum number of characters of output kept for the error message when output is streamed to a handler.
+     */
+    private static final int MAX_ERROR_OUTPUT = NORMAL_BUFFER_SIZE;
     private static final String EOL = System.getProperty("line.separator");
-    private ReaderWriterProcess process;
+    /**
+     * Maximum number of characters to write in one batch before reading the results back.
+     */
+    static final int BATCH_WINDOW = 4096;
+    private static final int QUOTED_ARGUMENT_OVERHEAD = 3; // a space and two quotes
+    /**
+     * Marker handler to read a result without keeping its output unless GraphicsMagick returns error.
+     */
+    static final GMOutputHandler NO_OUTPUT = new GMOutputHandler() {
+        @Override
+        public boolean handleLine(@Nonnull String line) {
+            return false;
+        }
+    };
+    private volatile ReaderWriterProcess process;
     private StringBuffer sb = new StringBuffer();
+    private final GMBatchCodec codec;
+    private Pipeline pipeline;
+    private volatile long commandTimeoutMillis;
+    private volatile boolean expired;
+    private volatile long lastActiveNanos = System.nanoTime();
+    @CheckForNull
+    private GMMetrics metrics;
+    private long outputSize;
 
     public BasicGMConnection(@Nonnull ReaderWriterProcess process) throws GMServiceException {
+        this(process, null);
+    }
+
+    /**
+     * Constructs a connection to given process. When the process is a {@link StreamProcess}, commands and results are
+     * encoded and decoded at byte level by {@link GMBatchCodec} using the given charset. Otherwise the reader and writer
+     * of the process are used.
+     * 
+     * @param process
+     *            the GraphicsMagick process
+     * @param charset
+     *            the charset to encode commands and decode output, or null to use the platform default charset.
+     */
+    public BasicGMConnection(@Nonnull ReaderWriterProcess process, @CheckForNull Charset charset)
+            throws GMServiceException {
         if (process == null) throw new NullPointerException("process");
         this.process = process;
+        if (process instanceof StreamProcess) {
+            StreamProcess streams = (StreamProcess) process;
+            codec = new GMBatchCodec(streams.getInputStream(), streams.getOutputStream(),
+                    charset == null ? Charset.defaultCharset() : charset);
+        } else {
+            codec = null;
+        }
     }
 
     @Override
     public final String execute(@Nonnull String command, @CheckForNull String... arguments) throws GMException,
             GMServiceException {
-        if (command == null) throw new NullPointerException("Argument 'command' must not be null");
-        return execute(command, arguments == null || arguments.length == 0 ? empty : Arrays.asList(arguments));
+        return execute(command, toList(command, arguments));
     }
 
     @Override
     public final String execute(@Nonnull List<String> command) throws GMException, GMServiceException {
-        if (command == null) throw new NullPointerException("Argument 'command' must not be null");
-        if (command.size() == 0) throw new IllegalArgumentException("Argument 'command' must not be empty");
-        return execute(null, command);
+        return execute(null, notEmpty(command));
+    }
+
+    @Override
+    public final void execute(@Nonnull List<String> command, @Nonnull GMOutputHandler handler) throws GMException,
+            GMServiceException {
+        if (handler == null) throw new NullPointerException("Argument 'handler' must not be null");
+        execute(null, notEmpty(command), handler);
+    }
+
+    @Override
+    public final void executeNoOutput(@Nonnull List<String> command) throws GMException, GMServiceException {
+        execute(null, notEmpty(command), NO_OUTPUT);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * This implementation writes as many commands as fit in {@value #BATCH_WINDOW} characters before each flush, and
+     * then reads their results. Writing more than that without reading risks a deadlock when both the input and output
+     * pipe buffers of GraphicsMagick are full. In pipelined mode, at most pipeline depth commands, and no more than
+     * that many characters, are written at a time.
+     */
+    @Override
+    public List<GMResult> executeBatch(@Nonnull List<List<String>> commands) throws GMServiceException {
+        if (commands == null) throw new NullPointerException("Argument 'commands' must not be null");
+        for (List<String> command : commands) {
+            notEmpty(command);
+        }
+        assertNotClosed();
+        if (pipeline != null) return pipeline.executeBatch(commands);
+        final int size = commands.size();
+        final List<GMResult> results = new ArrayList<GMResult>(size);
+        int next = 0;
+        try {
+            while (next < size) {
+                int end = next, written = 0;
+                try {
+                    final long start = System.nanoTime();
+                    do {
+                        written += write(null, commands.get(end++));
+                    } while (end < size && written < BATCH_WINDOW);
+                    flush();
+                    recordCommandWrite(start);
+                } catch (IOException e) {
+                    throw new GMServiceException(e.getMessage(), e);
+                }
+                for (; next < end; next++) {
+                    results.add(readBatchResult());
+                }
+            }
+        } catch (GMServiceException e) {
+            for (int i = results.size(); i < size; i++) {
+                results.add(GMResult.failure(e));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * In pipelined mode, the timeout of a command starts when its result is due to be read, and a timeout destroys the
+     * process shared by all the commands in flight.
+     */
+    @Override
+    public void setCommandTimeoutMillis(long commandTimeoutMillis) {
+        this.commandTimeoutMillis = commandTimeoutMillis;
+    }
+
+    /**
+     * Gets the value set by {@link #setCommandTimeoutMillis(long)}.
+     * 
+     * @return the timeout of each command in milliseconds, non-positive value means no timeout.
+     */
+    public long getCommandTimeoutMillis() {
+        return commandTimeoutMillis;
     }
 
     @Override
     public void close() {
+        if (pipeline != null) {
+            pipeline.close();
+            return;
+        }
+        destroyProcess();
+    }
+
+    /**
+     * Sets the maximum number of commands that can be sent to the GraphicsMagick process ahead of reading their
+     * results. A value greater than one turns on the pipelined mode, in which this connection is thread safe and the
+     * commands from concurrent callers are written to the process without waiting for the results of the previous
+     * commands. The results are matched back to the callers in first-in-first-out order. This must be set before the
+     * connection is used.
+     * 
+     * @param pipelineDepth
+     *            the maximum number of commands in flight, non-positive value or 1 disables pipelined mode.
+     */
+    void setPipelineDepth(int pipelineDepth) {
+        pipeline = pipelineDepth > 1 ? new Pipeline(pipelineDepth) : null;
+    }
+
+    boolean isPipelined() {
+        return pipeline != null;
+    }
+
+    /**
+     * Destroys the process because a command has timed out. The reads and writes in progress fail, and this
+     * connection can no longer be used.
+     */
+    void expire() {
+        expired = true;
+        ReaderWriterProcess p = process;
+        if (p != null) p.destroy();
+    }
+
+    boolean isExpired() {
+        return expired;
+    }
+
+    /**
+     * Checks that the process is running and this connection can still be used, without talking to GraphicsMagick.
+     * 
+     * @return true if the connection is neither closed nor expired and the process is alive.
+     */
+    boolean isAlive() {
+        ReaderWriterProcess p = process;
+        return p != null && !expired && p.isAlive();
+    }
+
+    /**
+     * Gets the operating system id of the GraphicsMagick process.
+     * 
+     * @return the process id, or -1 if it is not known or the connection is closed.
+     */
+    long getPid() {
+        ReaderWriterProcess p = process;
+        return p == null ? -1 : p.getPid();
+    }
+
+    /**
+     * Gets the time the last command completed, or this connection was created if no command has completed yet.
+     * 
+     * @return the value of {@link System#nanoTime()} at the time
+     */
+    long getLastActiveNanos() {
+        return lastActiveNanos;
+    }
+
+    /**
+     * Sets the metrics to record the time taken to write the commands and to execute them, as well as the size of
+     * the output. This must be set before the connection is used.
+     *
+     * @param metrics
+     *            the metrics to record to, or null to record nothing.
+     */
+    void setMetrics(@CheckForNull GMMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @CheckForNull
+    GMMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sends the command to the GraphicsMagick process in pipelined mode without waiting for the result. The result
+     * must be collected by calling {@link #awaitResult(long)} with the returned ticket.
+     * 
+     * @see #execute(String, String...)
+     */
+    final long submit(@Nonnull String command, @CheckForNull String... arguments) throws GMServiceException {
+        return submit(command, toList(command, arguments));
+    }
+
+    /**
+     * Sends the command to the GraphicsMagick process in pipelined mode without waiting for the result. The result
+     * must be collected by calling {@link #awaitResult(long)} with the returned ticket.
+     * 
+     * @see #execute(List)
+     */
+    final long submit(@Nonnull List<String> command) throws GMServiceException {
+        return submit(null, notEmpty(command));
+    }
+
+    protected long submit(String command, @Nonnull List<String> arguments) throws GMServiceException {
+        if (pipeline == null) throw new IllegalStateException("GMConnection is not in pipelined mode.");
+        return pipeline.submit(command, arguments);
+    }
+
+    /**
+     * Waits for and returns the result of the command that was {@link #submit(List) submitted} in pipelined mode.
+     * Every ticket must be awaited exactly once, or the results of all the subsequent commands will never be read.
+     */
+    protected String awaitResult(long ticket) throws GMException, GMServiceException {
+        if (pipeline == null) throw new IllegalStateException("GMConnection is not in pipelined mode.");
+        return pipeline.awaitResult(ticket, null);
+    }
+
+    /**
+     * Waits for the result of the command that was {@link #submit(List) submitted} in pipelined mode, and passes its
+     * output to the handler.
+     * 
+     * @see #awaitResult(long)
+     */
+    protected void awaitResult(long ticket, @Nonnull GMOutputHandler handler) throws GMException,
+            GMServiceException {
+        if (pipeline == null) throw new IllegalStateException("GMConnection is not in pipelined mode.");
+        pipeline.awaitResult(ticket, handler);
+    }
+
+    protected String execute(String command, @Nonnull List<String> arguments) throws GMException, GMServiceException {
+        if (pipeline != null) return pipeline.awaitResult(pipeline.submit(command, arguments), null);
+        return executeNow(command, arguments, null);
+    }
+
+    protected void execute(String command, @Nonnull List<String> arguments, @Nonnull GMOutputHandler handler)
+            throws GMException, GMServiceException {
+        if (pipeline != null) {
+            pipeline.awaitResult(pipeline.submit(command, arguments), handler);
+            return;
+        }
+        executeNow(command, arguments, handler);
+    }
+
+    private String executeNow(String command, @Nonnull List<String> arguments, @CheckForNull GMOutputHandler handler)
+            throws GMException, GMServiceException {
+        assertNotClosed();
+        final Watchdog.Watch watch = Watchdog.start(this, commandTimeoutMillis);
+        try {
+            sendCommand(command, arguments);
+            return readResult(handler);
+        } catch (GMServiceException e) {
+            throw watch.translate(e);
+        } finally {
+            watch.stop();
+        }
+    }
+
+    private void assertNotClosed() throws GMServiceException {
+        if (expired) throw new GMServiceTimeoutException("GMConnection was closed because a command timed out.");
+        if (process == null) throw new GMServiceException("GMConnection is already closed.");
+    }
+
+    private synchronized void destroyProcess() {
         if (process == null) return;
         process.destroy();
         process = null;
     }
 
-    protected String execute(String command, @Nonnull List<String> arguments) throws GMException, GMServiceException {
-        if (process == null) throw new GMServiceException("GMConnection is already closed.");
-        sendCommand(command, arguments);
-        return readResult();
+    private static List<String> toList(String command, String... arguments) {
+        if (command == null) throw new NullPointerException("Argument 'command' must not be null");
+        return arguments == null || arguments.length == 0 ? empty : Arrays.asList(arguments);
+    }
+
+    private static List<String> notEmpty(List<String> command) {
+        if (command == null) throw new NullPointerException("Argument 'command' must not be null");
+        if (command.size() == 0) throw new IllegalArgumentException("Argument 'command' must not be empty");
+        return command;
     }
 
     private void sendCommand(String command, @Nonnull List<String> arguments) throws GMServiceException {
-        Writer toGm = process.getWriter();
         try {
-            if (command != null) toGm.write(command);
-            for (String s : arguments) {
-                final byte quote = '"';
-                toGm.write(" ");
-                toGm.write(quote);
-                int start = 0, index = s.indexOf(quote);
-                if (index < 0) {
-                    toGm.write(s);
-                } else {
-                    do {
-                        toGm.write(s, start, ++index - start);
-                        toGm.write(quote);
-                        start = index;
-                        index = s.indexOf(quote, start);
-                    } while (index >= 0);
-                }
-                toGm.write(quote);
+            final long start = System.nanoTime();
+            write(command, arguments);
+            flush();
+            recordCommandWrite(start);
+        } catch (IOException e) {
+            throw new GMServiceException(e.getMessage(), e);
+        }
+    }
+
+    private void sendCommands(@Nonnull List<List<String>> commands) throws GMServiceException {
+        try {
+            final long start = System.nanoTime();
+            for (List<String> command : commands) {
+                write(null, command);
             }
-            toGm.write(EOL);
-            toGm.flush();
+            flush();
+            recordCommandWrite(start);
         } catch (IOException e) {
             throw new GMServiceException(e.getMessage(), e);
         }
     }
 
-    private String readResult() throws GMServiceException, GMException {
+    /**
+     * Gets the number of characters, not counting the quotes, a command takes once written.
+     */
+    private static int length(@Nonnull List<String> command) {
+        int length = 0;
+        for (String argument : command) {
+            length += argument.length() + 1;
+        }
+        return length;
+    }
+
+    /**
+     * Writes the command without flushing it.
+     * 
+     * @return the number of bytes or characters written.
+     */
+    private int write(String command, @Nonnull List<String> arguments) throws IOException {
+        if (codec != null) return codec.writeCommand(command, arguments);
+        return writeCommand(process.getWriter(), command, arguments);
+    }
+
+    private void recordCommandWrite(long start) {
+        if (metrics != null) metrics.recordCommandWrite(System.nanoTime() - start);
+    }
+
+    private void flush() throws IOException {
+        if (codec != null) codec.flush();
+        else process.getWriter().flush();
+    }
+
+    private int writeCommand(Writer toGm, String command, @Nonnull List<String> arguments) throws IOException {
+        int length = EOL.length();
+        if (command != null) {
+            toGm.write(command);
+            length += command.length();
+        }
+        for (String s : arguments) {
+            final byte quote = '"';
+            toGm.write(" ");
+            toGm.write(quote);
+            int start = 0, index = s.indexOf(quote);
+            if (index < 0) {
+                toGm.write(s);
+            } else {
+                do {
+                    toGm.write(s, start, ++index - start);
+                    toGm.write(quote);
+                    start = index;
+                    index = s.indexOf(quote, start);
+                } while (index >= 0);
+            }
+            toGm.write(quote);
+            length += s.length() + QUOTED_ARGUMENT_OVERHEAD;
+        }
+        toGm.write(EOL);
+        return length;
+    }
+
+    /**
+     * Reads the result of one command.
+     * 
+     * @param handler
+     *            handler to stream the output to, {@link #NO_OUTPUT} to discard the output, or null to collect the
+     *            output.
+     * @return the output, or null if the output was streamed to the handler or discarded.
+     */
+    private String readResult(@CheckForNull GMOutputHandler handler) throws GMServiceException, GMException {
+        final long start = metrics == null ? 0 : System.nanoTime();
+        boolean completed = false;
+        try {
+            String output = readOutput(handler);
+            completed = true;
+            return output;
+        } catch (GMException e) {
+            completed = true;
+            throw e;
+        } finally {
+            if (completed) {
+                final long end = System.nanoTime();
+                lastActiveNanos = end;
+                if (metrics != null) metrics.recordExecution(end - start, codec != null ? codec.outputSize()
+                        : outputSize);
+            }
+        }
+    }
+
+    private String readOutput(@CheckForNull GMOutputHandler handler) throws GMServiceException, GMException {
+        if (handler == null || handler == NO_OUTPUT) {
+            final boolean collect = handler == null;
+            if (codec != null) {
+                // the output stays as bytes in the codec unless it is asked for.
+                if (readCodec(null)) return collect ? codec.output() : null;
+                throw new GMException(codec.output());
+            }
+            if (readLines(null)) {
+                if (collect) return getGMOutput();
+                trimBuffer();
+                return null;
+            }
+            throw new GMException(getGMOutput());
+        }
+        OutputTail tail = new OutputTail(handler);
+        boolean pass = codec != null ? readCodec(tail) : readLines(tail);
+        tail.rethrowHandlerFailure();
+        if (pass) return null;
+        throw new GMException(tail.toString());
+    }
+
+    /**
+     * Reads the output lines into the buffer, or passes them to the tail when it is not null.
+     * 
+     * @return true if GraphicsMagick returned pass, false if GraphicsMagick returned fail.
+     */
+    private boolean readLines(@CheckForNull OutputTail tail) throws GMServiceException {
         String line;
         BufferedReader fromGm = process.getReader();
         sb.setLength(0);
+        outputSize = 0;
         while ((line = readLine(fromGm)) != null) {
-            if (line.equals(Constants.GM_PASS)) {
-                return getGMOutput();
-            }
-            if (line.equals(Constants.GM_FAIL)) {
-                throw new GMException(getGMOutput());
-            }
-            sb.append(line).append(EOL);
+            if (line.equals(Constants.GM_PASS)) return true;
+            if (line.equals(Constants.GM_FAIL)) return false;
+            outputSize += line.length() + EOL.length();
+            if (tail == null) sb.append(line).append(EOL);
+            else tail.handleLine(line);
         }
         throw new GMServiceException("Input from GraphicsMagick was closed unexpectedly after receiving: "
-                + getGMOutput());
+                + (tail == null ? getGMOutput() : tail.toString()));
+    }
+
+    private boolean readCodec(@CheckForNull OutputTail tail) throws GMServiceException {
+        try {
+            return codec.readResult(tail);
+        } catch (EOFException e) {
+            throw new GMServiceException("Input from GraphicsMagick was closed unexpectedly after receiving: "
+                    + (tail == null ? "" : tail.toString()) + codec.output(), e);
+        } catch (IOException e) {
+            throw new GMServiceException(e.getMessage(), e);
+        }
+    }
+
+    private GMResult readBatchResult() throws GMServiceException {
+        final Watchdog.Watch watch = Watchdog.start(this, commandTimeoutMillis);
+        try {
+            return GMResult.success(readResult(null));
+        } catch (GMException e) {
+            return GMResult.failure(e);
+        } catch (GMServiceException e) {
+            throw watch.translate(e);
+        } finally {
+            watch.stop();
+        }
     }
 
     private String getGMOutput() {
         String output = sb.toString();
+        trimBuffer();
+        return output;
+    }
+
+    private void trimBuffer() {
         if (sb.length() > NORMAL_BUFFER_SIZE) {
             sb.setLength(0);
             sb.trimToSize();
         }
-        return output;
     }
 
     private String readLine(BufferedReader reader) throws GMServiceException {
@@ -137,4 +570,196 @@ class BasicGMConnection implements GMConnection {
         }
     }
 
+    /**
+     * Passes the output lines to the handler until it asks to stop or fails, and keeps the last part of the output for
+     * the error message.
+     */
+    private static final class OutputTail implements GMOutputHandler {
+        private final GMOutputHandler handler;
+        private final StringBuilder tail = new StringBuilder();
+        private boolean receiving = true;
+        private RuntimeException failure;
+
+        private OutputTail(GMOutputHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public boolean handleLine(@Nonnull String line) {
+            if (receiving) {
+                try {
+                    receiving = handler.handleLine(line);
+                } catch (RuntimeException e) {
+                    failure = e;
+                    receiving = false;
+                }
+            }
+            tail.append(line).append(EOL);
+            if (tail.length() > 2 * MAX_ERROR_OUTPUT) tail.delete(0, tail.length() - MAX_ERROR_OUTPUT);
+            return true;
+        }
+
+        void rethrowHandlerFailure() {
+            if (failure != null) throw failure;
+        }
+
+        @Override
+        public String toString() {
+            return tail.length() > MAX_ERROR_OUTPUT ? tail.substring(tail.length() - MAX_ERROR_OUTPUT) : tail
+                    .toString();
+        }
+    }
+
+    /**
+     * Writes commands ahead and hands the results back in the order the commands were written. Writers are serialized
+     * by the write lock, each gets a ticket in sequence. Readers wait for their ticket's turn then read one result.
+     */
+    private final class Pipeline {
+        private final int depth;
+        private final Semaphore slots;
+        private final Object writeLock = new Object();
+        private final Object readLock = new Object();
+        private long nextTicket; // guarded by writeLock
+        private long turn; // guarded by readLock
+        private int inFlight; // guarded by this
+        private boolean closing; // guarded by this
+        private volatile GMServiceException broken;
+
+        private Pipeline(int depth) {
+            this.depth = depth;
+            slots = new Semaphore(depth, true);
+        }
+
+        long submit(String command, @Nonnull List<String> arguments) throws GMServiceException {
+            return submit(1, command, arguments, null);
+        }
+
+        List<GMResult> executeBatch(@Nonnull List<List<String>> commands) throws GMServiceException {
+            synchronized (this) {
+                if (closing) throw new GMServiceException("GMConnection is already closed.");
+            }
+            final int size = commands.size();
+            final List<GMResult> results = new ArrayList<GMResult>(size);
+            for (int next = 0; next < size;) {
+                final int limit = Math.min(size, next + depth);
+                int end = next, written = 0;
+                do {
+                    written += length(commands.get(end++));
+                } while (end < limit && written < BATCH_WINDOW);
+                final long first;
+                try {
+                    first = submit(end - next, null, null, commands.subList(next, end));
+                } catch (GMServiceException e) {
+                    for (; next < size; next++) {
+                        results.add(GMResult.failure(e));
+                    }
+                    break;
+                }
+                for (long ticket = first; next < end; next++, ticket++) {
+                    try {
+                        results.add(GMResult.success(awaitResult(ticket, null)));
+                    } catch (GMException e) {
+                        results.add(GMResult.failure(e));
+                    } catch (GMServiceException e) {
+                        results.add(GMResult.failure(e));
+                    }
+                }
+            }
+            return results;
+        }
+
+        private long submit(int n, String command, List<String> arguments, List<List<String>> batch)
+                throws GMServiceException {
+            try {
+                slots.acquire(n);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new GMServiceException("Interrupted while waiting to send command to GraphicsMagick.", e);
+            }
+            try {
+                synchronized (writeLock) {
+                    assertUsable();
+                    begin(n);
+                    try {
+                        if (batch == null) sendCommand(command, arguments);
+                        else sendCommands(batch);
+                    } catch (GMServiceException e) {
+                        broken = e;
+                        complete(n);
+                        throw e;
+                    }
+                    long ticket = nextTicket;
+                    nextTicket += n;
+                    return ticket;
+                }
+            } catch (GMServiceException e) {
+                slots.release(n);
+                throw e;
+            } catch (RuntimeException e) {
+                slots.release(n);
+                throw e;
+            }
+        }
+
+        String awaitResult(long ticket, @CheckForNull GMOutputHandler handler) throws GMException,
+                GMServiceException {
+            boolean interrupted = false;
+            try {
+                synchronized (readLock) {
+                    while (turn != ticket && broken == null) {
+                        try {
+                            readLock.wait();
+                        } catch (InterruptedException e) {
+                            // must wait for the turn anyway otherwise the result will be read by someone else.
+                            interrupted = true;
+                        }
+                    }
+                    final Watchdog.Watch watch = Watchdog.start(BasicGMConnection.this, commandTimeoutMillis);
+                    try {
+                        assertUsable();
+                        return readResult(handler);
+                    } catch (GMServiceException e) {
+                        GMServiceException failure = watch.translate(e);
+                        if (broken == null) broken = failure;
+                        throw failure;
+                    } finally {
+                        watch.stop();
+                        turn++;
+                        readLock.notifyAll();
+                        complete(1);
+                    }
+                }
+            } finally {
+                slots.release();
+                if (interrupted) Thread.currentThread().interrupt();
+            }
+        }
+
+        void close() {
+            synchronized (this) {
+                closing = true;
+                if (inFlight > 0) return; // the last one in flight will destroy the process.
+            }
+            destroyProcess();
+        }
+
+        private synchronized void begin(int n) throws GMServiceException {
+            if (closing) throw new GMServiceException("GMConnection is already closed.");
+            inFlight += n;
+        }
+
+        private void complete(int n) {
+            boolean destroy;
+            synchronized (this) {
+                inFlight -= n;
+                destroy = inFlight == 0 && closing;
+            }
+            if (destroy) destroyProcess();
+        }
+
+        private void assertUsable() throws GMServiceException {
+            assertNotClosed();
+            if (broken != null) throw new GMServiceException(broken.getMessage(), broken);
+        }
+    }
 }
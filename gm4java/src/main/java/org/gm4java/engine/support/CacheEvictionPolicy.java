@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+/**
+ * Defines how {@link CachingGMService} makes room for new results.
+ *
+ * @author Kenneth Xu
+ *
+ * @see GMCacheConfig#setEvictionPolicy(CacheEvictionPolicy)
+ */
+public enum CacheEvictionPolicy {
+    /**
+     * Always admits the new result and evicts the least recently used ones.
+     */
+    LRU,
+
+    /**
+     * Evicts the least recently used results, but only when the new result has been asked for more often than them
+     * recently, as estimated by a compact frequency sketch. This keeps a burst of one-off commands from flushing the
+     * popular results out of the cache.
+     */
+    TINY_LFU
+}
@@ -0,0 +1,625 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import org.gm4java.engine.GMConnection;
+import org.gm4java.engine.GMException;
+import org.gm4java.engine.GMOutputHandler;
+import org.gm4java.engine.GMResult;
+import org.gm4java.engine.GMService;
+import org.gm4java.engine.GMServiceException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * A {@link GMService} that caches the results of another one, so that repeating a command on the same images doesn't
+ * run GraphicsMagick again.
+ * <p>
+ * A result is looked up by a digest of the command, in which each argument naming an existing file is replaced by a
+ * digest of its content. Renaming or copying an image doesn't miss the cache, while changing its content does. Only
+ * the commands known to have no side effect other than their result are cached:
+ * <ul>
+ * <li><code>identify</code>, whose output is cached in the memory tier. The paths of the images are kept in the key
+ * as well, since they are printed in the output.</li>
+ * <li><code>convert</code>, <code>composite</code> and <code>montage</code>, whose last argument is the image they
+ * write. The image is cached in the disk tier and copied to the requested path on a hit. It is only cached when the
+ * command printed nothing, and when its path has no frame number pattern like <code>%d</code>.</li>
+ * <li>The same commands passed to {@link #executeImage(List, ByteBuffer)} and alike, whose output image is cached in
+ * the disk tier as well.</li>
+ * </ul>
+ * Other commands, {@link #executeBatch(List) batches} and {@link #getConnection() connections} are passed to the
+ * underlying service untouched. The size, location and eviction policy of the tiers are set by {@link GMCacheConfig},
+ * the hits and misses are reported by {@link #getMetrics()}.
+ * <p>
+ * The cache assumes that the same command on the same images always gives the same result, which holds for
+ * GraphicsMagick unless the command depends on the time, random numbers, or files not named in the arguments like
+ * fonts found by name.
+ *
+ * @author Kenneth Xu
+ *
+ */
+public class CachingGMService implements GMService {
+    private static final Set<String> TEXT_COMMANDS = new HashSet<String>(Arrays.asList("identify"));
+    private static final Set<String> IMAGE_COMMANDS = new HashSet<String>(Arrays.asList("convert", "composite",
+            "montage"));
+    private static final Pattern ARGUMENT = Pattern.compile("(?:([A-Za-z0-9]{2,}):)?(.*?)(\\[[^\\[\\]]*\\])?",
+            Pattern.DOTALL);
+    private static final Pattern ENTRY_NAME = Pattern.compile("[0-9a-f]{64}");
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int BYTES_PER_CHAR = 2;
+    private static final long TYPICAL_TEXT_BYTES = 1024;
+    private static final long TYPICAL_IMAGE_BYTES = 64 * 1024;
+    private static final String TEMP_PREFIX = "gm4java";
+
+    private final GMService delegate;
+    @CheckForNull
+    private final WeightedCache<String, String> memory;
+    @CheckForNull
+    private final WeightedCache<String, File> disk;
+    @CheckForNull
+    private final File directory;
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong memoryMisses = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong diskMisses = new AtomicLong();
+    private final AtomicLong bypasses = new AtomicLong();
+
+    /**
+     * Constructs a new instance of {@linkplain CachingGMService} caching the results of given service. The results
+     * left in the {@link GMCacheConfig#setDirectory(File) directory} of the disk tier by a previous instance are
+     * reused.
+     *
+     * @param delegate
+     *            the service that executes the commands when their results are not cached
+     * @param config
+     *            configuration of the cache
+     * @throws IllegalArgumentException
+     *             when the directory of the disk tier doesn't exist and can't be created
+     */
+    public CachingGMService(@Nonnull GMService delegate, @Nonnull GMCacheConfig config) {
+        if (delegate == null) throw new NullPointerException("delegate");
+        if (config == null) throw new NullPointerException("config");
+        this.delegate = delegate;
+        CacheEvictionPolicy policy = config.getEvictionPolicy();
+        long maxMemory = config.getMaxMemoryBytes();
+        memory = maxMemory > 0 ? new WeightedCache<String, String>(maxMemory, policy, maxMemory / TYPICAL_TEXT_BYTES)
+                : null;
+        long maxDisk = config.getMaxDiskBytes();
+        if (config.getDirectory() == null || maxDisk == 0) {
+            directory = null;
+            disk = null;
+        } else {
+            directory = config.getDirectory();
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IllegalArgumentException("Cannot create cache directory " + directory);
+            }
+            disk = new WeightedCache<String, File>(maxDisk, policy, maxDisk / TYPICAL_IMAGE_BYTES);
+            load(disk, directory);
+        }
+    }
+
+    /**
+     * Adds the results found in the directory to the disk tier, the oldest first.
+     */
+    private static void load(WeightedCache<String, File> disk, File directory) {
+        File[] files = directory.listFiles();
+        if (files == null) return;
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                long m1 = f1.lastModified();
+                long m2 = f2.lastModified();
+                return m1 < m2 ? -1 : (m1 == m2 ? 0 : 1);
+            }
+        });
+        List<File> evicted = new ArrayList<File>();
+        for (File file : files) {
+            if (!file.isFile() || !ENTRY_NAME.matcher(file.getName()).matches()) continue;
+            if (!disk.put(file.getName(), file, file.length(), evicted)) delete(file);
+        }
+        delete(evicted);
+    }
+
+    /**
+     * Gets a copy of the metrics of the cache.
+     *
+     * @return an immutable copy of the metrics
+     */
+    @Nonnull
+    public GMCacheMetrics getMetrics() {
+        return new GMCacheMetrics(memoryHits.get(), memoryMisses.get(), diskHits.get(), diskMisses.get(),
+                bypasses.get(), memory == null ? 0 : memory.getEvictions(), disk == null ? 0 : disk.getEvictions(),
+                (memory == null ? 0 : memory.getRejections()) + (disk == null ? 0 : disk.getRejections()),
+                memory == null ? 0 : memory.getWeight(), disk == null ? 0 : disk.getWeight());
+    }
+
+    /**
+     * Removes all the results from both tiers and deletes the files of the disk tier.
+     */
+    public void clear() {
+        if (memory != null) memory.clear();
+        if (disk != null) delete(disk.clear());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String execute(@Nonnull String command, String... arguments) throws GMException, GMServiceException {
+        if (command == null) throw new NullPointerException("command");
+        List<String> list = new ArrayList<String>(arguments.length + 1);
+        list.add(command);
+        list.addAll(Arrays.asList(arguments));
+        return execute(list);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String execute(@Nonnull List<String> command) throws GMException, GMServiceException {
+        Lookup lookup = lookup(command);
+        if (lookup == null) return delegate.execute(command);
+        if (lookup.output == null) {
+            String cached = memory.get(lookup.key);
+            if (cached != null) {
+                memoryHits.incrementAndGet();
+                return cached;
+            }
+            memoryMisses.incrementAndGet();
+            String output = delegate.execute(command);
+            memory.put(lookup.key, output, (long) output.length() * BYTES_PER_CHAR, new ArrayList<String>());
+            return output;
+        }
+        if (copyFromDisk(lookup)) return "";
+        String output = delegate.execute(command);
+        if (output.length() == 0) copyToDisk(lookup.key, lookup.output);
+        return output;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The output of a command writing an image is only passed to the handler after the command completes.
+     */
+    @Override
+    public void execute(@Nonnull List<String> command, @Nonnull GMOutputHandler handler) throws GMException,
+            GMServiceException {
+        if (handler == null) throw new NullPointerException("Argument 'handler' must not be null");
+        Lookup lookup = lookup(command);
+        if (lookup == null) {
+            delegate.execute(command, handler);
+        } else if (lookup.output == null) {
+            String cached = memory.get(lookup.key);
+            if (cached != null) {
+                memoryHits.incrementAndGet();
+                CapturingOutputHandler.replay(cached, handler);
+                return;
+            }
+            memoryMisses.incrementAndGet();
+            CapturingOutputHandler capturing = new CapturingOutputHandler(handler);
+            delegate.execute(command, capturing);
+            if (capturing.isComplete()) {
+                String output = capturing.getOutput();
+                memory.put(lookup.key, output, (long) output.length() * BYTES_PER_CHAR, new ArrayList<String>());
+            }
+        } else if (!copyFromDisk(lookup)) {
+            String output = delegate.execute(command);
+            if (output.length() == 0) copyToDisk(lookup.key, lookup.output);
+            CapturingOutputHandler.replay(output, handler);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void executeNoOutput(@Nonnull List<String> command) throws GMException, GMServiceException {
+        Lookup lookup = lookup(command);
+        if (lookup == null || lookup.output == null) {
+            if (lookup != null) bypasses.incrementAndGet();
+            delegate.executeNoOutput(command);
+        } else if (!copyFromDisk(lookup)) {
+            String output = delegate.execute(command);
+            if (output.length() == 0) copyToDisk(lookup.key, lookup.output);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The batch is passed to the underlying service without looking up the cache.
+     */
+    @Override
+    @Nonnull
+    public List<GMResult> executeBatch(@Nonnull List<List<String>> commands) throws GMServiceException {
+        if (commands == null) throw new NullPointerException("commands");
+        bypasses.addAndGet(commands.size());
+        return delegate.executeBatch(commands);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    @Nonnull
+    public ByteBuffer executeImage(@Nonnull List<String> command, @Nonnull ByteBuffer input) throws GMException,
+            GMServiceException {
+        if (input == null) throw new NullPointerException("input");
+        String key = imageKey(command, input);
+        if (key == null) return delegate.executeImage(command, input);
+        File cached = disk.get(key);
+        ByteBuffer result = cached == null ? null : read(cached);
+        if (result != null) {
+            diskHits.incrementAndGet();
+            return result;
+        }
+        diskMisses.incrementAndGet();
+        result = delegate.executeImage(command, input);
+        File temp = null;
+        try {
+            temp = File.createTempFile(TEMP_PREFIX, null, directory);
+            write(result.duplicate(), temp);
+            admit(key, temp);
+        } catch (IOException e) {
+            delete(temp);
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    @Nonnull
+    public ByteBuffer executeImage(@Nonnull List<String> command, @Nonnull byte[] input) throws GMException,
+            GMServiceException {
+        return executeImage(command, ByteBuffer.wrap(input));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The stream is read into memory to compute the digest of the image.
+     */
+    @Override
+    @Nonnull
+    public ByteBuffer executeImage(@Nonnull List<String> command, @Nonnull InputStream input) throws GMException,
+            GMServiceException {
+        if (input == null) throw new NullPointerException("input");
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        byte[] bytes = new byte[BUFFER_SIZE];
+        try {
+            int n;
+            while ((n = input.read(bytes)) >= 0) {
+                buffer.write(bytes, 0, n);
+            }
+        } catch (IOException e) {
+            throw new GMServiceException(e.getMessage(), e);
+        }
+        return executeImage(command, buffer.toByteArray());
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * This implementation returns the connection of the underlying service, the commands executed by it are not
+     * cached.
+     */
+    @Override
+    @Nonnull
+    public GMConnection getConnection() throws GMServiceException {
+        return delegate.getConnection();
+    }
+
+    /**
+     * Computes the key of the command, or counts a bypass and returns null if the result can't be cached.
+     */
+    @CheckForNull
+    private Lookup lookup(List<String> command) {
+        if (command == null) throw new NullPointerException("command");
+        Lookup lookup = null;
+        if (!command.isEmpty()) {
+            String name = command.get(0);
+            if (TEXT_COMMANDS.contains(name) && memory != null) {
+                lookup = textLookup(command);
+            } else if (IMAGE_COMMANDS.contains(name) && disk != null) {
+                lookup = imageLookup(command);
+            }
+        }
+        if (lookup == null) bypasses.incrementAndGet();
+        return lookup;
+    }
+
+    @CheckForNull
+    private static Lookup textLookup(List<String> command) {
+        MessageDigest digest = newDigest();
+        update(digest, "text");
+        for (String argument : command) {
+            if (argument == null) return null;
+            update(digest, argument);
+            File file = inputFile(argument);
+            if (file != null && !updateContent(digest, file)) return null;
+        }
+        return new Lookup(hex(digest.digest()), null);
+    }
+
+    @CheckForNull
+    private static Lookup imageLookup(List<String> command) {
+        int last = command.size() - 1;
+        String target = command.get(last);
+        if (last < 1 || target == null) return null;
+        Matcher matcher = ARGUMENT.matcher(target);
+        matcher.matches();
+        String path = matcher.group(2);
+        if (path.length() == 0 || path.equals("-") || path.indexOf('%') >= 0) return null;
+        File output = new File(path);
+        MessageDigest digest = newDigest();
+        update(digest, "file");
+        for (int i = 0; i < last; i++) {
+            String argument = command.get(i);
+            if (argument == null) return null;
+            if (!updateArgument(digest, argument, output)) return null;
+        }
+        String format = matcher.group(1);
+        if (format == null) {
+            int dot = output.getName().lastIndexOf('.');
+            format = dot < 0 ? "" : output.getName().substring(dot + 1);
+        }
+        update(digest, "output:" + format.toLowerCase());
+        return new Lookup(hex(digest.digest()), output);
+    }
+
+    @CheckForNull
+    private String imageKey(List<String> command, ByteBuffer input) {
+        if (command == null) throw new NullPointerException("command");
+        if (disk == null || command.isEmpty() || !IMAGE_COMMANDS.contains(command.get(0))) {
+            bypasses.incrementAndGet();
+            return null;
+        }
+        MessageDigest digest = newDigest();
+        update(digest, "image");
+        for (String argument : command) {
+            if (argument == null || !updateArgument(digest, argument, null)) {
+                bypasses.incrementAndGet();
+                return null;
+            }
+        }
+        update(digest, "input");
+        digest.update(input.duplicate());
+        return hex(digest.digest());
+    }
+
+    /**
+     * Adds the argument to the digest, replacing the path of an input file by the digest of its content.
+     *
+     * @return false if the content can't be read or the file is the output.
+     */
+    private static boolean updateArgument(MessageDigest digest, String argument, @CheckForNull File output) {
+        File file = inputFile(argument);
+        if (file == null) {
+            update(digest, argument);
+            return true;
+        }
+        if (file.equals(output)) return false;
+        Matcher matcher = ARGUMENT.matcher(argument);
+        matcher.matches();
+        update(digest, "input:" + matcher.group(1) + ":" + matcher.group(3));
+        return updateContent(digest, file);
+    }
+
+    @CheckForNull
+    private static File inputFile(String argument) {
+        if (argument.startsWith("-") || argument.startsWith("+")) return null;
+        Matcher matcher = ARGUMENT.matcher(argument);
+        if (!matcher.matches() || matcher.group(2).length() == 0) return null;
+        File file = new File(matcher.group(2));
+        return file.isFile() ? file : null;
+    }
+
+    private static boolean updateContent(MessageDigest digest, File file) {
+        try {
+            MessageDigest content = newDigest();
+            FileChannel channel = new FileInputStream(file).getChannel();
+            try {
+                ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+                while (channel.read(buffer) >= 0) {
+                    buffer.flip();
+                    content.update(buffer);
+                    buffer.clear();
+                }
+            } finally {
+                channel.close();
+            }
+            digest.update(content.digest());
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Copies the cached image to the output path of the command.
+     *
+     * @return true if the result was cached, false if the command needs to be executed.
+     */
+    private boolean copyFromDisk(Lookup lookup) {
+        File cached = disk.get(lookup.key);
+        if (cached != null && copyQuietly(cached, lookup.output)) {
+            diskHits.incrementAndGet();
+            return true;
+        }
+        diskMisses.incrementAndGet();
+        return false;
+    }
+
+    private void copyToDisk(String key, File output) {
+        File temp = null;
+        try {
+            temp = File.createTempFile(TEMP_PREFIX, null, directory);
+            copy(output, temp);
+            admit(key, temp);
+        } catch (IOException e) {
+            delete(temp);
+        }
+    }
+
+    /**
+     * Moves the file written to the directory into the disk tier, if the eviction policy admits it.
+     */
+    private void admit(String key, File temp) {
+        File entry = new File(directory, key);
+        List<File> evicted = new ArrayList<File>();
+        if (disk.put(key, entry, temp.length(), evicted) && !temp.renameTo(entry)) disk.remove(key);
+        delete(temp);
+        delete(evicted);
+    }
+
+    /**
+     * Copies the cached file, which may have been evicted after the lookup.
+     *
+     * @return false if the file can't be copied.
+     */
+    private static boolean copyQuietly(File from, File to) {
+        try {
+            copy(from, to);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        FileChannel source = new FileInputStream(from).getChannel();
+        try {
+            FileChannel target = new FileOutputStream(to).getChannel();
+            try {
+                long size = source.size();
+                long position = 0;
+                while (position < size) {
+                    position += source.transferTo(position, size - position, target);
+                }
+            } finally {
+                target.close();
+            }
+        } finally {
+            source.close();
+        }
+    }
+
+    private static void write(ByteBuffer buffer, File file) throws IOException {
+        FileChannel channel = new FileOutputStream(file).getChannel();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Reads the cached file, which may have been evicted after the lookup.
+     *
+     * @return the content of the file, or null if it can't be read.
+     */
+    @CheckForNull
+    private static ByteBuffer read(File file) {
+        try {
+            FileChannel channel = new FileInputStream(file).getChannel();
+            try {
+                ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer) < 0) break;
+                }
+                buffer.flip();
+                return buffer;
+            } finally {
+                channel.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        digest.update(value.getBytes(UTF_8));
+        digest.update((byte) 0);
+    }
+
+    private static String hex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[2 * i + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    private static void delete(@CheckForNull File file) {
+        if (file != null && !file.delete() && file.exists()) file.deleteOnExit();
+    }
+
+    private static void delete(List<File> files) {
+        for (File file : files) {
+            delete(file);
+        }
+    }
+
+    private static final class Lookup {
+        final String key;
+        @CheckForNull
+        final File output;
+
+        Lookup(String key, @CheckForNull File output) {
+            this.key = key;
+            this.output = output;
+        }
+    }
+}
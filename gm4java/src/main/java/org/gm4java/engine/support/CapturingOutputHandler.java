@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import org.gm4java.engine.GMOutputHandler;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * Passes the output to another handler while keeping a copy of it, in the same form as returned by
+ * {@link org.gm4java.engine.GMService#execute(java.util.List)}, so that it can be shared or cached.
+ *
+ * @author Kenneth Xu
+ *
+ */
+final class CapturingOutputHandler implements GMOutputHandler {
+    static final String EOL = System.getProperty("line.separator");
+
+    @CheckForNull
+    private final GMOutputHandler handler;
+    private final StringBuilder output = new StringBuilder();
+    private boolean complete = true;
+    private boolean failed;
+
+    /**
+     * Constructs a new instance.
+     *
+     * @param handler
+     *            the handler to pass the output to, or null to only capture it.
+     */
+    CapturingOutputHandler(@CheckForNull GMOutputHandler handler) {
+        this.handler = handler;
+    }
+
+    @Override
+    public boolean handleLine(@Nonnull String line) {
+        output.append(line).append(EOL);
+        if (handler != null) {
+            failed = true;
+            complete = handler.handleLine(line);
+            failed = false;
+        }
+        return complete;
+    }
+
+    /**
+     * Tells whether the whole output was captured, i.e. the handler didn't stop the delivery.
+     */
+    boolean isComplete() {
+        return complete && !failed;
+    }
+
+    /**
+     * Tells whether the handler threw an exception.
+     */
+    boolean isFailed() {
+        return failed;
+    }
+
+    @Nonnull
+    String getOutput() {
+        return output.toString();
+    }
+
+    /**
+     * Passes the output captured earlier to the handler line by line.
+     */
+    static void replay(@Nonnull String output, @Nonnull GMOutputHandler handler) {
+        int start = 0;
+        int end;
+        while ((end = output.indexOf(EOL, start)) >= 0) {
+            if (!handler.handleLine(output.substring(start, end))) return;
+            start = end + EOL.length();
+        }
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import org.gm4java.engine.GMConnection;
+import org.gm4java.engine.GMException;
+import org.gm4java.engine.GMOutputHandler;
+import org.gm4java.engine.GMResult;
+import org.gm4java.engine.GMService;
+import org.gm4java.engine.GMServiceException;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * A {@link GMService} that executes identical commands only once when they are requested concurrently. The first
+ * caller of a command executes it with the underlying service, the callers of the same command arriving before it
+ * completes wait for it and share its output or exception, instead of occupying more GraphicsMagick processes.
+ * <p>
+ * Commands are identical when their argument lists are equal, regardless of which of the <code>execute</code> methods
+ * is called. The commands passed to {@link #executeImage(List, ByteBuffer)} must have identical input images as well.
+ * The output delivered to a {@link GMOutputHandler} is shared only when the handler of the first caller received all
+ * of it, otherwise the waiting callers execute the command themselves. They do the same when the first caller fails
+ * with anything but a {@link GMException} or {@link GMServiceException} of the underlying service, such as an exception
+ * of its own handler. Nothing is cached after the command completes, see {@link CachingGMService} for that.
+ * <p>
+ * {@link #executeBatch(List) Batches}, {@link #executeImage(List, InputStream) streamed images} and
+ * {@link #getConnection() connections} are passed to the underlying service untouched.
+ *
+ * @author Kenneth Xu
+ *
+ */
+public class CoalescingGMService implements GMService {
+    private final GMService delegate;
+    private final ConcurrentMap<Object, Flight> flights = new ConcurrentHashMap<Object, Flight>();
+    private final AtomicLong executions = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * Constructs a new instance of {@linkplain CoalescingGMService} over given service.
+     *
+     * @param delegate
+     *            the service that executes the commands
+     */
+    public CoalescingGMService(@Nonnull GMService delegate) {
+        if (delegate == null) throw new NullPointerException("delegate");
+        this.delegate = delegate;
+    }
+
+    /**
+     * Gets the number of commands executed by the underlying service on behalf of the callers.
+     *
+     * @return the number of executions
+     */
+    public long getExecutions() {
+        return executions.get();
+    }
+
+    /**
+     * Gets the number of calls that shared the execution of an identical command in flight, instead of executing it.
+     *
+     * @return the number of coalesced calls
+     */
+    public long getCoalescedCalls() {
+        return coalesced.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String execute(@Nonnull String command, String... arguments) throws GMException, GMServiceException {
+        if (command == null) throw new NullPointerException("command");
+        List<String> list = new ArrayList<String>(arguments.length + 1);
+        list.add(command);
+        list.addAll(Arrays.asList(arguments));
+        return execute(list);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String execute(@Nonnull List<String> command) throws GMException, GMServiceException {
+        List<String> key = keyOf(command);
+        Flight flight = new Flight();
+        Flight leader = flights.putIfAbsent(key, flight);
+        if (leader == null) {
+            try {
+                flight.output = delegate.execute(command);
+                flight.completed = true;
+                return flight.output;
+            } catch (GMException e) {
+                flight.exception = e;
+                throw e;
+            } catch (GMServiceException e) {
+                flight.exception = e;
+                throw e;
+            } finally {
+                land(key, flight);
+            }
+        }
+        if (!leader.await() || leader.output == null) return delegate.execute(command);
+        coalesced.incrementAndGet();
+        return leader.output;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The callers sharing the execution of another receive the output after the command completes.
+     */
+    @Override
+    public void execute(@Nonnull List<String> command, @Nonnull GMOutputHandler handler) throws GMException,
+            GMServiceException {
+        if (handler == null) throw new NullPointerException("Argument 'handler' must not be null");
+        List<String> key = keyOf(command);
+        Flight flight = new Flight();
+        Flight leader = flights.putIfAbsent(key, flight);
+        if (leader == null) {
+            CapturingOutputHandler capturing = new CapturingOutputHandler(handler);
+            try {
+                delegate.execute(command, capturing);
+                if (capturing.isComplete()) flight.output = capturing.getOutput();
+                flight.completed = true;
+            } catch (GMException e) {
+                if (!capturing.isFailed()) flight.exception = e;
+                throw e;
+            } catch (GMServiceException e) {
+                if (!capturing.isFailed()) flight.exception = e;
+                throw e;
+            } finally {
+                land(key, flight);
+            }
+            return;
+        }
+        if (!leader.await() || leader.output == null) {
+            delegate.execute(command, handler);
+        } else {
+            coalesced.incrementAndGet();
+            CapturingOutputHandler.replay(leader.output, handler);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void executeNoOutput(@Nonnull List<String> command) throws GMException, GMServiceException {
+        List<String> key = keyOf(command);
+        Flight flight = new Flight();
+        Flight leader = flights.putIfAbsent(key, flight);
+        if (leader == null) {
+            try {
+                delegate.executeNoOutput(command);
+                flight.completed = true;
+            } catch (GMException e) {
+                flight.exception = e;
+                throw e;
+            } catch (GMServiceException e) {
+                flight.exception = e;
+                throw e;
+            } finally {
+                land(key, flight);
+            }
+        } else if (leader.await()) {
+            coalesced.incrementAndGet();
+        } else {
+            delegate.executeNoOutput(command);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The batch is passed to the underlying service without coalescing.
+     */
+    @Override
+    @Nonnull
+    public List<GMResult> executeBatch(@Nonnull List<List<String>> commands) throws GMServiceException {
+        return delegate.executeBatch(commands);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The callers sharing the execution of another receive a copy of the output image.
+     */
+    @Override
+    @Nonnull
+    public ByteBuffer executeImage(@Nonnull List<String> command, @Nonnull ByteBuffer input) throws GMException,
+            GMServiceException {
+        if (input == null) throw new NullPointerException("input");
+        List<Object> key = Arrays.<Object> asList(keyOf(command), input.duplicate());
+        Flight flight = new Flight();
+        Flight leader = flights.putIfAbsent(key, flight);
+        if (leader == null) {
+            try {
+                ByteBuffer image = delegate.executeImage(command, input);
+                flight.image = image.duplicate();
+                flight.completed = true;
+                return image;
+            } catch (GMException e) {
+                flight.exception = e;
+                throw e;
+            } catch (GMServiceException e) {
+                flight.exception = e;
+                throw e;
+            } finally {
+                land(key, flight);
+            }
+        }
+        if (!leader.await()) return delegate.executeImage(command, input);
+        coalesced.incrementAndGet();
+        ByteBuffer image = leader.image.duplicate();
+        ByteBuffer copy = ByteBuffer.allocate(image.remaining());
+        copy.put(image);
+        copy.flip();
+        return copy;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    @Nonnull
+    public ByteBuffer executeImage(@Nonnull List<String> command, @Nonnull byte[] input) throws GMException,
+            GMServiceException {
+        return executeImage(command, ByteBuffer.wrap(input));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The command is passed to the underlying service without coalescing, as the image is only known after reading
+     * the stream.
+     */
+    @Override
+    @Nonnull
+    public ByteBuffer executeImage(@Nonnull List<String> command, @Nonnull InputStream input) throws GMException,
+            GMServiceException {
+        return delegate.executeImage(command, input);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * This implementation returns the connection of the underlying service, the commands executed by it are not
+     * coalesced.
+     */
+    @Override
+    @Nonnull
+    public GMConnection getConnection() throws GMServiceException {
+        return delegate.getConnection();
+    }
+
+    private List<String> keyOf(List<String> command) {
+        if (command == null) throw new NullPointerException("command");
+        return Collections.unmodifiableList(new ArrayList<String>(command));
+    }
+
+    /**
+     * Removes the completed flight so that the next caller executes the command again, and releases the callers
+     * waiting for it.
+     */
+    private void land(Object key, Flight flight) {
+        executions.incrementAndGet();
+        flights.remove(key, flight);
+        flight.done.countDown();
+    }
+
+    /**
+     * An execution in progress, the fields are written by the leading caller before the latch is released.
+     */
+    private static final class Flight {
+        final CountDownLatch done = new CountDownLatch(1);
+        @CheckForNull
+        String output;
+        @CheckForNull
+        ByteBuffer image;
+        /** The exception of the underlying service, shared with the waiting callers. */
+        @CheckForNull
+        Exception exception;
+        boolean completed;
+
+        /**
+         * Waits for the leading caller to complete.
+         *
+         * @return true if the command completed, false if it failed with an exception that is not shared.
+         */
+        boolean await() throws GMException, GMServiceException {
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new GMServiceException("Interrupted while waiting for an identical command.", e);
+            }
+            if (exception instanceof GMException) throw (GMException) exception;
+            if (exception instanceof GMServiceException) throw (GMServiceException) exception;
+            return completed;
+        }
+    }
+}
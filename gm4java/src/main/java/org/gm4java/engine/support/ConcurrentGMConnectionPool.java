@@ -0,0 +1,633 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import org.gm4java.engine.GMServiceException;
+
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * A {@link ConnectionPool} that doesn't lock on borrow and return. It honors the same {@link GMConnectionPoolConfig}
+ * settings as {@link GMConnectionPool}, but the idle connections are kept in a {@link ConcurrentLinkedDeque} and the
+ * number of connections is accounted with compare-and-set, so that the threads borrowing and returning connections
+ * don't contend on a monitor.
+ * <p>
+ * When the pool is exhausted and {@link WhenExhaustedAction#BLOCK} is configured, the borrowing threads are parked in
+ * the order they arrive. A returned connection, or the room left by a destroyed one, is handed directly to the longest
+ * waiting thread, so the idle connections can't be taken by the threads arriving later.
+ * <p>
+ * When {@link GMConnectionPoolConfig#setThreadAffinity(boolean) threadAffinity} is set, each thread remembers the
+ * connection it returned last and claims it back with a single compare-and-set the next time, without going through
+ * the deque. The connection stays idle in the deque in between, so other threads can still take it when it is not
+ * reclaimed.
+ * <p>
+ * <i>maxActive</i> caps all the connections managed by the pool, which are the connections borrowed, idle and being
+ * created. With {@link GMConnectionPoolConfig#setAdaptiveSizing(boolean) adaptiveSizing}, the evictor lowers and
+ * raises the cap between <i>minIdle</i> and <i>maxActive</i> as decided by {@link AdaptivePoolSizer}. The idle
+ * connections beyond a lowered cap are destroyed right away, and the borrowed ones when they are returned.
+ *
+ * @author Kenneth Xu
+ *
+ * @see PoolEngine#CONCURRENT
+ */
+class ConcurrentGMConnectionPool implements ConnectionPool {
+    private static final String POOL_CLOSED = "Pool not open";
+
+    /**
+     * Handed to a waiter instead of a connection to give it the room to create one.
+     */
+    private static final Object PERMIT = new Object();
+    private static final Object CANCELLED = new Object();
+    private static final Object CLOSED = new Object();
+
+    // states of the connection in the pool
+    private static final int IN_USE = 0;
+    private static final int IDLE = 1;
+    private static final int REMOVED = 2;
+
+    private final PooledGMConnectionFactory factory;
+    private final ConcurrentLinkedDeque<PooledGMConnection> idle = new ConcurrentLinkedDeque<PooledGMConnection>();
+    private final ConcurrentLinkedQueue<Waiter> waiters = new ConcurrentLinkedQueue<Waiter>();
+    private final AtomicInteger total = new AtomicInteger();
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    private final int configuredMaxIdle;
+    private final int configuredMinIdle;
+    private volatile int maxActive;
+    private volatile int maxIdle;
+    private volatile int minIdle;
+    private final WhenExhaustedAction whenExhaustedAction;
+    private final long maxWaitNanos;
+    private final boolean testOnBorrow;
+    private final boolean testOnReturn;
+    private final boolean testWhileIdle;
+    private final long minEvictableIdleTimeMillis;
+    private final long softMinEvictableIdleTimeMillis;
+    private final int numTestsPerEvictionRun;
+    private final boolean lifo;
+    @CheckForNull
+    private final ThreadLocal<PooledGMConnection> lastReturned;
+    @CheckForNull
+    private final AdaptivePoolSizer sizer;
+
+    private final ScheduledFuture<?> evictor;
+    private volatile boolean closed;
+
+    /**
+     * Construct a new instance of {@linkplain ConcurrentGMConnectionPool}.
+     */
+    public ConcurrentGMConnectionPool(@Nonnull GMConnectionPoolConfig config) {
+        factory = new PooledGMConnectionFactory(config);
+        factory.setPool(this);
+        maxActive = config.getMaxActive();
+        maxIdle = configuredMaxIdle = config.getMaxIdle();
+        minIdle = configuredMinIdle = config.getMinIdle();
+        whenExhaustedAction = config.getWhenExhaustedAction();
+        maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(config.getMaxWait());
+        testOnBorrow = config.getTestOnGet();
+        testOnReturn = config.getTestOnReturn();
+        testWhileIdle = config.getTestWhileIdle();
+        minEvictableIdleTimeMillis = config.getMinEvictableIdleTimeMillis();
+        softMinEvictableIdleTimeMillis = config.getSoftMinEvictableIdleTimeMillis();
+        numTestsPerEvictionRun = config.getNumTestsPerEvictionRun();
+        lifo = config.isLifo();
+        lastReturned = config.isThreadAffinity() ? new ThreadLocal<PooledGMConnection>() : null;
+        sizer = config.isAdaptiveSizing() ? new AdaptivePoolSizer(config) : null;
+        long period = config.getTimeBetweenEvictionRunsMillis();
+        evictor = period > 0 ? Holder.EXECUTOR.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    evict();
+                } catch (RuntimeException e) {
+                    // swallowed, a failed run must not cancel the following runs.
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS) : null;
+    }
+
+    @Override
+    @Nonnull
+    public PooledGMConnection borrowObject() throws GMServiceException {
+        final long start = System.nanoTime();
+        final long deadline = start + maxWaitNanos;
+        for (;;) {
+            if (closed) throw new IllegalStateException(POOL_CLOSED);
+            PooledGMConnection connection = reclaimLastReturned();
+            if (connection == null) connection = pollIdle();
+            boolean created = false;
+            if (connection == null) {
+                Object item;
+                if (reserve()) {
+                    item = PERMIT;
+                } else if (whenExhaustedAction == WhenExhaustedAction.GROW) {
+                    total.incrementAndGet();
+                    item = PERMIT;
+                } else if (whenExhaustedAction == WhenExhaustedAction.FAIL) {
+                    throw new NoSuchElementException("Pool exhausted");
+                } else {
+                    item = await(deadline);
+                }
+                if (item == CLOSED) throw new IllegalStateException(POOL_CLOSED);
+                if (item == PERMIT) {
+                    connection = create();
+                    created = true;
+                } else {
+                    connection = (PooledGMConnection) item;
+                }
+            }
+            boolean valid;
+            try {
+                factory.activateObject(connection);
+                valid = !testOnBorrow || factory.validateObject(connection);
+            } catch (GMServiceException e) {
+                destroy(connection);
+                if (created) throw new NoSuchElementException("Could not create a validated object, cause: "
+                        + e.getMessage());
+                continue;
+            }
+            if (valid) {
+                final long now = System.nanoTime();
+                factory.getMetrics().recordBorrowWait(now - start);
+                if (sizer != null) {
+                    connection.borrowedNanos = now;
+                    sizer.recordBorrow(now - start);
+                }
+                return connection;
+            }
+            destroy(connection);
+            if (created) throw new NoSuchElementException("Could not create a validated object");
+        }
+    }
+
+    @Override
+    public void returnObject(@Nonnull PooledGMConnection connection) {
+        if (connection == null) throw new NullPointerException("connection");
+        if (sizer != null) sizer.recordReturn(System.nanoTime() - connection.borrowedNanos);
+        boolean success = !closed && (!testOnReturn || factory.validateObject(connection));
+        if (success) {
+            try {
+                factory.passivateObject(connection);
+            } catch (GMServiceException e) {
+                success = false;
+            }
+        }
+        if (success) {
+            if (lastReturned != null) lastReturned.set(connection);
+            recycle(connection);
+        } else {
+            destroy(connection);
+        }
+    }
+
+    @Override
+    public void addObject() throws GMServiceException {
+        if (closed) throw new IllegalStateException(POOL_CLOSED);
+        total.incrementAndGet();
+        addReserved();
+    }
+
+    @Override
+    public boolean tryAddObject() throws GMServiceException {
+        if (closed) throw new IllegalStateException(POOL_CLOSED);
+        if (!reserve()) return false;
+        addReserved();
+        return true;
+    }
+
+    /**
+     * Creates a connection in the room already reserved and adds it to the pool as idle.
+     */
+    private void addReserved() throws GMServiceException {
+        PooledGMConnection connection = create();
+        try {
+            factory.passivateObject(connection);
+        } catch (GMServiceException e) {
+            destroy(connection);
+            throw e;
+        }
+        recycle(connection);
+    }
+
+    @Override
+    @Nonnull
+    public Future<Void> prewarm(int count) {
+        return PooledGMConnectionFactory.prewarm(this, count);
+    }
+
+    @Override
+    public int getNumActive() {
+        return Math.max(total.get() - idleCount.get(), 0);
+    }
+
+    @Override
+    public int getNumIdle() {
+        return idleCount.get();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        if (evictor != null && evictor.cancel(false)) Holder.EXECUTOR.remove((Runnable) evictor);
+        while (handOff(CLOSED)) {
+            continue;
+        }
+        clearIdle();
+    }
+
+    @Override
+    @Nonnull
+    public ReaderWriterProcess createProcess() throws GMServiceException {
+        return factory.createProcess();
+    }
+
+    @Override
+    @CheckForNull
+    public Charset getCharset() {
+        return factory.getCharset();
+    }
+
+    @Override
+    public int getPipelineDepth() {
+        return factory.getPipelineDepth();
+    }
+
+    @Override
+    public long getCommandTimeoutMillis() {
+        return factory.getCommandTimeoutMillis();
+    }
+
+    @Override
+    public int getEvictAfterNumberOfUse() {
+        return factory.getEvictAfterNumberOfUse();
+    }
+
+    @Override
+    public void setProcessFactory(@Nonnull ReaderWriterProcess.Factory factory) {
+        this.factory.setProcessFactory(factory);
+    }
+
+    @Override
+    @Nonnull
+    public GMMetrics getMetrics() {
+        return factory.getMetrics();
+    }
+
+    /**
+     * Runs one pass of the idle connection evictor: examines the longest idle connections, evicts the ones idle for too
+     * long or failing the validation, resizes the pool when adaptive sizing is on, then tops up to <i>minIdle</i>. The
+     * connections are claimed in place before being examined, so an idle connection is either borrowed or examined but
+     * never both.
+     */
+    void evict() {
+        if (closed) return;
+        final long now = System.currentTimeMillis();
+        int tests = numTests();
+        Iterator<PooledGMConnection> oldestFirst = lifo ? idle.descendingIterator() : idle.iterator();
+        for (int i = 0; i < tests && oldestFirst.hasNext(); i++) {
+            PooledGMConnection connection = oldestFirst.next();
+            long idleTime = now - connection.idleSince;
+            boolean evict;
+            if (minEvictableIdleTimeMillis > 0) {
+                evict = idleTime > minEvictableIdleTimeMillis;
+            } else {
+                evict = softMinEvictableIdleTimeMillis > 0 && idleTime > softMinEvictableIdleTimeMillis
+                        && idleCount.get() > minIdle;
+            }
+            if (!evict && !testWhileIdle) continue;
+            if (!claim(connection)) continue;
+            if (evict || !validateIdle(connection)) {
+                if (evict && connection.markEvictionRecorded()) factory.getMetrics().evictedIdle();
+                if (idle.removeFirstOccurrence(connection)) connection.queued.set(false);
+                destroy(connection);
+            } else {
+                // releases it where it is so that it keeps its turn.
+                idleCount.incrementAndGet();
+                makeIdle(connection);
+                drainToWaiters();
+            }
+        }
+        if (sizer != null) resize(sizer.adjust(System.nanoTime()));
+        ensureMinIdle();
+    }
+
+    /**
+     * Changes the cap of the connections managed by the pool.
+     */
+    void resize(int size) {
+        maxActive = size;
+        maxIdle = configuredMaxIdle >= 0 ? Math.min(configuredMaxIdle, size) : size;
+        minIdle = Math.min(configuredMinIdle, size);
+        while (idleCount.get() > maxIdle || (total.get() > size && idleCount.get() > 0)) {
+            PooledGMConnection connection = pollIdle(true);
+            if (connection == null) break;
+            destroy(connection);
+        }
+        grantRoomToWaiters();
+    }
+
+    int getMaxActive() {
+        return maxActive;
+    }
+
+    private int numTests() {
+        int n = idleCount.get();
+        if (numTestsPerEvictionRun >= 0) return Math.min(numTestsPerEvictionRun, n);
+        return (n + (-numTestsPerEvictionRun) - 1) / -numTestsPerEvictionRun;
+    }
+
+    private boolean validateIdle(PooledGMConnection connection) {
+        try {
+            factory.activateObject(connection);
+            if (!factory.validateObject(connection)) return false;
+            factory.passivateObject(connection);
+            return true;
+        } catch (GMServiceException e) {
+            return false;
+        }
+    }
+
+    private void ensureMinIdle() {
+        while (!closed && idleCount.get() < minIdle && reserve()) {
+            PooledGMConnection connection;
+            try {
+                connection = create();
+            } catch (GMServiceException e) {
+                return;
+            }
+            if (!offerIdle(connection)) {
+                destroy(connection);
+                return;
+            }
+            drainToWaiters();
+        }
+    }
+
+    /**
+     * Reserves the room for a new connection.
+     *
+     * @return true if reserved, or false if the pool is exhausted.
+     */
+    private boolean reserve() {
+        for (;;) {
+            int n = total.get();
+            if (maxActive > 0 && n >= maxActive) return false;
+            if (total.compareAndSet(n, n + 1)) return true;
+        }
+    }
+
+    /**
+     * Gives up the room of a connection, and passes the room to a waiter if any.
+     */
+    private void release() {
+        total.decrementAndGet();
+        grantRoomToWaiters();
+    }
+
+    private void grantRoomToWaiters() {
+        // a waiter re-checks the room after it is queued, so checking the waiters after the decrement never misses one.
+        while (!waiters.isEmpty() && reserve()) {
+            if (!handOff(PERMIT)) total.decrementAndGet();
+        }
+    }
+
+    /**
+     * Creates a new connection in the room already reserved, the room is released if the creation fails.
+     */
+    private PooledGMConnection create() throws GMServiceException {
+        boolean success = false;
+        try {
+            PooledGMConnection connection = factory.makeObject();
+            success = true;
+            return connection;
+        } finally {
+            if (!success) release();
+        }
+    }
+
+    private void destroy(PooledGMConnection connection) {
+        connection.poolState.set(REMOVED);
+        try {
+            factory.destroyObject(connection);
+        } catch (GMServiceException e) {
+            return;
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Gives a healthy connection to the longest waiting thread, or puts it to the idle deque.
+     */
+    private void recycle(PooledGMConnection connection) {
+        if (sizer != null && total.get() > maxActive) {
+            // the pool was shrunk while it was borrowed.
+            destroy(connection);
+            return;
+        }
+        if (handOff(connection)) return;
+        if (!offerIdle(connection)) {
+            destroy(connection);
+            return;
+        }
+        drainToWaiters();
+        if (closed) clearIdle();
+    }
+
+    /**
+     * Takes an idle connection from the deque. The connections claimed in place by other means are left in the deque
+     * until they get here, and they are dropped.
+     */
+    @CheckForNull
+    private PooledGMConnection pollIdle() {
+        return pollIdle(false);
+    }
+
+    /**
+     * Takes the idle connection to be borrowed next, or the one idle for the longest time if oldest is true.
+     */
+    @CheckForNull
+    private PooledGMConnection pollIdle(boolean oldest) {
+        boolean last = oldest && lifo;
+        for (PooledGMConnection connection = last ? idle.pollLast() : idle.pollFirst(); connection != null;
+                connection = last ? idle.pollLast() : idle.pollFirst()) {
+            // clears the flag before claiming, see makeIdle.
+            connection.queued.set(false);
+            if (claim(connection)) return connection;
+        }
+        return null;
+    }
+
+    @CheckForNull
+    private PooledGMConnection reclaimLastReturned() {
+        if (lastReturned == null) return null;
+        PooledGMConnection connection = lastReturned.get();
+        return connection != null && claim(connection) ? connection : null;
+    }
+
+    private boolean claim(PooledGMConnection connection) {
+        if (!connection.poolState.compareAndSet(IDLE, IN_USE)) return false;
+        idleCount.decrementAndGet();
+        return true;
+    }
+
+    private boolean offerIdle(PooledGMConnection connection) {
+        for (;;) {
+            int n = idleCount.get();
+            if (maxIdle >= 0 && n >= maxIdle) return false;
+            if (idleCount.compareAndSet(n, n + 1)) break;
+        }
+        connection.idleSince = System.currentTimeMillis();
+        makeIdle(connection);
+        return true;
+    }
+
+    /**
+     * Marks the connection idle and puts it to the deque unless it is still there. A connection reclaimed in place
+     * stays in the deque, the poller that removes it clears the queued flag before trying to claim it. So either the
+     * poller sees it idle and takes it, or this method sees the flag cleared and queues it again.
+     */
+    private void makeIdle(PooledGMConnection connection) {
+        connection.poolState.set(IDLE);
+        if (!connection.queued.compareAndSet(false, true)) return;
+        if (lifo) {
+            idle.offerFirst(connection);
+        } else {
+            idle.offerLast(connection);
+        }
+    }
+
+    /**
+     * Hands the idle connections to the waiters that were queued while the connections were being put to the deque.
+     */
+    private void drainToWaiters() {
+        while (!waiters.isEmpty()) {
+            PooledGMConnection connection = pollIdle();
+            if (connection == null) return;
+            if (!handOff(connection) && !offerIdle(connection)) destroy(connection);
+        }
+    }
+
+    private void clearIdle() {
+        for (PooledGMConnection connection = pollIdle(); connection != null; connection = pollIdle()) {
+            destroy(connection);
+        }
+    }
+
+    /**
+     * Hands the item to the longest waiting thread.
+     *
+     * @return true if handed, or false if there is no thread waiting.
+     */
+    private boolean handOff(Object item) {
+        for (Waiter waiter = waiters.poll(); waiter != null; waiter = waiters.poll()) {
+            if (waiter.item.compareAndSet(null, item)) {
+                LockSupport.unpark(waiter.thread);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parks current thread until a connection or the room for a new one is handed to it.
+     *
+     * @return an idle connection, {@link #PERMIT} or {@link #CLOSED}.
+     */
+    private Object await(long deadline) throws GMServiceException {
+        Waiter waiter = new Waiter();
+        waiters.offer(waiter);
+        // re-check after being queued, a connection may have been returned or destroyed right before.
+        PooledGMConnection connection = pollIdle();
+        if (connection != null) return keep(waiter, connection);
+        if (reserve()) return keep(waiter, PERMIT);
+        if (closed) return keep(waiter, CLOSED);
+        for (;;) {
+            Object item = waiter.item.get();
+            if (item != null) return item;
+            if (Thread.interrupted()) {
+                if (cancel(waiter)) {
+                    Thread.currentThread().interrupt();
+                    throw new GMServiceException("Interrupted while waiting for a connection",
+                            new InterruptedException());
+                }
+                Thread.currentThread().interrupt();
+                return waiter.item.get();
+            }
+            if (maxWaitNanos <= 0) {
+                LockSupport.park(this);
+                continue;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                if (cancel(waiter)) throw new NoSuchElementException("Timeout waiting for idle object");
+                return waiter.item.get();
+            }
+            LockSupport.parkNanos(this, remaining);
+        }
+    }
+
+    /**
+     * Keeps the item found by the waiter itself unless another one has been handed to it, in which case the item found
+     * is given back.
+     */
+    private Object keep(Waiter waiter, Object item) {
+        if (cancel(waiter)) return item;
+        if (item == PERMIT) {
+            release();
+        } else if (item != CLOSED) {
+            recycle((PooledGMConnection) item);
+        }
+        return waiter.item.get();
+    }
+
+    private boolean cancel(Waiter waiter) {
+        if (!waiter.item.compareAndSet(null, CANCELLED)) return false;
+        waiters.remove(waiter);
+        return true;
+    }
+
+    private static final class Waiter {
+        final Thread thread = Thread.currentThread();
+        final AtomicReference<Object> item = new AtomicReference<Object>();
+    }
+
+    private static final class Holder {
+        static final ScheduledThreadPoolExecutor EXECUTOR = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "gm4java-evictor");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+}
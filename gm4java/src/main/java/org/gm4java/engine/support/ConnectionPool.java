@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import org.gm4java.engine.GMServiceException;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.Future;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * A pool of {@link PooledGMConnection}s used by {@link PooledGMService}. The implementation is selected by
+ * {@link GMConnectionPoolConfig#setPoolEngine(PoolEngine)}.
+ *
+ * @author Kenneth Xu
+ *
+ * @see GMConnectionPool
+ * @see ConcurrentGMConnectionPool
+ */
+interface ConnectionPool {
+    /**
+     * Obtains a connection from the pool, creating a new one when necessary.
+     *
+     * @return a connection that is ready to use
+     * @throws GMServiceException
+     *             when the connection cannot be created
+     * @throws java.util.NoSuchElementException
+     *             when the pool is exhausted
+     */
+    @Nonnull
+    PooledGMConnection borrowObject() throws GMServiceException;
+
+    /**
+     * Returns a connection obtained by {@link #borrowObject()} back to the pool.
+     *
+     * @param connection
+     *            the connection to return
+     * @throws GMServiceException
+     *             when the connection is not healthy and failed to be destroyed
+     */
+    void returnObject(@Nonnull PooledGMConnection connection) throws GMServiceException;
+
+    /**
+     * Creates a connection and adds it to the pool as idle.
+     *
+     * @throws GMServiceException
+     *             when the connection cannot be created
+     */
+    void addObject() throws GMServiceException;
+
+    /**
+     * Creates a connection and adds it to the pool as idle if the pool has room for it. The room is reserved before the
+     * connection is created, so that the connections created by the borrowers at the same time never push the pool over
+     * <i>maxActive</i>.
+     *
+     * @return true if the connection is added, or false if the pool is full or cannot reserve the room.
+     * @throws GMServiceException
+     *             when the connection cannot be created
+     */
+    boolean tryAddObject() throws GMServiceException;
+
+    /**
+     * Creates the given number of {@link PooledGMConnection}s in parallel and adds them to the pool as idle.
+     *
+     * @param count
+     *            the number of connections to create
+     * @return a future that completes when all the connections are added, or fails with the first error creating
+     *         them.
+     */
+    @Nonnull
+    Future<Void> prewarm(int count);
+
+    /**
+     * Gets the number of connections currently borrowed from the pool.
+     *
+     * @return the number of active connections
+     */
+    int getNumActive();
+
+    /**
+     * Gets the number of connections currently idle in the pool.
+     *
+     * @return the number of idle connections
+     */
+    int getNumIdle();
+
+    /**
+     * Closes the pool and destroys all the idle connections. Connections returned afterwards are destroyed.
+     *
+     * @throws Exception
+     *             when failed to destroy the idle connections
+     */
+    void close() throws Exception;
+
+    /**
+     * Starts a new GraphicsMagick process in batch mode.
+     *
+     * @return the new process
+     * @throws GMServiceException
+     *             when the process cannot be started
+     */
+    @Nonnull
+    ReaderWriterProcess createProcess() throws GMServiceException;
+
+    /**
+     * Gets the charset used to talk to GraphicsMagick.
+     *
+     * @return the charset, or null if the platform default charset is used.
+     */
+    @CheckForNull
+    Charset getCharset();
+
+    /**
+     * Gets the maximum number of commands that can be sent to a GraphicsMagick process ahead of reading the results.
+     *
+     * @return the pipeline depth
+     */
+    int getPipelineDepth();
+
+    /**
+     * Gets the default timeout of each command.
+     *
+     * @return the default timeout of each command in milliseconds
+     */
+    long getCommandTimeoutMillis();
+
+    /**
+     * Gets the number of times a GraphicsMagick process can be used to execute commands before it gets evicted.
+     *
+     * @return the limit, non-positive value means no limit.
+     */
+    int getEvictAfterNumberOfUse();
+
+    /**
+     * Sets the factory of the GraphicsMagick processes.
+     *
+     * @param factory
+     *            the factory to use
+     */
+    void setProcessFactory(@Nonnull ReaderWriterProcess.Factory factory);
+
+    /**
+     * Gets the metrics recorded by the pool and its connections.
+     *
+     * @return the metrics
+     */
+    @Nonnull
+    GMMetrics getMetrics();
+}
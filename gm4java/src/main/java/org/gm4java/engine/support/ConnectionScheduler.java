@@ -0,0 +1,464 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import org.gm4java.engine.GMServiceException;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * Decides who gets the next GM connection of a pool with <i>maxActive</i> connections, by the {@link Priority} lane and
+ * by the tenant of the callers.
+ * <p>
+ * A caller takes a permit before borrowing from the pool and gives it back after returning the connection, so the
+ * pool itself never makes anyone wait. A free permit is given, in this order, to
+ * <ol>
+ * <li>the highest lane using fewer connections than it has reserved,</li>
+ * <li>the waiter that has waited the longest for more than the starvation threshold, whatever its lane,</li>
+ * <li>the highest lane.</li>
+ * </ol>
+ * A permit is never given away when that would leave too few for the connections reserved by the other lanes, even
+ * if nobody is waiting in them.
+ * <p>
+ * Within a lane, the waiters are queued per tenant and the tenants are served by deficit round-robin. Each round a
+ * tenant earns a quantum times its weight, and it is served as long as its earnings cover the cost of a command, which
+ * is the average time the tenant recently held a connection. So the tenants get the processes in proportion to their
+ * weights no matter how many commands each of them queues. With only one tenant, it is first come, first served.
+ * <p>
+ * The tenant ids usually come from the requests, so only the {@value #MAX_IDLE_TENANTS} tenants idle most recently
+ * are kept once they hold and wait for no permit, besides the default tenant and those with a weight configured. The
+ * metrics of the tenants idle for longer are added up under {@link PooledGMService#OTHER_TENANTS}, and the cost of
+ * their commands is forgotten.
+ *
+ * @author Kenneth Xu
+ *
+ * @see GMConnectionPoolConfig#setPriorityScheduling(boolean)
+ * @see GMConnectionPoolConfig#setFairSharing(boolean)
+ */
+class ConnectionScheduler {
+    /**
+     * The number of idle tenants kept apart before their metrics are added to the other tenants.
+     */
+    static final int MAX_IDLE_TENANTS = 1000;
+    private static final int COST_SMOOTHING = 8;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Lane[] lanes;
+    private final Map<String, Tenant> tenants = new HashMap<String, Tenant>();
+    // the idle tenants, the least recently used first.
+    private final LinkedHashMap<String, Tenant> idle = new LinkedHashMap<String, Tenant>();
+    @CheckForNull
+    private Tenant others;
+    private final GMConnectionPoolConfig config;
+    private final int capacity;
+    private final boolean prioritized;
+    private final boolean fair;
+    private final boolean failFast;
+    private final long maxWaitNanos;
+    private final long starvationNanos;
+    private final long quantumNanos;
+    private int total;
+
+    ConnectionScheduler(@Nonnull GMConnectionPoolConfig config) {
+        this.config = config;
+        capacity = config.getMaxActive();
+        if (capacity <= 0) throw new IllegalArgumentException("maxActive must be positive");
+        prioritized = config.isPriorityScheduling();
+        fair = config.isFairSharing();
+        Priority[] priorities = Priority.values();
+        lanes = new Lane[priorities.length];
+        int reserved = 0;
+        for (Priority priority : priorities) {
+            int connections = prioritized ? config.getReservedConnections(priority) : 0;
+            lanes[priority.ordinal()] = new Lane(connections);
+            reserved += connections;
+        }
+        if (reserved > capacity) {
+            throw new IllegalArgumentException("Reserved connections " + reserved + " exceed maxActive " + capacity);
+        }
+        failFast = config.getWhenExhaustedAction() == WhenExhaustedAction.FAIL;
+        maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(config.getMaxWait());
+        starvationNanos = TimeUnit.MILLISECONDS.toNanos(config.getStarvationThresholdMillis());
+        quantumNanos = Math.max(1, TimeUnit.MILLISECONDS.toNanos(config.getFairShareQuantumMillis()));
+    }
+
+    /**
+     * Takes a permit for given lane and tenant, waiting for one according to the "when exhausted" action of the pool.
+     * The priority is ignored unless priority scheduling is enabled and the tenant is ignored unless fair sharing is.
+     *
+     * @throws NoSuchElementException
+     *             when no permit is available in time
+     * @throws GMServiceException
+     *             when current thread is interrupted while waiting
+     */
+    void acquire(@Nonnull Priority priority, @Nonnull String tenant) throws GMServiceException {
+        lock.lock();
+        try {
+            Lane lane = laneOf(priority);
+            Tenant owner = tenantOf(tenant);
+            if (!hasWaiters() && admits(lane)) {
+                take(lane, owner);
+                owner.waitNanos.record(0);
+                return;
+            }
+            if (failFast) {
+                forget(owner);
+                throw new NoSuchElementException("Pool exhausted");
+            }
+            Waiter waiter = new Waiter(owner);
+            lane.add(waiter);
+            dispatch();
+            await(lane, waiter);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void await(Lane lane, Waiter waiter) throws GMServiceException {
+        long remaining = maxWaitNanos;
+        try {
+            while (!waiter.granted) {
+                if (maxWaitNanos <= 0) {
+                    waiter.signal.await();
+                } else if (remaining > 0) {
+                    remaining = waiter.signal.awaitNanos(remaining);
+                } else {
+                    lane.remove(waiter);
+                    forget(waiter.owner);
+                    throw new NoSuchElementException("Timeout waiting for idle object");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            if (waiter.granted) return;
+            lane.remove(waiter);
+            forget(waiter.owner);
+            throw new GMServiceException("Interrupted while waiting for a connection", e);
+        }
+    }
+
+    /**
+     * Gives back a permit taken by {@link #acquire(Priority, String)} for the same lane and tenant.
+     *
+     * @param heldNanos
+     *            the time the connection was held, which is charged to the tenant
+     */
+    void release(@Nonnull Priority priority, @Nonnull String tenant, long heldNanos) {
+        lock.lock();
+        try {
+            Lane lane = laneOf(priority);
+            Tenant owner = tenantOf(tenant);
+            lane.inUse--;
+            owner.inUse--;
+            total--;
+            charge(owner, heldNanos);
+            dispatch();
+            forget(owner);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Charges the tenant for a command whose permit was {@link #release(Priority, String, long) released} before the
+     * command completed, as in pipelined mode.
+     *
+     * @param heldNanos
+     *            the time from taking the permit until the command completed
+     */
+    void charge(@Nonnull String tenant, long heldNanos) {
+        lock.lock();
+        try {
+            Tenant owner = tenantOf(tenant);
+            charge(owner, heldNanos);
+            forget(owner);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void charge(Tenant owner, long heldNanos) {
+        if (heldNanos <= 0) return;
+        owner.processNanos += heldNanos;
+        owner.cost = Math.max(1, owner.cost + (heldNanos - owner.cost) / COST_SMOOTHING);
+    }
+
+    /**
+     * Takes a copy of the metrics of the default tenant, the tenants with a weight configured, the other tenants
+     * holding or waiting for a permit and those idle recently, plus the sum of the tenants idle for longer if any.
+     *
+     * @return the metrics by tenant id
+     */
+    @Nonnull
+    SortedMap<String, GMTenantMetrics> getTenantMetrics() {
+        lock.lock();
+        try {
+            SortedMap<String, GMTenantMetrics> metrics = new TreeMap<String, GMTenantMetrics>();
+            for (Tenant tenant : tenants.values()) {
+                metrics.put(tenant.name, tenant.metrics());
+            }
+            for (Tenant tenant : idle.values()) {
+                metrics.put(tenant.name, tenant.metrics());
+            }
+            if (others != null) metrics.put(others.name, others.metrics());
+            return Collections.unmodifiableSortedMap(metrics);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getInUse(@Nonnull Priority priority) {
+        lock.lock();
+        try {
+            return laneOf(priority).inUse;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getWaiting(@Nonnull Priority priority) {
+        lock.lock();
+        try {
+            return laneOf(priority).waiting;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Lane laneOf(Priority priority) {
+        return lanes[prioritized ? priority.ordinal() : Priority.NORMAL.ordinal()];
+    }
+
+    private Tenant tenantOf(String name) {
+        if (!fair) name = PooledGMService.DEFAULT_TENANT;
+        Tenant tenant = tenants.get(name);
+        if (tenant != null) return tenant;
+        tenant = idle.remove(name);
+        if (tenant == null) {
+            boolean pinned = PooledGMService.DEFAULT_TENANT.equals(name) || config.hasTenantWeight(name);
+            tenant = new Tenant(name, config.getTenantWeight(name), quantumNanos, pinned);
+        }
+        tenants.put(name, tenant);
+        return tenant;
+    }
+
+    /**
+     * Moves the tenant to the idle ones once it neither holds nor waits for a permit, unless it is pinned, and adds
+     * the least recently idle tenant to the others when there are too many. It has no deficit left by then, as the
+     * flows are retired with their last waiter.
+     */
+    private void forget(Tenant tenant) {
+        if (tenant.pinned || tenant.inUse != 0 || tenant.waiting != 0) return;
+        tenants.remove(tenant.name);
+        idle.put(tenant.name, tenant);
+        if (idle.size() <= MAX_IDLE_TENANTS) return;
+        Iterator<Tenant> eldest = idle.values().iterator();
+        Tenant oldest = eldest.next();
+        eldest.remove();
+        if (others == null) others = new Tenant(PooledGMService.OTHER_TENANTS, 1, quantumNanos, true);
+        others.waitNanos.add(oldest.waitNanos);
+        others.processNanos += oldest.processNanos;
+    }
+
+    private void dispatch() {
+        long now = System.nanoTime();
+        for (Waiter waiter = select(now); waiter != null; waiter = select(now)) {
+            waiter.granted = true;
+            waiter.owner.waitNanos.record(now - waiter.since);
+            waiter.signal.signal();
+        }
+    }
+
+    /**
+     * Picks the waiter to hand the next free permit to, if any, and takes the permit for it.
+     */
+    private Waiter select(long now) {
+        if (total >= capacity) return null;
+        for (Lane lane : lanes) {
+            if (lane.waiting > 0 && lane.inUse < lane.reserved) return lane.take(lane.next());
+        }
+        Lane starving = null;
+        Waiter oldest = null;
+        for (Lane lane : lanes) {
+            if (lane.waiting == 0 || !admits(lane)) continue;
+            Waiter head = lane.oldest();
+            if (now - head.since < starvationNanos) continue;
+            if (oldest == null || head.since - oldest.since < 0) {
+                starving = lane;
+                oldest = head;
+            }
+        }
+        if (starving != null) return starving.take(oldest);
+        for (Lane lane : lanes) {
+            if (lane.waiting > 0 && admits(lane)) return lane.take(lane.next());
+        }
+        return null;
+    }
+
+    private boolean admits(Lane lane) {
+        int free = capacity - total;
+        for (Lane other : lanes) {
+            if (other != lane) free -= Math.max(0, other.reserved - other.inUse);
+        }
+        return free > 0;
+    }
+
+    private boolean hasWaiters() {
+        for (Lane lane : lanes) {
+            if (lane.waiting > 0) return true;
+        }
+        return false;
+    }
+
+    private void take(Lane lane, Tenant owner) {
+        lane.inUse++;
+        owner.inUse++;
+        total++;
+    }
+
+    private final class Lane {
+        final int reserved;
+        int inUse;
+        int waiting;
+        // the flows with waiters, in the order of the round-robin.
+        final Queue<Flow> active = new ArrayDeque<Flow>();
+        final Map<Tenant, Flow> flows = new HashMap<Tenant, Flow>();
+
+        Lane(int reserved) {
+            this.reserved = reserved;
+        }
+
+        void add(Waiter waiter) {
+            Flow flow = flows.get(waiter.owner);
+            if (flow == null) {
+                flow = new Flow(waiter.owner);
+                flows.put(waiter.owner, flow);
+                active.add(flow);
+            }
+            flow.waiters.add(waiter);
+            waiting++;
+            waiter.owner.waiting++;
+        }
+
+        void remove(Waiter waiter) {
+            Flow flow = flows.get(waiter.owner);
+            flow.waiters.remove(waiter);
+            waiting--;
+            waiter.owner.waiting--;
+            if (flow.waiters.isEmpty()) retire(flow);
+        }
+
+        /**
+         * Takes a permit of this lane for given waiter and charges its tenant the cost of a command.
+         */
+        Waiter take(Waiter waiter) {
+            Flow flow = flows.get(waiter.owner);
+            flow.deficit -= waiter.owner.cost;
+            remove(waiter);
+            ConnectionScheduler.this.take(this, waiter.owner);
+            return waiter;
+        }
+
+        /**
+         * Finds the waiter to serve next by deficit round-robin.
+         */
+        Waiter next() {
+            for (;;) {
+                Flow flow = active.peek();
+                if (!flow.visited) {
+                    flow.deficit += quantumNanos * flow.tenant.weight;
+                    flow.visited = true;
+                }
+                if (flow.deficit >= flow.tenant.cost) return flow.waiters.peek();
+                flow.visited = false;
+                active.add(active.poll());
+            }
+        }
+
+        Waiter oldest() {
+            Waiter oldest = null;
+            for (Flow flow : active) {
+                Waiter head = flow.waiters.peek();
+                if (oldest == null || head.since - oldest.since < 0) oldest = head;
+            }
+            return oldest;
+        }
+
+        private void retire(Flow flow) {
+            flows.remove(flow.tenant);
+            active.remove(flow);
+        }
+    }
+
+    private static final class Flow {
+        final Tenant tenant;
+        final Queue<Waiter> waiters = new ArrayDeque<Waiter>();
+        long deficit;
+        boolean visited;
+
+        Flow(Tenant tenant) {
+            this.tenant = tenant;
+        }
+    }
+
+    private static final class Tenant {
+        final String name;
+        final int weight;
+        final boolean pinned;
+        final Histogram waitNanos = new Histogram();
+        long processNanos;
+        long cost;
+        int inUse;
+        int waiting;
+
+        Tenant(String name, int weight, long cost, boolean pinned) {
+            this.name = name;
+            this.weight = weight;
+            this.cost = cost;
+            this.pinned = pinned;
+        }
+
+        GMTenantMetrics metrics() {
+            return new GMTenantMetrics(name, weight, waitNanos.snapshot(), processNanos);
+        }
+    }
+
+    private final class Waiter {
+        final Condition signal = lock.newCondition();
+        final long since = System.nanoTime();
+        final Tenant owner;
+        boolean granted;
+
+        Waiter(Tenant owner) {
+            this.owner = owner;
+        }
+    }
+}
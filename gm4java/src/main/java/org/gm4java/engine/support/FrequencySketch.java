@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+/**
+ * Estimates how often each key was asked for recently, in a fixed amount of memory. It is a count-min sketch of 4
+ * rows of counters saturating at 15, all of which are halved after a number of increments proportional to the width,
+ * so that the old popularity fades away.
+ *
+ * @author Kenneth Xu
+ *
+ * @see CacheEvictionPolicy#TINY_LFU
+ */
+final class FrequencySketch {
+    private static final int[] SEEDS = { 0x97cb3127, 0xb4b82e39, 0xc2b2ae35, 0x85ebca6b };
+    private static final int MAX_COUNT = 15;
+    private static final int MIN_WIDTH = 16;
+    private static final int MAX_WIDTH = 1 << 24;
+    private static final int SAMPLE_FACTOR = 10;
+
+    private final byte[][] table;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    /**
+     * Constructs a sketch sized for given number of distinct keys.
+     *
+     * @param expectedKeys
+     *            the number of keys the cache is expected to hold
+     */
+    FrequencySketch(long expectedKeys) {
+        int width = MIN_WIDTH;
+        while (width < expectedKeys && width < MAX_WIDTH) {
+            width <<= 1;
+        }
+        table = new byte[SEEDS.length][width];
+        mask = width - 1;
+        sampleSize = SAMPLE_FACTOR * width;
+    }
+
+    /**
+     * Records an access to the key.
+     */
+    void increment(Object key) {
+        int hash = key.hashCode();
+        boolean added = false;
+        for (int i = 0; i < SEEDS.length; i++) {
+            int index = indexOf(hash, i);
+            if (table[i][index] < MAX_COUNT) {
+                table[i][index]++;
+                added = true;
+            }
+        }
+        if (added && ++additions >= sampleSize) reset();
+    }
+
+    /**
+     * Gets the estimated number of recent accesses to the key.
+     */
+    int frequency(Object key) {
+        int hash = key.hashCode();
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < SEEDS.length; i++) {
+            frequency = Math.min(frequency, table[i][indexOf(hash, i)]);
+        }
+        return frequency;
+    }
+
+    private int indexOf(int hash, int row) {
+        int h = hash * SEEDS[row];
+        h ^= h >>> 16;
+        return h & mask;
+    }
+
+    /**
+     * Halves all the counters, it is called every time the sample size is reached.
+     */
+    void reset() {
+        for (byte[] row : table) {
+            for (int i = 0; i < row.length; i++) {
+                row[i] >>>= 1;
+            }
+        }
+        additions >>>= 1;
+    }
+}
@@ -0,0 +1,362 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import org.gm4java.engine.GMOutputHandler;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * Encodes commands to and decodes results from GraphicsMagick batch mode at byte level.
+ * <p>
+ * Commands are encoded directly into a reusable byte buffer and written with one call per flush. Results are scanned
+ * for the {@link Constants#GM_PASS pass} and {@link Constants#GM_FAIL fail} marker lines in a reusable byte buffer,
+ * while the output lines are collected as bytes with each line terminated by the platform line separator. Output is
+ * only decoded to a {@link String} when {@link #output()} is called. Hence encoding a command and reading its result
+ * allocates nothing as long as the arguments are ASCII and the buffers are large enough.
+ * <p>
+ * Only ASCII compatible charsets are supported, as GraphicsMagick speaks them.
+ * <p>
+ * This class is not thread safe.
+ * 
+ * @author Kenneth Xu
+ * 
+ */
+final class GMBatchCodec {
+    private static final int BUFFER_SIZE = 8192;
+    private static final int ASCII_LIMIT = 0x80;
+    private static final byte QUOTE = '"';
+    private static final byte SPACE = ' ';
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+    private static final byte[] PASS = ascii(Constants.GM_PASS);
+    private static final byte[] FAIL = ascii(Constants.GM_FAIL);
+
+    private final InputStream in;
+    private final OutputStream out;
+    private final Charset charset;
+    private final CharsetEncoder encoder;
+    private final byte[] eol;
+
+    private byte[] command = new byte[BUFFER_SIZE];
+    private int commandLength;
+
+    private final byte[] input = new byte[BUFFER_SIZE];
+    private int position;
+    private int limit;
+
+    private byte[] output = new byte[BUFFER_SIZE];
+    private int outputLength;
+    private long outputSize;
+    private boolean midLine;
+
+    GMBatchCodec(@Nonnull InputStream in, @Nonnull OutputStream out, @Nonnull Charset charset) {
+        if (in == null) throw new NullPointerException("in");
+        if (out == null) throw new NullPointerException("out");
+        if (charset == null) throw new NullPointerException("charset");
+        if (!isAsciiCompatible(charset)) {
+            throw new IllegalArgumentException("Charset " + charset + " is not ASCII compatible.");
+        }
+        this.in = in;
+        this.out = out;
+        this.charset = charset;
+        encoder = charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        eol = System.getProperty("line.separator").getBytes(charset);
+    }
+
+    Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * Encodes the command into the buffer. Nothing is sent to GraphicsMagick until {@link #flush()} is called.
+     * 
+     * @param rawCommand
+     *            command string that is sent as is, or null
+     * @param arguments
+     *            arguments to be quoted
+     * @return number of bytes encoded.
+     */
+    int writeCommand(String rawCommand, @Nonnull List<String> arguments) throws IOException {
+        final int start = commandLength;
+        if (rawCommand != null) encode(rawCommand, 0, rawCommand.length());
+        if (arguments instanceof RandomAccess) {
+            for (int i = 0, size = arguments.size(); i < size; i++) {
+                writeArgument(arguments.get(i));
+            }
+        } else {
+            for (String s : arguments) {
+                writeArgument(s);
+            }
+        }
+        put(eol, 0, eol.length);
+        return commandLength - start;
+    }
+
+    /**
+     * Sends all the encoded commands to GraphicsMagick.
+     */
+    void flush() throws IOException {
+        try {
+            out.write(command, 0, commandLength);
+            out.flush();
+        } finally {
+            commandLength = 0;
+            if (command.length > BUFFER_SIZE) command = new byte[BUFFER_SIZE];
+        }
+    }
+
+    /**
+     * Reads the output of one command up to the pass or fail marker. The output lines are kept in the output buffer
+     * until the next call to this method.
+     * 
+     * @return true if GraphicsMagick returned pass, false if GraphicsMagick returned fail.
+     * @throws EOFException
+     *             when the stream ends before the marker is received
+     */
+    boolean readResult() throws IOException {
+        return readResult(null);
+    }
+
+    /**
+     * Reads the output of one command up to the pass or fail marker. When a handler is given, each line of output is
+     * decoded and passed to the handler as soon as it is read, and only the incomplete line, if any, is kept in the
+     * output buffer. Otherwise, the output lines are kept in the output buffer until the next call to this method.
+     * 
+     * @param handler
+     *            handler to receive the output lines, or null to keep the output in the buffer.
+     * @return true if GraphicsMagick returned pass, false if GraphicsMagick returned fail.
+     * @throws EOFException
+     *             when the stream ends before the marker is received
+     */
+    boolean readResult(@CheckForNull GMOutputHandler handler) throws IOException {
+        outputLength = 0;
+        outputSize = 0;
+        midLine = false;
+        // don't hold on to a large buffer forever
+        if (output.length > BUFFER_SIZE) output = new byte[BUFFER_SIZE];
+        for (;;) {
+            int lf = indexOfLineFeed();
+            if (lf < 0) {
+                if (!fill()) throw new EOFException("Input from GraphicsMagick was closed unexpectedly.");
+                continue;
+            }
+            int end = lf > position && input[lf - 1] == CR ? lf - 1 : lf;
+            if (!midLine) {
+                if (matches(PASS, end)) {
+                    position = lf + 1;
+                    return true;
+                }
+                if (matches(FAIL, end)) {
+                    position = lf + 1;
+                    return false;
+                }
+            }
+            append(input, position, end - position);
+            outputSize += lf + 1 - position;
+            if (handler == null) {
+                append(eol, 0, eol.length);
+            } else {
+                handler.handleLine(output());
+                outputLength = 0;
+            }
+            midLine = false;
+            position = lf + 1;
+        }
+    }
+
+    /**
+     * @return the output of the last command read by {@link #readResult()}, decoded with the charset.
+     */
+    @Nonnull
+    String output() {
+        return new String(output, 0, outputLength, charset);
+    }
+
+    /**
+     * @return the number of bytes of the output of the last command read by {@link #readResult()}.
+     */
+    int outputLength() {
+        return outputLength;
+    }
+
+    /**
+     * @return the number of bytes of the output of the last command read by {@link #readResult(GMOutputHandler)},
+     *         including the line terminators, whether the output was kept or passed to the handler.
+     */
+    long outputSize() {
+        return outputSize;
+    }
+
+    private int indexOfLineFeed() {
+        final byte[] b = input;
+        for (int i = position; i < limit; i++) {
+            if (b[i] == LF) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Reads more bytes into the input buffer. A line that doesn't fit in the buffer cannot be a marker, so it is moved
+     * to the output.
+     * 
+     * @return false if end of stream is reached.
+     */
+    private boolean fill() throws IOException {
+        if (position == limit) {
+            position = limit = 0;
+        } else if (position > 0) {
+            System.arraycopy(input, position, input, 0, limit - position);
+            limit -= position;
+            position = 0;
+        } else if (limit == input.length) {
+            int keep = input[limit - 1] == CR ? 1 : 0;
+            append(input, 0, limit - keep);
+            outputSize += limit - keep;
+            input[0] = input[limit - 1];
+            limit = keep;
+            midLine = true;
+        }
+        int n = in.read(input, limit, input.length - limit);
+        if (n < 0) {
+            append(input, position, limit - position);
+            position = limit;
+            return false;
+        }
+        limit += n;
+        return true;
+    }
+
+    private boolean matches(byte[] marker, int end) {
+        if (end - position != marker.length) return false;
+        for (int i = 0; i < marker.length; i++) {
+            if (input[position + i] != marker[i]) return false;
+        }
+        return true;
+    }
+
+    private void append(byte[] b, int offset, int length) {
+        if (outputLength + length > output.length) {
+            output = Arrays.copyOf(output, Math.max(output.length * 2, outputLength + length));
+        }
+        System.arraycopy(b, offset, output, outputLength, length);
+        outputLength += length;
+    }
+
+    private void writeArgument(String s) throws IOException {
+        put(SPACE);
+        put(QUOTE);
+        int start = 0, index = s.indexOf(QUOTE);
+        while (index >= 0) {
+            encode(s, start, ++index);
+            put(QUOTE);
+            start = index;
+            index = s.indexOf(QUOTE, start);
+        }
+        encode(s, start, s.length());
+        put(QUOTE);
+    }
+
+    private void encode(String s, int start, int end) throws CharacterCodingException {
+        ensureCapacity(end - start);
+        final byte[] b = command;
+        int p = commandLength;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c >= ASCII_LIMIT) {
+                commandLength = p;
+                encodeNonAscii(s, i, end);
+                return;
+            }
+            b[p++] = (byte) c;
+        }
+        commandLength = p;
+    }
+
+    private void encodeNonAscii(String s, int start, int end) throws CharacterCodingException {
+        CharBuffer chars = CharBuffer.wrap(s, start, end);
+        encoder.reset();
+        CoderResult result;
+        do {
+            ByteBuffer bytes = ByteBuffer.wrap(command, commandLength, command.length - commandLength);
+            result = encoder.encode(chars, bytes, true);
+            commandLength = bytes.position();
+            if (result.isOverflow()) ensureCapacity(command.length);
+            else if (result.isError()) result.throwException();
+        } while (!result.isUnderflow());
+        do {
+            ByteBuffer bytes = ByteBuffer.wrap(command, commandLength, command.length - commandLength);
+            result = encoder.flush(bytes);
+            commandLength = bytes.position();
+            if (result.isOverflow()) ensureCapacity(command.length);
+        } while (!result.isUnderflow());
+    }
+
+    private void put(byte b) {
+        ensureCapacity(1);
+        command[commandLength++] = b;
+    }
+
+    private void put(byte[] b, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(b, offset, command, commandLength, length);
+        commandLength += length;
+    }
+
+    private void ensureCapacity(int length) {
+        if (commandLength + length > command.length) {
+            command = Arrays.copyOf(command, Math.max(command.length * 2, commandLength + length));
+        }
+    }
+
+    private static byte[] ascii(String s) {
+        byte[] b = new byte[s.length()];
+        for (int i = 0; i < b.length; i++) {
+            b[i] = (byte) s.charAt(i);
+        }
+        return b;
+    }
+
+    private static boolean isAsciiCompatible(Charset charset) {
+        char[] chars = new char[ASCII_LIMIT];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) i;
+        }
+        byte[] bytes = new String(chars).getBytes(charset);
+        if (bytes.length != chars.length) return false;
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] != i) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import org.gm4java.engine.GMService;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * Executes large sets of commands, such as converting every image of a directory, over a {@link GMService}.
+ * <p>
+ * The commands of a batch are split into chunks that are executed by a fork/join pool of worker threads. A worker
+ * borrows one {@link org.gm4java.engine.GMConnection} for its whole chunk and sends the chunk to GraphicsMagick by
+ * {@link org.gm4java.engine.GMConnection#executeBatch(List)}, so a connection is not borrowed and returned for every
+ * image. The ranges of commands are split in halves, and idle workers steal the halves not yet started by the busy
+ * ones, which keeps all the workers busy until the end of the batch even when some images take much longer than
+ * others.
+ * <p>
+ * The parallelism should match the number of GraphicsMagick processes the service can run at a time, for example the
+ * <i>maxActive</i> of a {@link PooledGMService}, more workers would only wait for connections.
+ *
+ * @author Kenneth Xu
+ *
+ */
+public class GMBatchExecutor {
+    private static final int CHUNKS_PER_WORKER = 4;
+    private static final int MAX_AUTO_CHUNK_SIZE = 64;
+
+    private final GMService service;
+    private final ForkJoinPool pool;
+    private final int parallelism;
+    private int chunkSize;
+
+    /**
+     * Construct a new instance of {@linkplain GMBatchExecutor} with as many workers as the available processors.
+     *
+     * @param service
+     *            the service to execute the commands
+     */
+    public GMBatchExecutor(@Nonnull GMService service) {
+        this(service, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Construct a new instance of {@linkplain GMBatchExecutor} with given number of workers.
+     *
+     * @param service
+     *            the service to execute the commands
+     * @param parallelism
+     *            the number of workers
+     */
+    public GMBatchExecutor(@Nonnull GMService service, int parallelism) {
+        if (service == null) throw new NullPointerException("service");
+        if (parallelism <= 0) throw new IllegalArgumentException("parallelism must be positive but was " + parallelism);
+        this.service = service;
+        this.parallelism = parallelism;
+        pool = new ForkJoinPool(parallelism, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            @Override
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                return new Worker(pool);
+            }
+        }, null, false);
+    }
+
+    /**
+     * Gets the number of commands a worker executes with one connection.
+     *
+     * @return the chunk size, or 0 if it is decided per batch
+     * @see #setChunkSize(int)
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Sets the number of commands a worker executes with one connection. Larger chunks borrow connections less often,
+     * smaller chunks balance the load better towards the end of a batch. When non-positive, the batch is split into
+     * about 4 chunks per worker, up to 64 commands each. The default setting for this parameter is 0.
+     *
+     * @param chunkSize
+     *            the chunk size
+     * @see #getChunkSize()
+     */
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Submits a batch of commands.
+     *
+     * @param commands
+     *            the commands to execute
+     * @return the future of the batch
+     * @see #submit(Collection, GMBatchListener)
+     */
+    @Nonnull
+    public GMBatchFuture submit(@Nonnull Collection<? extends List<String>> commands) {
+        return submit(commands, null);
+    }
+
+    /**
+     * Submits a batch of commands. The commands are executed in no particular order, and the failure of a command
+     * doesn't stop the others.
+     *
+     * @param commands
+     *            the commands to execute
+     * @param listener
+     *            receives the progress of the batch, or null
+     * @return the future of the batch
+     * @throws NullPointerException
+     *             when commands or any command in it is null
+     * @throws IllegalArgumentException
+     *             when any command is an empty list
+     */
+    @Nonnull
+    public GMBatchFuture submit(@Nonnull Collection<? extends List<String>> commands,
+            @CheckForNull GMBatchListener listener) {
+        if (commands == null) throw new NullPointerException("commands");
+        List<List<String>> copy = new ArrayList<List<String>>(commands.size());
+        for (List<String> command : commands) {
+            if (command == null) throw new NullPointerException("Argument 'commands' must not contain null");
+            if (command.isEmpty()) throw new IllegalArgumentException("Argument 'commands' must not contain empty");
+            copy.add(command);
+        }
+        GMBatchFuture future = new GMBatchFuture(service, copy, effectiveChunkSize(copy.size()), listener);
+        pool.execute(future.newTask());
+        return future;
+    }
+
+    int effectiveChunkSize(int size) {
+        if (chunkSize > 0) return chunkSize;
+        return Math.max(1, Math.min(MAX_AUTO_CHUNK_SIZE, size / (parallelism * CHUNKS_PER_WORKER)));
+    }
+
+    /**
+     * Stops accepting new batches, the batches submitted are executed to the end.
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * The worker threads, which are not compensated by {@link ManagedBlocking} as there are as many as the
+     * GraphicsMagick processes they can use.
+     */
+    static final class Worker extends ForkJoinWorkerThread {
+        private static final AtomicInteger SEQUENCE = new AtomicInteger();
+
+        private Worker(ForkJoinPool pool) {
+            super(pool);
+            setName("gm4java-batch-" + SEQUENCE.incrementAndGet());
+        }
+    }
+
+    /**
+     * Creates a command for each file in a directory from a template. In each command, {@link GMService#INPUT} is
+     * replaced by the path to the file and {@link GMService#OUTPUT} by the path to the file of the same name in the
+     * target directory. For example, the template
+     *
+     * <pre>
+     * Arrays.asList(&quot;convert&quot;, GMService.INPUT, &quot;-resize&quot;, &quot;100x100&quot;, GMService.OUTPUT)
+     * </pre>
+     *
+     * makes the thumbnails of all the images in the source directory. The sub-directories are not included.
+     *
+     * @param sourceDirectory
+     *            the directory of the input files
+     * @param targetDirectory
+     *            the directory of the output files
+     * @param template
+     *            the command with the placeholders
+     * @return the commands in the order of the file names
+     * @throws IOException
+     *             when the source directory can't be listed
+     * @throws IllegalArgumentException
+     *             when the template doesn't have both placeholders
+     */
+    @Nonnull
+    public static List<List<String>> commandsFor(@Nonnull File sourceDirectory, @Nonnull File targetDirectory,
+            @Nonnull List<String> template) throws IOException {
+        if (sourceDirectory == null) throw new NullPointerException("sourceDirectory");
+        if (targetDirectory == null) throw new NullPointerException("targetDirectory");
+        // validates the template even when there is no file.
+        ImageStaging.substitute(template, "", "");
+        File[] files = sourceDirectory.listFiles();
+        if (files == null) throw new IOException("Unable to list directory " + sourceDirectory);
+        Arrays.sort(files);
+        List<List<String>> commands = new ArrayList<List<String>>(files.length);
+        for (File file : files) {
+            if (!file.isFile()) continue;
+            commands.add(ImageStaging.substitute(template, file.getPath(),
+                    new File(targetDirectory, file.getName()).getPath()));
+        }
+        return commands;
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import org.gm4java.engine.GMConnection;
+import org.gm4java.engine.GMResult;
+import org.gm4java.engine.GMService;
+import org.gm4java.engine.GMServiceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * The result of a batch submitted to {@link GMBatchExecutor}. Besides waiting for the final {@link GMBatchProgress},
+ * the progress so far can be read at any time by {@link #getProgress()}.
+ * <p>
+ * Cancelling the batch skips the chunks of commands that have not started, the chunks being executed run to their
+ * end.
+ *
+ * @author Kenneth Xu
+ *
+ */
+public final class GMBatchFuture implements Future<GMBatchProgress> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(GMBatchFuture.class);
+
+    private final GMService service;
+    private final List<List<String>> commands;
+    private final int chunkSize;
+    @CheckForNull
+    private final GMBatchListener listener;
+    private final long startNanos = System.nanoTime();
+    private final AtomicInteger completed = new AtomicInteger();
+    private final ConcurrentSkipListMap<Integer, Exception> failures = new ConcurrentSkipListMap<Integer, Exception>();
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private volatile long elapsedNanos;
+    private volatile boolean cancelled;
+
+    GMBatchFuture(@Nonnull GMService service, @Nonnull List<List<String>> commands, int chunkSize,
+            @CheckForNull GMBatchListener listener) {
+        this.service = service;
+        this.commands = commands;
+        this.chunkSize = chunkSize;
+        this.listener = listener;
+    }
+
+    /**
+     * Creates the task that executes the whole batch.
+     */
+    @Nonnull
+    RecursiveAction newTask() {
+        return new RecursiveAction() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected void compute() {
+                try {
+                    new Chunk(0, commands.size()).compute();
+                } finally {
+                    finish();
+                }
+            }
+        };
+    }
+
+    /**
+     * Takes a copy of the progress of the batch so far.
+     *
+     * @return the progress
+     */
+    @Nonnull
+    public GMBatchProgress getProgress() {
+        boolean done = isDone();
+        long elapsed = finished.getCount() == 0 ? elapsedNanos : System.nanoTime() - startNanos;
+        return new GMBatchProgress(commands.size(), completed.get(), elapsed, done,
+                Collections.unmodifiableSortedMap(new TreeMap<Integer, Exception>(failures)));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The chunks being executed are never interrupted.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (finished.getCount() == 0) return false;
+        cancelled = true;
+        return true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public boolean isDone() {
+        return cancelled || finished.getCount() == 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The failures of individual commands don't fail the batch, they are reported by
+     * {@link GMBatchProgress#getFailures()}.
+     */
+    @Override
+    @Nonnull
+    public GMBatchProgress get() throws InterruptedException {
+        if (cancelled) throw new CancellationException();
+        finished.await();
+        if (cancelled) throw new CancellationException();
+        return getProgress();
+    }
+
+    @Override
+    @Nonnull
+    public GMBatchProgress get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+        if (cancelled) throw new CancellationException();
+        if (!finished.await(timeout, unit)) throw new TimeoutException();
+        if (cancelled) throw new CancellationException();
+        return getProgress();
+    }
+
+    private void execute(int start, int end) {
+        if (cancelled || start == end) return;
+        try {
+            GMConnection connection = service.getConnection();
+            try {
+                List<GMResult> results = connection.executeBatch(commands.subList(start, end));
+                for (int i = 0; i < results.size(); i++) {
+                    if (!results.get(i).isSuccess()) failures.put(start + i, results.get(i).getException());
+                }
+            } finally {
+                close(connection);
+            }
+        } catch (Exception e) {
+            for (int i = start; i < end; i++) {
+                failures.put(i, e);
+            }
+        }
+        completed.addAndGet(end - start);
+        if (listener != null) {
+            try {
+                listener.onProgress(getProgress());
+            } catch (RuntimeException e) {
+                LOGGER.warn("Batch listener threw exception on progress.", e);
+            }
+        }
+    }
+
+    private static void close(GMConnection connection) {
+        try {
+            connection.close();
+        } catch (GMServiceException e) {
+            LOGGER.warn("Failed to close the connection used by a batch.", e);
+        }
+    }
+
+    private void finish() {
+        elapsedNanos = System.nanoTime() - startNanos;
+        finished.countDown();
+        if (listener != null) {
+            try {
+                listener.onComplete(getProgress());
+            } catch (RuntimeException e) {
+                LOGGER.warn("Batch listener threw exception on completion.", e);
+            }
+        }
+    }
+
+    /**
+     * A range of the commands, split in halves until it fits in a chunk so that idle workers can steal the other half.
+     */
+    private final class Chunk extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int start;
+        private final int end;
+
+        private Chunk(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start <= chunkSize) {
+                execute(start, end);
+                return;
+            }
+            int middle = (start + end) >>> 1;
+            invokeAll(new Chunk(start, middle), new Chunk(middle, end));
+        }
+    }
+}
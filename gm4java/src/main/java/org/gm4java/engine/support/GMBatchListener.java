@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Receives the progress of a batch submitted to {@link GMBatchExecutor}.
+ * <p>
+ * The methods are invoked by the worker threads of the executor. Implementations should return quickly and must not
+ * block, otherwise they hold up the GraphicsMagick processes borrowed by the workers.
+ *
+ * @author Kenneth Xu
+ *
+ */
+public interface GMBatchListener {
+    /**
+     * Called each time a worker has executed a chunk of the commands.
+     *
+     * @param progress
+     *            the progress so far
+     */
+    void onProgress(@Nonnull GMBatchProgress progress);
+
+    /**
+     * Called once when all the commands have been executed or the batch has been cancelled.
+     *
+     * @param progress
+     *            the final progress
+     */
+    void onComplete(@Nonnull GMBatchProgress progress);
+}
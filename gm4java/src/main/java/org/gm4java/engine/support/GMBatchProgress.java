@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import java.util.SortedMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+/**
+ * An immutable copy of the progress of a batch submitted to {@link GMBatchExecutor}, obtained by
+ * {@link GMBatchFuture#getProgress()} or given to a {@link GMBatchListener}.
+ *
+ * @author Kenneth Xu
+ *
+ */
+public final class GMBatchProgress {
+    private final int total;
+    private final int completed;
+    private final long elapsedNanos;
+    private final boolean done;
+    private final SortedMap<Integer, Exception> failures;
+
+    GMBatchProgress(int total, int completed, long elapsedNanos, boolean done,
+            @Nonnull SortedMap<Integer, Exception> failures) {
+        this.total = total;
+        this.completed = completed;
+        this.elapsedNanos = elapsedNanos;
+        this.done = done;
+        this.failures = failures;
+    }
+
+    /**
+     * Gets the number of commands in the batch.
+     *
+     * @return the total number of commands
+     */
+    public int getTotal() {
+        return total;
+    }
+
+    /**
+     * Gets the number of commands executed so far, successfully or not.
+     *
+     * @return the number of completed commands
+     */
+    public int getCompleted() {
+        return completed;
+    }
+
+    /**
+     * Gets the number of commands failed so far.
+     *
+     * @return the number of failed commands
+     */
+    public int getFailed() {
+        return failures.size();
+    }
+
+    /**
+     * Gets the failures so far, by the position of the command in the batch. The exception is {@link
+     * org.gm4java.engine.GMException} when GraphicsMagick returned error, {@link org.gm4java.engine.GMServiceException}
+     * when the communication with GraphicsMagick failed, or any other unexpected exception.
+     *
+     * @return the failures by the index of the command
+     */
+    @Nonnull
+    public SortedMap<Integer, Exception> getFailures() {
+        return failures;
+    }
+
+    /**
+     * Gets the time from the submission of the batch to its completion, or until now if it has not completed.
+     *
+     * @return the elapsed time in nanoseconds
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * Gets the number of commands completed per second.
+     *
+     * @return the throughput
+     */
+    public double getThroughput() {
+        return elapsedNanos <= 0 ? 0 : (double) completed * TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+    }
+
+    /**
+     * Tells whether the batch has completed or been cancelled.
+     *
+     * @return true if the batch is done
+     */
+    public boolean isDone() {
+        return done;
+    }
+
+    @Override
+    public String toString() {
+        return "GMBatchProgress [total=" + total + ", completed=" + completed + ", failed=" + failures.size()
+                + ", elapsedNanos=" + elapsedNanos + ", done=" + done + "]";
+    }
+}
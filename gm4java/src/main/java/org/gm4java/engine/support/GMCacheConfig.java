@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import java.io.File;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * Configuration of {@link CachingGMService} that provides a number of configuration parameters.
+ * <p>
+ * {@link #setMaxMemoryBytes <i>maxMemoryBytes</i>} limits the size of the memory tier, which holds the textual output
+ * of the commands like <code>identify</code>. The size of an output is estimated as two bytes per character. When
+ * zero, the output is not cached in memory. The default setting for this parameter is 16MB.
+ * <p>
+ * {@link #setDirectory <i>directory</i>} is where the disk tier keeps the images written by the commands like
+ * <code>convert</code>. The results in the directory survive restarts and are reused by the next service using the
+ * same directory. The default setting for this parameter is <code>null</code>, which disables the disk tier.
+ * <p>
+ * {@link #setMaxDiskBytes <i>maxDiskBytes</i>} limits the total size of the files in the disk tier. The default
+ * setting for this parameter is 1GB.
+ * <p>
+ * {@link #setEvictionPolicy <i>evictionPolicy</i>} decides which results are evicted to make room for new ones in
+ * both tiers. The default setting for this parameter is {@link CacheEvictionPolicy#TINY_LFU}.
+ *
+ * @author Kenneth Xu
+ *
+ */
+public class GMCacheConfig {
+    /**
+     * Default size limit of the memory tier in bytes.
+     */
+    public static final long DEFAULT_MAX_MEMORY_BYTES = 16L * 1024 * 1024;
+
+    /**
+     * Default size limit of the disk tier in bytes.
+     */
+    public static final long DEFAULT_MAX_DISK_BYTES = 1024L * 1024 * 1024;
+
+    /**
+     * Default eviction policy.
+     */
+    public static final CacheEvictionPolicy DEFAULT_EVICTION_POLICY = CacheEvictionPolicy.TINY_LFU;
+
+    private long maxMemoryBytes = DEFAULT_MAX_MEMORY_BYTES;
+
+    private File directory;
+
+    private long maxDiskBytes = DEFAULT_MAX_DISK_BYTES;
+
+    private CacheEvictionPolicy evictionPolicy = DEFAULT_EVICTION_POLICY;
+
+    /**
+     * Gets the size limit of the memory tier.
+     *
+     * @return the maximum size of the cached textual output in bytes
+     * @see #setMaxMemoryBytes(long)
+     */
+    public long getMaxMemoryBytes() {
+        return maxMemoryBytes;
+    }
+
+    /**
+     * Sets the size limit of the memory tier, which holds the textual output of the commands. The size of an output is
+     * estimated as two bytes per character.
+     *
+     * @param maxMemoryBytes
+     *            the maximum size of the cached textual output in bytes, zero to not cache them.
+     * @throws IllegalArgumentException
+     *             when maxMemoryBytes is negative
+     * @see #getMaxMemoryBytes()
+     */
+    public void setMaxMemoryBytes(long maxMemoryBytes) {
+        if (maxMemoryBytes < 0) throw new IllegalArgumentException("maxMemoryBytes must not be negative.");
+        this.maxMemoryBytes = maxMemoryBytes;
+    }
+
+    /**
+     * Gets the directory of the disk tier.
+     *
+     * @return the directory, or null if the disk tier is disabled.
+     * @see #setDirectory(File)
+     */
+    @CheckForNull
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Sets the directory where the disk tier keeps the images written by the commands. It is created when it doesn't
+     * exist. The directory should be dedicated to the cache, as the files in it may be deleted by the eviction.
+     *
+     * @param directory
+     *            the directory, or null to disable the disk tier.
+     * @see #getDirectory()
+     */
+    public void setDirectory(@CheckForNull File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Gets the size limit of the disk tier.
+     *
+     * @return the maximum total size of the cached files in bytes
+     * @see #setMaxDiskBytes(long)
+     */
+    public long getMaxDiskBytes() {
+        return maxDiskBytes;
+    }
+
+    /**
+     * Sets the size limit of the disk tier.
+     *
+     * @param maxDiskBytes
+     *            the maximum total size of the cached files in bytes
+     * @throws IllegalArgumentException
+     *             when maxDiskBytes is negative
+     * @see #getMaxDiskBytes()
+     */
+    public void setMaxDiskBytes(long maxDiskBytes) {
+        if (maxDiskBytes < 0) throw new IllegalArgumentException("maxDiskBytes must not be negative.");
+        this.maxDiskBytes = maxDiskBytes;
+    }
+
+    /**
+     * Gets the eviction policy of the tiers.
+     *
+     * @return the eviction policy
+     * @see #setEvictionPolicy(CacheEvictionPolicy)
+     */
+    @Nonnull
+    public CacheEvictionPolicy getEvictionPolicy() {
+        return evictionPolicy;
+    }
+
+    /**
+     * Sets the eviction policy of the tiers.
+     *
+     * @param evictionPolicy
+     *            the eviction policy
+     * @see #getEvictionPolicy()
+     */
+    public void setEvictionPolicy(@Nonnull CacheEvictionPolicy evictionPolicy) {
+        if (evictionPolicy == null) throw new NullPointerException("evictionPolicy");
+        this.evictionPolicy = evictionPolicy;
+    }
+}
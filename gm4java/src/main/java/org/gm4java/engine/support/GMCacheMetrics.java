@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+/**
+ * An immutable copy of the metrics of a {@link CachingGMService}, obtained by {@link CachingGMService#getMetrics()}.
+ * The counters accumulate from the creation of the service.
+ *
+ * @author Kenneth Xu
+ *
+ */
+public final class GMCacheMetrics {
+    private final long memoryHits;
+    private final long memoryMisses;
+    private final long diskHits;
+    private final long diskMisses;
+    private final long bypasses;
+    private final long memoryEvictions;
+    private final long diskEvictions;
+    private final long rejections;
+    private final long memoryBytes;
+    private final long diskBytes;
+
+    // SUPPRESS CHECKSTYLE ParameterNumber BECAUSE it is a plain value object
+    GMCacheMetrics(long memoryHits, long memoryMisses, long diskHits, long diskMisses, long bypasses,
+            long memoryEvictions, long diskEvictions, long rejections, long memoryBytes, long diskBytes) {
+        this.memoryHits = memoryHits;
+        this.memoryMisses = memoryMisses;
+        this.diskHits = diskHits;
+        this.diskMisses = diskMisses;
+        this.bypasses = bypasses;
+        this.memoryEvictions = memoryEvictions;
+        this.diskEvictions = diskEvictions;
+        this.rejections = rejections;
+        this.memoryBytes = memoryBytes;
+        this.diskBytes = diskBytes;
+    }
+
+    /**
+     * Gets the number of textual outputs served from the memory tier without running GraphicsMagick.
+     *
+     * @return the number of memory tier hits
+     */
+    public long getMemoryHits() {
+        return memoryHits;
+    }
+
+    /**
+     * Gets the number of cacheable commands with textual output that were not found in the memory tier.
+     *
+     * @return the number of memory tier misses
+     */
+    public long getMemoryMisses() {
+        return memoryMisses;
+    }
+
+    /**
+     * Gets the number of images served from the disk tier without running GraphicsMagick.
+     *
+     * @return the number of disk tier hits
+     */
+    public long getDiskHits() {
+        return diskHits;
+    }
+
+    /**
+     * Gets the number of cacheable commands writing an image that were not found in the disk tier.
+     *
+     * @return the number of disk tier misses
+     */
+    public long getDiskMisses() {
+        return diskMisses;
+    }
+
+    /**
+     * Gets the number of commands passed to GraphicsMagick without looking up the cache, because their result can't be
+     * cached or the tier for it is disabled.
+     *
+     * @return the number of bypasses
+     */
+    public long getBypasses() {
+        return bypasses;
+    }
+
+    /**
+     * Gets the number of results evicted from the memory tier to make room for new ones.
+     *
+     * @return the number of memory tier evictions
+     */
+    public long getMemoryEvictions() {
+        return memoryEvictions;
+    }
+
+    /**
+     * Gets the number of results evicted from the disk tier to make room for new ones.
+     *
+     * @return the number of disk tier evictions
+     */
+    public long getDiskEvictions() {
+        return diskEvictions;
+    }
+
+    /**
+     * Gets the number of new results not admitted to either tier by the {@link CacheEvictionPolicy}, or because they
+     * are larger than the tier.
+     *
+     * @return the number of rejections
+     */
+    public long getRejections() {
+        return rejections;
+    }
+
+    /**
+     * Gets the estimated size of the textual outputs in the memory tier.
+     *
+     * @return the size of the memory tier in bytes
+     */
+    public long getMemoryBytes() {
+        return memoryBytes;
+    }
+
+    /**
+     * Gets the total size of the files in the disk tier.
+     *
+     * @return the size of the disk tier in bytes
+     */
+    public long getDiskBytes() {
+        return diskBytes;
+    }
+
+    /**
+     * Gets the ratio of hits to lookups of both tiers.
+     *
+     * @return the hit ratio between 0 and 1, or 0 when nothing was looked up.
+     */
+    public double getHitRatio() {
+        long hits = memoryHits + diskHits;
+        long lookups = hits + memoryMisses + diskMisses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    @Override
+    public String toString() {
+        return "GMCacheMetrics [memoryHits=" + memoryHits + ", memoryMisses=" + memoryMisses + ", diskHits="
+                + diskHits + ", diskMisses=" + diskMisses + ", bypasses=" + bypasses + ", memoryEvictions="
+                + memoryEvictions + ", diskEvictions=" + diskEvictions + ", rejections=" + rejections
+                + ", memoryBytes=" + memoryBytes + ", diskBytes=" + diskBytes + "]";
+    }
+}
@@ -1,11 +1,13 @@
 package org.gm4java.engine.support;
 
-import org.apache.commons.pool.BasePoolableObjectFactory;
 import org.apache.commons.pool.impl.GenericObjectPool;
 import org.gm4java.engine.GMServiceException;
 
-import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.concurrent.Future;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 
 /**
@@ -15,29 +17,20 @@ import javax.annotation.Nonnull;
  * @author Kenneth Xu
  * 
  */
-class GMConnectionPool extends GenericObjectPool<PooledGMConnection> {
-    private ReaderWriterProcess.Factory factory = ReaderWriterProcessImpl.FACTORY;
-
-    private String[] gmCommand = Constants.gmCommand(GMConnectionPoolConfig.DEFAULT_GM_PATH);
-    private int evictAfterNumberOfUse = GMConnectionPoolConfig.DEFAULT_EVICT_AFTER_NUMBER_OF_USE;
+class GMConnectionPool extends GenericObjectPool<PooledGMConnection> implements ConnectionPool {
+    private final PooledGMConnectionFactory factory;
 
     /**
      * Construct a new instance of {@linkplain GMConnectionPool}.
      */
     public GMConnectionPool(@Nonnull GMConnectionPoolConfig config) {
-        this(new Factory(), config);
-    }
-
-    private GMConnectionPool(Factory factory, GMConnectionPoolConfig config) {
-        super(factory, notNull(config));
-        factory.pool = this;
-        evictAfterNumberOfUse = config.getEvictAfterNumberOfUse();
-        setGMPath(config.getGMPath());
+        this(new PooledGMConnectionFactory(config), config);
     }
 
-    private static GenericObjectPool.Config notNull(GMConnectionPoolConfig config) {
-        if (config == null) throw new NullPointerException("config");
-        return config.getConfig();
+    private GMConnectionPool(PooledGMConnectionFactory factory, GMConnectionPoolConfig config) {
+        super(factory, config.getConfig());
+        this.factory = factory;
+        factory.setPool(this);
     }
 
     /**
@@ -49,8 +42,11 @@ class GMConnectionPool extends GenericObjectPool<PooledGMConnection> {
     @Override
     @Nonnull
     public PooledGMConnection borrowObject() throws GMServiceException {
+        final long start = System.nanoTime();
         try {
-            return super.borrowObject();
+            PooledGMConnection connection = super.borrowObject();
+            factory.getMetrics().recordBorrowWait(System.nanoTime() - start);
+            return connection;
         } catch (GMServiceException e) {
             throw e;
         } catch (RuntimeException e) {
@@ -87,7 +83,7 @@ class GMConnectionPool extends GenericObjectPool<PooledGMConnection> {
      * @return the path to GraphicsMagick executable
      */
     public String getGMPath() {
-        return gmCommand[0];
+        return factory.getGMPath();
     }
 
     /**
@@ -97,8 +93,7 @@ class GMConnectionPool extends GenericObjectPool<PooledGMConnection> {
      *            the path to GraphicsMagick executable
      */
     public void setGMPath(@Nonnull String gmPath) {
-        if (gmPath == null) throw new NullPointerException("gmPath");
-        gmCommand[0] = gmPath;
+        factory.setGMPath(gmPath);
     }
 
     /**
@@ -107,7 +102,7 @@ class GMConnectionPool extends GenericObjectPool<PooledGMConnection> {
      * @return the values set by {@link #setEvictAfterNumberOfUse(int)}
      */
     public int getEvictAfterNumberOfUse() {
-        return evictAfterNumberOfUse;
+        return factory.getEvictAfterNumberOfUse();
     }
 
     /**
@@ -125,53 +120,151 @@ class GMConnectionPool extends GenericObjectPool<PooledGMConnection> {
      *            and destroy
      */
     public void setEvictAfterNumberOfUse(int evictAfterNumberOfUse) {
-        this.evictAfterNumberOfUse = evictAfterNumberOfUse;
+        factory.setEvictAfterNumberOfUse(evictAfterNumberOfUse);
     }
 
-    void setProcessFactory(ReaderWriterProcess.Factory factory) {
-        this.factory = factory;
+    /**
+     * Gets the value set by {@link #setPipelineDepth(int)}.
+     * 
+     * @return the maximum number of commands that can be sent to a GraphicsMagick process ahead of reading the results
+     */
+    public int getPipelineDepth() {
+        return factory.getPipelineDepth();
+    }
+
+    /**
+     * Sets the maximum number of commands that can be sent to a GraphicsMagick process ahead of reading their results.
+     * A value greater than one turns on the pipelined mode. This only affects the {@link PooledGMConnection}s created
+     * afterwards.
+     * 
+     * @param pipelineDepth
+     *            the maximum number of commands in flight per GraphicsMagick process
+     * @see GMConnectionPoolConfig#setPipelineDepth(int)
+     */
+    public void setPipelineDepth(int pipelineDepth) {
+        factory.setPipelineDepth(pipelineDepth);
+    }
+
+    /**
+     * Gets the charset used to talk to GraphicsMagick.
+     * 
+     * @return the charset, or null if the platform default charset is used.
+     * @see GMConnectionPoolConfig#setCharset(Charset)
+     */
+    @CheckForNull
+    public Charset getCharset() {
+        return factory.getCharset();
     }
 
-    ReaderWriterProcess createProcess() throws GMServiceException {
+    /**
+     * Gets the value set by {@link #setCommandTimeoutMillis(long)}.
+     * 
+     * @return the default timeout of each command in milliseconds
+     */
+    public long getCommandTimeoutMillis() {
+        return factory.getCommandTimeoutMillis();
+    }
+
+    /**
+     * Sets the default maximum time each command may take. The timeout is restored to this value whenever a
+     * {@link PooledGMConnection} is returned to the pool.
+     * 
+     * @param commandTimeoutMillis
+     *            the default timeout of each command in milliseconds, non-positive value means no timeout.
+     * @see GMConnectionPoolConfig#setCommandTimeoutMillis(long)
+     */
+    public void setCommandTimeoutMillis(long commandTimeoutMillis) {
+        factory.setCommandTimeoutMillis(commandTimeoutMillis);
+    }
+
+    /**
+     * Gets the value set by {@link #setWarmUpCommand(List)}.
+     * 
+     * @return the warm-up command, or null if there is none.
+     */
+    @CheckForNull
+    public List<String> getWarmUpCommand() {
+        return factory.getWarmUpCommand();
+    }
+
+    /**
+     * Sets the command executed by every new {@link PooledGMConnection} before it is added to the pool.
+     * 
+     * @param warmUpCommand
+     *            the warm-up command and its arguments, or null for no warm-up command.
+     * @see GMConnectionPoolConfig#setWarmUpCommand(List)
+     */
+    public void setWarmUpCommand(@CheckForNull List<String> warmUpCommand) {
+        factory.setWarmUpCommand(warmUpCommand);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * This implementation delegates to super class but ensures that there is no other checked exception except
+     * {@link GMServiceException} will be thrown.
+     */
+    @Override
+    public void addObject() throws GMServiceException {
         try {
-            return factory.getProcess(gmCommand);
-        } catch (IOException e) {
+            super.addObject();
+        } catch (GMServiceException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
             throw new GMServiceException(e.getMessage(), e);
         }
     }
 
-    private static final class Factory extends BasePoolableObjectFactory<PooledGMConnection> {
-
-        private GMConnectionPool pool;
+    /**
+     * {@inheritDoc}
+     * <p>
+     * This implementation never adds: {@link GenericObjectPool} keeps the room reserved by the borrowers creating
+     * connections to itself, so the room cannot be checked and reserved atomically from outside.
+     *
+     * @return always false
+     */
+    @Override
+    public boolean tryAddObject() {
+        return false;
+    }
 
-        @Override
-        public PooledGMConnection makeObject() throws GMServiceException {
-            return new PooledGMConnection(pool);
+    /**
+     * {@inheritDoc}
+     * <p>
+     * This implementation counts the connections destroyed by the evictor in the metrics.
+     */
+    @Override
+    public void evict() throws Exception {
+        factory.startEviction();
+        try {
+            super.evict();
+        } finally {
+            factory.endEviction();
         }
+    }
 
-        @Override
-        public void destroyObject(PooledGMConnection connection) throws GMServiceException {
-            connection.close();
-        }
+    @Override
+    @Nonnull
+    public Future<Void> prewarm(int count) {
+        return PooledGMConnectionFactory.prewarm(this, count);
+    }
 
-        @Override
-        public boolean validateObject(PooledGMConnection connection) {
-            try {
-                connection.execute("ping");
-                return true;
-            } catch (Exception e) {
-                return false;
-            }
-        }
+    @Override
+    public void setProcessFactory(@Nonnull ReaderWriterProcess.Factory factory) {
+        this.factory.setProcessFactory(factory);
+    }
 
-        @Override
-        public void activateObject(PooledGMConnection connection) throws GMServiceException {
-            connection.ensureHealthy();
-        }
+    @Override
+    @Nonnull
+    public ReaderWriterProcess createProcess() throws GMServiceException {
+        return factory.createProcess();
+    }
 
-        @Override
-        public void passivateObject(PooledGMConnection connection) throws GMServiceException {
-            connection.ensureHealthy();
-        }
+    @Override
+    @Nonnull
+    public GMMetrics getMetrics() {
+        return factory.getMetrics();
     }
 }
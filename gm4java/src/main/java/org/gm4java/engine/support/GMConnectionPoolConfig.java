@@ -19,6 +19,15 @@ import org.apache.commons.pool.impl.GenericObjectPool;
 // SUPPRESS CHECKSTYLE UnusedImport BECAUSE it is used in javadoc.
 import org.gm4java.engine.GMConnection;
 
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
 /**
  * Configuration of PooledGMService that provides a number of configuration parameters.
  * <ul>
@@ -110,6 +119,149 @@ import org.gm4java.engine.GMConnection;
  * order. The default setting for this parameter is <code>true.</code></li>
  * </ul>
  * <p>
+ * {@link #setCommandTimeoutMillis <i>commandTimeoutMillis</i>} specifies the maximum time a command may take before
+ * the GraphicsMagick process executing it is destroyed and the command fails with
+ * {@link org.gm4java.engine.GMServiceTimeoutException}. The pool replaces the destroyed process. It can be changed for
+ * a connection obtained from {@link PooledGMService#getConnection()} until the connection is closed. When
+ * non-positive, commands never time out. The default setting for this parameter is 0.
+ * <p>
+ * GraphicsMagick processes are created on demand by default, so the first requests pay for spawning the processes and
+ * loading the coders.
+ * <ul>
+ * <li>
+ * When {@link #setPrewarm <i>prewarm</i>} is set, {@link PooledGMService} creates GM connections in parallel as soon
+ * as it is constructed. {@link PooledGMService#getReadiness()} tells when they are ready. The default setting for this
+ * parameter is <code>false</code>.</li>
+ * <li>
+ * {@link #setPrewarmCount <i>prewarmCount</i>} controls the number of GM connections to create when
+ * <i>prewarm</i> is set. When non-positive, <i>minIdle</i> GM connections are created. The default setting for this
+ * parameter is 0.</li>
+ * <li>
+ * {@link #setWarmUpCommand <i>warmUpCommand</i>} is executed by every new GM connection before it is handed out, to
+ * load the shared libraries and coders. The default setting for this parameter is <code>null</code>, which means no
+ * warm-up command.</li>
+ * </ul>
+ * <p>
+ * {@link #setPoolEngine <i>poolEngine</i>} selects the implementation of the pool. {@link PoolEngine#CONCURRENT} avoids
+ * the lock contention of borrowing and returning GM connections when many threads execute short commands. The default
+ * setting for this parameter is {@link PoolEngine#COMMONS_POOL}.
+ * <p>
+ * When {@link #setThreadAffinity <i>threadAffinity</i>} is set, a thread gets back the GM connection it used last if
+ * no other thread has taken it in between, which skips the idle queue and keeps the process warm in the CPU caches of
+ * the thread. It only takes effect with {@link PoolEngine#CONCURRENT}. The default setting for this parameter is
+ * <code>false</code>.
+ * <p>
+ * The pool can also size itself to the load, which only takes effect with {@link PoolEngine#CONCURRENT} and a positive
+ * <i>timeBetweenEvictionRunsMillis</i>. Each run of the idle GM connection evictor moves the cap on the number of GM
+ * connections between <i>minIdle</i> and <i>maxActive</i>, and destroys the idle GM connections above it.
+ * <ul>
+ * <li>
+ * {@link #setAdaptiveSizing <i>adaptiveSizing</i>} turns it on. The pool starts at <i>maxActive</i> and shrinks when
+ * the GM connections are not all needed. The default setting for this parameter is <code>false</code>.</li>
+ * <li>
+ * {@link #setTargetBorrowWaitMillis <i>targetBorrowWaitMillis</i>} is the average time to wait for a GM connection
+ * above which the pool grows. The default setting for this parameter is 10.</li>
+ * <li>
+ * {@link #setMaxCpuLoad <i>maxCpuLoad</i>} is the CPU usage of the system, between 0 and 1, at or above which the pool
+ * stops growing. The default setting for this parameter is 0.9.</li>
+ * </ul>
+ * <p>
+ * {@link #setPipelineDepth <i>pipelineDepth</i>} controls the number of commands that can be sent to a GraphicsMagick
+ * process ahead of reading their results. The default setting for this parameter is 1, which disables pipelining.
+ * <p>
+ * Commands submitted through {@link PooledGMService#executeAsync(java.util.List)} are queued and executed by a
+ * dispatcher owned by the service.
+ * <ul>
+ * <li>
+ * {@link #setAsyncThreads <i>asyncThreads</i>} controls the number of dispatcher threads. When non-positive,
+ * <i>maxActive</i> threads are used, or 8 if <i>maxActive</i> is non-positive as well. The default setting for this
+ * parameter is 0.</li>
+ * <li>
+ * {@link #setAsyncQueueSize <i>asyncQueueSize</i>} controls the number of commands that can wait in the submission
+ * queue. The default setting for this parameter is 1024.</li>
+ * <li>
+ * {@link #setWhenAsyncQueueFullAction <i>whenAsyncQueueFullAction</i>} specifies the behavior of
+ * {@link PooledGMService#executeAsync(java.util.List)} when the submission queue is full. The default setting for this
+ * parameter is {@link WhenQueueFullAction#FAIL}.</li>
+ * </ul>
+ * <p>
+ * GraphicsMagick processes can be retired by what they have used rather than by {@link #setEvictAfterNumberOfUse
+ * <i>evictAfterNumberOfUse</i>}. The limits are checked when a GM connection is returned to the pool. The memory and
+ * CPU time are read from <code>/proc</code> and only checked on Linux, at most once per {@link
+ * #setUsageCheckIntervalMillis <i>usageCheckIntervalMillis</i>}, 1000 by default, for each process.
+ * <ul>
+ * <li>
+ * {@link #setMaxProcessMemoryBytes <i>maxProcessMemoryBytes</i>} is the resident memory above which the process is
+ * retired.</li>
+ * <li>
+ * {@link #setMaxProcessCpuMillis <i>maxProcessCpuMillis</i>} is the CPU time above which the process is retired.</li>
+ * <li>
+ * {@link #setMaxProcessAgeMillis <i>maxProcessAgeMillis</i>} is the time since it was started after which the process
+ * is retired.</li>
+ * </ul>
+ * The default setting for these parameters is 0, which means no limit.
+ * <p>
+ * When {@link #setBackgroundReplacement <i>backgroundReplacement</i>} is set, a GM connection retired by one of the
+ * limits above or by <i>evictAfterNumberOfUse</i> is replaced by a new one created in the background before its process
+ * is destroyed, so that the next borrower doesn't pay for starting a process. Only {@link PoolEngine#CONCURRENT} adds
+ * the new one, {@link PoolEngine#COMMONS_POOL} only destroys the retired one in the background. The default setting
+ * for this parameter is <code>false</code>.
+ * <p>
+ * {@link #setValidationStrategy <i>validationStrategy</i>} decides how GM connections are validated when
+ * <i>testOnGet</i>, <i>testOnReturn</i> or <i>testWhileIdle</i> is set. The default setting for this parameter is
+ * {@link ValidationStrategy#PING}, which executes a <code>ping</code> command each time. Cheaper strategies check that
+ * the process is alive and only ping when the GM connection has been idle for {@link #setValidationIdleMillis
+ * <i>validationIdleMillis</i>}, 1000 by default, or on every {@link #setValidationInterval <i>validationInterval</i>}th
+ * validation, 10 by default.
+ * <p>
+ * {@link #setJmxName <i>jmxName</i>} registers the {@link GMServiceMetricsMXBean metrics} of the service to the
+ * platform MBean server under that name. The metrics are always recorded and can be read by
+ * {@link PooledGMService#getMetrics()} regardless. The default setting for this parameter is <code>null</code>, which
+ * doesn't register anything.
+ * <p>
+ * {@link #setStagingDirectory <i>stagingDirectory</i>} is where the images passed to
+ * {@link PooledGMService#executeImage(List, java.nio.ByteBuffer)} and alike are staged for GraphicsMagick. The default
+ * setting for this parameter is <code>null</code>, which uses <code>/dev/shm</code> when it is available, otherwise
+ * the directory given by the system property <code>java.io.tmpdir</code>.
+ * <p>
+ * By default all the callers of {@link PooledGMService} wait for a GM connection in one line, so a bulk job can starve
+ * the interactive requests. {@link PooledGMService#withPriority(Priority)} assigns the commands to a {@link Priority}
+ * lane, which only takes effect when the pool has a positive <i>maxActive</i> and the "when exhausted" action is
+ * {@link WhenExhaustedAction#BLOCK} or {@link WhenExhaustedAction#FAIL}.
+ * <ul>
+ * <li>
+ * {@link #setPriorityScheduling <i>priorityScheduling</i>} turns it on. A GM connection becoming available is then
+ * handed to a waiter of the highest priority first. The default setting for this parameter is <code>false</code>.</li>
+ * <li>
+ * {@link #setReservedConnections <i>reservedConnections</i>} is the number of GM connections a lane can always get,
+ * the other lanes can't use them even when they are idle. The sum over all lanes must not exceed <i>maxActive</i>. The
+ * default setting for this parameter is 0 for every lane.</li>
+ * <li>
+ * {@link #setStarvationThresholdMillis <i>starvationThresholdMillis</i>} is the time after which a waiter is served
+ * ahead of the higher lanes, so that the low lane still makes progress under a steady flow of high priority work. The
+ * default setting for this parameter is 1000.</li>
+ * </ul>
+ * <p>
+ * Likewise, when several tenants share one {@link PooledGMService}, a burst of one tenant can take all the
+ * GraphicsMagick processes. {@link PooledGMService#forTenant(String)} tags the commands with a tenant id, and the GM
+ * connections are shared among the tenants waiting in the same lane by deficit round-robin, in proportion to their
+ * weights. It has the same requirements on <i>maxActive</i> and the "when exhausted" action as the priority lanes.
+ * <ul>
+ * <li>
+ * {@link #setFairSharing <i>fairSharing</i>} turns it on. {@link PooledGMService#getTenantMetrics()} then reports the
+ * wait time and process time of each tenant with a weight set, and of the other tenants busy or idle recently. In
+ * {@link #setPipelineDepth pipelined mode}, a command is charged to its tenant until its result is read, even though
+ * the connection goes back to the pool as soon as the command is sent. The default setting for this parameter is
+ * <code>false</code>.</li>
+ * <li>
+ * {@link #setTenantWeight <i>tenantWeight</i>} is the relative share of a tenant. The default setting for this
+ * parameter is 1 for every tenant.</li>
+ * <li>
+ * {@link #setFairShareQuantumMillis <i>fairShareQuantumMillis</i>} is the process time a tenant of weight 1 earns per
+ * round. Smaller values share more evenly over short periods at the cost of more rounds. The default setting for this
+ * parameter is 100.</li>
+ * </ul>
+ * <p>
  * 
  * @author Kenneth Xu
  * 
@@ -127,12 +279,143 @@ public class GMConnectionPoolConfig {
      */
     public static final int DEFAULT_EVICT_AFTER_NUMBER_OF_USE = 0;
 
+    /**
+     * Default value for the maximum number of commands that can be sent to a GraphicsMagick process ahead of reading
+     * their results, which disables pipelining.
+     */
+    public static final int DEFAULT_PIPELINE_DEPTH = 1;
+
+    /**
+     * Default value for the maximum time a command may take, which means no timeout.
+     */
+    public static final long DEFAULT_COMMAND_TIMEOUT_MILLIS = 0;
+
+    /**
+     * Default implementation of the pool.
+     */
+    public static final PoolEngine DEFAULT_POOL_ENGINE = PoolEngine.COMMONS_POOL;
+
+    /**
+     * Default average time to wait for a connection above which an adaptively sized pool grows.
+     */
+    public static final long DEFAULT_TARGET_BORROW_WAIT_MILLIS = 10;
+
+    /**
+     * Default CPU usage of the system at or above which an adaptively sized pool stops growing.
+     */
+    public static final double DEFAULT_MAX_CPU_LOAD = 0.9;
+
+    /**
+     * Default number of commands that can wait in the asynchronous submission queue.
+     */
+    public static final int DEFAULT_ASYNC_QUEUE_SIZE = 1024;
+
+    /**
+     * Default action to take when the asynchronous submission queue is full.
+     */
+    public static final WhenQueueFullAction DEFAULT_WHEN_ASYNC_QUEUE_FULL_ACTION = WhenQueueFullAction.FAIL;
+
+    /**
+     * Default way to validate the connections.
+     */
+    public static final ValidationStrategy DEFAULT_VALIDATION_STRATEGY = ValidationStrategy.PING;
+
+    /**
+     * Default time a connection must have been idle for {@link ValidationStrategy#IDLE} to ping it.
+     */
+    public static final long DEFAULT_VALIDATION_IDLE_MILLIS = 1000;
+
+    /**
+     * Default time between two checks of the memory and CPU time used by a GraphicsMagick process.
+     */
+    public static final long DEFAULT_USAGE_CHECK_INTERVAL_MILLIS = 1000;
+
+    /**
+     * Default number of validations per ping for {@link ValidationStrategy#SAMPLED}.
+     */
+    public static final int DEFAULT_VALIDATION_INTERVAL = 10;
+
+    /**
+     * Default time in milliseconds after which a waiter is served regardless of its {@link Priority}.
+     */
+    public static final long DEFAULT_STARVATION_THRESHOLD_MILLIS = 1000;
+
+    /**
+     * Default weight of a tenant.
+     */
+    public static final int DEFAULT_TENANT_WEIGHT = 1;
+
+    /**
+     * Default process time in milliseconds a tenant of weight 1 earns per round of fair sharing.
+     */
+    public static final long DEFAULT_FAIR_SHARE_QUANTUM_MILLIS = 100;
+
     private GenericObjectPool.Config config = new GenericObjectPool.Config();
 
     private String gmPath = DEFAULT_GM_PATH;
 
     private int evictAfterNumberOfUse = DEFAULT_EVICT_AFTER_NUMBER_OF_USE;
 
+    private int pipelineDepth = DEFAULT_PIPELINE_DEPTH;
+
+    private Charset charset;
+
+    private long commandTimeoutMillis = DEFAULT_COMMAND_TIMEOUT_MILLIS;
+
+    private boolean prewarm;
+
+    private int prewarmCount;
+
+    private List<String> warmUpCommand;
+
+    private PoolEngine poolEngine = DEFAULT_POOL_ENGINE;
+
+    private boolean threadAffinity;
+
+    private boolean adaptiveSizing;
+
+    private long targetBorrowWaitMillis = DEFAULT_TARGET_BORROW_WAIT_MILLIS;
+
+    private double maxCpuLoad = DEFAULT_MAX_CPU_LOAD;
+
+    private int asyncThreads;
+
+    private int asyncQueueSize = DEFAULT_ASYNC_QUEUE_SIZE;
+
+    private WhenQueueFullAction whenAsyncQueueFullAction = DEFAULT_WHEN_ASYNC_QUEUE_FULL_ACTION;
+
+    private String jmxName;
+
+    private ValidationStrategy validationStrategy = DEFAULT_VALIDATION_STRATEGY;
+
+    private long maxProcessMemoryBytes;
+
+    private long maxProcessCpuMillis;
+
+    private long maxProcessAgeMillis;
+
+    private long usageCheckIntervalMillis = DEFAULT_USAGE_CHECK_INTERVAL_MILLIS;
+
+    private boolean backgroundReplacement;
+
+    private File stagingDirectory;
+
+    private boolean priorityScheduling;
+
+    private final int[] reservedConnections = new int[Priority.values().length];
+
+    private long starvationThresholdMillis = DEFAULT_STARVATION_THRESHOLD_MILLIS;
+
+    private boolean fairSharing;
+
+    private final Map<String, Integer> tenantWeights = new HashMap<String, Integer>();
+
+    private long fairShareQuantumMillis = DEFAULT_FAIR_SHARE_QUANTUM_MILLIS;
+
+    private long validationIdleMillis = DEFAULT_VALIDATION_IDLE_MILLIS;
+
+    private int validationInterval = DEFAULT_VALIDATION_INTERVAL;
+
     /**
      * Returns the maximum number of {@link GMConnection}s that can be allocated by the pool (checked out to clients, or
      * idle awaiting checkout) at a given time. When non-positive, there is no limit to the number of
@@ -522,6 +805,760 @@ public class GMConnectionPoolConfig {
         this.evictAfterNumberOfUse = evictAfterNumberOfUse;
     }
 
+    /**
+     * Gets the resident memory above which a GraphicsMagick process is evicted.
+     * 
+     * @return the memory limit in bytes, non-positive value means no limit.
+     * @see #setMaxProcessMemoryBytes(long)
+     */
+    public long getMaxProcessMemoryBytes() {
+        return maxProcessMemoryBytes;
+    }
+
+    /**
+     * Sets the resident memory above which a GraphicsMagick process is evicted and destroyed when it is returned to the
+     * pool. The memory is read from <code>/proc/&lt;pid&gt;/status</code>, so this only takes effect on Linux.
+     * 
+     * @param maxProcessMemoryBytes
+     *            the memory limit in bytes, non-positive value means no limit.
+     * @see #getMaxProcessMemoryBytes()
+     */
+    public void setMaxProcessMemoryBytes(long maxProcessMemoryBytes) {
+        this.maxProcessMemoryBytes = maxProcessMemoryBytes;
+    }
+
+    /**
+     * Gets the CPU time above which a GraphicsMagick process is evicted.
+     * 
+     * @return the CPU time limit in milliseconds, non-positive value means no limit.
+     * @see #setMaxProcessCpuMillis(long)
+     */
+    public long getMaxProcessCpuMillis() {
+        return maxProcessCpuMillis;
+    }
+
+    /**
+     * Sets the user and system CPU time above which a GraphicsMagick process is evicted and destroyed when it is
+     * returned to the pool. The time is read from <code>/proc/&lt;pid&gt;/stat</code>, so this only takes effect on
+     * Linux.
+     * 
+     * @param maxProcessCpuMillis
+     *            the CPU time limit in milliseconds, non-positive value means no limit.
+     * @see #getMaxProcessCpuMillis()
+     */
+    public void setMaxProcessCpuMillis(long maxProcessCpuMillis) {
+        this.maxProcessCpuMillis = maxProcessCpuMillis;
+    }
+
+    /**
+     * Gets the time since it was started after which a GraphicsMagick process is evicted.
+     * 
+     * @return the age limit in milliseconds, non-positive value means no limit.
+     * @see #setMaxProcessAgeMillis(long)
+     */
+    public long getMaxProcessAgeMillis() {
+        return maxProcessAgeMillis;
+    }
+
+    /**
+     * Sets the time since it was started after which a GraphicsMagick process is evicted and destroyed when it is
+     * returned to the pool.
+     * 
+     * @param maxProcessAgeMillis
+     *            the age limit in milliseconds, non-positive value means no limit.
+     * @see #getMaxProcessAgeMillis()
+     */
+    public void setMaxProcessAgeMillis(long maxProcessAgeMillis) {
+        this.maxProcessAgeMillis = maxProcessAgeMillis;
+    }
+
+    /**
+     * Gets the time between two checks of the memory and CPU time used by a GraphicsMagick process.
+     * 
+     * @return the interval in milliseconds
+     * @see #setUsageCheckIntervalMillis(long)
+     */
+    public long getUsageCheckIntervalMillis() {
+        return usageCheckIntervalMillis;
+    }
+
+    /**
+     * Sets the time between two checks of the memory and CPU time used by a GraphicsMagick process against
+     * {@link #setMaxProcessMemoryBytes(long) maxProcessMemoryBytes} and {@link #setMaxProcessCpuMillis(long)
+     * maxProcessCpuMillis}. The process is checked the first time it is returned to the pool, and then only when it is
+     * returned after the interval has elapsed, so that <code>/proc</code> is not read after every command.
+     * 
+     * @param usageCheckIntervalMillis
+     *            the interval in milliseconds, non-positive value checks every time.
+     * @see #getUsageCheckIntervalMillis()
+     */
+    public void setUsageCheckIntervalMillis(long usageCheckIntervalMillis) {
+        this.usageCheckIntervalMillis = usageCheckIntervalMillis;
+    }
+
+    /**
+     * Whether the retired connections are replaced in the background.
+     * 
+     * @return true if background replacement is enabled
+     * @see #setBackgroundReplacement(boolean)
+     */
+    public boolean isBackgroundReplacement() {
+        return backgroundReplacement;
+    }
+
+    /**
+     * Sets whether the connections retired by {@link #setEvictAfterNumberOfUse(int) evictAfterNumberOfUse},
+     * {@link #setMaxProcessMemoryBytes(long) maxProcessMemoryBytes}, {@link #setMaxProcessCpuMillis(long)
+     * maxProcessCpuMillis} or {@link #setMaxProcessAgeMillis(long) maxProcessAgeMillis} are replaced in the
+     * background. When enabled, a new connection is created by a background thread and added to the pool as idle, and
+     * the process of the retired connection is only destroyed after that. Connections evicted because they are broken
+     * or idle are not replaced. The new connection is only added by {@link PoolEngine#CONCURRENT}, as Commons Pool
+     * cannot reserve its room without racing with the borrowers; {@link PoolEngine#COMMONS_POOL} only destroys the
+     * retired connection in the background.
+     * 
+     * @param backgroundReplacement
+     *            true to enable background replacement
+     * @see #isBackgroundReplacement()
+     */
+    public void setBackgroundReplacement(boolean backgroundReplacement) {
+        this.backgroundReplacement = backgroundReplacement;
+    }
+
+    /**
+     * Gets the directory where the in-memory images are staged for GraphicsMagick.
+     * 
+     * @return the staging directory, or null if it is picked automatically.
+     * @see #setStagingDirectory(File)
+     */
+    @CheckForNull
+    public File getStagingDirectory() {
+        return stagingDirectory;
+    }
+
+    /**
+     * Sets the directory where the images passed to {@link PooledGMService#executeImage(List, java.nio.ByteBuffer)} and
+     * alike are staged for GraphicsMagick. It should be on a memory backed file system to avoid disk I/O.
+     * 
+     * @param stagingDirectory
+     *            the staging directory, or null to use <code>/dev/shm</code> when it is available, otherwise the
+     *            directory given by the system property <code>java.io.tmpdir</code>.
+     * @see #getStagingDirectory()
+     */
+    public void setStagingDirectory(@CheckForNull File stagingDirectory) {
+        this.stagingDirectory = stagingDirectory;
+    }
+
+    /**
+     * Returns whether the GM connections are handed out by the {@link Priority} of the commands.
+     * 
+     * @return true if priority scheduling is enabled
+     * @see #setPriorityScheduling(boolean)
+     */
+    public boolean isPriorityScheduling() {
+        return priorityScheduling;
+    }
+
+    /**
+     * Sets whether the GM connections are handed out by the {@link Priority} of the commands given by
+     * {@link PooledGMService#withPriority(Priority)}. When enabled, a GM connection becoming available goes to a waiter
+     * in the highest lane, subject to {@link #setReservedConnections(Priority, int) reservedConnections} and
+     * {@link #setStarvationThresholdMillis(long) starvationThresholdMillis}. It has no effect when <i>maxActive</i> is
+     * non-positive or the "when exhausted" action is {@link WhenExhaustedAction#GROW}.
+     * 
+     * @param priorityScheduling
+     *            true to enable priority scheduling
+     * @see #isPriorityScheduling()
+     */
+    public void setPriorityScheduling(boolean priorityScheduling) {
+        this.priorityScheduling = priorityScheduling;
+    }
+
+    /**
+     * Gets the number of GM connections reserved for the lane of given priority.
+     * 
+     * @param priority
+     *            the lane
+     * @return the number of reserved GM connections
+     * @see #setReservedConnections(Priority, int)
+     */
+    public int getReservedConnections(@Nonnull Priority priority) {
+        return reservedConnections[priority.ordinal()];
+    }
+
+    /**
+     * Sets the number of GM connections reserved for the lane of given priority. The lane can always use that many GM
+     * connections, and the other lanes can't use them even when they are idle. The reservations of all lanes together
+     * must not exceed <i>maxActive</i>.
+     * 
+     * @param priority
+     *            the lane
+     * @param connections
+     *            the number of reserved GM connections, non-negative
+     * @see #getReservedConnections(Priority)
+     */
+    public void setReservedConnections(@Nonnull Priority priority, int connections) {
+        if (connections < 0) throw new IllegalArgumentException("connections must not be negative: " + connections);
+        reservedConnections[priority.ordinal()] = connections;
+    }
+
+    /**
+     * Gets the time after which a waiter is served regardless of its {@link Priority}.
+     * 
+     * @return the starvation threshold in milliseconds
+     * @see #setStarvationThresholdMillis(long)
+     */
+    public long getStarvationThresholdMillis() {
+        return starvationThresholdMillis;
+    }
+
+    /**
+     * Sets the time after which a waiter is served regardless of its {@link Priority}. A waiter that has waited longer
+     * than this gets the next GM connection ahead of the higher lanes, the one waited the longest first.
+     * 
+     * @param starvationThresholdMillis
+     *            the starvation threshold in milliseconds
+     * @see #getStarvationThresholdMillis()
+     */
+    public void setStarvationThresholdMillis(long starvationThresholdMillis) {
+        this.starvationThresholdMillis = starvationThresholdMillis;
+    }
+
+    /**
+     * Returns whether the GM connections are shared fairly among the tenants.
+     * 
+     * @return true if fair sharing is enabled
+     * @see #setFairSharing(boolean)
+     */
+    public boolean isFairSharing() {
+        return fairSharing;
+    }
+
+    /**
+     * Sets whether the GM connections are shared fairly among the tenants given by
+     * {@link PooledGMService#forTenant(String)}. When enabled, the tenants waiting in the same {@link Priority} lane
+     * are served by deficit round-robin in proportion to their {@link #setTenantWeight(String, int) weights}, each
+     * command costing the time the tenant recently held a GM connection on average. It has no effect when
+     * <i>maxActive</i> is non-positive or the "when exhausted" action is {@link WhenExhaustedAction#GROW}.
+     * 
+     * @param fairSharing
+     *            true to enable fair sharing
+     * @see #isFairSharing()
+     */
+    public void setFairSharing(boolean fairSharing) {
+        this.fairSharing = fairSharing;
+    }
+
+    /**
+     * Gets the weight of given tenant.
+     * 
+     * @param tenant
+     *            the tenant id
+     * @return the weight, or {@link #DEFAULT_TENANT_WEIGHT} if it was not set
+     * @see #setTenantWeight(String, int)
+     */
+    public int getTenantWeight(@Nonnull String tenant) {
+        Integer weight = tenantWeights.get(tenant);
+        return weight == null ? DEFAULT_TENANT_WEIGHT : weight;
+    }
+
+    boolean hasTenantWeight(@Nonnull String tenant) {
+        return tenantWeights.containsKey(tenant);
+    }
+
+    /**
+     * Sets the weight of given tenant. A tenant of weight 2 gets twice the process time of a tenant of weight 1 when
+     * both are waiting for GM connections. It must be set before the {@link PooledGMService} is created.
+     * 
+     * @param tenant
+     *            the tenant id
+     * @param weight
+     *            the weight, positive
+     * @see #getTenantWeight(String)
+     */
+    public void setTenantWeight(@Nonnull String tenant, int weight) {
+        if (tenant == null) throw new NullPointerException("tenant");
+        if (weight <= 0) throw new IllegalArgumentException("weight must be positive: " + weight);
+        tenantWeights.put(tenant, weight);
+    }
+
+    /**
+     * Gets the process time a tenant of weight 1 earns per round of fair sharing.
+     * 
+     * @return the quantum in milliseconds
+     * @see #setFairShareQuantumMillis(long)
+     */
+    public long getFairShareQuantumMillis() {
+        return fairShareQuantumMillis;
+    }
+
+    /**
+     * Sets the process time a tenant of weight 1 earns per round of fair sharing. A tenant is served in its turn as
+     * long as its earnings cover the average time it holds a GM connection, so a smaller quantum alternates between
+     * the tenants more often.
+     * 
+     * @param fairShareQuantumMillis
+     *            the quantum in milliseconds
+     * @see #getFairShareQuantumMillis()
+     */
+    public void setFairShareQuantumMillis(long fairShareQuantumMillis) {
+        this.fairShareQuantumMillis = fairShareQuantumMillis;
+    }
+
+    /**
+     * Gets the charset used to encode the commands sent to and decode the output received from GraphicsMagick.
+     * 
+     * @return the charset, or null if the platform default charset is used.
+     * @see #setCharset(Charset)
+     */
+    @CheckForNull
+    public Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * Sets the charset used to encode the commands sent to and decode the output received from GraphicsMagick. The
+     * charset must be ASCII compatible, e.g. UTF-8 or ISO-8859-1. The platform default charset is used by default.
+     * 
+     * @param charset
+     *            the charset, or null to use the platform default charset.
+     * @see #getCharset()
+     */
+    public void setCharset(@CheckForNull Charset charset) {
+        this.charset = charset;
+    }
+
+    /**
+     * Gets the maximum time a command may take.
+     * 
+     * @return the timeout of each command in milliseconds, non-positive value means no timeout.
+     * @see #setCommandTimeoutMillis(long)
+     */
+    public long getCommandTimeoutMillis() {
+        return commandTimeoutMillis;
+    }
+
+    /**
+     * Sets the maximum time a command may take. When GraphicsMagick doesn't complete a command in time, e.g. it hangs
+     * on a corrupted or huge image, the process is destroyed by a shared watchdog thread, the command fails with
+     * {@link org.gm4java.engine.GMServiceTimeoutException} and the pool creates a new process to replace it. This
+     * keeps the callers and the pool from being blocked forever by bad input.
+     * 
+     * @param commandTimeoutMillis
+     *            the timeout of each command in milliseconds, non-positive value means no timeout.
+     * @see #getCommandTimeoutMillis()
+     * @see GMConnection#setCommandTimeoutMillis(long)
+     */
+    public void setCommandTimeoutMillis(long commandTimeoutMillis) {
+        this.commandTimeoutMillis = commandTimeoutMillis;
+    }
+
+    /**
+     * Gets whether GraphicsMagick processes are created in advance when the {@link PooledGMService} is constructed.
+     * 
+     * @return true if prewarm is enabled
+     * @see #setPrewarm(boolean)
+     */
+    public boolean isPrewarm() {
+        return prewarm;
+    }
+
+    /**
+     * Sets whether GraphicsMagick processes are created in advance, in parallel, when the {@link PooledGMService} is
+     * constructed. This takes the cost of spawning the processes and running the {@link #setWarmUpCommand(List)
+     * warm-up command} off the first requests. Use {@link PooledGMService#getReadiness()} to wait for the processes.
+     * 
+     * @param prewarm
+     *            true to enable prewarm
+     * @see #isPrewarm()
+     * @see #setPrewarmCount(int)
+     */
+    public void setPrewarm(boolean prewarm) {
+        this.prewarm = prewarm;
+    }
+
+    /**
+     * Gets the number of GraphicsMagick processes to create in advance when {@link #isPrewarm() prewarm} is enabled.
+     * 
+     * @return the number of processes, non-positive value means {@link #getMinIdle() minIdle}.
+     * @see #setPrewarmCount(int)
+     */
+    public int getPrewarmCount() {
+        return prewarmCount;
+    }
+
+    /**
+     * Sets the number of GraphicsMagick processes to create in advance when {@link #isPrewarm() prewarm} is enabled.
+     * The number is capped by {@link #getMaxActive() maxActive} and {@link #getMaxIdle() maxIdle} when they are
+     * positive.
+     * 
+     * @param prewarmCount
+     *            the number of processes, non-positive value means {@link #getMinIdle() minIdle}.
+     * @see #getPrewarmCount()
+     */
+    public void setPrewarmCount(int prewarmCount) {
+        this.prewarmCount = prewarmCount;
+    }
+
+    /**
+     * Gets the command executed by every new GraphicsMagick process before it is used.
+     * 
+     * @return the warm-up command and its arguments, or null if there is none.
+     * @see #setWarmUpCommand(List)
+     */
+    @CheckForNull
+    public List<String> getWarmUpCommand() {
+        return warmUpCommand;
+    }
+
+    /**
+     * Sets the command executed by every new GraphicsMagick process before it is used, so that the shared libraries
+     * and coders are loaded in advance. A good warm-up command reads a tiny built-in image, e.g.
+     * 
+     * <pre>
+     * config.setWarmUpCommand(Arrays.asList(&quot;convert&quot;, &quot;logo:&quot;, &quot;-resize&quot;, &quot;1x1&quot;, &quot;null:&quot;));
+     * </pre>
+     * 
+     * A process that fails the warm-up command is not added to the pool.
+     * 
+     * @param warmUpCommand
+     *            the warm-up command and its arguments, or null for no warm-up command.
+     * @throws IllegalArgumentException
+     *             when warmUpCommand is an empty list.
+     * @see #getWarmUpCommand()
+     */
+    public void setWarmUpCommand(@CheckForNull List<String> warmUpCommand) {
+        if (warmUpCommand != null && warmUpCommand.isEmpty()) {
+            throw new IllegalArgumentException("warmUpCommand must not be empty.");
+        }
+        this.warmUpCommand = warmUpCommand;
+    }
+
+    /**
+     * Gets the implementation of the pool.
+     * 
+     * @return one of {@link PoolEngine} enum value
+     * @see #setPoolEngine(PoolEngine)
+     */
+    public PoolEngine getPoolEngine() {
+        return poolEngine;
+    }
+
+    /**
+     * Sets the implementation of the pool.
+     * 
+     * @param poolEngine
+     *            the implementation to use
+     * @see #getPoolEngine()
+     */
+    public void setPoolEngine(@Nonnull PoolEngine poolEngine) {
+        if (poolEngine == null) throw new NullPointerException("poolEngine");
+        this.poolEngine = poolEngine;
+    }
+
+    /**
+     * Whether a thread gets back the connection it used last.
+     * 
+     * @return true if thread affinity is enabled
+     * @see #setThreadAffinity(boolean)
+     */
+    public boolean isThreadAffinity() {
+        return threadAffinity;
+    }
+
+    /**
+     * Sets whether a thread gets back the connection it used last. A thread that executes several commands in a row,
+     * e.g. for one HTTP request, then reclaims the same connection with a single compare-and-set instead of taking one
+     * from the idle queue. The connection is still available to other threads while it is idle. This only takes effect
+     * with {@link PoolEngine#CONCURRENT}.
+     * 
+     * @param threadAffinity
+     *            true to enable thread affinity
+     * @see #isThreadAffinity()
+     */
+    public void setThreadAffinity(boolean threadAffinity) {
+        this.threadAffinity = threadAffinity;
+    }
+
+    /**
+     * Whether the pool sizes itself to the load.
+     * 
+     * @return true if adaptive sizing is enabled
+     * @see #setAdaptiveSizing(boolean)
+     */
+    public boolean isAdaptiveSizing() {
+        return adaptiveSizing;
+    }
+
+    /**
+     * Sets whether the pool sizes itself to the load. When enabled, every run of the idle GM connection evictor
+     * estimates the number of GraphicsMagick processes needed from the rate of borrowing and the time each connection
+     * is held, grows faster when the borrowers wait longer than {@link #setTargetBorrowWaitMillis(long)
+     * targetBorrowWaitMillis}, and doesn't grow while the CPU usage is at {@link #setMaxCpuLoad(double) maxCpuLoad}.
+     * The size is kept between {@link #setMinIdle(int) minIdle} and {@link #setMaxActive(int) maxActive}. This only
+     * takes effect with {@link PoolEngine#CONCURRENT} and a positive {@link #setTimeBetweenEvictionRunsMillis(long)
+     * timeBetweenEvictionRunsMillis}.
+     * 
+     * @param adaptiveSizing
+     *            true to enable adaptive sizing
+     * @see #isAdaptiveSizing()
+     */
+    public void setAdaptiveSizing(boolean adaptiveSizing) {
+        this.adaptiveSizing = adaptiveSizing;
+    }
+
+    /**
+     * Gets the average time to wait for a connection above which an adaptively sized pool grows.
+     * 
+     * @return the target wait time in milliseconds
+     * @see #setTargetBorrowWaitMillis(long)
+     */
+    public long getTargetBorrowWaitMillis() {
+        return targetBorrowWaitMillis;
+    }
+
+    /**
+     * Sets the average time to wait for a connection above which an adaptively sized pool grows.
+     * 
+     * @param targetBorrowWaitMillis
+     *            the target wait time in milliseconds
+     * @see #getTargetBorrowWaitMillis()
+     */
+    public void setTargetBorrowWaitMillis(long targetBorrowWaitMillis) {
+        this.targetBorrowWaitMillis = targetBorrowWaitMillis;
+    }
+
+    /**
+     * Gets the CPU usage of the system at or above which an adaptively sized pool stops growing.
+     * 
+     * @return the CPU usage between 0 and 1
+     * @see #setMaxCpuLoad(double)
+     */
+    public double getMaxCpuLoad() {
+        return maxCpuLoad;
+    }
+
+    /**
+     * Sets the CPU usage of the system at or above which an adaptively sized pool stops growing.
+     * 
+     * @param maxCpuLoad
+     *            the CPU usage between 0 and 1, a value above 1 never stops the growth.
+     * @see #getMaxCpuLoad()
+     */
+    public void setMaxCpuLoad(double maxCpuLoad) {
+        this.maxCpuLoad = maxCpuLoad;
+    }
+
+    /**
+     * Gets the maximum number of commands that can be sent to a GraphicsMagick process ahead of reading their results.
+     * 
+     * @return the pipeline depth
+     * @see #setPipelineDepth(int)
+     */
+    public int getPipelineDepth() {
+        return pipelineDepth;
+    }
+
+    /**
+     * Sets the maximum number of commands that can be sent to a GraphicsMagick process ahead of reading their results.
+     * A value greater than one turns on the pipelined mode.
+     * <p>
+     * GraphicsMagick batch mode reads commands from its standard input in sequence, so in pipelined mode
+     * {@link PooledGMService#execute(java.util.List)} returns the connection to the pool as soon as the command is
+     * written, and then waits for the result outside of the pool. Other threads can then write their commands to the
+     * same process without waiting for the round trip of the previous commands. This hides the write, flush and wake up
+     * latency that dominates cheap commands like <code>identify</code>, at the cost that a command may have to wait for
+     * the commands queued ahead of it in the same process. It is recommended to use it with {@link #setLifo(boolean)
+     * lifo} set to false so that the commands are spread across the processes. {@link GMConnection}s obtained from
+     * {@link PooledGMService#getConnection()} become thread safe in pipelined mode.
+     * 
+     * @param pipelineDepth
+     *            the maximum number of commands in flight per GraphicsMagick process, 1 or less disables pipelining.
+     * @see #getPipelineDepth()
+     */
+    public void setPipelineDepth(int pipelineDepth) {
+        this.pipelineDepth = pipelineDepth;
+    }
+
+    /**
+     * Gets the number of threads that execute the commands submitted through
+     * {@link PooledGMService#executeAsync(java.util.List)}.
+     * 
+     * @return the number of dispatcher threads, non-positive value means the number is derived from
+     *         {@link #getMaxActive() maxActive}.
+     * @see #setAsyncThreads(int)
+     */
+    public int getAsyncThreads() {
+        return asyncThreads;
+    }
+
+    /**
+     * Sets the number of threads that execute the commands submitted through
+     * {@link PooledGMService#executeAsync(java.util.List)}. When non-positive, {@link #getMaxActive() maxActive} threads
+     * are used, or 8 if maxActive is non-positive as well. There is little point to have more threads than the number
+     * of GraphicsMagick processes in the pool.
+     * 
+     * @param asyncThreads
+     *            the number of dispatcher threads
+     * @see #getAsyncThreads()
+     */
+    public void setAsyncThreads(int asyncThreads) {
+        this.asyncThreads = asyncThreads;
+    }
+
+    /**
+     * Gets the maximum number of commands that can wait in the asynchronous submission queue.
+     * 
+     * @return the capacity of the submission queue
+     * @see #setAsyncQueueSize(int)
+     */
+    public int getAsyncQueueSize() {
+        return asyncQueueSize;
+    }
+
+    /**
+     * Sets the maximum number of commands that can wait in the asynchronous submission queue. When the queue is full,
+     * the {@link #setWhenAsyncQueueFullAction(WhenQueueFullAction) whenAsyncQueueFullAction} kicks in.
+     * 
+     * @param asyncQueueSize
+     *            the capacity of the submission queue, must be positive
+     * @throws IllegalArgumentException
+     *             when asyncQueueSize is not positive
+     * @see #getAsyncQueueSize()
+     */
+    public void setAsyncQueueSize(int asyncQueueSize) {
+        if (asyncQueueSize <= 0) throw new IllegalArgumentException("asyncQueueSize must be positive.");
+        this.asyncQueueSize = asyncQueueSize;
+    }
+
+    /**
+     * Returns the action to take when a command is submitted through
+     * {@link PooledGMService#executeAsync(java.util.List)} but the submission queue is full.
+     * 
+     * @return one of {@link WhenQueueFullAction} enum value
+     * @see #setWhenAsyncQueueFullAction(WhenQueueFullAction)
+     */
+    public WhenQueueFullAction getWhenAsyncQueueFullAction() {
+        return whenAsyncQueueFullAction;
+    }
+
+    /**
+     * Sets the action to take when a command is submitted through {@link PooledGMService#executeAsync(java.util.List)}
+     * but the submission queue is full.
+     * 
+     * @param whenAsyncQueueFullAction
+     *            the action to set
+     * @see #getWhenAsyncQueueFullAction()
+     */
+    public void setWhenAsyncQueueFullAction(@Nonnull WhenQueueFullAction whenAsyncQueueFullAction) {
+        if (whenAsyncQueueFullAction == null) throw new NullPointerException("whenAsyncQueueFullAction");
+        this.whenAsyncQueueFullAction = whenAsyncQueueFullAction;
+    }
+
+    /**
+     * Gets the name the metrics of the service are registered to JMX with.
+     * 
+     * @return the name, or null if the metrics are not registered.
+     * @see #setJmxName(String)
+     */
+    @CheckForNull
+    public String getJmxName() {
+        return jmxName;
+    }
+
+    /**
+     * Sets the name to register the {@link GMServiceMetricsMXBean metrics} of the service to the platform MBean server
+     * with. The object name is <code>org.gm4java:type=PooledGMService,name=</code> followed by the given name quoted.
+     * An MBean already registered with the same object name, e.g. by a service that was replaced, is unregistered
+     * first.
+     * 
+     * @param jmxName
+     *            the name that identifies the service, or null to not register the metrics.
+     * @see #getJmxName()
+     */
+    public void setJmxName(@CheckForNull String jmxName) {
+        this.jmxName = jmxName;
+    }
+
+    /**
+     * Gets how the connections are validated.
+     * 
+     * @return one of {@link ValidationStrategy} enum value
+     * @see #setValidationStrategy(ValidationStrategy)
+     */
+    public ValidationStrategy getValidationStrategy() {
+        return validationStrategy;
+    }
+
+    /**
+     * Sets how the connections are validated when {@link #setTestOnGet(boolean) testOnGet},
+     * {@link #setTestOnReturn(boolean) testOnReturn} or {@link #setTestWhileIdle(boolean) testWhileIdle} is set.
+     * 
+     * @param validationStrategy
+     *            the strategy to use
+     * @see #getValidationStrategy()
+     */
+    public void setValidationStrategy(@Nonnull ValidationStrategy validationStrategy) {
+        if (validationStrategy == null) throw new NullPointerException("validationStrategy");
+        this.validationStrategy = validationStrategy;
+    }
+
+    /**
+     * Gets the time a connection must have been idle for {@link ValidationStrategy#IDLE} to ping it.
+     * 
+     * @return the idle time in milliseconds
+     * @see #setValidationIdleMillis(long)
+     */
+    public long getValidationIdleMillis() {
+        return validationIdleMillis;
+    }
+
+    /**
+     * Sets the time a connection must have been idle for {@link ValidationStrategy#IDLE} to ping it. A connection that
+     * completed a command more recently is only checked for being alive.
+     * 
+     * @param validationIdleMillis
+     *            the idle time in milliseconds, non-positive value pings every time.
+     * @see #getValidationIdleMillis()
+     */
+    public void setValidationIdleMillis(long validationIdleMillis) {
+        this.validationIdleMillis = validationIdleMillis;
+    }
+
+    /**
+     * Gets the number of validations per ping for {@link ValidationStrategy#SAMPLED}.
+     * 
+     * @return the number of validations per ping
+     * @see #setValidationInterval(int)
+     */
+    public int getValidationInterval() {
+        return validationInterval;
+    }
+
+    /**
+     * Sets the number of validations per ping for {@link ValidationStrategy#SAMPLED}. Every validation checks that the
+     * process is alive, and one in every <code>validationInterval</code> validations of the pool pings as well.
+     * 
+     * @param validationInterval
+     *            the number of validations per ping, must be positive.
+     * @see #getValidationInterval()
+     */
+    public void setValidationInterval(int validationInterval) {
+        if (validationInterval <= 0) throw new IllegalArgumentException("validationInterval must be positive.");
+        this.validationInterval = validationInterval;
+    }
+
+    int getEffectivePrewarmCount() {
+        int count = prewarmCount > 0 ? prewarmCount : config.minIdle;
+        if (config.maxActive > 0) count = Math.min(count, config.maxActive);
+        if (config.maxIdle >= 0) count = Math.min(count, config.maxIdle);
+        return Math.max(count, 0);
+    }
+
+    int getEffectiveAsyncThreads() {
+        if (asyncThreads > 0) return asyncThreads;
+        return config.maxActive > 0 ? config.maxActive : GenericObjectPool.DEFAULT_MAX_ACTIVE;
+    }
+
     GenericObjectPool.Config getConfig() {
         return config;
     }
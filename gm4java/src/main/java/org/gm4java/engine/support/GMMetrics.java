@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * Records the metrics of a {@link ConnectionPool} and its connections. All the recording is lock-free, and it is also
+ * the live {@link GMServiceMetricsMXBean} registered to JMX.
+ *
+ * @author Kenneth Xu
+ *
+ */
+final class GMMetrics implements GMServiceMetricsMXBean {
+    private final Histogram borrowWait = new Histogram();
+    private final Histogram commandWrite = new Histogram();
+    private final Histogram execution = new Histogram();
+    private final Histogram outputSize = new Histogram();
+    private final Histogram processSpawn = new Histogram();
+    private final AtomicLong validationFailures = new AtomicLong();
+    private final AtomicLong staleEvictions = new AtomicLong();
+    private final AtomicLong exceptionEvictions = new AtomicLong();
+    private final AtomicLong idleEvictions = new AtomicLong();
+    private final AtomicLong memoryEvictions = new AtomicLong();
+    private final AtomicLong cpuEvictions = new AtomicLong();
+    private final AtomicLong ageEvictions = new AtomicLong();
+    @CheckForNull
+    private volatile ConnectionPool pool;
+
+    void setPool(@Nonnull ConnectionPool pool) {
+        this.pool = pool;
+    }
+
+    void recordBorrowWait(long nanos) {
+        borrowWait.record(nanos);
+    }
+
+    void recordCommandWrite(long nanos) {
+        commandWrite.record(nanos);
+    }
+
+    /**
+     * Records a command that GraphicsMagick completed with pass or fail.
+     */
+    void recordExecution(long nanos, long size) {
+        execution.record(nanos);
+        outputSize.record(size);
+    }
+
+    void recordProcessSpawn(long nanos) {
+        processSpawn.record(nanos);
+    }
+
+    void validationFailed() {
+        validationFailures.incrementAndGet();
+    }
+
+    void evictedStale() {
+        staleEvictions.incrementAndGet();
+    }
+
+    void evictedByException() {
+        exceptionEvictions.incrementAndGet();
+    }
+
+    void evictedIdle() {
+        idleEvictions.incrementAndGet();
+    }
+
+    void evictedByMemory() {
+        memoryEvictions.incrementAndGet();
+    }
+
+    void evictedByCpu() {
+        cpuEvictions.incrementAndGet();
+    }
+
+    void evictedByAge() {
+        ageEvictions.incrementAndGet();
+    }
+
+    /**
+     * Takes a copy of the metrics recorded so far.
+     *
+     * @return the snapshot
+     */
+    @Nonnull
+    GMServiceMetrics snapshot() {
+        return new GMServiceMetrics(this);
+    }
+
+    @Override
+    @Nonnull
+    public HistogramSnapshot getBorrowWaitNanos() {
+        return borrowWait.snapshot();
+    }
+
+    @Override
+    @Nonnull
+    public HistogramSnapshot getCommandWriteNanos() {
+        return commandWrite.snapshot();
+    }
+
+    @Override
+    @Nonnull
+    public HistogramSnapshot getExecutionNanos() {
+        return execution.snapshot();
+    }
+
+    @Override
+    @Nonnull
+    public HistogramSnapshot getOutputSize() {
+        return outputSize.snapshot();
+    }
+
+    @Override
+    @Nonnull
+    public HistogramSnapshot getProcessSpawnNanos() {
+        return processSpawn.snapshot();
+    }
+
+    @Override
+    public long getValidationFailures() {
+        return validationFailures.get();
+    }
+
+    @Override
+    public long getStaleEvictions() {
+        return staleEvictions.get();
+    }
+
+    @Override
+    public long getExceptionEvictions() {
+        return exceptionEvictions.get();
+    }
+
+    @Override
+    public long getIdleEvictions() {
+        return idleEvictions.get();
+    }
+
+    @Override
+    public long getMemoryEvictions() {
+        return memoryEvictions.get();
+    }
+
+    @Override
+    public long getCpuEvictions() {
+        return cpuEvictions.get();
+    }
+
+    @Override
+    public long getAgeEvictions() {
+        return ageEvictions.get();
+    }
+
+    @Override
+    public int getNumActive() {
+        ConnectionPool p = pool;
+        return p == null ? 0 : p.getNumActive();
+    }
+
+    @Override
+    public int getNumIdle() {
+        ConnectionPool p = pool;
+        return p == null ? 0 : p.getNumIdle();
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import javax.annotation.Nonnull;
+
+/**
+ * An immutable copy of the metrics of a {@link PooledGMService}, obtained by {@link PooledGMService#getMetrics()}. It
+ * doesn't depend on JMX nor any metrics library, so it can be logged or fed to the monitoring system of choice.
+ *
+ * @author Kenneth Xu
+ *
+ */
+public final class GMServiceMetrics implements GMServiceMetricsMXBean {
+    private final HistogramSnapshot borrowWaitNanos;
+    private final HistogramSnapshot commandWriteNanos;
+    private final HistogramSnapshot executionNanos;
+    private final HistogramSnapshot outputSize;
+    private final HistogramSnapshot processSpawnNanos;
+    private final long validationFailures;
+    private final long staleEvictions;
+    private final long exceptionEvictions;
+    private final long idleEvictions;
+    private final long memoryEvictions;
+    private final long cpuEvictions;
+    private final long ageEvictions;
+    private final int numActive;
+    private final int numIdle;
+
+    GMServiceMetrics(@Nonnull GMServiceMetricsMXBean source) {
+        borrowWaitNanos = source.getBorrowWaitNanos();
+        commandWriteNanos = source.getCommandWriteNanos();
+        executionNanos = source.getExecutionNanos();
+        outputSize = source.getOutputSize();
+        processSpawnNanos = source.getProcessSpawnNanos();
+        validationFailures = source.getValidationFailures();
+        staleEvictions = source.getStaleEvictions();
+        exceptionEvictions = source.getExceptionEvictions();
+        idleEvictions = source.getIdleEvictions();
+        memoryEvictions = source.getMemoryEvictions();
+        cpuEvictions = source.getCpuEvictions();
+        ageEvictions = source.getAgeEvictions();
+        numActive = source.getNumActive();
+        numIdle = source.getNumIdle();
+    }
+
+    @Override
+    @Nonnull
+    public HistogramSnapshot getBorrowWaitNanos() {
+        return borrowWaitNanos;
+    }
+
+    @Override
+    @Nonnull
+    public HistogramSnapshot getCommandWriteNanos() {
+        return commandWriteNanos;
+    }
+
+    @Override
+    @Nonnull
+    public HistogramSnapshot getExecutionNanos() {
+        return executionNanos;
+    }
+
+    @Override
+    @Nonnull
+    public HistogramSnapshot getOutputSize() {
+        return outputSize;
+    }
+
+    @Override
+    @Nonnull
+    public HistogramSnapshot getProcessSpawnNanos() {
+        return processSpawnNanos;
+    }
+
+    @Override
+    public long getValidationFailures() {
+        return validationFailures;
+    }
+
+    @Override
+    public long getStaleEvictions() {
+        return staleEvictions;
+    }
+
+    @Override
+    public long getExceptionEvictions() {
+        return exceptionEvictions;
+    }
+
+    @Override
+    public long getIdleEvictions() {
+        return idleEvictions;
+    }
+
+    @Override
+    public long getMemoryEvictions() {
+        return memoryEvictions;
+    }
+
+    @Override
+    public long getCpuEvictions() {
+        return cpuEvictions;
+    }
+
+    @Override
+    public long getAgeEvictions() {
+        return ageEvictions;
+    }
+
+    @Override
+    public int getNumActive() {
+        return numActive;
+    }
+
+    @Override
+    public int getNumIdle() {
+        return numIdle;
+    }
+
+    @Override
+    public String toString() {
+        return "GMServiceMetrics [borrowWaitNanos=(" + borrowWaitNanos + "), commandWriteNanos=(" + commandWriteNanos
+                + "), executionNanos=(" + executionNanos + "), outputSize=(" + outputSize + "), processSpawnNanos=("
+                + processSpawnNanos + "), validationFailures=" + validationFailures + ", staleEvictions="
+                + staleEvictions + ", exceptionEvictions=" + exceptionEvictions + ", idleEvictions=" + idleEvictions
+                + ", memoryEvictions=" + memoryEvictions + ", cpuEvictions=" + cpuEvictions + ", ageEvictions="
+                + ageEvictions + ", numActive=" + numActive + ", numIdle=" + numIdle + "]";
+    }
+}
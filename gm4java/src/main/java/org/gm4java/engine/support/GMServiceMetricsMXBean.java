@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import javax.annotation.Nonnull;
+
+/**
+ * The metrics of a {@link PooledGMService}, registered to JMX when {@link GMConnectionPoolConfig#setJmxName(String)
+ * jmxName} is set. Each attribute is read from the live counters, use {@link PooledGMService#getMetrics()} for an
+ * immutable copy of all of them. The counters accumulate from the creation of the service.
+ * <p>
+ * The histograms of time are in nanoseconds.
+ *
+ * @author Kenneth Xu
+ *
+ */
+public interface GMServiceMetricsMXBean {
+    /**
+     * Gets the time taken to borrow a connection from the pool, including the time to create a GraphicsMagick process
+     * when none is idle.
+     *
+     * @return the histogram of borrow wait time
+     */
+    @Nonnull
+    HistogramSnapshot getBorrowWaitNanos();
+
+    /**
+     * Gets the time taken to write and flush the commands to GraphicsMagick. The commands written in one batch are
+     * timed together.
+     *
+     * @return the histogram of command write time
+     */
+    @Nonnull
+    HistogramSnapshot getCommandWriteNanos();
+
+    /**
+     * Gets the time from starting to read the result of a command until GraphicsMagick reports pass or fail.
+     *
+     * @return the histogram of execution time
+     */
+    @Nonnull
+    HistogramSnapshot getExecutionNanos();
+
+    /**
+     * Gets the size of the output of the commands that completed, including the line separators but not the pass or
+     * fail line. It is counted in bytes, or in characters when the process doesn't expose its streams.
+     *
+     * @return the histogram of output size
+     */
+    @Nonnull
+    HistogramSnapshot getOutputSize();
+
+    /**
+     * Gets the time taken to start a GraphicsMagick process.
+     *
+     * @return the histogram of process spawn time
+     */
+    @Nonnull
+    HistogramSnapshot getProcessSpawnNanos();
+
+    /**
+     * Gets the number of connections that failed the validation and were evicted.
+     *
+     * @return the number of validation failures
+     */
+    long getValidationFailures();
+
+    /**
+     * Gets the number of connections evicted because they executed more commands than
+     * {@link GMConnectionPoolConfig#setEvictAfterNumberOfUse(int) evictAfterNumberOfUse}.
+     *
+     * @return the number of stale evictions
+     */
+    long getStaleEvictions();
+
+    /**
+     * Gets the number of connections evicted because a command failed with an exception other than
+     * {@link org.gm4java.engine.GMException}, including the command timeouts.
+     *
+     * @return the number of evictions caused by exceptions
+     */
+    long getExceptionEvictions();
+
+    /**
+     * Gets the number of connections evicted by the idle connection evictor because they were idle for too long.
+     *
+     * @return the number of idle evictions
+     */
+    long getIdleEvictions();
+
+    /**
+     * Gets the number of connections evicted because the resident memory of the GraphicsMagick process exceeded
+     * {@link GMConnectionPoolConfig#setMaxProcessMemoryBytes(long) maxProcessMemoryBytes}.
+     *
+     * @return the number of memory evictions
+     */
+    long getMemoryEvictions();
+
+    /**
+     * Gets the number of connections evicted because the CPU time used by the GraphicsMagick process exceeded
+     * {@link GMConnectionPoolConfig#setMaxProcessCpuMillis(long) maxProcessCpuMillis}.
+     *
+     * @return the number of CPU time evictions
+     */
+    long getCpuEvictions();
+
+    /**
+     * Gets the number of connections evicted because the GraphicsMagick process was older than
+     * {@link GMConnectionPoolConfig#setMaxProcessAgeMillis(long) maxProcessAgeMillis}.
+     *
+     * @return the number of age evictions
+     */
+    long getAgeEvictions();
+
+    /**
+     * Gets the number of connections currently borrowed from the pool.
+     *
+     * @return the number of active connections
+     */
+    int getNumActive();
+
+    /**
+     * Gets the number of connections currently idle in the pool.
+     *
+     * @return the number of idle connections
+     */
+    int getNumIdle();
+}
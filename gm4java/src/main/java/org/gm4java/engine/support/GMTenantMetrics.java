@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+/**
+ * An immutable copy of the metrics of one tenant of a {@link PooledGMService}, obtained by
+ * {@link PooledGMService#getTenantMetrics()}. The metrics accumulate from the creation of the service.
+ *
+ * @author Kenneth Xu
+ *
+ * @see GMConnectionPoolConfig#setFairSharing(boolean)
+ */
+public final class GMTenantMetrics {
+    private final String tenant;
+    private final int weight;
+    private final HistogramSnapshot waitNanos;
+    private final long processNanos;
+
+    GMTenantMetrics(@Nonnull String tenant, int weight, @Nonnull HistogramSnapshot waitNanos, long processNanos) {
+        this.tenant = tenant;
+        this.weight = weight;
+        this.waitNanos = waitNanos;
+        this.processNanos = processNanos;
+    }
+
+    /**
+     * Gets the id of the tenant.
+     *
+     * @return the tenant id
+     */
+    @Nonnull
+    public String getTenant() {
+        return tenant;
+    }
+
+    /**
+     * Gets the weight of the tenant.
+     *
+     * @return the weight
+     * @see GMConnectionPoolConfig#setTenantWeight(String, int)
+     */
+    public int getWeight() {
+        return weight;
+    }
+
+    /**
+     * Gets the time, in nanoseconds, the tenant waited for a GM connection. Its count is the number of GM connections
+     * handed to the tenant.
+     *
+     * @return the histogram of wait time
+     */
+    @Nonnull
+    public HistogramSnapshot getWaitNanos() {
+        return waitNanos;
+    }
+
+    /**
+     * Gets the total time, in nanoseconds, the tenant held the GM connections, that is its share of the
+     * GraphicsMagick processes.
+     *
+     * @return the process time in nanoseconds
+     */
+    public long getProcessNanos() {
+        return processNanos;
+    }
+
+    /**
+     * Gets the total time, in seconds, the tenant held the GM connections.
+     *
+     * @return the process time in seconds
+     */
+    public double getProcessSeconds() {
+        return (double) processNanos / TimeUnit.SECONDS.toNanos(1);
+    }
+
+    @Override
+    public String toString() {
+        return "GMTenantMetrics [tenant=" + tenant + ", weight=" + weight + ", waitNanos=" + waitNanos
+                + ", processNanos=" + processNanos + "]";
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+/**
+ * An immutable copy of the values recorded by a histogram of {@link GMServiceMetrics}. The percentiles are read from
+ * buckets of exponentially growing width, they are never below the real value and at most 1/8 above it.
+ * <p>
+ * The unit of the values depends on the histogram, see the getters of {@link GMServiceMetrics}.
+ *
+ * @author Kenneth Xu
+ *
+ */
+public final class HistogramSnapshot {
+    private static final double MEDIAN = 0.5;
+    private static final double P90 = 0.9;
+    private static final double P99 = 0.99;
+    private static final double P999 = 0.999;
+
+    private final long[] counts;
+    private final long count;
+    private final long sum;
+    private final long max;
+
+    HistogramSnapshot(long[] counts, long sum, long max) {
+        this.counts = counts;
+        long n = 0;
+        for (long c : counts) {
+            n += c;
+        }
+        count = n;
+        this.sum = sum;
+        this.max = max;
+    }
+
+    /**
+     * Gets the number of values recorded.
+     *
+     * @return the number of values
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Gets the sum of the values recorded.
+     *
+     * @return the sum of all values
+     */
+    public long getSum() {
+        return sum;
+    }
+
+    /**
+     * Gets the largest value recorded.
+     *
+     * @return the maximum, or 0 if nothing was recorded.
+     */
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * Gets the average of the values recorded.
+     *
+     * @return the mean, or 0 if nothing was recorded.
+     */
+    public double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * @return the 50th percentile
+     * @see #getPercentile(double)
+     */
+    public long getMedian() {
+        return getPercentile(MEDIAN);
+    }
+
+    /**
+     * @return the 90th percentile
+     * @see #getPercentile(double)
+     */
+    public long get90thPercentile() {
+        return getPercentile(P90);
+    }
+
+    /**
+     * @return the 99th percentile
+     * @see #getPercentile(double)
+     */
+    public long get99thPercentile() {
+        return getPercentile(P99);
+    }
+
+    /**
+     * @return the 99.9th percentile
+     * @see #getPercentile(double)
+     */
+    public long get999thPercentile() {
+        return getPercentile(P999);
+    }
+
+    /**
+     * Gets the value below or at which the given fraction of the values fall.
+     *
+     * @param quantile
+     *            the fraction between 0 and 1, e.g. 0.99 for the 99th percentile
+     * @return the percentile, or 0 if nothing was recorded.
+     * @throws IllegalArgumentException
+     *             when quantile is not between 0 and 1
+     */
+    public long getPercentile(double quantile) {
+        if (!(quantile >= 0 && quantile <= 1)) throw new IllegalArgumentException("quantile must be between 0 and 1.");
+        if (count == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(quantile * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) return Math.min(Histogram.upperBoundOf(i), max);
+        }
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d, mean=%.1f, median=%d, p99=%d, max=%d", count, getMean(), getMedian(),
+                get99thPercentile(), max);
+    }
+}
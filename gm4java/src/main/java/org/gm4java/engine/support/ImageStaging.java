@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import org.gm4java.engine.GMException;
+import org.gm4java.engine.GMService;
+import org.gm4java.engine.GMServiceException;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * Passes the images held in memory to GraphicsMagick through temporary files, as GraphicsMagick in batch mode can
+ * only read and write images by path.
+ * <p>
+ * The files are created in <code>/dev/shm</code> when it is available so that the images never hit the disk, otherwise
+ * in the directory given by the system property <code>java.io.tmpdir</code>. Their names have no extension, so the
+ * format of the input is detected from its content and the output is written in the format of the input unless the
+ * placeholder is prefixed by a format. They are written and read through {@link FileChannel}s and deleted as soon as
+ * the command completes; an input stream is copied through the buffer of {@link Channels#newChannel(InputStream)}.
+ * The output is read into a heap buffer rather than memory mapped, because a mapped file on tmpfs would hold its
+ * memory until the buffer is garbage collected, and can't be deleted at all on Windows.
+ * 
+ * @author Kenneth Xu
+ * 
+ * @see GMService#executeImage(List, ByteBuffer)
+ */
+final class ImageStaging {
+    private static final File SHARED_MEMORY = new File("/dev/shm");
+    private static final String PREFIX = "gm4java";
+    private static final int TRANSFER_SIZE = 64 * 1024;
+
+    private final File directory;
+
+    /**
+     * Constructs a new instance staging the images in given directory.
+     * 
+     * @param directory
+     *            the directory for the temporary files, or null to pick one automatically.
+     */
+    ImageStaging(@CheckForNull File directory) {
+        this.directory = directory == null ? defaultDirectory() : directory;
+    }
+
+    static File defaultDirectory() {
+        if (SHARED_MEMORY.isDirectory() && SHARED_MEMORY.canWrite()) return SHARED_MEMORY;
+        return new File(System.getProperty("java.io.tmpdir"));
+    }
+
+    @Nonnull
+    File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Stages the input image, executes the command by {@link GMService#executeNoOutput(List)} of given service and
+     * returns the output image.
+     */
+    @Nonnull
+    ByteBuffer execute(@Nonnull GMService service, @Nonnull List<String> command, @Nonnull ByteBuffer input)
+            throws GMException, GMServiceException {
+        if (input == null) throw new NullPointerException("input");
+        return execute(service, command, input, null);
+    }
+
+    /**
+     * Stages the image read from the stream, executes the command by {@link GMService#executeNoOutput(List)} of given
+     * service and returns the output image. The stream is read before the service is called, so that a slow stream
+     * doesn't hold a GraphicsMagick process.
+     */
+    @Nonnull
+    ByteBuffer execute(@Nonnull GMService service, @Nonnull List<String> command, @Nonnull InputStream input)
+            throws GMException, GMServiceException {
+        if (input == null) throw new NullPointerException("input");
+        return execute(service, command, null, input);
+    }
+
+    private ByteBuffer execute(GMService service, List<String> command, ByteBuffer buffer, InputStream stream)
+            throws GMException, GMServiceException {
+        File inputFile = null;
+        File outputFile = null;
+        try {
+            inputFile = createFile();
+            outputFile = createFile();
+            List<String> staged = substitute(command, inputFile.getPath(), outputFile.getPath());
+            FileChannel channel = new FileOutputStream(inputFile).getChannel();
+            try {
+                if (buffer != null) {
+                    write(channel, buffer.duplicate());
+                } else {
+                    write(channel, Channels.newChannel(stream));
+                }
+            } finally {
+                channel.close();
+            }
+            service.executeNoOutput(staged);
+            return read(outputFile);
+        } catch (IOException e) {
+            throw new GMServiceException(e.getMessage(), e);
+        } finally {
+            delete(inputFile);
+            delete(outputFile);
+        }
+    }
+
+    /**
+     * Replaces the placeholders in the command with the paths of the staged files.
+     */
+    static List<String> substitute(@Nonnull List<String> command, String inputPath, String outputPath) {
+        if (command == null) throw new NullPointerException("command");
+        List<String> result = new ArrayList<String>(command.size());
+        boolean hasInput = false;
+        boolean hasOutput = false;
+        for (String argument : command) {
+            if (argument != null) {
+                hasInput |= argument.contains(GMService.INPUT);
+                hasOutput |= argument.contains(GMService.OUTPUT);
+                argument = argument.replace(GMService.INPUT, inputPath).replace(GMService.OUTPUT, outputPath);
+            }
+            result.add(argument);
+        }
+        if (!hasInput) throw new IllegalArgumentException("Command has no " + GMService.INPUT + ": " + command);
+        if (!hasOutput) throw new IllegalArgumentException("Command has no " + GMService.OUTPUT + ": " + command);
+        return result;
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void write(FileChannel channel, ReadableByteChannel source) throws IOException {
+        long position = 0;
+        long transferred;
+        while ((transferred = channel.transferFrom(source, position, TRANSFER_SIZE)) > 0) {
+            position += transferred;
+        }
+    }
+
+    private static ByteBuffer read(File file) throws IOException {
+        FileChannel channel = new FileInputStream(file).getChannel();
+        try {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) throw new IOException("Output image is too large: " + size + " bytes");
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) break;
+            }
+            buffer.flip();
+            return buffer;
+        } finally {
+            channel.close();
+        }
+    }
+
+    private File createFile() throws IOException {
+        // an empty suffix, as null gives ".tmp" which GraphicsMagick would take for the format.
+        return File.createTempFile(PREFIX, "", directory);
+    }
+
+    private static void delete(@CheckForNull File file) {
+        if (file != null && !file.delete() && file.exists()) file.deleteOnExit();
+    }
+}
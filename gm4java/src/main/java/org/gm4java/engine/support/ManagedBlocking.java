@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import org.gm4java.engine.GMServiceException;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+/**
+ * Runs an operation that blocks, waiting for a GM connection or for the output of GraphicsMagick, through
+ * {@link ForkJoinPool#managedBlock(ForkJoinPool.ManagedBlocker)}. When the caller is a worker of a
+ * {@link ForkJoinPool}, such as the tasks of a parallel stream, the pool can then start a spare worker to keep its
+ * parallelism while the caller is blocked.
+ * <p>
+ * The workers of {@link GMBatchExecutor} are left alone, their number already matches the GraphicsMagick processes.
+ *
+ * @param <T>
+ *            the type of the result
+ * @param <E>
+ *            the type of the exception thrown by the operation besides {@link GMServiceException}
+ * @author Kenneth Xu
+ *
+ */
+abstract class ManagedBlocking<T, E extends Exception> implements ForkJoinPool.ManagedBlocker {
+    private T result;
+    private Throwable failure;
+    private boolean done;
+    private boolean retrying;
+
+    /**
+     * Tells whether current thread is a worker of a fork/join pool that should be told about blocking.
+     *
+     * @return true if the blocking operations should be run by {@link #run()}
+     */
+    static boolean isNeeded() {
+        Thread thread = Thread.currentThread();
+        return thread instanceof ForkJoinWorkerThread && !(thread instanceof GMBatchExecutor.Worker);
+    }
+
+    /**
+     * The blocking operation.
+     */
+    abstract T call() throws E, GMServiceException;
+
+    /**
+     * Runs {@link #call()} as a managed blocker of the fork/join pool of current thread.
+     *
+     * @return the result of the operation
+     */
+    @SuppressWarnings("unchecked")
+    final T run() throws E, GMServiceException {
+        try {
+            ForkJoinPool.managedBlock(this);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GMServiceException("Interrupted while blocking", e);
+        }
+        if (failure == null) return result;
+        if (failure instanceof GMServiceException) throw (GMServiceException) failure;
+        if (failure instanceof RuntimeException) throw (RuntimeException) failure;
+        if (failure instanceof Error) throw (Error) failure;
+        throw (E) failure;
+    }
+
+    @Override
+    public final boolean block() {
+        try {
+            result = call();
+        } catch (Throwable e) {
+            failure = e;
+        }
+        done = true;
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The pool retries to compensate in a busy loop while its other workers are looking for tasks, this yields the CPU
+     * to them on each retry.
+     */
+    @Override
+    public final boolean isReleasable() {
+        if (done) return true;
+        if (retrying) Thread.yield();
+        retrying = true;
+        return false;
+    }
+}
@@ -0,0 +1,23 @@
+package org.gm4java.engine.support;
+
+/**
+ * Defines the implementation of the pool of GraphicsMagick processes used by {@link PooledGMService}. All of them honor
+ * the same {@link GMConnectionPoolConfig} settings.
+ * 
+ * @see GMConnectionPoolConfig#getPoolEngine()
+ */
+public enum PoolEngine {
+    /**
+     * The pool built upon {@link org.apache.commons.pool.impl.GenericObjectPool} from <a
+     * href="http://commons.apache.org/pool/">Apache Commons Pool</a> project. Borrowing and returning a connection
+     * synchronize on the pool.
+     */
+    COMMONS_POOL,
+
+    /**
+     * The pool that keeps the idle connections in a concurrent deque and doesn't lock on borrow and return. Threads
+     * waiting for a connection are served in the order they arrive. It scales better when many threads execute short
+     * commands.
+     */
+    CONCURRENT
+}
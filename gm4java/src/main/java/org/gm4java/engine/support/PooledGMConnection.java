@@ -16,33 +16,135 @@
 package org.gm4java.engine.support;
 
 import org.gm4java.engine.GMException;
+import org.gm4java.engine.GMOutputHandler;
+import org.gm4java.engine.GMResult;
 import org.gm4java.engine.GMServiceException;
 
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nonnull;
 
 /**
  * Implementation of {@link org.gm4java.engine.GMConnection} that is used by {@link PooledGMService}.
+ * <p>
+ * When it is used by a worker of a {@link java.util.concurrent.ForkJoinPool}, the waits for the output of
+ * GraphicsMagick are run by {@link ManagedBlocking} so that the pool can compensate for the blocked worker.
  * 
  * @author Kenneth Xu
  * 
  */
 class PooledGMConnection extends BasicGMConnection {
-    private final GMConnectionPool pool;
-    private int count;
-    private Throwable exception;
+    private final ConnectionPool pool;
+    private final AtomicInteger count = new AtomicInteger();
+    private volatile Throwable exception;
+    private volatile boolean evictionRecorded;
+    private volatile boolean retired;
+    private final long createdNanos = System.nanoTime();
 
-    PooledGMConnection(@Nonnull GMConnectionPool pool) throws GMServiceException {
-        super(notNull(pool).createProcess());
+    // bookkeeping of ConcurrentGMConnectionPool, the connection is claimed by compare-and-set of the state.
+    final AtomicInteger poolState = new AtomicInteger();
+    final AtomicBoolean queued = new AtomicBoolean();
+    volatile long idleSince;
+    long borrowedNanos;
+
+    // bookkeeping of PooledGMService, when the connection was handed out by the ConnectionScheduler.
+    long scheduledNanos;
+
+    // bookkeeping of PooledGMConnectionFactory, when the memory and CPU time of the process are to be checked next.
+    volatile long usageCheckNanos = createdNanos;
+
+    PooledGMConnection(@Nonnull ConnectionPool pool) throws GMServiceException {
+        super(notNull(pool).createProcess(), pool.getCharset());
         this.pool = pool;
+        setPipelineDepth(pool.getPipelineDepth());
+        setCommandTimeoutMillis(pool.getCommandTimeoutMillis());
+        setMetrics(pool.getMetrics());
+    }
+
+    @Override
+    protected String execute(final String command, @Nonnull final List<String> arguments) throws GMException,
+            GMServiceException {
+        count.incrementAndGet();
+        try {
+            if (!ManagedBlocking.isNeeded()) return super.execute(command, arguments);
+            return new ManagedBlocking<String, GMException>() {
+                @Override
+                String call() throws GMException, GMServiceException {
+                    return PooledGMConnection.super.execute(command, arguments);
+                }
+            }.run();
+        } catch (GMException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            exception = e;
+            throw e;
+        } catch (GMServiceException e) {
+            exception = e;
+            throw e;
+        } catch (Error e) {
+            exception = e;
+            throw e;
+        }
+    }
+
+    /**
+     * A runtime exception thrown by the handler doesn't make this connection unhealthy, because the rest of the output
+     * has been read by the time it is propagated.
+     */
+    @Override
+    protected void execute(final String command, @Nonnull final List<String> arguments,
+            @Nonnull final GMOutputHandler handler) throws GMException, GMServiceException {
+        count.incrementAndGet();
+        try {
+            if (!ManagedBlocking.isNeeded()) {
+                super.execute(command, arguments, handler);
+                return;
+            }
+            new ManagedBlocking<Void, GMException>() {
+                @Override
+                Void call() throws GMException, GMServiceException {
+                    PooledGMConnection.super.execute(command, arguments, handler);
+                    return null;
+                }
+            }.run();
+        } catch (GMServiceException e) {
+            exception = e;
+            throw e;
+        } catch (Error e) {
+            exception = e;
+            throw e;
+        }
+    }
+
+    @Override
+    protected long submit(String command, @Nonnull List<String> arguments) throws GMServiceException {
+        count.incrementAndGet();
+        try {
+            return super.submit(command, arguments);
+        } catch (RuntimeException e) {
+            exception = e;
+            throw e;
+        } catch (GMServiceException e) {
+            exception = e;
+            throw e;
+        } catch (Error e) {
+            exception = e;
+            throw e;
+        }
     }
 
     @Override
-    protected String execute(String command, @Nonnull List<String> arguments) throws GMException, GMServiceException {
-        count++;
+    protected String awaitResult(final long ticket) throws GMException, GMServiceException {
         try {
-            return super.execute(command, arguments);
+            if (!ManagedBlocking.isNeeded()) return super.awaitResult(ticket);
+            return new ManagedBlocking<String, GMException>() {
+                @Override
+                String call() throws GMException, GMServiceException {
+                    return PooledGMConnection.super.awaitResult(ticket);
+                }
+            }.run();
         } catch (GMException e) {
             throw e;
         } catch (RuntimeException e) {
@@ -57,16 +159,134 @@ class PooledGMConnection extends BasicGMConnection {
         }
     }
 
+    @Override
+    protected void awaitResult(final long ticket, @Nonnull final GMOutputHandler handler) throws GMException,
+            GMServiceException {
+        try {
+            if (!ManagedBlocking.isNeeded()) {
+                super.awaitResult(ticket, handler);
+                return;
+            }
+            new ManagedBlocking<Void, GMException>() {
+                @Override
+                Void call() throws GMException, GMServiceException {
+                    PooledGMConnection.super.awaitResult(ticket, handler);
+                    return null;
+                }
+            }.run();
+        } catch (GMServiceException e) {
+            exception = e;
+            throw e;
+        } catch (Error e) {
+            exception = e;
+            throw e;
+        }
+    }
+
+    @Override
+    public List<GMResult> executeBatch(@Nonnull final List<List<String>> commands) throws GMServiceException {
+        if (commands != null) count.addAndGet(commands.size());
+        final List<GMResult> results;
+        try {
+            if (!ManagedBlocking.isNeeded()) {
+                results = super.executeBatch(commands);
+            } else {
+                results = new ManagedBlocking<List<GMResult>, RuntimeException>() {
+                    @Override
+                    List<GMResult> call() throws GMServiceException {
+                        return PooledGMConnection.super.executeBatch(commands);
+                    }
+                }.run();
+            }
+        } catch (GMServiceException e) {
+            exception = e;
+            throw e;
+        }
+        for (GMResult result : results) {
+            if (result.getException() instanceof GMServiceException) {
+                exception = result.getException();
+                break;
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Executes the warm-up command without counting it as a use of this connection.
+     */
+    void warmUp(@Nonnull List<String> command) throws GMException, GMServiceException {
+        super.execute(null, command, NO_OUTPUT);
+    }
+
+    /**
+     * Checks whether this connection can go on being used, and records the cause of eviction in the metrics when it
+     * can't.
+     *
+     * @throws GMServiceException
+     *             when this connection must be evicted
+     */
     void ensureHealthy() throws GMServiceException {
-        if (exception != null) throw new GMServiceException(exception.getMessage(), exception);
+        if (exception != null) {
+            evictedByException();
+            throw new GMServiceException(exception.getMessage(), exception);
+        }
+        if (isExpired()) {
+            evictedByException();
+            throw new GMServiceException("Instance was destroyed because a command timed out.");
+        }
         int limit = pool.getEvictAfterNumberOfUse();
-        if (limit > 0 && count > limit) {
+        int used = count.get();
+        if (limit > 0 && used > limit) {
+            retired = true;
+            GMMetrics metrics = getMetrics();
+            if (markEvictionRecorded() && metrics != null) metrics.evictedStale();
             throw new GMServiceException(String.format(
-                    "Instance is stale, executed %d commands which exceeded the %d limit.", count, limit));
+                    "Instance is stale, executed %d commands which exceeded the %d limit.", used, limit));
         }
     }
 
-    private static GMConnectionPool notNull(GMConnectionPool pool) {
+    /**
+     * Gets the time this connection was created, which is when its GraphicsMagick process was started.
+     * 
+     * @return the value of {@link System#nanoTime()} at the time
+     */
+    long getCreatedNanos() {
+        return createdNanos;
+    }
+
+    /**
+     * Marks this connection as evicted because it reached a limit of use while its process is still working, as
+     * opposed to being broken.
+     */
+    void markRetired() {
+        retired = true;
+    }
+
+    boolean isRetired() {
+        return retired;
+    }
+
+    /**
+     * Marks the cause of eviction of this connection as recorded.
+     *
+     * @return true if it was not marked before.
+     */
+    boolean markEvictionRecorded() {
+        if (evictionRecorded) return false;
+        evictionRecorded = true;
+        return true;
+    }
+
+    boolean isEvictionRecorded() {
+        return evictionRecorded;
+    }
+
+    private void evictedByException() {
+        GMMetrics metrics = getMetrics();
+        if (markEvictionRecorded() && metrics != null) metrics.evictedByException();
+    }
+
+    private static ConnectionPool notNull(ConnectionPool pool) {
         if (pool == null) throw new NullPointerException("pool");
         return pool;
     }
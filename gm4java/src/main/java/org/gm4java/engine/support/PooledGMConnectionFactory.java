@@ -0,0 +1,380 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import org.apache.commons.pool.BasePoolableObjectFactory;
+import org.gm4java.engine.GMException;
+import org.gm4java.engine.GMServiceException;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * Creates, validates and destroys the {@link PooledGMConnection}s of a {@link ConnectionPool}, and keeps the settings
+ * the connections are created with. It is shared by all the pool implementations so that they manage the life cycle of
+ * GraphicsMagick processes the same way.
+ *
+ * @author Kenneth Xu
+ *
+ */
+final class PooledGMConnectionFactory extends BasePoolableObjectFactory<PooledGMConnection> {
+    private ReaderWriterProcess.Factory factory = ReaderWriterProcessImpl.FACTORY;
+
+    private final String[] gmCommand = Constants.gmCommand(GMConnectionPoolConfig.DEFAULT_GM_PATH);
+    private int evictAfterNumberOfUse;
+    private int pipelineDepth;
+    private Charset charset;
+    private long commandTimeoutMillis;
+    private List<String> warmUpCommand;
+    private final ValidationStrategy validationStrategy;
+    private final long validationIdleNanos;
+    private final int validationInterval;
+    private final AtomicInteger validations = new AtomicInteger();
+    private final long maxProcessMemoryBytes;
+    private final long maxProcessCpuNanos;
+    private final long maxProcessAgeNanos;
+    private final long usageCheckIntervalNanos;
+    private final boolean backgroundReplacement;
+
+    private ConnectionPool pool;
+    private final GMMetrics metrics = new GMMetrics();
+    @CheckForNull
+    private volatile Thread evictingThread;
+
+    PooledGMConnectionFactory(@Nonnull GMConnectionPoolConfig config) {
+        if (config == null) throw new NullPointerException("config");
+        evictAfterNumberOfUse = config.getEvictAfterNumberOfUse();
+        pipelineDepth = config.getPipelineDepth();
+        charset = config.getCharset();
+        commandTimeoutMillis = config.getCommandTimeoutMillis();
+        warmUpCommand = config.getWarmUpCommand();
+        validationStrategy = config.getValidationStrategy();
+        validationIdleNanos = TimeUnit.MILLISECONDS.toNanos(config.getValidationIdleMillis());
+        validationInterval = config.getValidationInterval();
+        maxProcessMemoryBytes = config.getMaxProcessMemoryBytes();
+        maxProcessCpuNanos = TimeUnit.MILLISECONDS.toNanos(config.getMaxProcessCpuMillis());
+        maxProcessAgeNanos = TimeUnit.MILLISECONDS.toNanos(config.getMaxProcessAgeMillis());
+        usageCheckIntervalNanos = TimeUnit.MILLISECONDS.toNanos(config.getUsageCheckIntervalMillis());
+        backgroundReplacement = config.isBackgroundReplacement();
+        setGMPath(config.getGMPath());
+    }
+
+    void setPool(@Nonnull ConnectionPool pool) {
+        this.pool = pool;
+        metrics.setPool(pool);
+    }
+
+    @Nonnull
+    GMMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Marks the start of a run of the idle connection evictor of {@link GMConnectionPool} on the current thread. The
+     * connections destroyed by the run for no other recorded cause are counted as idle evictions.
+     */
+    void startEviction() {
+        evictingThread = Thread.currentThread();
+    }
+
+    void endEviction() {
+        evictingThread = null;
+    }
+
+    String getGMPath() {
+        return gmCommand[0];
+    }
+
+    void setGMPath(@Nonnull String gmPath) {
+        if (gmPath == null) throw new NullPointerException("gmPath");
+        gmCommand[0] = gmPath;
+    }
+
+    int getEvictAfterNumberOfUse() {
+        return evictAfterNumberOfUse;
+    }
+
+    void setEvictAfterNumberOfUse(int evictAfterNumberOfUse) {
+        this.evictAfterNumberOfUse = evictAfterNumberOfUse;
+    }
+
+    int getPipelineDepth() {
+        return pipelineDepth;
+    }
+
+    void setPipelineDepth(int pipelineDepth) {
+        this.pipelineDepth = pipelineDepth;
+    }
+
+    @CheckForNull
+    Charset getCharset() {
+        return charset;
+    }
+
+    long getCommandTimeoutMillis() {
+        return commandTimeoutMillis;
+    }
+
+    void setCommandTimeoutMillis(long commandTimeoutMillis) {
+        this.commandTimeoutMillis = commandTimeoutMillis;
+    }
+
+    @CheckForNull
+    List<String> getWarmUpCommand() {
+        return warmUpCommand;
+    }
+
+    void setWarmUpCommand(@CheckForNull List<String> warmUpCommand) {
+        this.warmUpCommand = warmUpCommand;
+    }
+
+    void setProcessFactory(@Nonnull ReaderWriterProcess.Factory factory) {
+        this.factory = factory;
+    }
+
+    @Nonnull
+    ReaderWriterProcess createProcess() throws GMServiceException {
+        final long start = System.nanoTime();
+        final ReaderWriterProcess process;
+        try {
+            process = factory.getProcess(gmCommand);
+        } catch (IOException e) {
+            throw new GMServiceException(e.getMessage(), e);
+        }
+        metrics.recordProcessSpawn(System.nanoTime() - start);
+        return process;
+    }
+
+    @Override
+    public PooledGMConnection makeObject() throws GMServiceException {
+        PooledGMConnection connection = new PooledGMConnection(pool);
+        List<String> warmUp = warmUpCommand;
+        if (warmUp != null) {
+            try {
+                connection.warmUp(warmUp);
+            } catch (GMException e) {
+                connection.close();
+                throw new GMServiceException("Warm-up command failed: " + e.getMessage(), e);
+            } catch (GMServiceException e) {
+                connection.close();
+                throw e;
+            }
+        }
+        return connection;
+    }
+
+    @Override
+    public void destroyObject(PooledGMConnection connection) throws GMServiceException {
+        if (evictingThread == Thread.currentThread() && !connection.isEvictionRecorded()) metrics.evictedIdle();
+        if (backgroundReplacement && connection.isRetired() && replace(connection)) return;
+        connection.close();
+    }
+
+    /**
+     * Adds a successor of the retired connection to the pool in the background, and only destroys the retired one after
+     * that, so the borrowers don't pay for starting the new process. The successor is not added when the pool is
+     * closed or already full by then, nor by the pools that cannot reserve its room, see
+     * {@link ConnectionPool#tryAddObject()}.
+     *
+     * @return true if the replacement is scheduled, false if the connection must be closed by the caller.
+     */
+    private boolean replace(final PooledGMConnection connection) {
+        final ConnectionPool p = pool;
+        if (p == null) return false;
+        try {
+            Holder.EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        p.tryAddObject();
+                    } catch (Exception e) {
+                        // the next borrower creates the connection instead.
+                        return;
+                    } finally {
+                        connection.close();
+                    }
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Validates the connection as configured by {@link GMConnectionPoolConfig#setValidationStrategy}. Only
+     * {@link ValidationStrategy#PING}, and the other strategies when they decide to, execute the <code>ping</code>
+     * command; the rest only check that the process is alive.
+     */
+    @Override
+    public boolean validateObject(PooledGMConnection connection) {
+        try {
+            if (validationStrategy != ValidationStrategy.PING && !connection.isAlive()) {
+                throw new GMServiceException("GraphicsMagick process is not alive.");
+            }
+            if (shouldPing(connection)) connection.execute("ping");
+            return true;
+        } catch (Exception e) {
+            connection.markEvictionRecorded();
+            metrics.validationFailed();
+            return false;
+        }
+    }
+
+    private boolean shouldPing(PooledGMConnection connection) {
+        switch (validationStrategy) {
+        case ALIVE:
+            return false;
+        case IDLE:
+            return System.nanoTime() - connection.getLastActiveNanos() >= validationIdleNanos;
+        case SAMPLED:
+            return validations.incrementAndGet() % validationInterval == 0;
+        default:
+            return true;
+        }
+    }
+
+    @Override
+    public void activateObject(PooledGMConnection connection) throws GMServiceException {
+        connection.ensureHealthy();
+    }
+
+    @Override
+    public void passivateObject(PooledGMConnection connection) throws GMServiceException {
+        connection.ensureHealthy();
+        ensureWithinLimits(connection);
+        connection.setCommandTimeoutMillis(commandTimeoutMillis);
+    }
+
+    /**
+     * Checks the age of the process, and its resident memory and CPU time on Linux, against the configured limits.
+     * Reading <code>/proc</code> is skipped when neither of the latter is limited, or when the process was checked less
+     * than the usage check interval ago.
+     *
+     * @throws GMServiceException
+     *             when a limit is exceeded and the connection must be evicted
+     */
+    void ensureWithinLimits(PooledGMConnection connection) throws GMServiceException {
+        long age = System.nanoTime() - connection.getCreatedNanos();
+        if (maxProcessAgeNanos > 0 && age > maxProcessAgeNanos) {
+            connection.markRetired();
+            if (connection.markEvictionRecorded()) metrics.evictedByAge();
+            throw new GMServiceException(String.format("Instance is %d ms old which exceeded the %d ms limit.",
+                    TimeUnit.NANOSECONDS.toMillis(age), TimeUnit.NANOSECONDS.toMillis(maxProcessAgeNanos)));
+        }
+        if (maxProcessMemoryBytes <= 0 && maxProcessCpuNanos <= 0) return;
+        long now = System.nanoTime();
+        if (now - connection.usageCheckNanos < 0) return;
+        connection.usageCheckNanos = now + usageCheckIntervalNanos;
+        ProcessUsage usage = ProcessUsage.read(connection.getPid());
+        if (usage == null) return;
+        if (maxProcessMemoryBytes > 0 && usage.getResidentBytes() > maxProcessMemoryBytes) {
+            connection.markRetired();
+            if (connection.markEvictionRecorded()) metrics.evictedByMemory();
+            throw new GMServiceException(String.format("Instance uses %d bytes of memory which exceeded the %d limit.",
+                    usage.getResidentBytes(), maxProcessMemoryBytes));
+        }
+        long cpu = usage.getCpuNanos();
+        if (maxProcessCpuNanos > 0 && cpu > maxProcessCpuNanos) {
+            connection.markRetired();
+            if (connection.markEvictionRecorded()) metrics.evictedByCpu();
+            throw new GMServiceException(String.format("Instance used %d ms of CPU which exceeded the %d ms limit.",
+                    TimeUnit.NANOSECONDS.toMillis(cpu), TimeUnit.NANOSECONDS.toMillis(maxProcessCpuNanos)));
+        }
+    }
+
+    /**
+     * Calls {@link ConnectionPool#addObject()} of the given pool the given number of times in parallel.
+     *
+     * @see ConnectionPool#prewarm(int)
+     */
+    @Nonnull
+    static Future<Void> prewarm(@Nonnull final ConnectionPool pool, int count) {
+        if (count <= 0) {
+            FutureTask<Void> done = new FutureTask<Void>(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }, null);
+            done.run();
+            return done;
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(count, new ThreadFactory() {
+            private final AtomicInteger sequence = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "gm4java-prewarm-" + sequence.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        final List<Future<Void>> creations = new ArrayList<Future<Void>>(count);
+        for (int i = 0; i < count; i++) {
+            creations.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    pool.addObject();
+                    return null;
+                }
+            }));
+        }
+        // runs after a thread is freed up, then waits for the rest.
+        Future<Void> readiness = executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                for (Future<Void> creation : creations) {
+                    try {
+                        creation.get();
+                    } catch (ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        if (cause instanceof Exception) throw (Exception) cause;
+                        throw (Error) cause;
+                    }
+                }
+                return null;
+            }
+        });
+        executor.shutdown();
+        return readiness;
+    }
+
+    private static final class Holder {
+        static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "gm4java-replacement");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+}
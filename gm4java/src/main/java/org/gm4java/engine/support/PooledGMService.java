@@ -15,25 +15,78 @@
  */
 package org.gm4java.engine.support;
 
+import org.gm4java.engine.AsyncGMService;
+import org.gm4java.engine.GMCallback;
 import org.gm4java.engine.GMConnection;
 import org.gm4java.engine.GMException;
+import org.gm4java.engine.GMOutputHandler;
+import org.gm4java.engine.GMResult;
 import org.gm4java.engine.GMService;
 import org.gm4java.engine.GMServiceException;
 
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Collections;
 import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Future;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 /**
- * A {@link GMService} that manages and uses a pool of GraphicsMagick instances. This implementation uses
+ * A {@link GMService} that manages and uses a pool of GraphicsMagick instances. By default this implementation uses
  * {@link org.apache.commons.pool.impl.GenericObjectPool} from <a href="http://commons.apache.org/pool/">Apache Commons
- * Pool</a> project.
+ * Pool</a> project, an alternative is selected by {@link GMConnectionPoolConfig#setPoolEngine(PoolEngine)}.
+ * <p>
+ * Commands submitted through {@link #executeAsync(List, GMCallback)} are executed by a small set of dispatcher threads
+ * owned by this service, so that the callers don't have to wait for a GraphicsMagick process to become available nor
+ * for the command to complete.
+ * <p>
+ * The service records the metrics of the pool and the commands, they can be read by {@link #getMetrics()} or through
+ * JMX when {@link GMConnectionPoolConfig#setJmxName(String) jmxName} is set. {@link #close()} the service when it is
+ * no longer needed, so that its GraphicsMagick processes are destroyed and its metrics are removed from JMX.
+ * <p>
+ * When {@link GMConnectionPoolConfig#setPriorityScheduling(boolean) priorityScheduling} is enabled, the views returned
+ * by {@link #withPriority(Priority)} let interactive work go ahead of bulk work waiting for the same pool. When
+ * {@link GMConnectionPoolConfig#setFairSharing(boolean) fairSharing} is enabled, the views returned by
+ * {@link #forTenant(String)} share the pool fairly among the tenants.
  * 
  * @author Kenneth Xu
  * 
  */
-public class PooledGMService implements GMService {
-    private GMConnectionPool pool;
+public class PooledGMService implements AsyncGMService {
+    /**
+     * The domain of the object names the metrics are registered to JMX with.
+     */
+    public static final String JMX_DOMAIN = "org.gm4java";
+
+    /**
+     * The tenant the commands are executed on behalf of unless {@link #forTenant(String)} is used.
+     */
+    public static final String DEFAULT_TENANT = "default";
+
+    /**
+     * The tenant id {@link #getTenantMetrics()} reports the sum of the metrics of the tenants idle for long under.
+     */
+    public static final String OTHER_TENANTS = "(other)";
+
+    private ConnectionPool pool;
+    private final AsyncDispatcher dispatcher;
+    private final ImageStaging staging;
+    @CheckForNull
+    private final ConnectionScheduler scheduler;
+    private final ScheduledView[] views = new ScheduledView[Priority.values().length];
+    private final int capacity;
+    private final Future<Void> readiness;
+    @CheckForNull
+    private final ObjectName objectName;
 
     /**
      * Construct a new instance of {@linkplain PooledGMService} with given pool configuration.
@@ -42,11 +95,126 @@ public class PooledGMService implements GMService {
      *            configuration of the GraphicsMagick process pool
      */
     public PooledGMService(@Nonnull GMConnectionPoolConfig config) {
-        pool = new GMConnectionPool(config);
+        this(newPool(config), config);
+    }
+
+    private static ConnectionPool newPool(GMConnectionPoolConfig config) {
+        if (config == null) throw new NullPointerException("config");
+        switch (config.getPoolEngine()) {
+        case CONCURRENT:
+            return new ConcurrentGMConnectionPool(config);
+        default:
+            return new GMConnectionPool(config);
+        }
     }
 
-    PooledGMService(GMConnectionPool pool) {
+    PooledGMService(ConnectionPool pool) {
+        this(pool, new GMConnectionPoolConfig());
+    }
+
+    PooledGMService(ConnectionPool pool, GMConnectionPoolConfig config) {
         this.pool = pool;
+        staging = new ImageStaging(config.getStagingDirectory());
+        scheduler = newScheduler(config);
+        capacity = config.getMaxActive() <= 0 || config.getWhenExhaustedAction() == WhenExhaustedAction.GROW
+                ? Integer.MAX_VALUE : config.getMaxActive();
+        for (Priority priority : Priority.values()) {
+            views[priority.ordinal()] = new ScheduledView(priority, DEFAULT_TENANT);
+        }
+        dispatcher = new AsyncDispatcher(this, config.getEffectiveAsyncThreads(), config.getAsyncQueueSize(),
+                config.getWhenAsyncQueueFullAction());
+        readiness = pool.prewarm(config.isPrewarm() ? config.getEffectivePrewarmCount() : 0);
+        objectName = config.getJmxName() == null ? null : register(pool.getMetrics(), config.getJmxName());
+    }
+
+    @CheckForNull
+    private static ConnectionScheduler newScheduler(GMConnectionPoolConfig config) {
+        if (!config.isPriorityScheduling() && !config.isFairSharing()) return null;
+        if (config.getMaxActive() <= 0 || config.getWhenExhaustedAction() == WhenExhaustedAction.GROW) return null;
+        return new ConnectionScheduler(config);
+    }
+
+    private static ObjectName register(GMServiceMetricsMXBean metrics, String jmxName) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName(JMX_DOMAIN + ":type=PooledGMService,name=" + ObjectName.quote(jmxName));
+            if (server.isRegistered(name)) {
+                try {
+                    server.unregisterMBean(name);
+                } catch (InstanceNotFoundException e) {
+                    // unregistered by someone else in between.
+                }
+            }
+            return server.registerMBean(metrics, name).getObjectName();
+        } catch (JMException e) {
+            throw new IllegalStateException("Failed to register metrics to JMX with name " + jmxName, e);
+        }
+    }
+
+    private static void unregister(ObjectName name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (InstanceNotFoundException e) {
+            // unregistered by someone else already.
+            return;
+        } catch (JMException e) {
+            throw new IllegalStateException("Failed to unregister metrics from JMX with name " + name, e);
+        }
+    }
+
+    /**
+     * Closes this service. The commands waiting for asynchronous execution still run, but no more are accepted. The
+     * metrics are unregistered from JMX and the pool is closed, which destroys the idle GraphicsMagick processes right
+     * away and the busy ones when they are returned.
+     * 
+     * @throws GMServiceException
+     *             when failed to close the pool
+     */
+    public void close() throws GMServiceException {
+        dispatcher.shutdown();
+        if (objectName != null) unregister(objectName);
+        try {
+            pool.close();
+        } catch (GMServiceException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new GMServiceException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Takes a copy of the metrics recorded by this service so far.
+     * 
+     * @return the snapshot of the metrics
+     */
+    @Nonnull
+    public GMServiceMetrics getMetrics() {
+        return pool.getMetrics().snapshot();
+    }
+
+    /**
+     * Gets the name the metrics of this service are registered to JMX with.
+     * 
+     * @return the object name, or null if {@link GMConnectionPoolConfig#setJmxName(String) jmxName} was not set.
+     */
+    @CheckForNull
+    public ObjectName getObjectName() {
+        return objectName;
+    }
+
+    /**
+     * Gets a future that completes when the GraphicsMagick processes created in advance are ready to use. It completes
+     * immediately when {@link GMConnectionPoolConfig#setPrewarm(boolean) prewarm} is not enabled. When any of the
+     * processes fails to start or to run the {@link GMConnectionPoolConfig#setWarmUpCommand(List) warm-up command},
+     * the future fails with the first error, but the service remains usable and creates processes on demand.
+     * <p>
+     * This is useful for health checks to report ready only after the pool is warmed up.
+     * 
+     * @return the future of readiness
+     */
+    @Nonnull
+    public Future<Void> getReadiness() {
+        return readiness;
     }
 
     /**
@@ -54,22 +222,282 @@ public class PooledGMService implements GMService {
      */
     @Override
     public String execute(@Nonnull String command, String... arguments) throws GMException, GMServiceException {
-        PooledGMConnection connection = pool.borrowObject();
+        return execute(normal(), command, arguments);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * In {@link GMConnectionPoolConfig#setPipelineDepth(int) pipelined mode}, the connection is returned to the pool
+     * as soon as the command is sent to GraphicsMagick, before the result is read.
+     */
+    @Override
+    public String execute(List<String> command) throws GMException, GMServiceException {
+        return execute(normal(), command);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * In {@link GMConnectionPoolConfig#setPipelineDepth(int) pipelined mode}, the connection is returned to the pool
+     * as soon as the command is sent to GraphicsMagick, before the output is read.
+     */
+    @Override
+    public void execute(@Nonnull List<String> command, @Nonnull GMOutputHandler handler) throws GMException,
+            GMServiceException {
+        execute(normal(), command, handler);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * In {@link GMConnectionPoolConfig#setPipelineDepth(int) pipelined mode}, the connection is returned to the pool
+     * as soon as the command is sent to GraphicsMagick, before the result is read.
+     */
+    @Override
+    public void executeNoOutput(@Nonnull List<String> command) throws GMException, GMServiceException {
+        executeNoOutput(normal(), command);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * This implementation borrows only one connection from the pool for the whole batch.
+     */
+    @Override
+    @Nonnull
+    public List<GMResult> executeBatch(@Nonnull List<List<String>> commands) throws GMServiceException {
+        return executeBatch(normal(), commands);
+    }
+
+    private String execute(ScheduledView view, String command, String... arguments) throws GMException,
+            GMServiceException {
+        PooledGMConnection connection = borrow(view);
+        if (connection.isPipelined()) {
+            final long scheduled = connection.scheduledNanos;
+            final long ticket;
+            try {
+                ticket = connection.submit(command, arguments);
+            } finally {
+                giveBack(connection, view, false);
+            }
+            try {
+                return connection.awaitResult(ticket);
+            } finally {
+                charge(view, scheduled);
+            }
+        }
         try {
             return connection.execute(command, arguments);
         } finally {
-            pool.returnObject(connection);
+            giveBack(connection, view);
         }
     }
 
-    @Override
-    public String execute(List<String> command) throws GMException, GMServiceException {
-        PooledGMConnection connection = pool.borrowObject();
+    private String execute(ScheduledView view, List<String> command) throws GMException, GMServiceException {
+        PooledGMConnection connection = borrow(view);
+        if (connection.isPipelined()) {
+            final long scheduled = connection.scheduledNanos;
+            final long ticket;
+            try {
+                ticket = connection.submit(command);
+            } finally {
+                giveBack(connection, view, false);
+            }
+            try {
+                return connection.awaitResult(ticket);
+            } finally {
+                charge(view, scheduled);
+            }
+        }
         try {
             return connection.execute(command);
         } finally {
+            giveBack(connection, view);
+        }
+    }
+
+    private void execute(ScheduledView view, List<String> command, GMOutputHandler handler) throws GMException,
+            GMServiceException {
+        if (handler == null) throw new NullPointerException("Argument 'handler' must not be null");
+        PooledGMConnection connection = borrow(view);
+        if (connection.isPipelined()) {
+            final long scheduled = connection.scheduledNanos;
+            final long ticket;
+            try {
+                ticket = connection.submit(command);
+            } finally {
+                giveBack(connection, view, false);
+            }
+            try {
+                connection.awaitResult(ticket, handler);
+            } finally {
+                charge(view, scheduled);
+            }
+            return;
+        }
+        try {
+            connection.execute(command, handler);
+        } finally {
+            giveBack(connection, view);
+        }
+    }
+
+    private void executeNoOutput(ScheduledView view, List<String> command) throws GMException, GMServiceException {
+        PooledGMConnection connection = borrow(view);
+        if (connection.isPipelined()) {
+            final long scheduled = connection.scheduledNanos;
+            final long ticket;
+            try {
+                ticket = connection.submit(command);
+            } finally {
+                giveBack(connection, view, false);
+            }
+            try {
+                connection.awaitResult(ticket, BasicGMConnection.NO_OUTPUT);
+            } finally {
+                charge(view, scheduled);
+            }
+            return;
+        }
+        try {
+            connection.executeNoOutput(command);
+        } finally {
+            giveBack(connection, view);
+        }
+    }
+
+    private List<GMResult> executeBatch(ScheduledView view, List<List<String>> commands) throws GMServiceException {
+        PooledGMConnection connection = borrow(view);
+        try {
+            return connection.executeBatch(commands);
+        } finally {
+            giveBack(connection, view);
+        }
+    }
+
+    private ScheduledView normal() {
+        return views[Priority.NORMAL.ordinal()];
+    }
+
+    /**
+     * Borrows a connection as a {@link ManagedBlocking} when a new GraphicsMagick process is to be started, so that a
+     * fork/join pool calling this service can compensate for the blocked worker. Waiting for a busy pool is not
+     * managed: a spare worker would only queue up for the same connections, and the pool would keep adding workers
+     * until every one of its tasks waits.
+     */
+    private PooledGMConnection borrow(final ScheduledView view) throws GMServiceException {
+        if (!ManagedBlocking.isNeeded() || pool.getNumIdle() > 0 || pool.getNumActive() >= capacity) {
+            return take(view);
+        }
+        return new ManagedBlocking<PooledGMConnection, RuntimeException>() {
+            @Override
+            PooledGMConnection call() throws GMServiceException {
+                return take(view);
+            }
+        }.run();
+    }
+
+    private PooledGMConnection take(ScheduledView view) throws GMServiceException {
+        if (scheduler == null) return pool.borrowObject();
+        scheduler.acquire(view.priority, view.tenant);
+        PooledGMConnection connection = null;
+        try {
+            connection = pool.borrowObject();
+            connection.scheduledNanos = System.nanoTime();
+            return connection;
+        } finally {
+            if (connection == null) scheduler.release(view.priority, view.tenant, 0);
+        }
+    }
+
+    private void giveBack(PooledGMConnection connection, ScheduledView view) throws GMServiceException {
+        giveBack(connection, view, true);
+    }
+
+    /**
+     * Returns the connection to the pool and gives back the permit of the scheduler.
+     * 
+     * @param charge
+     *            whether to charge the tenant for the time the connection was held, false when the command is still in
+     *            flight and the tenant is {@link #charge(ScheduledView, long) charged} once it completes.
+     */
+    private void giveBack(PooledGMConnection connection, ScheduledView view, boolean charge)
+            throws GMServiceException {
+        if (scheduler == null) {
             pool.returnObject(connection);
+            return;
         }
+        // read before returning, the connection can be borrowed again right after.
+        long heldNanos = charge ? System.nanoTime() - connection.scheduledNanos : 0;
+        try {
+            pool.returnObject(connection);
+        } finally {
+            scheduler.release(view.priority, view.tenant, heldNanos);
+        }
+    }
+
+    /**
+     * Charges the tenant for a pipelined command from the time its connection was borrowed until the result was read.
+     */
+    private void charge(ScheduledView view, long scheduledNanos) {
+        if (scheduler != null) scheduler.charge(view.tenant, System.nanoTime() - scheduledNanos);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The images are staged in {@link GMConnectionPoolConfig#setStagingDirectory(java.io.File) stagingDirectory}.
+     */
+    @Override
+    @Nonnull
+    public ByteBuffer executeImage(@Nonnull List<String> command, @Nonnull ByteBuffer input) throws GMException,
+            GMServiceException {
+        return staging.execute(this, command, input);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    @Nonnull
+    public ByteBuffer executeImage(@Nonnull List<String> command, @Nonnull byte[] input) throws GMException,
+            GMServiceException {
+        return executeImage(command, ByteBuffer.wrap(input));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The stream is read before a connection is borrowed from the pool.
+     */
+    @Override
+    @Nonnull
+    public ByteBuffer executeImage(@Nonnull List<String> command, @Nonnull InputStream input) throws GMException,
+            GMServiceException {
+        return staging.execute(this, command, input);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    @Nonnull
+    public Future<String> executeAsync(@Nonnull List<String> command) throws GMServiceException {
+        return dispatcher.submit(command, null);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * When the submission queue is full, the behavior is determined by
+     * {@link GMConnectionPoolConfig#getWhenAsyncQueueFullAction()}.
+     */
+    @Override
+    @Nonnull
+    public Future<String> executeAsync(@Nonnull List<String> command, @CheckForNull GMCallback callback)
+            throws GMServiceException {
+        return dispatcher.submit(command, callback);
     }
 
     /**
@@ -80,21 +508,150 @@ public class PooledGMService implements GMService {
     @Override
     @Nonnull
     public GMConnection getConnection() throws GMServiceException {
-        return new ConnectionWrapper(pool);
+        return new ConnectionWrapper(this, normal());
+    }
+
+    /**
+     * Gets a view of this service that executes the commands in the lane of given priority. The connections obtained
+     * from the view by {@link GMService#getConnection()} are borrowed in that lane as well. It only makes a difference
+     * when {@link GMConnectionPoolConfig#setPriorityScheduling(boolean) priorityScheduling} is enabled, the plain
+     * methods of this service execute in the {@link Priority#NORMAL} lane.
+     * 
+     * @param priority
+     *            the lane to execute the commands in
+     * @return the view of this service
+     */
+    @Nonnull
+    public GMService withPriority(@Nonnull Priority priority) {
+        if (priority == null) throw new NullPointerException("priority");
+        return views[priority.ordinal()];
+    }
+
+    /**
+     * Gets a view of this service that executes the commands on behalf of given tenant in the
+     * {@link Priority#NORMAL} lane. It only makes a difference when
+     * {@link GMConnectionPoolConfig#setFairSharing(boolean) fairSharing} is enabled, the plain methods of this service
+     * execute on behalf of {@link #DEFAULT_TENANT}.
+     * 
+     * @param tenant
+     *            the id of the tenant
+     * @return the view of this service
+     */
+    @Nonnull
+    public GMService forTenant(@Nonnull String tenant) {
+        return forTenant(tenant, Priority.NORMAL);
+    }
+
+    /**
+     * Gets a view of this service that executes the commands on behalf of given tenant in the lane of given priority.
+     * 
+     * @param tenant
+     *            the id of the tenant
+     * @param priority
+     *            the lane to execute the commands in
+     * @return the view of this service
+     * @see #forTenant(String)
+     * @see #withPriority(Priority)
+     */
+    @Nonnull
+    public GMService forTenant(@Nonnull String tenant, @Nonnull Priority priority) {
+        if (tenant == null) throw new NullPointerException("tenant");
+        if (priority == null) throw new NullPointerException("priority");
+        return new ScheduledView(priority, tenant);
+    }
+
+    /**
+     * Takes a copy of the metrics of the tenants, when {@link GMConnectionPoolConfig#setFairSharing(boolean)
+     * fairSharing} is enabled. So that tenant ids taken from the requests don't pile up, only the most recently idle
+     * of the tenants without a {@link GMConnectionPoolConfig#setTenantWeight(String, int) weight} are reported apart,
+     * the metrics of those idle for longer are added up under {@link #OTHER_TENANTS}.
+     * 
+     * @return the metrics by tenant id, or an empty map if neither fair sharing nor priority scheduling is in effect
+     */
+    @Nonnull
+    public SortedMap<String, GMTenantMetrics> getTenantMetrics() {
+        if (scheduler == null) return Collections.unmodifiableSortedMap(new TreeMap<String, GMTenantMetrics>());
+        return scheduler.getTenantMetrics();
     }
 
     void setProcessFactory(ReaderWriterProcess.Factory factory) {
         pool.setProcessFactory(factory);
     }
 
+    private final class ScheduledView implements GMService {
+        private final Priority priority;
+        private final String tenant;
+
+        private ScheduledView(Priority priority, String tenant) {
+            this.priority = priority;
+            this.tenant = tenant;
+        }
+
+        @Override
+        public String execute(@Nonnull String command, String... arguments) throws GMException, GMServiceException {
+            return PooledGMService.this.execute(this, command, arguments);
+        }
+
+        @Override
+        public String execute(List<String> command) throws GMException, GMServiceException {
+            return PooledGMService.this.execute(this, command);
+        }
+
+        @Override
+        public void execute(@Nonnull List<String> command, @Nonnull GMOutputHandler handler) throws GMException,
+                GMServiceException {
+            PooledGMService.this.execute(this, command, handler);
+        }
+
+        @Override
+        public void executeNoOutput(@Nonnull List<String> command) throws GMException, GMServiceException {
+            PooledGMService.this.executeNoOutput(this, command);
+        }
+
+        @Override
+        @Nonnull
+        public List<GMResult> executeBatch(@Nonnull List<List<String>> commands) throws GMServiceException {
+            return PooledGMService.this.executeBatch(this, commands);
+        }
+
+        @Override
+        @Nonnull
+        public ByteBuffer executeImage(@Nonnull List<String> command, @Nonnull ByteBuffer input) throws GMException,
+                GMServiceException {
+            return staging.execute(this, command, input);
+        }
+
+        @Override
+        @Nonnull
+        public ByteBuffer executeImage(@Nonnull List<String> command, @Nonnull byte[] input) throws GMException,
+                GMServiceException {
+            return executeImage(command, ByteBuffer.wrap(input));
+        }
+
+        @Override
+        @Nonnull
+        public ByteBuffer executeImage(@Nonnull List<String> command, @Nonnull InputStream input) throws GMException,
+                GMServiceException {
+            return staging.execute(this, command, input);
+        }
+
+        @Override
+        @Nonnull
+        public GMConnection getConnection() throws GMServiceException {
+            return new ConnectionWrapper(PooledGMService.this, this);
+        }
+    }
+
     private static final class ConnectionWrapper implements GMConnection {
         @Nonnull
-        private final GMConnectionPool pool;
+        private final PooledGMService service;
+        private final ScheduledView view;
         private PooledGMConnection real;
 
-        private ConnectionWrapper(GMConnectionPool pool) throws GMServiceException {
-            this.pool = pool;
-            real = pool.borrowObject();
+        private ConnectionWrapper(PooledGMService service, ScheduledView view) throws GMServiceException {
+            this.service = service;
+            this.view = view;
+            real = service.borrow(view);
         }
 
         @Override
@@ -109,10 +666,34 @@ public class PooledGMService implements GMService {
             return real.execute(command);
         }
 
+        @Override
+        public void execute(@Nonnull List<String> command, @Nonnull GMOutputHandler handler) throws GMException,
+                GMServiceException {
+            assertConnectionNotClosed();
+            real.execute(command, handler);
+        }
+
+        @Override
+        public void executeNoOutput(@Nonnull List<String> command) throws GMException, GMServiceException {
+            assertConnectionNotClosed();
+            real.executeNoOutput(command);
+        }
+
+        @Override
+        public List<GMResult> executeBatch(@Nonnull List<List<String>> commands) throws GMServiceException {
+            assertConnectionNotClosed();
+            return real.executeBatch(commands);
+        }
+
+        @Override
+        public void setCommandTimeoutMillis(long commandTimeoutMillis) {
+            if (real != null) real.setCommandTimeoutMillis(commandTimeoutMillis);
+        }
+
         @Override
         public void close() throws GMServiceException {
             if (real == null) return;
-            pool.returnObject(real);
+            service.giveBack(real, view);
             real = null;
         }
 
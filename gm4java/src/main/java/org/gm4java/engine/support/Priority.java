@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+/**
+ * The lanes {@link PooledGMService} schedules the commands in when
+ * {@link GMConnectionPoolConfig#setPriorityScheduling(boolean) priorityScheduling} is enabled. A GM connection
+ * returned to the pool is handed to a waiter of the highest priority first.
+ *
+ * @author Kenneth Xu
+ *
+ * @see PooledGMService#withPriority(Priority)
+ */
+public enum Priority {
+    /**
+     * For the interactive work somebody is waiting for, such as the thumbnails of a web page.
+     */
+    HIGH,
+
+    /**
+     * For the commands executed without a priority.
+     */
+    NORMAL,
+
+    /**
+     * For the bulk work that can wait, such as a backfill job.
+     */
+    LOW
+}
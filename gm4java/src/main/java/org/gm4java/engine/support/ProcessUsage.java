@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * The resident memory and the CPU time used by a process, read from <code>/proc/&lt;pid&gt;/status</code> and
+ * <code>/proc/&lt;pid&gt;/stat</code>. It is only available on Linux.
+ * 
+ * @author Kenneth Xu
+ * 
+ */
+final class ProcessUsage {
+    private static final File PROC = new File("/proc");
+    private static final String RSS = "VmRSS:";
+    private static final long BYTES_PER_KB = 1024;
+    // USER_HZ, the unit of the times in /proc/<pid>/stat, is 100 on all the mainstream architectures.
+    private static final long NANOS_PER_TICK = TimeUnit.SECONDS.toNanos(1) / 100;
+    // utime and stime are the 14th and 15th fields, counted from the state which is the 3rd.
+    private static final int UTIME_INDEX = 14 - 3;
+    private static final int STIME_INDEX = 15 - 3;
+    private static final int BUFFER_SIZE = 2048;
+
+    private final long residentBytes;
+    private final long cpuNanos;
+
+    ProcessUsage(long residentBytes, long cpuNanos) {
+        this.residentBytes = residentBytes;
+        this.cpuNanos = cpuNanos;
+    }
+
+    /**
+     * Gets the resident set size.
+     * 
+     * @return the resident memory in bytes
+     */
+    long getResidentBytes() {
+        return residentBytes;
+    }
+
+    /**
+     * Gets the user and system CPU time used so far.
+     * 
+     * @return the CPU time in nanoseconds
+     */
+    long getCpuNanos() {
+        return cpuNanos;
+    }
+
+    /**
+     * Reads the usage of the given process.
+     * 
+     * @param pid
+     *            the process id
+     * @return the usage, or null if it is not available, e.g. the process is gone or this is not Linux.
+     */
+    @CheckForNull
+    static ProcessUsage read(long pid) {
+        if (pid <= 0) return null;
+        File directory = new File(PROC, String.valueOf(pid));
+        try {
+            return parse(readFile(new File(directory, "status")), readFile(new File(directory, "stat")));
+        } catch (IOException e) {
+            return null;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Parses the content of <code>/proc/&lt;pid&gt;/status</code> and <code>/proc/&lt;pid&gt;/stat</code>.
+     * 
+     * @throws IllegalArgumentException
+     *             when the content is not in the expected format.
+     */
+    @Nonnull
+    static ProcessUsage parse(@Nonnull String status, @Nonnull String stat) {
+        long rss = 0;
+        int start = status.indexOf(RSS);
+        if (start >= 0) {
+            int end = status.indexOf('\n', start);
+            String value = status.substring(start + RSS.length(), end < 0 ? status.length() : end).trim();
+            int space = value.indexOf(' ');
+            rss = Long.parseLong(space < 0 ? value : value.substring(0, space)) * BYTES_PER_KB;
+        }
+        // the command name in parentheses may contain anything, so the fields are counted from the last one.
+        int paren = stat.lastIndexOf(')');
+        if (paren < 0) throw new IllegalArgumentException("Unexpected format of stat: " + stat);
+        String[] fields = stat.substring(paren + 1).trim().split("\\s+");
+        if (fields.length <= STIME_INDEX) throw new IllegalArgumentException("Unexpected format of stat: " + stat);
+        long ticks = Long.parseLong(fields[UTIME_INDEX]) + Long.parseLong(fields[STIME_INDEX]);
+        return new ProcessUsage(rss, ticks * NANOS_PER_TICK);
+    }
+
+    private static String readFile(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            Reader reader = new InputStreamReader(in, "ISO-8859-1");
+            StringBuilder sb = new StringBuilder();
+            char[] buffer = new char[BUFFER_SIZE];
+            for (int n = reader.read(buffer); n >= 0; n = reader.read(buffer)) {
+                sb.append(buffer, 0, n);
+            }
+            return sb.toString();
+        } finally {
+            in.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ProcessUsage [residentBytes=" + residentBytes + ", cpuNanos=" + cpuNanos + "]";
+    }
+}
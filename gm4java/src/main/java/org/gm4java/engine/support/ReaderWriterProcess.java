@@ -45,5 +45,19 @@ interface ReaderWriterProcess {
     @Nonnull
     BufferedReader getReader();
 
+    /**
+     * Checks whether the process is still running, without reading from or writing to it.
+     * 
+     * @return true if the process hasn't exited.
+     */
+    boolean isAlive();
+
+    /**
+     * Gets the operating system id of the process.
+     * 
+     * @return the process id, or -1 if it is not known.
+     */
+    long getPid();
+
     void destroy();
 }
@@ -26,17 +26,18 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.lang.reflect.Field;
 
 import javax.annotation.Nonnull;
 
 /**
  * 
- * Implementation of {@link ReaderWriterProcess}.
+ * Implementation of {@link ReaderWriterProcess} that also exposes the raw streams as a {@link StreamProcess}.
  * 
  * @author Kenneth Xu
  * 
  */
-class ReaderWriterProcessImpl implements ReaderWriterProcess {
+class ReaderWriterProcessImpl implements StreamProcess {
     public static final Factory FACTORY = new Factory() {
         @Override
         @Nonnull
@@ -51,6 +52,7 @@ class ReaderWriterProcessImpl implements ReaderWriterProcess {
     private final InputStream inputStream;
     private final BufferedReader reader;
     private final Writer writer;
+    private final long pid;
 
     public ReaderWriterProcessImpl(@Nonnull String... command) throws IOException {
         if (command == null) throw new NullPointerException("command");
@@ -59,6 +61,27 @@ class ReaderWriterProcessImpl implements ReaderWriterProcess {
         inputStream = process.getInputStream();
         writer = new OutputStreamWriter(outputStream);
         reader = new BufferedReader(new InputStreamReader(inputStream));
+        pid = pidOf(process);
+    }
+
+    /**
+     * Gets the id of the process by {@code Process.pid()} on Java 9 and later, or from the private <code>pid</code>
+     * field of the Unix implementation before that.
+     */
+    private static long pidOf(Process process) {
+        try {
+            return ((Number) Process.class.getMethod("pid").invoke(process)).longValue();
+        } catch (Exception e) {
+            LOGGER.trace("Process.pid() is not available.", e);
+        }
+        try {
+            Field field = process.getClass().getDeclaredField("pid");
+            field.setAccessible(true);
+            return ((Number) field.get(process)).longValue();
+        } catch (Exception e) {
+            LOGGER.debug("Cannot get the pid of the process.", e);
+            return -1;
+        }
     }
 
     @Override
@@ -71,6 +94,31 @@ class ReaderWriterProcessImpl implements ReaderWriterProcess {
         return reader;
     }
 
+    @Override
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    @Override
+    public boolean isAlive() {
+        try {
+            process.exitValue();
+            return false;
+        } catch (IllegalThreadStateException e) {
+            return true;
+        }
+    }
+
+    @Override
+    public long getPid() {
+        return pid;
+    }
+
     @Override
     public void destroy() {
         try {
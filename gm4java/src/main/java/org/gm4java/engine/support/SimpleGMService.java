@@ -17,13 +17,20 @@ package org.gm4java.engine.support;
 
 import org.gm4java.engine.GMConnection;
 import org.gm4java.engine.GMException;
+import org.gm4java.engine.GMOutputHandler;
+import org.gm4java.engine.GMResult;
 import org.gm4java.engine.GMService;
 import org.gm4java.engine.GMServiceException;
 import org.gm4java.engine.support.ReaderWriterProcess.Factory;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.List;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 
 /**
@@ -41,6 +48,10 @@ public class SimpleGMService implements GMService {
 
     private ReaderWriterProcess.Factory factory = ReaderWriterProcessImpl.FACTORY;
     private String[] gmCommand = Constants.gmCommand(DEFAULT_GM_PATH);
+    private int pipelineDepth = 1;
+    private Charset charset;
+    private long commandTimeoutMillis;
+    private ImageStaging staging = new ImageStaging(null);
 
     /**
      * Gets the path to GraphicsMagick executable set by {@link #setGMPath(String)} or {@link #DEFAULT_GM_PATH} if it
@@ -64,6 +75,94 @@ public class SimpleGMService implements GMService {
         gmCommand[0] = gmPath;
     }
 
+    /**
+     * Gets the charset used to encode the commands sent to and decode the output received from GraphicsMagick.
+     * 
+     * @return the charset, or null if the platform default charset is used.
+     */
+    @CheckForNull
+    public Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * Sets the charset used to encode the commands sent to and decode the output received from GraphicsMagick. The
+     * charset must be ASCII compatible, e.g. UTF-8 or ISO-8859-1. The platform default charset is used by default.
+     * 
+     * @param charset
+     *            the charset, or null to use the platform default charset.
+     */
+    public void setCharset(@CheckForNull Charset charset) {
+        this.charset = charset;
+    }
+
+    /**
+     * Gets the value set by {@link #setCommandTimeoutMillis(long)}.
+     * 
+     * @return the timeout of each command in milliseconds, non-positive value means no timeout.
+     */
+    public long getCommandTimeoutMillis() {
+        return commandTimeoutMillis;
+    }
+
+    /**
+     * Sets the maximum time each command may take. The GraphicsMagick process is destroyed and the command fails with
+     * {@link org.gm4java.engine.GMServiceTimeoutException} when the timeout expires.
+     * 
+     * @param commandTimeoutMillis
+     *            the timeout of each command in milliseconds, non-positive value means no timeout.
+     * @see GMConnection#setCommandTimeoutMillis(long)
+     */
+    public void setCommandTimeoutMillis(long commandTimeoutMillis) {
+        this.commandTimeoutMillis = commandTimeoutMillis;
+    }
+
+    /**
+     * Gets the directory where the in-memory images are staged for GraphicsMagick.
+     * 
+     * @return the staging directory
+     * @see #setStagingDirectory(File)
+     */
+    @Nonnull
+    public File getStagingDirectory() {
+        return staging.getDirectory();
+    }
+
+    /**
+     * Sets the directory where the images passed to {@link #executeImage(List, ByteBuffer)} and alike are staged for
+     * GraphicsMagick. By default, <code>/dev/shm</code> is used when it is available, otherwise the directory given
+     * by the system property <code>java.io.tmpdir</code>.
+     * 
+     * @param stagingDirectory
+     *            the staging directory, or null to use the default.
+     */
+    public void setStagingDirectory(@CheckForNull File stagingDirectory) {
+        staging = new ImageStaging(stagingDirectory);
+    }
+
+    /**
+     * Gets the value set by {@link #setPipelineDepth(int)}.
+     * 
+     * @return the maximum number of commands that can be sent to a GraphicsMagick process ahead of reading the results
+     */
+    public int getPipelineDepth() {
+        return pipelineDepth;
+    }
+
+    /**
+     * Sets the maximum number of commands that can be sent to the GraphicsMagick process ahead of reading their
+     * results. A value greater than one turns on the pipelined mode for the connections returned by
+     * {@link #getConnection()} afterwards. In pipelined mode, the connection is thread safe and the commands executed
+     * concurrently by multiple threads are written to the process without waiting for the result of the previous
+     * command. The default value is 1, which disables pipelining.
+     * 
+     * @param pipelineDepth
+     *            the maximum number of commands in flight per GraphicsMagick process
+     */
+    public void setPipelineDepth(int pipelineDepth) {
+        this.pipelineDepth = pipelineDepth;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -90,6 +189,76 @@ public class SimpleGMService implements GMService {
         }
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void execute(@Nonnull List<String> command, @Nonnull GMOutputHandler handler) throws GMException,
+            GMServiceException {
+        final GMConnection connection = getConnection();
+        try {
+            connection.execute(command, handler);
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void executeNoOutput(@Nonnull List<String> command) throws GMException, GMServiceException {
+        final GMConnection connection = getConnection();
+        try {
+            connection.executeNoOutput(command);
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<GMResult> executeBatch(@Nonnull List<List<String>> commands) throws GMServiceException {
+        final GMConnection connection = getConnection();
+        try {
+            return connection.executeBatch(commands);
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    @Nonnull
+    public ByteBuffer executeImage(@Nonnull List<String> command, @Nonnull ByteBuffer input) throws GMException,
+            GMServiceException {
+        return staging.execute(this, command, input);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    @Nonnull
+    public ByteBuffer executeImage(@Nonnull List<String> command, @Nonnull byte[] input) throws GMException,
+            GMServiceException {
+        return executeImage(command, ByteBuffer.wrap(input));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    @Nonnull
+    public ByteBuffer executeImage(@Nonnull List<String> command, @Nonnull InputStream input) throws GMException,
+            GMServiceException {
+        return staging.execute(this, command, input);
+    }
+
     /**
      * {@inheritDoc}
      * 
@@ -99,7 +268,10 @@ public class SimpleGMService implements GMService {
     @Nonnull
     public GMConnection getConnection() throws GMServiceException {
         try {
-            return new BasicGMConnection(factory.getProcess(gmCommand));
+            BasicGMConnection connection = new BasicGMConnection(factory.getProcess(gmCommand), charset);
+            connection.setPipelineDepth(pipelineDepth);
+            connection.setCommandTimeoutMillis(commandTimeoutMillis);
+            return connection;
         } catch (IOException e) {
             throw new GMServiceException(e.getMessage(), e);
         }
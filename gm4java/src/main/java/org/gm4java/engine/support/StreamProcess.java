@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.annotation.Nonnull;
+
+/**
+ * A {@link ReaderWriterProcess} that also gives access to the raw byte streams of the process. Connections to such a
+ * process talk to GraphicsMagick through {@link GMBatchCodec} instead of the reader and writer.
+ * <p>
+ * The byte streams and the reader and writer must not be mixed, as the reader buffers the bytes it reads ahead.
+ * 
+ * @author Kenneth Xu
+ * 
+ */
+interface StreamProcess extends ReaderWriterProcess {
+    /**
+     * @return the stream connected to the standard input of the process.
+     */
+    @Nonnull
+    OutputStream getOutputStream();
+
+    /**
+     * @return the stream connected to the standard output of the process.
+     */
+    @Nonnull
+    InputStream getInputStream();
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+/**
+ * How the pool validates a GM connection for <i>testOnGet</i>, <i>testOnReturn</i> and <i>testWhileIdle</i>. Only the
+ * {@link #PING} round trip proves GraphicsMagick still answers, but it costs as much as a short command. The other
+ * strategies check that the process is alive without touching the pipe, and pay for the round trip less often.
+ * 
+ * @see GMConnectionPoolConfig#setValidationStrategy(ValidationStrategy)
+ */
+public enum ValidationStrategy {
+    /**
+     * Executes a <code>ping</code> command for every validation.
+     */
+    PING,
+
+    /**
+     * Only checks that the GraphicsMagick process is still running and the connection is not broken.
+     */
+    ALIVE,
+
+    /**
+     * Checks that the process is alive, and executes a <code>ping</code> command only when the connection hasn't
+     * completed a command for {@link GMConnectionPoolConfig#setValidationIdleMillis(long) validationIdleMillis}.
+     */
+    IDLE,
+
+    /**
+     * Checks that the process is alive, and executes a <code>ping</code> command on every
+     * {@link GMConnectionPoolConfig#setValidationInterval(int) validationInterval}th validation of the pool.
+     */
+    SAMPLED
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import org.gm4java.engine.GMServiceException;
+import org.gm4java.engine.GMServiceTimeoutException;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Destroys the GraphicsMagick processes that don't complete a command in time. One daemon thread is shared by all the
+ * connections, and it is only started when a timeout is first used.
+ * 
+ * @author Kenneth Xu
+ * 
+ */
+final class Watchdog {
+
+    private Watchdog() {
+    }
+
+    /**
+     * Starts watching a command.
+     * 
+     * @param connection
+     *            the connection executing the command
+     * @param timeoutMillis
+     *            timeout of the command in milliseconds
+     * @return the watch to be {@link Watch#stop() stopped} when the command completes, or {@link Watch#NONE} if
+     *         timeoutMillis is not positive.
+     */
+    @Nonnull
+    static Watch start(@Nonnull BasicGMConnection connection, long timeoutMillis) {
+        if (timeoutMillis <= 0) return Watch.NONE;
+        Watch watch = new Watch(connection, timeoutMillis);
+        watch.future = Holder.EXECUTOR.schedule(watch, timeoutMillis, TimeUnit.MILLISECONDS);
+        return watch;
+    }
+
+    /**
+     * A command being watched.
+     */
+    static final class Watch implements Runnable {
+        /**
+         * A watch that never expires.
+         */
+        static final Watch NONE = new Watch(null, 0);
+
+        private final BasicGMConnection connection;
+        private final long timeoutMillis;
+        private volatile boolean expired;
+        private volatile ScheduledFuture<?> future;
+
+        private Watch(BasicGMConnection connection, long timeoutMillis) {
+            this.connection = connection;
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        @Override
+        public void run() {
+            expired = true;
+            connection.expire();
+        }
+
+        /**
+         * Stops watching. The scheduled task is removed from the queue so that the cancelled watches don't pile up.
+         */
+        void stop() {
+            ScheduledFuture<?> f = future;
+            if (f != null && f.cancel(false)) Holder.EXECUTOR.remove((Runnable) f);
+        }
+
+        boolean isExpired() {
+            return expired;
+        }
+
+        /**
+         * Translates the failure caused by destroying the process to a timeout.
+         * 
+         * @return a {@link GMServiceTimeoutException} if this watch has expired, otherwise the given exception.
+         */
+        @Nonnull
+        GMServiceException translate(@Nonnull GMServiceException e) {
+            if (!expired || e instanceof GMServiceTimeoutException) return e;
+            return new GMServiceTimeoutException("GraphicsMagick didn't complete the command in " + timeoutMillis
+                    + "ms, the process was destroyed.", e);
+        }
+    }
+
+    private static final class Holder {
+        static final ScheduledThreadPoolExecutor EXECUTOR = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "gm4java-watchdog");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+}
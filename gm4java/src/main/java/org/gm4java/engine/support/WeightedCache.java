@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * A thread safe map bounded by the total weight of its values, the tiers of {@link CachingGMService} are built on it.
+ * The entries are kept in the order of access and the least recently used ones are evicted to make room for new ones.
+ * With {@link CacheEvictionPolicy#TINY_LFU}, a new entry is only admitted when it has been asked for more often than
+ * the entries it would evict.
+ * <p>
+ * The evicted values are handed back to the caller so that it can release them, e.g. delete the files, outside of the
+ * lock.
+ *
+ * @author Kenneth Xu
+ *
+ * @param <K>
+ *            type of the key
+ * @param <V>
+ *            type of the value
+ */
+final class WeightedCache<K, V> {
+    private static final int INITIAL_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private final LinkedHashMap<K, Entry<V>> map = new LinkedHashMap<K, Entry<V>>(INITIAL_CAPACITY, LOAD_FACTOR, true);
+    private final long maxWeight;
+    @CheckForNull
+    private final FrequencySketch sketch;
+    private long weight;
+    private long evictions;
+    private long rejections;
+
+    /**
+     * Constructs a new cache.
+     *
+     * @param maxWeight
+     *            the maximum total weight of the values
+     * @param policy
+     *            the eviction policy
+     * @param expectedEntries
+     *            the number of entries the cache is expected to hold, used to size the frequency sketch
+     */
+    WeightedCache(long maxWeight, @Nonnull CacheEvictionPolicy policy, long expectedEntries) {
+        this.maxWeight = maxWeight;
+        sketch = policy == CacheEvictionPolicy.TINY_LFU ? new FrequencySketch(expectedEntries) : null;
+    }
+
+    /**
+     * Gets the value of the key and records the access, whether it is found or not.
+     *
+     * @return the value, or null if it is not cached.
+     */
+    @CheckForNull
+    synchronized V get(@Nonnull K key) {
+        if (sketch != null) sketch.increment(key);
+        Entry<V> entry = map.get(key);
+        return entry == null ? null : entry.value;
+    }
+
+    /**
+     * Adds the value unless the key is already present, the value is heavier than the cache or the eviction policy
+     * doesn't admit it. Present keys are not replaced because the values are addressed by content.
+     *
+     * @param evicted
+     *            receives the values evicted to make room for the new one
+     * @return true if the value was added
+     */
+    synchronized boolean put(@Nonnull K key, @Nonnull V value, long valueWeight, @Nonnull List<V> evicted) {
+        if (map.containsKey(key)) return false;
+        if (valueWeight > maxWeight) {
+            rejections++;
+            return false;
+        }
+        long excess = weight + valueWeight - maxWeight;
+        if (excess > 0 && sketch != null) {
+            int frequency = sketch.frequency(key);
+            for (Map.Entry<K, Entry<V>> victim : map.entrySet()) {
+                if (sketch.frequency(victim.getKey()) >= frequency) {
+                    rejections++;
+                    return false;
+                }
+                excess -= victim.getValue().weight;
+                if (excess <= 0) break;
+            }
+        }
+        Iterator<Entry<V>> eldest = map.values().iterator();
+        while (weight + valueWeight > maxWeight) {
+            Entry<V> victim = eldest.next();
+            eldest.remove();
+            weight -= victim.weight;
+            evictions++;
+            evicted.add(victim.value);
+        }
+        map.put(key, new Entry<V>(value, valueWeight));
+        weight += valueWeight;
+        return true;
+    }
+
+    /**
+     * Removes the entry of the key.
+     *
+     * @return the value removed, or null if the key was not present.
+     */
+    @CheckForNull
+    synchronized V remove(@Nonnull K key) {
+        Entry<V> entry = map.remove(key);
+        if (entry == null) return null;
+        weight -= entry.weight;
+        return entry.value;
+    }
+
+    synchronized long getWeight() {
+        return weight;
+    }
+
+    synchronized int size() {
+        return map.size();
+    }
+
+    /**
+     * Gets the number of entries evicted to make room for new ones.
+     */
+    synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Gets the number of new entries not admitted because they are heavier than the cache or less popular than the
+     * entries they would evict.
+     */
+    synchronized long getRejections() {
+        return rejections;
+    }
+
+    /**
+     * Removes all the entries.
+     *
+     * @return the values removed
+     */
+    @Nonnull
+    synchronized List<V> clear() {
+        List<V> values = new ArrayList<V>(map.size());
+        for (Entry<V> entry : map.values()) {
+            values.add(entry.value);
+        }
+        map.clear();
+        weight = 0;
+        return values;
+    }
+
+    private static final class Entry<V> {
+        final V value;
+        final long weight;
+
+        Entry(V value, long weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package org.gm4java.engine.support;
+
+/**
+ * Defines the behavior of the {@link PooledGMService#executeAsync(java.util.List, org.gm4java.engine.GMCallback)}
+ * method when the submission queue is full.
+ * 
+ * @see GMConnectionPoolConfig#getWhenAsyncQueueFullAction()
+ */
+public enum WhenQueueFullAction {
+    /**
+     * Throw a {@link org.gm4java.engine.GMServiceException}.
+     */
+    FAIL,
+
+    /**
+     * Blocks the submitting thread until there is room in the queue.
+     */
+    BLOCK,
+
+    /**
+     * Execute the command in the submitting thread. This naturally slows down the submitter until the dispatcher
+     * catches up.
+     */
+    CALLER_RUNS
+}
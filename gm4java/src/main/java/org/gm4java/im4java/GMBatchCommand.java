@@ -75,15 +75,21 @@ public class GMBatchCommand extends ImageCommand {
     /**
      * {@inheritDoc}
      * 
-     * This implementation uses {@link GMService} to execute the command.
+     * This implementation uses {@link GMService} to execute the command. When the {@link OutputConsumer} is set to
+     * null, the command is {@link GMService#executeNoOutput(java.util.List) executed without output}, which is the
+     * cheapest way to run commands like <code>convert</code> whose output is not used.
      */
     @Override
     protected int run(@Nonnull LinkedList<String> pArgs) throws Exception {
 
         int rc;
         try {
-            String result = service.execute(pArgs);
-            if (outputConsumer != null && result != null) outputConsumer.consumeOutput(stringToStream(result));
+            if (outputConsumer == null) {
+                service.executeNoOutput(pArgs);
+            } else {
+                String result = service.execute(pArgs);
+                if (result != null) outputConsumer.consumeOutput(stringToStream(result));
+            }
             rc = 0;
         } catch (GMException e) {
             if (errorConsumer != null) errorConsumer.consumeError(stringToStream(e.getMessage()));
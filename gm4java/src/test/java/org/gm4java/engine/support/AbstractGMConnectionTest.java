@@ -22,20 +22,28 @@ import static org.mockito.Mockito.*;
 import org.apache.commons.lang3.StringUtils;
 import org.gm4java.engine.GMException;
 import org.gm4java.engine.GMConnection;
+import org.gm4java.engine.GMOutputHandler;
+import org.gm4java.engine.GMResult;
 import org.gm4java.engine.GMServiceException;
+import org.gm4java.engine.GMServiceTimeoutException;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import java.io.BufferedReader;
 import java.io.CharArrayWriter;
 import java.io.IOException;
 import java.io.Writer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Common test cases for implementation of {@link GMConnection}.
@@ -45,6 +53,8 @@ import java.util.List;
  */
 public abstract class AbstractGMConnectionTest {
     private static final String gmCommand = "convert something";
+    private static final long COMMAND_TIMEOUT_MILLIS = 50;
+    private static final long HANG_SECONDS = 5;
     @Rule
     public ExpectedException exception = ExpectedException.none();
     @Mock
@@ -237,6 +247,158 @@ public abstract class AbstractGMConnectionTest {
         assertThat(result, is(large + TestUtils.EOL));
     }
 
+    @Test
+    public void executeWithHandler_chokes_onNullHandler() throws Exception {
+        exception.expect(NullPointerException.class);
+        exception.expectMessage("handler");
+        sut().execute(Arrays.asList(gmCommand), null);
+    }
+
+    @Test
+    public void executeWithHandler_streamsLines_whenGMReturns() throws Exception {
+        when(reader.readLine()).thenReturn("line 1", "line 2", "OK");
+        LineCollector handler = new LineCollector(Integer.MAX_VALUE);
+
+        sut().execute(Arrays.asList(gmCommand), handler);
+
+        assertThat(handler.lines, is(Arrays.asList("line 1", "line 2")));
+    }
+
+    @Test
+    public void executeWithHandler_discardsRestOfOutput_whenHandlerStops() throws Exception {
+        when(reader.readLine()).thenReturn("line 1", "line 2", "line 3", "OK", "next", "OK");
+        LineCollector handler = new LineCollector(2);
+
+        sut().execute(Arrays.asList(gmCommand), handler);
+
+        assertThat(handler.lines, is(Arrays.asList("line 1", "line 2")));
+        assertThat(sut().execute(gmCommand), is("next" + TestUtils.EOL));
+    }
+
+    @Test
+    public void executeWithHandler_chokes_withTailOfOutput_whenGMReturnsError() throws Exception {
+        String large = StringUtils.repeat('a', 10000);
+        when(reader.readLine()).thenReturn(large, "error", "NG");
+        LineCollector handler = new LineCollector(Integer.MAX_VALUE);
+        exception.expect(GMException.class);
+        exception.expectMessage(org.hamcrest.Matchers.endsWith("a" + TestUtils.EOL + "error" + TestUtils.EOL));
+        exception.expectMessage(not(containsString(large)));
+
+        try {
+            sut().execute(Arrays.asList(gmCommand), handler);
+        } finally {
+            assertThat(handler.lines, is(Arrays.asList(large, "error")));
+        }
+    }
+
+    @Test
+    public void executeWithHandler_propagatesHandlerException_afterReadingRestOfOutput() throws Exception {
+        when(reader.readLine()).thenReturn("line 1", "line 2", "OK", "next", "OK");
+        final IllegalStateException failure = new IllegalStateException("bad line");
+        GMOutputHandler handler = new GMOutputHandler() {
+            @Override
+            public boolean handleLine(String line) {
+                throw failure;
+            }
+        };
+
+        try {
+            sut().execute(Arrays.asList(gmCommand), handler);
+            throw new AssertionError("IllegalStateException expected");
+        } catch (IllegalStateException e) {
+            assertThat(e, sameInstance(failure));
+        }
+        assertThat(sut().execute(gmCommand), is("next" + TestUtils.EOL));
+    }
+
+    @Test
+    public void executeWithHandler_chokes_whenCommunicationInterrupts() throws Exception {
+        when(reader.readLine()).thenReturn("partial", (String) null);
+        exception.expect(GMServiceException.class);
+        exception.expectMessage("partial");
+        sut().execute(Arrays.asList(gmCommand), new LineCollector(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void executeNoOutput_returns_whenGMReturns() throws Exception {
+        when(reader.readLine()).thenReturn("line 1", "OK", "next", "OK");
+
+        sut().executeNoOutput(Arrays.asList(gmCommand));
+
+        assertThat(sut().execute(gmCommand), is("next" + TestUtils.EOL));
+    }
+
+    @Test
+    public void executeNoOutput_chokes_withOutput_whenGMReturnsError() throws Exception {
+        when(reader.readLine()).thenReturn("error 1", "error 2", "NG");
+        exception.expect(GMException.class);
+        exception.expectMessage(is("error 1" + TestUtils.EOL + "error 2" + TestUtils.EOL));
+
+        sut().executeNoOutput(Arrays.asList(gmCommand));
+    }
+
+    @Test
+    public void executeNoOutput_chokes_onEmptyCommand() throws Exception {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("empty");
+        sut().executeNoOutput(Arrays.asList(new String[0]));
+    }
+
+    @Test
+    public void execute_chokes_withTimeout_whenCommandTakesTooLong() throws Exception {
+        hangUntilDestroyed();
+        sut().setCommandTimeoutMillis(COMMAND_TIMEOUT_MILLIS);
+
+        try {
+            sut().execute(gmCommand);
+            throw new AssertionError("GMServiceTimeoutException expected");
+        } catch (GMServiceTimeoutException e) {
+            assertThat(e.getMessage(), containsString(COMMAND_TIMEOUT_MILLIS + "ms"));
+        }
+        verify(process, atLeastOnce()).destroy();
+        exception.expect(GMServiceTimeoutException.class);
+        sut().execute(gmCommand);
+    }
+
+    @Test
+    public void executeBatch_failsWithTimeout_whenCommandTakesTooLong() throws Exception {
+        hangUntilDestroyed();
+        sut().setCommandTimeoutMillis(COMMAND_TIMEOUT_MILLIS);
+
+        List<GMResult> results = sut().executeBatch(batch(Arrays.asList(gmCommand), Arrays.asList(gmCommand)));
+
+        assertThat(results.get(0).getException(), instanceOf(GMServiceTimeoutException.class));
+        assertThat(results.get(1).getException(), instanceOf(GMServiceException.class));
+    }
+
+    @Test
+    public void execute_returns_whenCommandCompletesWithinTimeout() throws Exception {
+        when(reader.readLine()).thenReturn("line", "OK");
+        sut().setCommandTimeoutMillis(TimeUnit.SECONDS.toMillis(HANG_SECONDS));
+
+        assertThat(sut().execute(gmCommand), is("line" + TestUtils.EOL));
+        verify(process, never()).destroy();
+    }
+
+    private void hangUntilDestroyed() throws IOException {
+        final CountDownLatch destroyed = new CountDownLatch(1);
+        doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) {
+                destroyed.countDown();
+                return null;
+            }
+        }).when(process).destroy();
+        when(reader.readLine()).thenAnswer(new Answer<String>() {
+            @Override
+            public String answer(InvocationOnMock invocation) throws Throwable {
+                // returns normally if the watchdog never fires so that the test fails instead of hanging.
+                if (!destroyed.await(HANG_SECONDS, TimeUnit.SECONDS)) return "OK";
+                throw new IOException("Stream closed");
+            }
+        });
+    }
+
     @Test
     public void execute_chokes_afterClose() throws Exception {
         when(reader.readLine()).thenReturn("OK");
@@ -270,4 +432,99 @@ public abstract class AbstractGMConnectionTest {
         sut().close();
         sut().close();
     }
+
+    @Test
+    public void executeBatch_chokes_onNullCommands() throws Exception {
+        exception.expect(NullPointerException.class);
+        exception.expectMessage("commands");
+        sut().executeBatch(null);
+    }
+
+    @Test
+    public void executeBatch_chokes_onEmptyCommand() throws Exception {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("empty");
+        sut().executeBatch(batch(Arrays.asList(gmCommand), Arrays.asList(new String[0])));
+    }
+
+    @Test
+    public void executeBatch_sendsAllCommandsWithOneFlush() throws Exception {
+        CharArrayWriter spyWriter = spy(writer);
+        when(process.getWriter()).thenReturn(spyWriter);
+        when(reader.readLine()).thenReturn("OK");
+
+        sut().executeBatch(batch(Arrays.asList("identify", "a"), Arrays.asList("identify", "b")));
+
+        verify(spyWriter, times(1)).flush();
+        assertThat(spyWriter.toString(), equalTo(" \"identify\" \"a\"" + TestUtils.EOL + " \"identify\" \"b\""
+                + TestUtils.EOL));
+    }
+
+    @Test
+    public void executeBatch_returnsResultsInOrder() throws Exception {
+        when(reader.readLine()).thenReturn("a", "OK", "b", "NG", "OK");
+
+        List<GMResult> results = sut().executeBatch(
+                batch(Arrays.asList(gmCommand), Arrays.asList(gmCommand), Arrays.asList(gmCommand)));
+
+        assertThat(results.size(), is(3));
+        assertThat(results.get(0).getOutput(), is("a" + TestUtils.EOL));
+        assertThat(results.get(1).getException(), instanceOf(GMException.class));
+        assertThat(results.get(1).getException().getMessage(), is("b" + TestUtils.EOL));
+        assertThat(results.get(2).getOutput(), is(""));
+    }
+
+    @Test
+    public void executeBatch_failsRemainingCommands_whenCommunicationInterrupts() throws Exception {
+        when(reader.readLine()).thenReturn("a", "OK", null);
+
+        List<GMResult> results = sut().executeBatch(
+                batch(Arrays.asList(gmCommand), Arrays.asList(gmCommand), Arrays.asList(gmCommand)));
+
+        assertThat(results.size(), is(3));
+        assertThat(results.get(0).isSuccess(), is(true));
+        assertThat(results.get(1).getException(), instanceOf(GMServiceException.class));
+        assertThat(results.get(2).getException(), instanceOf(GMServiceException.class));
+    }
+
+    @Test
+    public void executeBatch_failsAllCommands_whenErrorSendingCommandToProcess() throws Exception {
+        when(process.getWriter()).thenReturn(mockWriter);
+        doThrow(new IOException()).when(mockWriter).flush();
+
+        List<GMResult> results = sut().executeBatch(batch(Arrays.asList(gmCommand), Arrays.asList(gmCommand)));
+
+        assertThat(results.size(), is(2));
+        assertThat(results.get(0).getException(), instanceOf(GMServiceException.class));
+        assertThat(results.get(1).getException(), instanceOf(GMServiceException.class));
+    }
+
+    @Test
+    public void executeBatch_chokes_afterClose() throws Exception {
+        sut().close();
+        exception.expect(GMServiceException.class);
+        exception.expectMessage("closed");
+
+        sut().executeBatch(batch(Arrays.asList(gmCommand)));
+    }
+
+    protected static class LineCollector implements GMOutputHandler {
+        final List<String> lines = new ArrayList<String>();
+        private final int limit;
+
+        LineCollector(int limit) {
+            this.limit = limit;
+        }
+
+        @Override
+        public boolean handleLine(String line) {
+            lines.add(line);
+            return lines.size() < limit;
+        }
+    }
+
+    @SafeVarargs
+    protected static List<List<String>> batch(List<String>... commands) {
+        return Arrays.asList(commands);
+    }
 }
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test cases for {@link AdaptivePoolSizer}.
+ *
+ * @author Kenneth Xu
+ *
+ */
+public class AdaptivePoolSizerTest {
+    private static final long TICK = TimeUnit.SECONDS.toNanos(1);
+    private static final long SHORT_HOLD = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final long LONG_WAIT = TimeUnit.MILLISECONDS.toNanos(20);
+    private static final int MAX_ACTIVE = 16;
+
+    private GMConnectionPoolConfig config;
+    private long now;
+    private double cpuLoad;
+
+    @Before
+    public void setup() {
+        config = new GMConnectionPoolConfig();
+        config.setMaxActive(MAX_ACTIVE);
+        config.setMinIdle(0);
+        now = System.nanoTime();
+    }
+
+    private AdaptivePoolSizer newSizer() {
+        return new AdaptivePoolSizer(config) {
+            @Override
+            double cpuLoad() {
+                return cpuLoad;
+            }
+        };
+    }
+
+    private int tick(AdaptivePoolSizer sut, int borrows, long waitNanos, long holdNanos) {
+        for (int i = 0; i < borrows; i++) {
+            sut.recordBorrow(waitNanos);
+            sut.recordReturn(holdNanos);
+        }
+        now += TICK;
+        return sut.adjust(now);
+    }
+
+    @Test
+    public void constructor_startsAtMaxActive() {
+        assertThat(newSizer().getSize(), is(MAX_ACTIVE));
+    }
+
+    @Test
+    public void adjust_shrinksByHalfOfSurplus_whenIdle() {
+        AdaptivePoolSizer sut = newSizer();
+
+        assertThat(tick(sut, 0, 0, 0), is(8));
+        assertThat(tick(sut, 0, 0, 0), is(4));
+        assertThat(tick(sut, 0, 0, 0), is(2));
+        assertThat(tick(sut, 0, 0, 0), is(1));
+        assertThat(tick(sut, 0, 0, 0), is(1));
+    }
+
+    @Test
+    public void adjust_neverShrinksBelowMinIdle() {
+        final int minIdle = 6;
+        config.setMinIdle(minIdle);
+        AdaptivePoolSizer sut = newSizer();
+
+        tick(sut, 0, 0, 0);
+        tick(sut, 0, 0, 0);
+
+        assertThat(tick(sut, 0, 0, 0), is(minIdle));
+    }
+
+    @Test
+    public void adjust_convergesToLittlesLaw() {
+        AdaptivePoolSizer sut = newSizer();
+        int size = 0;
+
+        // 100 borrows per second held for 50ms each need 5 connections, plus the headroom.
+        for (int i = 0; i < 10; i++) {
+            size = tick(sut, 100, 0, SHORT_HOLD);
+        }
+
+        assertThat(size, is(7));
+    }
+
+    @Test
+    public void adjust_grows_whenBorrowersWaitTooLong() {
+        AdaptivePoolSizer sut = newSizer();
+        assertThat(tick(sut, 0, 0, 0), is(8));
+
+        assertThat(tick(sut, 10, LONG_WAIT, SHORT_HOLD), is(10));
+    }
+
+    @Test
+    public void adjust_doesNotGrowBeyondMaxActive() {
+        AdaptivePoolSizer sut = newSizer();
+
+        assertThat(tick(sut, 10, LONG_WAIT, SHORT_HOLD), is(MAX_ACTIVE));
+    }
+
+    @Test
+    public void adjust_doesNotGrow_whenCpuIsSaturated() {
+        AdaptivePoolSizer sut = newSizer();
+        assertThat(tick(sut, 0, 0, 0), is(8));
+        cpuLoad = 1;
+
+        assertThat(tick(sut, 10, LONG_WAIT, SHORT_HOLD), is(8));
+    }
+}
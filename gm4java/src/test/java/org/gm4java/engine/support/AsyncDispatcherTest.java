@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import org.gm4java.engine.GMCallback;
+import org.gm4java.engine.GMException;
+import org.gm4java.engine.GMService;
+import org.gm4java.engine.GMServiceException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class AsyncDispatcherTest {
+    private static final long TIMEOUT_SECONDS = 5;
+    private static final int TIMEOUT_MILLIS = 5000;
+
+    @Rule
+    public ExpectedException exception = ExpectedException.none();
+    @Mock
+    private GMService service;
+    @Mock
+    private GMCallback callback;
+
+    private final List<String> command = Arrays.asList("convert", "something");
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final CountDownLatch started = new CountDownLatch(1);
+    private AsyncDispatcher sut;
+
+    @Before
+    public void setup() throws Exception {
+        MockitoAnnotations.initMocks(this);
+    }
+
+    @After
+    public void teardown() {
+        release.countDown();
+        if (sut != null) sut.shutdown();
+    }
+
+    @Test
+    public void constructor_chokes_onNullService() throws Exception {
+        exception.expect(NullPointerException.class);
+        exception.expectMessage("service");
+        new AsyncDispatcher(null, 1, 1, WhenQueueFullAction.FAIL);
+    }
+
+    @Test
+    public void constructor_chokes_onNonPositiveThreads() throws Exception {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("threads");
+        new AsyncDispatcher(service, 0, 1, WhenQueueFullAction.FAIL);
+    }
+
+    @Test
+    public void submit_chokes_onNullCommand() throws Exception {
+        sut = new AsyncDispatcher(service, 1, 1, WhenQueueFullAction.FAIL);
+        exception.expect(NullPointerException.class);
+        exception.expectMessage("command");
+        sut.submit(null, callback);
+    }
+
+    @Test
+    public void submit_chokes_onEmptyCommand() throws Exception {
+        sut = new AsyncDispatcher(service, 1, 1, WhenQueueFullAction.FAIL);
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("empty");
+        sut.submit(Arrays.asList(new String[0]), callback);
+    }
+
+    @Test
+    public void submit_returnsFutureOfServiceResult() throws Exception {
+        final String expected = "result 8234";
+        when(service.execute(command)).thenReturn(expected);
+        sut = new AsyncDispatcher(service, 1, 1, WhenQueueFullAction.FAIL);
+
+        Future<String> result = sut.submit(command, null);
+
+        assertThat(result.get(TIMEOUT_SECONDS, TimeUnit.SECONDS), is(expected));
+    }
+
+    @Test
+    public void submit_notifiesCallback_onSuccess() throws Exception {
+        final String expected = "result 8234";
+        when(service.execute(command)).thenReturn(expected);
+        sut = new AsyncDispatcher(service, 1, 1, WhenQueueFullAction.FAIL);
+
+        sut.submit(command, callback);
+
+        verify(callback, timeout(TIMEOUT_MILLIS)).onSuccess(expected);
+    }
+
+    @Test
+    public void submit_notifiesCallback_onFailure() throws Exception {
+        final GMException error = new GMException("bad image");
+        when(service.execute(command)).thenThrow(error);
+        sut = new AsyncDispatcher(service, 1, 1, WhenQueueFullAction.FAIL);
+
+        Future<String> result = sut.submit(command, callback);
+
+        verify(callback, timeout(TIMEOUT_MILLIS)).onFailure(error);
+        try {
+            result.get();
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), is((Throwable) error));
+        }
+    }
+
+    @Test
+    public void submit_chokes_whenQueueIsFullAndActionIsFail() throws Exception {
+        blockService();
+        sut = new AsyncDispatcher(service, 1, 1, WhenQueueFullAction.FAIL);
+        sut.submit(command, null);
+        assertThat(started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS), is(true));
+        sut.submit(command, null); // sits in queue
+
+        exception.expect(GMServiceException.class);
+        sut.submit(command, null);
+    }
+
+    @Test
+    public void submit_runsInCaller_whenQueueIsFullAndActionIsCallerRuns() throws Exception {
+        blockService();
+        sut = new AsyncDispatcher(service, 1, 1, WhenQueueFullAction.CALLER_RUNS);
+        sut.submit(command, null);
+        assertThat(started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS), is(true));
+        sut.submit(command, null); // sits in queue
+        final List<String> other = Arrays.asList("identify", "x");
+        when(service.execute(other)).thenReturn(Thread.currentThread().getName());
+
+        Future<String> result = sut.submit(other, null);
+
+        assertThat(result.isDone(), is(true));
+        assertThat(result.get(), is(Thread.currentThread().getName()));
+    }
+
+    @Test
+    public void submit_blocks_whenQueueIsFullAndActionIsBlock() throws Exception {
+        blockService();
+        sut = new AsyncDispatcher(service, 1, 1, WhenQueueFullAction.BLOCK);
+        sut.submit(command, null);
+        assertThat(started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS), is(true));
+        sut.submit(command, null); // sits in queue
+        final CountDownLatch submitted = new CountDownLatch(1);
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    sut.submit(command, null);
+                    submitted.countDown();
+                    // SUPPRESS CHECKSTYLE EmptyBlock BECAUSE test
+                } catch (GMServiceException e) {
+                }
+            }
+        }.start();
+
+        assertThat(submitted.await(100, TimeUnit.MILLISECONDS), is(false));
+        release.countDown();
+        assertThat(submitted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS), is(true));
+    }
+
+    private void blockService() throws Exception {
+        when(service.execute(command)).thenAnswer(new Answer<String>() {
+            @Override
+            public String answer(InvocationOnMock invocation) throws Throwable {
+                started.countDown();
+                release.await();
+                return "";
+            }
+        });
+    }
+}
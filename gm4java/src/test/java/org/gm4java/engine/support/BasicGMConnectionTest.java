@@ -15,10 +15,25 @@
  */
 package org.gm4java.engine.support;
 
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import org.apache.commons.lang3.StringUtils;
 import org.gm4java.engine.GMConnection;
+import org.gm4java.engine.GMException;
+import org.gm4java.engine.GMResult;
+import org.gm4java.engine.GMServiceException;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.CharArrayWriter;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+
 /**
  * Test cases for {@link BasicGMConnection}.
  * 
@@ -41,6 +56,114 @@ public class BasicGMConnectionTest extends AbstractGMConnectionTest {
         new BasicGMConnection(null);
     }
 
+    @Test
+    public void executeBatch_flushesInWindows_whenCommandsExceedBatchWindow() throws Exception {
+        CharArrayWriter spyWriter = spy(writer);
+        when(process.getWriter()).thenReturn(spyWriter);
+        when(reader.readLine()).thenReturn("OK");
+        final List<String> command = Arrays.asList(StringUtils.repeat('a', BasicGMConnection.BATCH_WINDOW / 2));
+
+        List<GMResult> results = sut.executeBatch(batch(command, command, command, command));
+
+        verify(spyWriter, times(2)).flush();
+        assertThat(results.size(), is(4));
+    }
+
+    @Test
+    public void execute_usesByteCodec_whenProcessProvidesStreams() throws Exception {
+        StreamProcess streamProcess = mock(StreamProcess.class);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        when(streamProcess.getOutputStream()).thenReturn(out);
+        when(streamProcess.getInputStream()).thenReturn(
+                new ByteArrayInputStream("result\r\nOK\r\nerror\nNG\n".getBytes("UTF-8")));
+        BasicGMConnection connection = new BasicGMConnection(streamProcess, Charset.forName("UTF-8"));
+
+        assertThat(connection.execute("convert", "a b"), is("result" + TestUtils.EOL));
+        exception.expect(GMException.class);
+        exception.expectMessage("error");
+        try {
+            connection.execute("convert");
+        } finally {
+            assertThat(out.toString("UTF-8"), is("convert \"a b\"" + TestUtils.EOL + "convert" + TestUtils.EOL));
+            verify(streamProcess, never()).getWriter();
+            verify(streamProcess, never()).getReader();
+        }
+    }
+
+    @Test
+    public void executeNoOutput_usesByteCodec_whenProcessProvidesStreams() throws Exception {
+        StreamProcess streamProcess = mock(StreamProcess.class);
+        when(streamProcess.getOutputStream()).thenReturn(new ByteArrayOutputStream());
+        when(streamProcess.getInputStream()).thenReturn(
+                new ByteArrayInputStream("ignored\nOK\nerror\nNG\n".getBytes("UTF-8")));
+        BasicGMConnection connection = new BasicGMConnection(streamProcess, Charset.forName("UTF-8"));
+
+        connection.executeNoOutput(Arrays.asList("convert"));
+        exception.expect(GMException.class);
+        exception.expectMessage(is("error" + TestUtils.EOL));
+        connection.executeNoOutput(Arrays.asList("convert"));
+    }
+
+    @Test
+    public void execute_recordsMetrics_whenMetricsIsSet() throws Exception {
+        GMMetrics metrics = new GMMetrics();
+        sut.setMetrics(metrics);
+        when(reader.readLine()).thenReturn("result", "OK", "error", "NG");
+
+        sut.execute("convert");
+        try {
+            sut.execute("convert");
+            // SUPPRESS CHECKSTYLE EmptyBlock BECAUSE test
+        } catch (GMException e) {
+        }
+
+        assertThat(metrics.getCommandWriteNanos().getCount(), is(2L));
+        assertThat(metrics.getExecutionNanos().getCount(), is(2L));
+        assertThat(metrics.getOutputSize().getSum(), is(11L + 2 * TestUtils.EOL.length()));
+    }
+
+    @Test
+    public void execute_doesNotRecordExecution_whenResultIsNotReceived() throws Exception {
+        GMMetrics metrics = new GMMetrics();
+        sut.setMetrics(metrics);
+        exception.expect(GMServiceException.class);
+        try {
+            sut.execute("convert");
+        } finally {
+            assertThat(metrics.getCommandWriteNanos().getCount(), is(1L));
+            assertThat(metrics.getExecutionNanos().getCount(), is(0L));
+        }
+    }
+
+    @Test
+    public void executeNoOutput_recordsOutputBytes_whenProcessProvidesStreams() throws Exception {
+        StreamProcess streamProcess = mock(StreamProcess.class);
+        when(streamProcess.getOutputStream()).thenReturn(new ByteArrayOutputStream());
+        when(streamProcess.getInputStream()).thenReturn(
+                new ByteArrayInputStream("r\u00e9sult\r\nOK\r\n".getBytes("UTF-8")));
+        BasicGMConnection connection = new BasicGMConnection(streamProcess, Charset.forName("UTF-8"));
+        GMMetrics metrics = new GMMetrics();
+        connection.setMetrics(metrics);
+
+        connection.executeNoOutput(Arrays.asList("convert"));
+
+        assertThat(metrics.getOutputSize().getSum(), is(9L));
+        assertThat(metrics.getExecutionNanos().getCount(), is(1L));
+    }
+
+    @Test
+    public void executeBatch_recordsWriteOncePerFlush() throws Exception {
+        GMMetrics metrics = new GMMetrics();
+        sut.setMetrics(metrics);
+        when(reader.readLine()).thenReturn("OK");
+        final List<String> command = Arrays.asList("convert");
+
+        sut.executeBatch(batch(command, command, command));
+
+        assertThat(metrics.getCommandWriteNanos().getCount(), is(1L));
+        assertThat(metrics.getExecutionNanos().getCount(), is(3L));
+    }
+
     @Override
     protected GMConnection sut() {
         return sut;
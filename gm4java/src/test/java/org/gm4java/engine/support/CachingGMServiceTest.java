@@ -0,0 +1,356 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import org.gm4java.engine.GMOutputHandler;
+import org.gm4java.engine.GMResult;
+import org.gm4java.engine.GMService;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Matchers;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Test cases for {@link CachingGMService}.
+ *
+ * @author Kenneth Xu
+ *
+ */
+public class CachingGMServiceTest {
+    private static final String EOL = System.getProperty("line.separator");
+    private static final byte[] IMAGE = { 'G', 'I', 'F', '8', '9', 'a' };
+    private static final byte[] THUMBNAIL = { 'P', 'N', 'G' };
+
+    @Rule
+    public ExpectedException exception = ExpectedException.none();
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    @Mock
+    private GMService delegate;
+
+    private File cacheDirectory;
+    private File image;
+    private GMCacheConfig config;
+    private CachingGMService sut;
+
+    @Before
+    public void setup() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        cacheDirectory = new File(folder.getRoot(), "cache");
+        image = write(new File(folder.getRoot(), "image.gif"), IMAGE);
+        config = new GMCacheConfig();
+        config.setDirectory(cacheDirectory);
+        sut = new CachingGMService(delegate, config);
+        when(delegate.execute(Matchers.<List<String>> any())).thenAnswer(new Answer<String>() {
+            @Override
+            public String answer(InvocationOnMock invocation) throws Throwable {
+                @SuppressWarnings("unchecked")
+                List<String> command = (List<String>) invocation.getArguments()[0];
+                if (command.get(0).equals("identify")) return command.get(1) + " GIF 1x1" + EOL;
+                write(new File(command.get(command.size() - 1)), THUMBNAIL);
+                return "";
+            }
+        });
+    }
+
+    private static File write(File file, byte[] content) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            byte[] content = new byte[(int) file.length()];
+            assertThat(in.read(content), is(content.length));
+            return content;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] result = new byte[buffer.remaining()];
+        buffer.get(result);
+        return result;
+    }
+
+    private List<String> convert(File input, File output) {
+        return Arrays.asList("convert", input.getPath(), "-resize", "10x10", output.getPath());
+    }
+
+    @Test
+    public void constructor_chokes_onNullDelegate() {
+        exception.expect(NullPointerException.class);
+        exception.expectMessage("delegate");
+        new CachingGMService(null, config);
+    }
+
+    @Test
+    public void constructor_chokes_whenDirectoryCannotBeCreated() throws Exception {
+        config.setDirectory(new File(image, "cache"));
+        exception.expect(IllegalArgumentException.class);
+        new CachingGMService(delegate, config);
+    }
+
+    @Test
+    public void execute_servesIdentifyFromMemory() throws Exception {
+        List<String> command = Arrays.asList("identify", image.getPath());
+
+        String first = sut.execute(command);
+        String second = sut.execute("identify", image.getPath());
+
+        assertThat(second, is(first));
+        verify(delegate, times(1)).execute(command);
+        assertThat(sut.getMetrics().getMemoryHits(), is(1L));
+        assertThat(sut.getMetrics().getMemoryMisses(), is(1L));
+        assertThat(sut.getMetrics().getMemoryBytes(), is(2L * first.length()));
+    }
+
+    @Test
+    public void execute_missesIdentify_whenImageChanges() throws Exception {
+        List<String> command = Arrays.asList("identify", image.getPath());
+        sut.execute(command);
+        write(image, THUMBNAIL);
+
+        sut.execute(command);
+
+        verify(delegate, times(2)).execute(command);
+    }
+
+    @Test
+    public void execute_bypassesIdentify_whenMemoryTierIsDisabled() throws Exception {
+        config.setMaxMemoryBytes(0);
+        sut = new CachingGMService(delegate, config);
+        List<String> command = Arrays.asList("identify", image.getPath());
+
+        sut.execute(command);
+        sut.execute(command);
+
+        verify(delegate, times(2)).execute(command);
+        assertThat(sut.getMetrics().getBypasses(), is(2L));
+    }
+
+    @Test
+    public void execute_servesConvertFromDisk_forAnyCopyOfTheImage() throws Exception {
+        File copy = write(new File(folder.getRoot(), "copy.gif"), IMAGE);
+        File first = new File(folder.getRoot(), "first.png");
+        File second = new File(folder.getRoot(), "second.png");
+        sut.execute(convert(image, first));
+
+        String result = sut.execute(convert(copy, second));
+
+        assertThat(result, is(""));
+        assertThat(read(second), is(THUMBNAIL));
+        verify(delegate, never()).execute(convert(copy, second));
+        assertThat(sut.getMetrics().getDiskHits(), is(1L));
+        assertThat(sut.getMetrics().getDiskMisses(), is(1L));
+        assertThat(sut.getMetrics().getDiskBytes(), is((long) THUMBNAIL.length));
+    }
+
+    @Test
+    public void execute_missesConvert_whenOutputFormatDiffers() throws Exception {
+        sut.execute(convert(image, new File(folder.getRoot(), "first.png")));
+        List<String> command = convert(image, new File(folder.getRoot(), "second.jpg"));
+
+        sut.execute(command);
+
+        verify(delegate).execute(command);
+    }
+
+    @Test
+    public void execute_doesNotCacheConvert_whenItPrintsOutput() throws Exception {
+        List<String> command = convert(image, new File(folder.getRoot(), "out.png"));
+        when(delegate.execute(command)).thenReturn("warning" + EOL);
+
+        sut.execute(command);
+        sut.execute(command);
+
+        verify(delegate, times(2)).execute(command);
+        assertThat(cacheDirectory.list().length, is(0));
+    }
+
+    @Test
+    public void execute_bypassesOtherCommands() throws Exception {
+        List<String> command = Arrays.asList("mogrify", "-resize", "10x10", image.getPath());
+
+        sut.execute(command);
+        sut.execute(command);
+
+        verify(delegate, times(2)).execute(command);
+        assertThat(sut.getMetrics().getBypasses(), is(2L));
+        assertThat(sut.getMetrics().getHitRatio(), is(0.0));
+    }
+
+    @Test
+    public void executeWithHandler_replaysCachedOutput() throws Exception {
+        List<String> command = Arrays.asList("identify", image.getPath());
+        final List<String> lines = new ArrayList<String>();
+        GMOutputHandler handler = new GMOutputHandler() {
+            @Override
+            public boolean handleLine(String line) {
+                lines.add(line);
+                return true;
+            }
+        };
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                GMOutputHandler real = (GMOutputHandler) invocation.getArguments()[1];
+                real.handleLine("line 1");
+                real.handleLine("");
+                real.handleLine("line 3");
+                return null;
+            }
+        }).when(delegate).execute(eq(command), Matchers.<GMOutputHandler> any());
+        sut.execute(command, handler);
+
+        sut.execute(command, handler);
+
+        assertThat(lines, is(Arrays.asList("line 1", "", "line 3", "line 1", "", "line 3")));
+        assertThat(sut.execute(command), is("line 1" + EOL + EOL + "line 3" + EOL));
+        verify(delegate, never()).execute(command);
+    }
+
+    @Test
+    public void executeWithHandler_doesNotCache_whenHandlerStops() throws Exception {
+        List<String> command = Arrays.asList("identify", image.getPath());
+        GMOutputHandler handler = mock(GMOutputHandler.class);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                ((GMOutputHandler) invocation.getArguments()[1]).handleLine("line 1");
+                return null;
+            }
+        }).when(delegate).execute(eq(command), Matchers.<GMOutputHandler> any());
+        sut.execute(command, handler);
+
+        sut.execute(command);
+
+        verify(delegate).execute(command);
+    }
+
+    @Test
+    public void executeNoOutput_servesConvertFromDisk() throws Exception {
+        File output = new File(folder.getRoot(), "out.png");
+        List<String> command = convert(image, output);
+        sut.executeNoOutput(command);
+        assertThat(output.delete(), is(true));
+
+        sut.executeNoOutput(command);
+
+        assertThat(read(output), is(THUMBNAIL));
+        verify(delegate, times(1)).execute(command);
+        verify(delegate, never()).executeNoOutput(command);
+    }
+
+    @Test
+    public void executeBatch_passesThrough() throws Exception {
+        List<List<String>> commands = Collections.singletonList(Arrays.asList("identify", image.getPath()));
+        List<GMResult> expected = new ArrayList<GMResult>();
+        when(delegate.executeBatch(commands)).thenReturn(expected);
+
+        assertThat(sut.executeBatch(commands), sameInstance(expected));
+        assertThat(sut.getMetrics().getBypasses(), is(1L));
+    }
+
+    @Test
+    public void executeImage_servesResultFromDisk() throws Exception {
+        List<String> command = Arrays.asList("convert", GMService.INPUT, "png:" + GMService.OUTPUT);
+        when(delegate.executeImage(eq(command), Matchers.any(ByteBuffer.class))).thenReturn(ByteBuffer.wrap(THUMBNAIL));
+        sut.executeImage(command, IMAGE);
+
+        ByteBuffer result = sut.executeImage(command, new ByteArrayInputStream(IMAGE));
+
+        assertThat(toArray(result), is(THUMBNAIL));
+        verify(delegate, times(1)).executeImage(eq(command), Matchers.any(ByteBuffer.class));
+        assertThat(sut.getMetrics().getDiskHits(), is(1L));
+    }
+
+    @Test
+    public void executeImage_missesResult_whenImageDiffers() throws Exception {
+        List<String> command = Arrays.asList("convert", GMService.INPUT, "png:" + GMService.OUTPUT);
+        when(delegate.executeImage(eq(command), Matchers.any(ByteBuffer.class))).thenReturn(ByteBuffer.wrap(THUMBNAIL));
+        sut.executeImage(command, IMAGE);
+
+        sut.executeImage(command, THUMBNAIL);
+
+        verify(delegate, times(2)).executeImage(eq(command), Matchers.any(ByteBuffer.class));
+    }
+
+    @Test
+    public void constructor_reusesResultsInDirectory() throws Exception {
+        sut.execute(convert(image, new File(folder.getRoot(), "first.png")));
+        File second = new File(folder.getRoot(), "second.png");
+
+        sut = new CachingGMService(delegate, config);
+        sut.execute(convert(image, second));
+
+        assertThat(read(second), is(THUMBNAIL));
+        verify(delegate, never()).execute(convert(image, second));
+    }
+
+    @Test
+    public void clear_deletesCachedFiles() throws Exception {
+        List<String> command = convert(image, new File(folder.getRoot(), "out.png"));
+        sut.execute(command);
+
+        sut.clear();
+        sut.execute(command);
+
+        verify(delegate, times(2)).execute(command);
+    }
+
+    @Test
+    public void execute_evictsFromDisk_whenFull() throws Exception {
+        config.setMaxDiskBytes(THUMBNAIL.length);
+        config.setEvictionPolicy(CacheEvictionPolicy.LRU);
+        sut = new CachingGMService(delegate, config);
+        File other = write(new File(folder.getRoot(), "other.gif"), THUMBNAIL);
+        sut.execute(convert(image, new File(folder.getRoot(), "first.png")));
+
+        sut.execute(convert(other, new File(folder.getRoot(), "second.png")));
+
+        assertThat(sut.getMetrics().getDiskEvictions(), is(1L));
+        assertThat(cacheDirectory.list().length, is(1));
+    }
+}
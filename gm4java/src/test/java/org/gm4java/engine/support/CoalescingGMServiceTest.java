@@ -0,0 +1,307 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import org.gm4java.engine.GMException;
+import org.gm4java.engine.GMOutputHandler;
+import org.gm4java.engine.GMService;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.mockito.Matchers;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test cases for {@link CoalescingGMService}.
+ *
+ * @author Kenneth Xu
+ *
+ */
+public class CoalescingGMServiceTest {
+    private static final long TIMEOUT_SECONDS = 5;
+    private static final int FOLLOWERS = 3;
+    private static final List<String> COMMAND = Arrays.asList("identify", "image.gif");
+    private static final String OUTPUT = "image.gif GIF 1x1" + TestUtils.EOL;
+
+    @Rule
+    public ExpectedException exception = ExpectedException.none();
+    @Mock
+    private GMService delegate;
+
+    private final CountDownLatch entered = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final List<Object> results = Collections.synchronizedList(new ArrayList<Object>());
+    private CoalescingGMService sut;
+
+    @Before
+    public void setup() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        sut = new CoalescingGMService(delegate);
+    }
+
+    private <T> Answer<T> blocking(final T result) {
+        return new Answer<T>() {
+            @Override
+            public T answer(InvocationOnMock invocation) throws Throwable {
+                entered.countDown();
+                assertThat(release.await(TIMEOUT_SECONDS, TimeUnit.SECONDS), is(true));
+                if (result instanceof Throwable) throw (Throwable) result;
+                return result;
+            }
+        };
+    }
+
+    private abstract class Caller extends Thread {
+        @Override
+        public void run() {
+            try {
+                results.add(call());
+            } catch (Exception e) {
+                results.add(e);
+            }
+        }
+
+        abstract Object call() throws Exception;
+    }
+
+    private Caller executeCaller() {
+        return new Caller() {
+            @Override
+            Object call() throws Exception {
+                return sut.execute(COMMAND);
+            }
+        };
+    }
+
+    /**
+     * Starts the leader and the followers, then lets the leader complete once all the followers wait for it.
+     */
+    private void fly(Caller leader, Caller... followers) throws InterruptedException {
+        leader.start();
+        assertThat(entered.await(TIMEOUT_SECONDS, TimeUnit.SECONDS), is(true));
+        for (Caller follower : followers) {
+            follower.start();
+        }
+        for (Caller follower : followers) {
+            awaitParked(follower);
+        }
+        release.countDown();
+        leader.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+        for (Caller follower : followers) {
+            follower.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+        }
+    }
+
+    private static void awaitParked(Thread thread) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS);
+        while (thread.getState() != Thread.State.WAITING && System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+        assertThat(thread.getState(), is(Thread.State.WAITING));
+    }
+
+    private Caller[] followers() {
+        Caller[] followers = new Caller[FOLLOWERS];
+        for (int i = 0; i < FOLLOWERS; i++) {
+            followers[i] = executeCaller();
+        }
+        return followers;
+    }
+
+    @Test
+    public void constructor_chokes_onNullDelegate() {
+        exception.expect(NullPointerException.class);
+        exception.expectMessage("delegate");
+        new CoalescingGMService(null);
+    }
+
+    @Test
+    public void execute_sharesOutputOfIdenticalCommandInFlight() throws Exception {
+        when(delegate.execute(COMMAND)).thenAnswer(blocking(OUTPUT));
+
+        fly(executeCaller(), followers());
+
+        assertThat(results.size(), is(FOLLOWERS + 1));
+        for (Object result : results) {
+            assertThat(result, is((Object) OUTPUT));
+        }
+        verify(delegate, times(1)).execute(COMMAND);
+        assertThat(sut.getExecutions(), is(1L));
+        assertThat(sut.getCoalescedCalls(), is((long) FOLLOWERS));
+    }
+
+    @Test
+    public void execute_sharesException() throws Exception {
+        GMException error = new GMException("bad image");
+        when(delegate.execute(COMMAND)).thenAnswer(blocking(error));
+
+        fly(executeCaller(), followers());
+
+        for (Object result : results) {
+            assertThat(result, sameInstance((Object) error));
+        }
+        verify(delegate, times(1)).execute(COMMAND);
+    }
+
+    @Test
+    public void execute_executesAgain_afterCompletion() throws Exception {
+        when(delegate.execute(COMMAND)).thenReturn(OUTPUT);
+
+        sut.execute(COMMAND);
+        sut.execute("identify", "image.gif");
+
+        verify(delegate, times(2)).execute(COMMAND);
+        assertThat(sut.getCoalescedCalls(), is(0L));
+    }
+
+    @Test
+    public void execute_doesNotCoalesceDifferentCommands() throws Exception {
+        final List<String> other = Arrays.asList("identify", "other.gif");
+        when(delegate.execute(COMMAND)).thenAnswer(blocking(OUTPUT));
+        when(delegate.execute(other)).thenReturn("other");
+
+        executeCaller().start();
+        assertThat(entered.await(TIMEOUT_SECONDS, TimeUnit.SECONDS), is(true));
+        String result = sut.execute(other);
+        release.countDown();
+
+        assertThat(result, is("other"));
+        assertThat(sut.getCoalescedCalls(), is(0L));
+    }
+
+    @Test
+    public void executeWithHandler_replaysOutputOfCommandInFlight() throws Exception {
+        when(delegate.execute(COMMAND)).thenAnswer(blocking(OUTPUT + "line 2" + TestUtils.EOL));
+        final List<String> lines = new ArrayList<String>();
+        Caller follower = new Caller() {
+            @Override
+            Object call() throws Exception {
+                sut.execute(COMMAND, new GMOutputHandler() {
+                    @Override
+                    public boolean handleLine(String line) {
+                        lines.add(line);
+                        return true;
+                    }
+                });
+                return null;
+            }
+        };
+
+        fly(executeCaller(), follower);
+
+        assertThat(lines, is(Arrays.asList("image.gif GIF 1x1", "line 2")));
+        verify(delegate, never()).execute(eq(COMMAND), Matchers.<GMOutputHandler> any());
+    }
+
+    @Test
+    public void execute_executesItself_whenHandlerOfLeaderFails() throws Exception {
+        final IllegalStateException failure = new IllegalStateException("handler");
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                blocking(null).answer(invocation);
+                ((GMOutputHandler) invocation.getArguments()[1]).handleLine("image.gif GIF 1x1");
+                return null;
+            }
+        }).when(delegate).execute(eq(COMMAND), Matchers.<GMOutputHandler> any());
+        when(delegate.execute(COMMAND)).thenReturn(OUTPUT);
+        Caller leader = new Caller() {
+            @Override
+            Object call() throws Exception {
+                sut.execute(COMMAND, new GMOutputHandler() {
+                    @Override
+                    public boolean handleLine(String line) {
+                        throw failure;
+                    }
+                });
+                return null;
+            }
+        };
+
+        fly(leader, executeCaller());
+
+        assertThat(results.size(), is(2));
+        assertThat(results.contains(failure), is(true));
+        assertThat(results.contains(OUTPUT), is(true));
+        verify(delegate).execute(COMMAND);
+        assertThat(sut.getCoalescedCalls(), is(0L));
+    }
+
+    @Test
+    public void execute_executesItself_whenLeaderHasNoOutput() throws Exception {
+        doAnswer(blocking(null)).when(delegate).executeNoOutput(COMMAND);
+        when(delegate.execute(COMMAND)).thenReturn(OUTPUT);
+        Caller leader = new Caller() {
+            @Override
+            Object call() throws Exception {
+                sut.executeNoOutput(COMMAND);
+                return null;
+            }
+        };
+
+        fly(leader, executeCaller());
+
+        assertThat(results.contains(OUTPUT), is(true));
+        verify(delegate).execute(COMMAND);
+        assertThat(sut.getCoalescedCalls(), is(0L));
+    }
+
+    @Test
+    public void executeImage_sharesCopyOfOutputImage_forIdenticalInput() throws Exception {
+        final List<String> command = Arrays.asList("convert", GMService.INPUT, "png:" + GMService.OUTPUT);
+        final byte[] image = { 1, 2, 3 };
+        when(delegate.executeImage(eq(command), Matchers.any(ByteBuffer.class))).thenAnswer(
+                blocking(ByteBuffer.wrap(new byte[] { 4, 5 })));
+        Caller leader = new Caller() {
+            @Override
+            Object call() throws Exception {
+                ByteBuffer result = sut.executeImage(command, image);
+                result.get();
+                return result;
+            }
+        };
+        Caller follower = new Caller() {
+            @Override
+            Object call() throws Exception {
+                return sut.executeImage(command, image.clone());
+            }
+        };
+
+        fly(leader, follower);
+
+        // the leader has read a byte of its image, the follower has a full copy, whoever completes first.
+        assertThat(results.size(), is(2));
+        assertThat(results.contains(ByteBuffer.wrap(new byte[] { 5 })), is(true));
+        assertThat(results.contains(ByteBuffer.wrap(new byte[] { 4, 5 })), is(true));
+        verify(delegate, times(1)).executeImage(eq(command), Matchers.any(ByteBuffer.class));
+        assertThat(sut.getCoalescedCalls(), is(1L));
+    }
+}
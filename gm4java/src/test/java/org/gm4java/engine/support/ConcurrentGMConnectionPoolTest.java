@@ -0,0 +1,792 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import org.gm4java.engine.GMServiceException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.mockito.Matchers;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Test cases for {@link ConcurrentGMConnectionPool}.
+ *
+ * @author Kenneth Xu
+ *
+ */
+public class ConcurrentGMConnectionPoolTest {
+    private static final String READER_WRITER_PROCESS_FAILURE = "Something bad happended";
+    private static final int MOCK_PROCESS_ARRAY_SIZE = 3;
+    private static final long TIMEOUT_SECONDS = 5;
+    private static final long SHORT_WAIT_MILLIS = 50;
+
+    @Rule
+    public ExpectedException exception = ExpectedException.none();
+    @Mock
+    private Writer writer;
+    @Mock
+    private BufferedReader reader;
+    @Mock
+    private ReaderWriterProcess process;
+    @Mock
+    private ReaderWriterProcess.Factory factory;
+
+    private ReaderWriterProcess[] processes;
+    private int processIndex;
+    private GMConnectionPoolConfig config;
+
+    private ConcurrentGMConnectionPool sut;
+
+    @Before
+    public void setup() throws Exception {
+        config = new GMConnectionPoolConfig();
+        config.setPoolEngine(PoolEngine.CONCURRENT);
+        processIndex = 0;
+        processes = new ReaderWriterProcess[MOCK_PROCESS_ARRAY_SIZE];
+
+        MockitoAnnotations.initMocks(this);
+        when(reader.readLine()).thenReturn("OK");
+        when(process.getWriter()).thenReturn(writer);
+        when(process.getReader()).thenReturn(reader);
+        for (int i = 0; i < MOCK_PROCESS_ARRAY_SIZE; i++) {
+            processes[i] = mock(ReaderWriterProcess.class);
+        }
+        when(factory.getProcess(Matchers.<String[]> anyVararg())).thenReturn(process);
+    }
+
+    @After
+    public void teardown() throws Exception {
+        if (sut != null) sut.close();
+    }
+
+    private void createPool() {
+        sut = new ConcurrentGMConnectionPool(config);
+        sut.setProcessFactory(factory);
+    }
+
+    private class MockFactory implements ReaderWriterProcess.Factory {
+        @Override
+        public ReaderWriterProcess getProcess(String... command) throws IOException {
+            if (processes[processIndex] == null) throw new IOException(READER_WRITER_PROCESS_FAILURE);
+            return processes[processIndex++];
+        }
+    }
+
+    @Test
+    public void constructor_chokes_onNullConfig() throws Exception {
+        exception.expect(NullPointerException.class);
+        exception.expectMessage("config");
+
+        new ConcurrentGMConnectionPool(null);
+    }
+
+    @Test
+    public void borrowObject_reusesObjectReturnedToPool() throws Exception {
+        createPool();
+        PooledGMConnection connection = sut.borrowObject();
+        assertThat(sut.getNumActive(), is(1));
+        sut.returnObject(connection);
+        assertThat(sut.getNumIdle(), is(1));
+
+        PooledGMConnection connection2 = sut.borrowObject();
+
+        assertThat(connection2, sameInstance(connection));
+        assertThat(sut.getNumIdle(), is(0));
+    }
+
+    @Test
+    public void borrowObject_chokes_whenCreateReaderWriterFails() throws Exception {
+        createPool();
+        when(factory.getProcess(Matchers.<String[]> anyVararg())).thenThrow(
+                new IOException(READER_WRITER_PROCESS_FAILURE));
+        exception.expect(GMServiceException.class);
+        exception.expectMessage(READER_WRITER_PROCESS_FAILURE);
+
+        try {
+            sut.borrowObject();
+        } finally {
+            assertThat(sut.getNumActive(), is(0));
+        }
+    }
+
+    @Test
+    public void borrowObject_chokes_whenExhaustedAndActionIsFail() throws Exception {
+        config.setMaxActive(1);
+        config.setWhenExhaustedAction(WhenExhaustedAction.FAIL);
+        createPool();
+        sut.borrowObject();
+        exception.expect(NoSuchElementException.class);
+        exception.expectMessage("Pool exhausted");
+
+        sut.borrowObject();
+    }
+
+    @Test
+    public void borrowObject_createsNewConnection_whenExhaustedAndActionIsGrow() throws Exception {
+        config.setMaxActive(1);
+        config.setWhenExhaustedAction(WhenExhaustedAction.GROW);
+        createPool();
+        PooledGMConnection connection = sut.borrowObject();
+
+        PooledGMConnection connection2 = sut.borrowObject();
+
+        assertThat(connection2, not(sameInstance(connection)));
+        assertThat(sut.getNumActive(), is(2));
+    }
+
+    @Test
+    public void borrowObject_chokes_whenExhaustedAndMaxWaitPassed() throws Exception {
+        config.setMaxActive(1);
+        config.setMaxWait(SHORT_WAIT_MILLIS);
+        createPool();
+        sut.borrowObject();
+        exception.expect(NoSuchElementException.class);
+        exception.expectMessage("Timeout waiting for idle object");
+
+        sut.borrowObject();
+    }
+
+    @Test
+    public void borrowObject_servesWaitingThreadsInArrivalOrder() throws Exception {
+        config.setMaxActive(1);
+        createPool();
+        PooledGMConnection connection = sut.borrowObject();
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        Thread first = borrowAndReturn("first", order);
+        awaitParked(first);
+        Thread second = borrowAndReturn("second", order);
+        awaitParked(second);
+
+        sut.returnObject(connection);
+        first.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+        second.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+
+        assertThat(order, is(Arrays.asList("first", "second")));
+        assertThat(sut.getNumIdle(), is(1));
+    }
+
+    @Test
+    public void returnObject_replacesStaleConnectionInBackground_whenBackgroundReplacement() throws Exception {
+        config.setEvictAfterNumberOfUse(1);
+        config.setBackgroundReplacement(true);
+        createPool();
+        PooledGMConnection connection = sut.borrowObject();
+        connection.execute("identify");
+        connection.execute("identify");
+
+        sut.returnObject(connection);
+
+        verify(process, timeout((int) TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS))).destroy();
+        verify(factory, times(2)).getProcess(Matchers.<String[]> anyVararg());
+        assertThat(sut.getNumIdle(), is(1));
+        assertThat(sut.getNumActive(), is(0));
+        assertThat(sut.borrowObject(), not(sameInstance(connection)));
+    }
+
+    @Test
+    public void tryAddObject_addsIdleConnection_whenPoolHasRoom() throws Exception {
+        config.setMaxActive(1);
+        createPool();
+
+        assertThat(sut.tryAddObject(), is(true));
+
+        assertThat(sut.getNumIdle(), is(1));
+    }
+
+    @Test
+    public void tryAddObject_doesNotAdd_whenPoolIsFull() throws Exception {
+        config.setMaxActive(1);
+        createPool();
+        sut.borrowObject();
+
+        assertThat(sut.tryAddObject(), is(false));
+
+        assertThat(sut.getNumIdle(), is(0));
+        verify(factory, times(1)).getProcess(Matchers.<String[]> anyVararg());
+    }
+
+    @Test
+    public void returnObject_neverExceedsMaxActive_whenReplacementRacesWithBorrower() throws Exception {
+        config.setMaxActive(1);
+        config.setEvictAfterNumberOfUse(1);
+        config.setBackgroundReplacement(true);
+        final CountDownLatch checked = new CountDownLatch(1);
+        final CountDownLatch creating = new CountDownLatch(1);
+        sut = new ConcurrentGMConnectionPool(config) {
+            @Override
+            public int getNumActive() {
+                int active = super.getNumActive();
+                if ("gm4java-replacement".equals(Thread.currentThread().getName())) {
+                    // lets the borrower take the room between a check and the add.
+                    checked.countDown();
+                    try {
+                        creating.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                        // SUPPRESS CHECKSTYLE EmptyBlock BECAUSE test
+                    } catch (InterruptedException e) {
+                    }
+                }
+                return active;
+            }
+        };
+        sut.setProcessFactory(factory);
+        PooledGMConnection connection = sut.borrowObject();
+        connection.execute("identify");
+        connection.execute("identify");
+        doAnswer(new Answer<ReaderWriterProcess>() {
+            @Override
+            public ReaderWriterProcess answer(InvocationOnMock invocation) throws Throwable {
+                if (!"gm4java-replacement".equals(Thread.currentThread().getName())) creating.countDown();
+                return process;
+            }
+        }).when(factory).getProcess(Matchers.<String[]> anyVararg());
+
+        sut.returnObject(connection);
+        checked.await(SHORT_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        PooledGMConnection borrowed = sut.borrowObject();
+
+        verify(process, timeout((int) TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS))).destroy();
+        assertThat(borrowed, not(sameInstance(connection)));
+        assertThat(sut.getNumActive() + sut.getNumIdle(), is(1));
+    }
+
+    @Test
+    public void borrowObject_createsConnectionForWaitingThread_whenReturnedOneIsDestroyed() throws Exception {
+        config.setMaxActive(1);
+        config.setEvictAfterNumberOfUse(1);
+        createPool();
+        PooledGMConnection connection = sut.borrowObject();
+        connection.execute("identify");
+        connection.execute("identify");
+        final AtomicReference<PooledGMConnection> borrowed = new AtomicReference<PooledGMConnection>();
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    borrowed.set(sut.borrowObject());
+                } catch (GMServiceException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        waiter.start();
+        awaitParked(waiter);
+
+        sut.returnObject(connection);
+        waiter.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+
+        assertThat(borrowed.get(), notNullValue());
+        assertThat(borrowed.get(), not(sameInstance(connection)));
+        verify(process).destroy();
+    }
+
+    @Test
+    public void borrowObject_neverExceedsMaxActive_underContention() throws Exception {
+        assertMaxActiveIsHonoredUnderContention();
+    }
+
+    @Test
+    public void borrowObject_neverExceedsMaxActive_underContentionWithThreadAffinity() throws Exception {
+        config.setThreadAffinity(true);
+        assertMaxActiveIsHonoredUnderContention();
+    }
+
+    @Test
+    public void borrowObject_reclaimsLastReturnedConnection_whenThreadAffinity() throws Exception {
+        config.setThreadAffinity(true);
+        config.setLifo(false);
+        createPool();
+        PooledGMConnection connection1 = sut.borrowObject();
+        PooledGMConnection connection2 = sut.borrowObject();
+        sut.returnObject(connection1);
+        sut.returnObject(connection2);
+
+        assertThat(sut.borrowObject(), sameInstance(connection2));
+        assertThat(sut.getNumIdle(), is(1));
+        assertThat(sut.borrowObject(), sameInstance(connection1));
+        assertThat(sut.getNumIdle(), is(0));
+        PooledGMConnection connection3 = sut.borrowObject();
+        assertThat(connection3, not(sameInstance(connection1)));
+        assertThat(connection3, not(sameInstance(connection2)));
+    }
+
+    @Test
+    public void borrowObject_takesConnectionLastReturnedByOtherThread_whenItIsIdle() throws Exception {
+        config.setThreadAffinity(true);
+        createPool();
+        PooledGMConnection connection = sut.borrowObject();
+        sut.returnObject(connection);
+        final AtomicReference<PooledGMConnection> borrowed = new AtomicReference<PooledGMConnection>();
+        Thread other = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    borrowed.set(sut.borrowObject());
+                } catch (GMServiceException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        other.start();
+        other.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+
+        assertThat(borrowed.get(), sameInstance(connection));
+        assertThat(sut.borrowObject(), not(sameInstance(connection)));
+        assertThat(sut.getNumActive(), is(2));
+    }
+
+    @Test
+    public void borrowObject_doesNotReclaimDestroyedConnection_whenThreadAffinity() throws Exception {
+        config.setThreadAffinity(true);
+        config.setMinEvictableIdleTimeMillis(1);
+        createPool();
+        PooledGMConnection connection = sut.borrowObject();
+        sut.returnObject(connection);
+        Thread.sleep(SHORT_WAIT_MILLIS);
+        sut.evict();
+
+        assertThat(sut.borrowObject(), not(sameInstance(connection)));
+    }
+
+    private void assertMaxActiveIsHonoredUnderContention() throws Exception {
+        final int maxActive = 2;
+        final int threads = 8;
+        final int iterations = 500;
+        config.setMaxActive(maxActive);
+        createPool();
+        final AtomicInteger holders = new AtomicInteger();
+        final AtomicInteger maxHolders = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < iterations; i++) {
+                            PooledGMConnection connection = sut.borrowObject();
+                            int n = holders.incrementAndGet();
+                            for (int max = maxHolders.get(); n > max; max = maxHolders.get()) {
+                                if (maxHolders.compareAndSet(max, n)) break;
+                            }
+                            holders.decrementAndGet();
+                            sut.returnObject(connection);
+                        }
+                    } catch (Throwable e) { // SUPPRESS CHECKSTYLE IllegalCatch BECAUSE test
+                        failure.set(e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+
+        assertThat(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS), is(true));
+        assertThat(failure.get(), nullValue());
+        assertThat(maxHolders.get(), lessThanOrEqualTo(maxActive));
+        assertThat(sut.getNumActive(), is(0));
+        assertThat(sut.getNumIdle(), lessThanOrEqualTo(maxActive));
+    }
+
+    @Test
+    public void borrowObject_returnsOldestIdleConnection_whenNotLifo() throws Exception {
+        config.setLifo(false);
+        createPool();
+        PooledGMConnection connection1 = sut.borrowObject();
+        PooledGMConnection connection2 = sut.borrowObject();
+        sut.returnObject(connection1);
+        sut.returnObject(connection2);
+
+        assertThat(sut.borrowObject(), sameInstance(connection1));
+    }
+
+    @Test
+    public void borrowObject_returnsNewestIdleConnection_whenLifo() throws Exception {
+        createPool();
+        PooledGMConnection connection1 = sut.borrowObject();
+        PooledGMConnection connection2 = sut.borrowObject();
+        sut.returnObject(connection1);
+        sut.returnObject(connection2);
+
+        assertThat(sut.borrowObject(), sameInstance(connection2));
+    }
+
+    @Test
+    public void returnObject_destroysConnection_whenMaxIdleReached() throws Exception {
+        config.setMaxIdle(1);
+        createPool();
+        sut.setProcessFactory(new MockFactory());
+        PooledGMConnection connection1 = sut.borrowObject();
+        PooledGMConnection connection2 = sut.borrowObject();
+
+        sut.returnObject(connection1);
+        sut.returnObject(connection2);
+
+        assertThat(sut.getNumIdle(), is(1));
+        verify(processes[0], never()).destroy();
+        verify(processes[1]).destroy();
+    }
+
+    @Test
+    public void returnObject_restoresCommandTimeoutOfPool() throws Exception {
+        final long timeout = 1234;
+        config.setCommandTimeoutMillis(timeout);
+        createPool();
+        PooledGMConnection connection = sut.borrowObject();
+        connection.setCommandTimeoutMillis(1);
+
+        sut.returnObject(connection);
+
+        assertThat(connection.getCommandTimeoutMillis(), is(timeout));
+    }
+
+    @Test
+    public void setEvictAfterNumberOfUse_limitsTheUseOfConnection() throws Exception {
+        final int limit = 5;
+        config.setEvictAfterNumberOfUse(limit);
+        createPool();
+        PooledGMConnection connection = sut.borrowObject();
+        for (int i = 0; i <= limit; i++)
+            connection.execute("identify");
+        sut.returnObject(connection);
+
+        PooledGMConnection connection2 = sut.borrowObject();
+
+        assertThat(connection2, not(sameInstance(connection)));
+        connection2.ensureHealthy(); // should not throw exception
+    }
+
+    @Test
+    public void setTestOnBorrow_removesTestFailedConnection() throws Exception {
+        when(reader.readLine()).thenReturn("OK", "NG", "OK");
+        config.setTestOnGet(true);
+        createPool();
+
+        PooledGMConnection connection = sut.borrowObject();
+        sut.returnObject(connection);
+        PooledGMConnection connection2 = sut.borrowObject();
+
+        assertThat(connection2, not(sameInstance(connection)));
+        assertThat(sut.getNumActive(), is(1));
+    }
+
+    @Test
+    public void setTestOnReturn_removesTestFailedConnection() throws Exception {
+        when(reader.readLine()).thenReturn("NG", "OK");
+        config.setTestOnReturn(true);
+        createPool();
+
+        PooledGMConnection connection = sut.borrowObject();
+        sut.returnObject(connection);
+
+        assertThat(sut.getNumIdle(), is(0));
+        assertThat(sut.borrowObject(), not(sameInstance(connection)));
+    }
+
+    @Test
+    public void evict_destroysConnectionIdleForTooLong() throws Exception {
+        config.setMinEvictableIdleTimeMillis(1);
+        createPool();
+        sut.returnObject(sut.borrowObject());
+        Thread.sleep(SHORT_WAIT_MILLIS);
+
+        sut.evict();
+
+        assertThat(sut.getNumIdle(), is(0));
+        verify(process).destroy();
+        assertThat(sut.getMetrics().getIdleEvictions(), is(1L));
+    }
+
+    @Test
+    public void evict_keepsMinIdle_whenSoftMinEvictableIdleTimePassed() throws Exception {
+        config.setMinEvictableIdleTimeMillis(-1);
+        config.setSoftMinEvictableIdleTimeMillis(1);
+        config.setMinIdle(1);
+        createPool();
+        sut.setProcessFactory(new MockFactory());
+        PooledGMConnection connection1 = sut.borrowObject();
+        PooledGMConnection connection2 = sut.borrowObject();
+        sut.returnObject(connection1);
+        sut.returnObject(connection2);
+        Thread.sleep(SHORT_WAIT_MILLIS);
+
+        sut.evict();
+
+        assertThat(sut.getNumIdle(), is(1));
+    }
+
+    @Test
+    public void evict_destroysTestFailedConnection_whenTestWhileIdle() throws Exception {
+        when(reader.readLine()).thenReturn("NG", "OK");
+        config.setTestWhileIdle(true);
+        createPool();
+        sut.returnObject(sut.borrowObject());
+
+        sut.evict();
+
+        assertThat(sut.getNumIdle(), is(0));
+        verify(process).destroy();
+        assertThat(sut.getMetrics().getValidationFailures(), is(1L));
+        assertThat(sut.getMetrics().getIdleEvictions(), is(0L));
+    }
+
+    @Test
+    public void borrowObject_recordsBorrowWaitAndProcessSpawn() throws Exception {
+        createPool();
+        sut.returnObject(sut.borrowObject());
+        sut.returnObject(sut.borrowObject());
+
+        GMServiceMetrics metrics = sut.getMetrics().snapshot();
+        assertThat(metrics.getBorrowWaitNanos().getCount(), is(2L));
+        assertThat(metrics.getProcessSpawnNanos().getCount(), is(1L));
+        assertThat(metrics.getNumIdle(), is(1));
+    }
+
+    @Test
+    public void evict_createsConnectionsUpToMinIdle() throws Exception {
+        final int minIdle = 2;
+        config.setMinIdle(minIdle);
+        createPool();
+
+        sut.evict();
+
+        assertThat(sut.getNumIdle(), is(minIdle));
+    }
+
+    @Test
+    public void evictor_runsPeriodically_whenTimeBetweenEvictionRunsIsPositive() throws Exception {
+        final int minIdle = 2;
+        config.setMinIdle(minIdle);
+        config.setTimeBetweenEvictionRunsMillis(1);
+        createPool();
+
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS);
+        while (sut.getNumIdle() < minIdle && System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+
+        assertThat(sut.getNumIdle(), is(minIdle));
+    }
+
+    @Test
+    public void evict_shrinksPool_whenAdaptiveSizingAndNoLoad() throws Exception {
+        final int maxActive = 4;
+        config.setMaxActive(maxActive);
+        config.setAdaptiveSizing(true);
+        createPool();
+
+        sut.evict();
+
+        assertThat(sut.getMaxActive(), is(maxActive / 2));
+    }
+
+    @Test
+    public void evict_keepsMaxActive_whenAdaptiveSizingIsOff() throws Exception {
+        final int maxActive = 4;
+        config.setMaxActive(maxActive);
+        createPool();
+
+        sut.evict();
+
+        assertThat(sut.getMaxActive(), is(maxActive));
+    }
+
+    @Test
+    public void resize_destroysIdleConnectionsAboveNewSize() throws Exception {
+        config.setAdaptiveSizing(true);
+        createPool();
+        sut.setProcessFactory(new MockFactory());
+        PooledGMConnection[] pooled = new PooledGMConnection[MOCK_PROCESS_ARRAY_SIZE];
+        for (int i = 0; i < MOCK_PROCESS_ARRAY_SIZE; i++)
+            pooled[i] = sut.borrowObject();
+        for (int i = 0; i < MOCK_PROCESS_ARRAY_SIZE; i++)
+            sut.returnObject(pooled[i]);
+
+        sut.resize(1);
+
+        assertThat(sut.getNumIdle(), is(1));
+        verify(processes[0]).destroy();
+        verify(processes[1]).destroy();
+        verify(processes[2], never()).destroy();
+    }
+
+    @Test
+    public void resize_destroysConnectionReturnedAboveNewSize() throws Exception {
+        config.setAdaptiveSizing(true);
+        createPool();
+        sut.setProcessFactory(new MockFactory());
+        PooledGMConnection connection1 = sut.borrowObject();
+        PooledGMConnection connection2 = sut.borrowObject();
+
+        sut.resize(1);
+        sut.returnObject(connection1);
+        sut.returnObject(connection2);
+
+        assertThat(sut.getNumIdle(), is(1));
+        assertThat(sut.getNumActive(), is(0));
+        verify(processes[0]).destroy();
+        verify(processes[1], never()).destroy();
+    }
+
+    @Test
+    public void resize_letsWaitingThreadCreateConnection_whenGrown() throws Exception {
+        config.setAdaptiveSizing(true);
+        config.setMaxActive(2);
+        createPool();
+        sut.resize(1);
+        sut.borrowObject();
+        final AtomicReference<PooledGMConnection> borrowed = new AtomicReference<PooledGMConnection>();
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    borrowed.set(sut.borrowObject());
+                } catch (GMServiceException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        waiter.start();
+        awaitParked(waiter);
+
+        sut.resize(2);
+        waiter.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+
+        assertThat(borrowed.get(), notNullValue());
+        assertThat(sut.getNumActive(), is(2));
+    }
+
+    @Test
+    public void prewarm_createsIdleConnectionsInParallel() throws Exception {
+        final int count = 3;
+        final CyclicBarrier allStarted = new CyclicBarrier(count);
+        createPool();
+        sut.setProcessFactory(new ReaderWriterProcess.Factory() {
+            @Override
+            public ReaderWriterProcess getProcess(String... command) throws IOException {
+                try {
+                    allStarted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                } catch (Exception e) {
+                    throw new IOException("Not created in parallel: " + e);
+                }
+                return process;
+            }
+        });
+
+        sut.prewarm(count).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        assertThat(sut.getNumIdle(), is(count));
+    }
+
+    @Test
+    public void close_destroysAllIdleProcesses() throws Exception {
+        createPool();
+        sut.setProcessFactory(new MockFactory());
+        PooledGMConnection[] pooled = new PooledGMConnection[MOCK_PROCESS_ARRAY_SIZE];
+        for (int i = 0; i < MOCK_PROCESS_ARRAY_SIZE; i++)
+            pooled[i] = sut.borrowObject();
+        for (int i = 0; i < MOCK_PROCESS_ARRAY_SIZE; i++)
+            sut.returnObject(pooled[i]);
+
+        sut.close();
+
+        for (int i = 0; i < MOCK_PROCESS_ARRAY_SIZE; i++)
+            verify(processes[i]).destroy();
+    }
+
+    @Test
+    public void close_wakesUpWaitingThreads() throws Exception {
+        config.setMaxActive(1);
+        createPool();
+        sut.borrowObject();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    sut.borrowObject();
+                } catch (Throwable e) { // SUPPRESS CHECKSTYLE IllegalCatch BECAUSE test
+                    failure.set(e);
+                }
+            }
+        };
+        waiter.start();
+        awaitParked(waiter);
+
+        sut.close();
+        waiter.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+
+        assertThat(failure.get(), instanceOf(IllegalStateException.class));
+    }
+
+    @Test
+    public void returnObject_destroysConnection_afterClose() throws Exception {
+        createPool();
+        PooledGMConnection connection = sut.borrowObject();
+        sut.close();
+
+        sut.returnObject(connection);
+
+        assertThat(sut.getNumIdle(), is(0));
+        verify(process).destroy();
+    }
+
+    private Thread borrowAndReturn(final String name, final List<String> order) {
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    PooledGMConnection connection = sut.borrowObject();
+                    order.add(name);
+                    sut.returnObject(connection);
+                } catch (GMServiceException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        thread.start();
+        return thread;
+    }
+
+    private static void awaitParked(Thread thread) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS);
+        while (thread.getState() != Thread.State.WAITING && System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+        assertThat(thread.getState(), is(Thread.State.WAITING));
+    }
+}
@@ -0,0 +1,409 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.fail;
+
+import org.gm4java.engine.GMServiceException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.util.NoSuchElementException;
+import java.util.SortedMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test cases for {@link ConnectionScheduler}.
+ *
+ * @author Kenneth Xu
+ *
+ */
+public class ConnectionSchedulerTest {
+    private static final long TIMEOUT_SECONDS = 5;
+    private static final long STARVATION_MILLIS = 50;
+    private static final String TENANT = "tenant";
+    private static final long QUANTUM_NANOS = TimeUnit.MILLISECONDS.toNanos(
+            GMConnectionPoolConfig.DEFAULT_FAIR_SHARE_QUANTUM_MILLIS);
+
+    @Rule
+    public ExpectedException exception = ExpectedException.none();
+
+    private GMConnectionPoolConfig config;
+
+    @Before
+    public void setup() {
+        config = new GMConnectionPoolConfig();
+        config.setMaxActive(1);
+        config.setPriorityScheduling(true);
+        config.setStarvationThresholdMillis(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS * 2));
+    }
+
+    private final class Waiter extends Thread {
+        private final ConnectionScheduler sut;
+        private final Priority priority;
+        private final String tenant;
+        private volatile Exception failure;
+        private volatile boolean acquired;
+
+        private Waiter(ConnectionScheduler sut, Priority priority) throws InterruptedException {
+            this(sut, priority, TENANT);
+        }
+
+        private Waiter(ConnectionScheduler sut, Priority priority, String tenant) throws InterruptedException {
+            this.sut = sut;
+            this.priority = priority;
+            this.tenant = tenant;
+            int waiting = sut.getWaiting(priority);
+            start();
+            long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS);
+            while (sut.getWaiting(priority) == waiting && System.currentTimeMillis() < deadline)
+                Thread.sleep(1);
+            assertThat(sut.getWaiting(priority), is(waiting + 1));
+        }
+
+        @Override
+        public void run() {
+            try {
+                sut.acquire(priority, tenant);
+                acquired = true;
+            } catch (Exception e) {
+                failure = e;
+            }
+        }
+
+        private Waiter finish() throws InterruptedException {
+            join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+            return this;
+        }
+    }
+
+    @Test
+    public void constructor_chokes_whenReservationsExceedMaxActive() {
+        config.setReservedConnections(Priority.HIGH, 1);
+        config.setReservedConnections(Priority.LOW, 1);
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("maxActive");
+
+        new ConnectionScheduler(config);
+    }
+
+    @Test
+    public void acquire_grantsImmediately_whenPermitIsAvailable() throws Exception {
+        config.setMaxActive(2);
+        ConnectionScheduler sut = new ConnectionScheduler(config);
+
+        sut.acquire(Priority.LOW, TENANT);
+        sut.acquire(Priority.HIGH, TENANT);
+
+        assertThat(sut.getInUse(Priority.LOW), is(1));
+        assertThat(sut.getInUse(Priority.HIGH), is(1));
+    }
+
+    @Test
+    public void acquire_chokes_whenExhaustedAndActionIsFail() throws Exception {
+        config.setWhenExhaustedAction(WhenExhaustedAction.FAIL);
+        ConnectionScheduler sut = new ConnectionScheduler(config);
+        sut.acquire(Priority.HIGH, TENANT);
+        exception.expect(NoSuchElementException.class);
+
+        sut.acquire(Priority.HIGH, TENANT);
+    }
+
+    @Test
+    public void acquire_chokes_whenMaxWaitElapses() throws Exception {
+        config.setMaxWait(STARVATION_MILLIS);
+        ConnectionScheduler sut = new ConnectionScheduler(config);
+        sut.acquire(Priority.HIGH, TENANT);
+        exception.expect(NoSuchElementException.class);
+
+        try {
+            sut.acquire(Priority.HIGH, TENANT);
+        } finally {
+            assertThat(sut.getWaiting(Priority.HIGH), is(0));
+        }
+    }
+
+    @Test
+    public void acquire_chokes_whenInterrupted() throws Exception {
+        ConnectionScheduler sut = new ConnectionScheduler(config);
+        sut.acquire(Priority.LOW, TENANT);
+        Waiter waiter = new Waiter(sut, Priority.LOW);
+
+        waiter.interrupt();
+
+        assertThat(waiter.finish().failure, instanceOf(GMServiceException.class));
+        assertThat(sut.getWaiting(Priority.LOW), is(0));
+    }
+
+    @Test
+    public void acquire_leavesReservedConnectionsToTheirLane() throws Exception {
+        config.setMaxActive(2);
+        config.setReservedConnections(Priority.LOW, 1);
+        config.setWhenExhaustedAction(WhenExhaustedAction.FAIL);
+        ConnectionScheduler sut = new ConnectionScheduler(config);
+        sut.acquire(Priority.HIGH, TENANT);
+
+        try {
+            sut.acquire(Priority.HIGH, TENANT);
+            fail("should have choked");
+        } catch (NoSuchElementException e) { // SUPPRESS CHECKSTYLE EmptyBlock BECAUSE test
+        }
+        sut.acquire(Priority.LOW, TENANT);
+
+        assertThat(sut.getInUse(Priority.LOW), is(1));
+    }
+
+    @Test
+    public void release_handsPermitToHighestLaneFirst() throws Exception {
+        ConnectionScheduler sut = new ConnectionScheduler(config);
+        sut.acquire(Priority.NORMAL, TENANT);
+        Waiter low = new Waiter(sut, Priority.LOW);
+        Waiter high = new Waiter(sut, Priority.HIGH);
+
+        sut.release(Priority.NORMAL, TENANT, 0);
+
+        assertThat(high.finish().acquired, is(true));
+        assertThat(low.acquired, is(false));
+        sut.release(Priority.HIGH, TENANT, 0);
+        assertThat(low.finish().acquired, is(true));
+    }
+
+    @Test
+    public void release_servesWaitersOfSameLaneInOrder() throws Exception {
+        ConnectionScheduler sut = new ConnectionScheduler(config);
+        sut.acquire(Priority.HIGH, TENANT);
+        Waiter first = new Waiter(sut, Priority.HIGH);
+        Waiter second = new Waiter(sut, Priority.HIGH);
+
+        sut.release(Priority.HIGH, TENANT, 0);
+
+        assertThat(first.finish().acquired, is(true));
+        assertThat(second.acquired, is(false));
+        sut.release(Priority.HIGH, TENANT, 0);
+        assertThat(second.finish().acquired, is(true));
+    }
+
+    @Test
+    public void release_servesLaneBelowReservationFirst() throws Exception {
+        config.setMaxActive(2);
+        config.setReservedConnections(Priority.LOW, 1);
+        ConnectionScheduler sut = new ConnectionScheduler(config);
+        sut.acquire(Priority.HIGH, TENANT);
+        sut.acquire(Priority.LOW, TENANT);
+        Waiter high = new Waiter(sut, Priority.HIGH);
+        Waiter low = new Waiter(sut, Priority.LOW);
+
+        sut.release(Priority.LOW, TENANT, 0);
+
+        assertThat(low.finish().acquired, is(true));
+        assertThat(high.acquired, is(false));
+        sut.release(Priority.HIGH, TENANT, 0);
+        assertThat(high.finish().acquired, is(true));
+    }
+
+    @Test
+    public void release_servesStarvingWaiterAheadOfHigherLane() throws Exception {
+        config.setStarvationThresholdMillis(STARVATION_MILLIS);
+        ConnectionScheduler sut = new ConnectionScheduler(config);
+        sut.acquire(Priority.HIGH, TENANT);
+        Waiter low = new Waiter(sut, Priority.LOW);
+        Thread.sleep(STARVATION_MILLIS * 2);
+        Waiter high = new Waiter(sut, Priority.HIGH);
+
+        sut.release(Priority.HIGH, TENANT, 0);
+
+        assertThat(low.finish().acquired, is(true));
+        assertThat(high.acquired, is(false));
+        sut.release(Priority.LOW, TENANT, 0);
+        assertThat(high.finish().acquired, is(true));
+    }
+
+    @Test
+    public void release_sharesPermitsByTenantWeight() throws Exception {
+        config.setFairSharing(true);
+        config.setTenantWeight("a", 2);
+        ConnectionScheduler sut = new ConnectionScheduler(config);
+        sut.acquire(Priority.NORMAL, "c");
+        Waiter a1 = new Waiter(sut, Priority.NORMAL, "a");
+        Waiter a2 = new Waiter(sut, Priority.NORMAL, "a");
+        Waiter a3 = new Waiter(sut, Priority.NORMAL, "a");
+        Waiter b1 = new Waiter(sut, Priority.NORMAL, "b");
+
+        sut.release(Priority.NORMAL, "c", QUANTUM_NANOS);
+        assertThat(a1.finish().acquired, is(true));
+        sut.release(Priority.NORMAL, "a", QUANTUM_NANOS);
+        assertThat(a2.finish().acquired, is(true));
+        sut.release(Priority.NORMAL, "a", QUANTUM_NANOS);
+
+        assertThat(b1.finish().acquired, is(true));
+        assertThat(a3.acquired, is(false));
+        sut.release(Priority.NORMAL, "b", QUANTUM_NANOS);
+        assertThat(a3.finish().acquired, is(true));
+    }
+
+    @Test
+    public void release_alternatesTenants_regardlessOfTheirQueueLength() throws Exception {
+        config.setFairSharing(true);
+        ConnectionScheduler sut = new ConnectionScheduler(config);
+        sut.acquire(Priority.NORMAL, "a");
+        Waiter a1 = new Waiter(sut, Priority.NORMAL, "a");
+        Waiter a2 = new Waiter(sut, Priority.NORMAL, "a");
+        Waiter b1 = new Waiter(sut, Priority.NORMAL, "b");
+
+        sut.release(Priority.NORMAL, "a", QUANTUM_NANOS);
+        assertThat(a1.finish().acquired, is(true));
+        sut.release(Priority.NORMAL, "a", QUANTUM_NANOS);
+
+        assertThat(b1.finish().acquired, is(true));
+        assertThat(a2.acquired, is(false));
+        sut.release(Priority.NORMAL, "b", QUANTUM_NANOS);
+        assertThat(a2.finish().acquired, is(true));
+    }
+
+    @Test
+    public void release_chargesHeavierTenantMore() throws Exception {
+        config.setFairSharing(true);
+        config.setTenantWeight("a", 1);
+        config.setTenantWeight("b", 1);
+        ConnectionScheduler sut = new ConnectionScheduler(config);
+        // "a" has been holding the connections ten times as long as "b".
+        for (int i = 0; i < 50; i++) {
+            sut.acquire(Priority.NORMAL, "a");
+            sut.release(Priority.NORMAL, "a", QUANTUM_NANOS * 10);
+            sut.acquire(Priority.NORMAL, "b");
+            sut.release(Priority.NORMAL, "b", QUANTUM_NANOS);
+        }
+        sut.acquire(Priority.NORMAL, "c");
+        Waiter a1 = new Waiter(sut, Priority.NORMAL, "a");
+        Waiter b1 = new Waiter(sut, Priority.NORMAL, "b");
+        Waiter b2 = new Waiter(sut, Priority.NORMAL, "b");
+
+        sut.release(Priority.NORMAL, "c", 0);
+        assertThat(b1.finish().acquired, is(true));
+        sut.release(Priority.NORMAL, "b", 0);
+
+        assertThat(b2.finish().acquired, is(true));
+        assertThat(a1.acquired, is(false));
+        sut.release(Priority.NORMAL, "b", 0);
+        assertThat(a1.finish().acquired, is(true));
+    }
+
+    @Test
+    public void getTenantMetrics_reportsWaitAndProcessTime() throws Exception {
+        config.setFairSharing(true);
+        config.setTenantWeight("a", 3);
+        config.setTenantWeight("b", 1);
+        ConnectionScheduler sut = new ConnectionScheduler(config);
+        sut.acquire(Priority.NORMAL, "a");
+        Waiter b = new Waiter(sut, Priority.NORMAL, "b");
+        sut.release(Priority.NORMAL, "a", TimeUnit.SECONDS.toNanos(2));
+        b.finish();
+        sut.release(Priority.NORMAL, "b", TimeUnit.MILLISECONDS.toNanos(500));
+
+        GMTenantMetrics a = sut.getTenantMetrics().get("a");
+        GMTenantMetrics bm = sut.getTenantMetrics().get("b");
+
+        assertThat(sut.getTenantMetrics().keySet().toString(), is("[a, b]"));
+        assertThat(a.getWeight(), is(3));
+        assertThat(a.getWaitNanos().getCount(), is(1L));
+        assertThat(a.getWaitNanos().getMax(), is(0L));
+        assertThat(a.getProcessSeconds(), is(2.0));
+        assertThat(bm.getWeight(), is(1));
+        assertThat(bm.getWaitNanos().getMax(), greaterThan(0L));
+        assertThat(bm.getProcessNanos(), is(TimeUnit.MILLISECONDS.toNanos(500)));
+    }
+
+    @Test
+    public void charge_addsProcessTime_afterRelease() throws Exception {
+        config.setFairSharing(true);
+        config.setTenantWeight("a", 1);
+        ConnectionScheduler sut = new ConnectionScheduler(config);
+        sut.acquire(Priority.NORMAL, "a");
+        sut.release(Priority.NORMAL, "a", 0);
+
+        sut.charge("a", TimeUnit.SECONDS.toNanos(2));
+
+        assertThat(sut.getTenantMetrics().get("a").getProcessSeconds(), is(2.0));
+    }
+
+    @Test
+    public void getTenantMetrics_keepsRecentlyIdleTenants() throws Exception {
+        config.setFairSharing(true);
+        ConnectionScheduler sut = new ConnectionScheduler(config);
+        sut.acquire(Priority.NORMAL, "a");
+        sut.release(Priority.NORMAL, "a", 3);
+        sut.acquire(Priority.NORMAL, "a");
+        sut.release(Priority.NORMAL, "a", 4);
+
+        assertThat(sut.getTenantMetrics().keySet().toString(), is("[a]"));
+        assertThat(sut.getTenantMetrics().get("a").getWaitNanos().getCount(), is(2L));
+        assertThat(sut.getTenantMetrics().get("a").getProcessNanos(), is(7L));
+    }
+
+    @Test
+    public void getTenantMetrics_addsUpTenantsIdleForLong_asOthers() throws Exception {
+        config.setFairSharing(true);
+        config.setTenantWeight("a", 2);
+        ConnectionScheduler sut = new ConnectionScheduler(config);
+        sut.acquire(Priority.NORMAL, "a");
+        sut.release(Priority.NORMAL, "a", 1);
+        for (int i = 0; i < ConnectionScheduler.MAX_IDLE_TENANTS + 2; i++) {
+            sut.acquire(Priority.NORMAL, "t" + i);
+            sut.release(Priority.NORMAL, "t" + i, 10);
+        }
+
+        SortedMap<String, GMTenantMetrics> metrics = sut.getTenantMetrics();
+
+        assertThat(metrics.size(), is(ConnectionScheduler.MAX_IDLE_TENANTS + 2));
+        assertThat(metrics.containsKey("a"), is(true));
+        assertThat(metrics.containsKey("t0"), is(false));
+        assertThat(metrics.containsKey("t1"), is(false));
+        assertThat(metrics.containsKey("t2"), is(true));
+        GMTenantMetrics others = metrics.get(PooledGMService.OTHER_TENANTS);
+        assertThat(others.getWaitNanos().getCount(), is(2L));
+        assertThat(others.getProcessNanos(), is(20L));
+    }
+
+    @Test
+    public void getTenantMetrics_keepsTenant_whenItsWaitTimesOut() throws Exception {
+        config.setFairSharing(true);
+        config.setMaxWait(1);
+        ConnectionScheduler sut = new ConnectionScheduler(config);
+        sut.acquire(Priority.NORMAL, "a");
+        try {
+            sut.acquire(Priority.NORMAL, "b");
+            fail("should have timed out");
+            // SUPPRESS CHECKSTYLE EmptyBlock BECAUSE test
+        } catch (NoSuchElementException e) {
+        }
+
+        assertThat(sut.getTenantMetrics().keySet().toString(), is("[a, b]"));
+        assertThat(sut.getTenantMetrics().get("b").getWaitNanos().getCount(), is(0L));
+    }
+
+    @Test
+    public void getTenantMetrics_reportsDefaultTenantOnly_whenFairSharingIsDisabled() throws Exception {
+        ConnectionScheduler sut = new ConnectionScheduler(config);
+        sut.acquire(Priority.NORMAL, "a");
+        sut.release(Priority.NORMAL, "a", 1);
+
+        assertThat(sut.getTenantMetrics().keySet().toString(), is("[" + PooledGMService.DEFAULT_TENANT + "]"));
+    }
+}
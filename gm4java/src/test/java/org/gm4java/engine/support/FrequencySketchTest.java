@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+
+import org.junit.Test;
+
+/**
+ * Test cases for {@link FrequencySketch}.
+ *
+ * @author Kenneth Xu
+ *
+ */
+public class FrequencySketchTest {
+    private static final int WIDTH = 16;
+    private static final int MAX_COUNT = 15;
+
+    @Test
+    public void frequency_countsIncrements() {
+        FrequencySketch sut = new FrequencySketch(WIDTH);
+        for (int i = 0; i < 3; i++) {
+            sut.increment("a");
+        }
+        sut.increment("b");
+
+        assertThat(sut.frequency("a"), is(3));
+        assertThat(sut.frequency("b"), greaterThanOrEqualTo(1));
+        assertThat(sut.frequency("b"), lessThan(3));
+    }
+
+    @Test
+    public void frequency_saturates() {
+        FrequencySketch sut = new FrequencySketch(WIDTH * WIDTH);
+        for (int i = 0; i < MAX_COUNT * 2; i++) {
+            sut.increment("a");
+        }
+
+        assertThat(sut.frequency("a"), is(MAX_COUNT));
+    }
+
+    @Test
+    public void reset_halvesAllCounters() {
+        FrequencySketch sut = new FrequencySketch(WIDTH);
+        for (int i = 0; i < 8; i++) {
+            sut.increment("a");
+        }
+        sut.increment("b");
+
+        sut.reset();
+
+        assertThat(sut.frequency("a"), is(4));
+        assertThat(sut.frequency("b"), is(0));
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assume.*;
+
+import org.apache.commons.lang3.StringUtils;
+import org.gm4java.engine.GMOutputHandler;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Test cases for {@link GMBatchCodec}.
+ *
+ * @author Kenneth Xu
+ *
+ */
+public class GMBatchCodecTest {
+    private static final String EOL = System.getProperty("line.separator");
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final int LONG_LINE = 20000;
+    private static final int WARM_UP = 20000;
+    private static final int ITERATIONS = 10000;
+    private static final long ALLOCATION_TOLERANCE = 16 * 1024;
+
+    @Rule
+    public ExpectedException exception = ExpectedException.none();
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    @Test
+    public void constructor_chokes_onNonAsciiCompatibleCharset() throws Exception {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("UTF-16");
+        new GMBatchCodec(input(""), out, Charset.forName("UTF-16"));
+    }
+
+    @Test
+    public void writeCommand_quotesArgumentsAndEscapesQuotes() throws Exception {
+        GMBatchCodec sut = new GMBatchCodec(input(""), out, ASCII);
+
+        int length = sut.writeCommand("raw", Arrays.asList("a b", "say \"hi\""));
+        sut.flush();
+
+        String expected = "raw \"a b\" \"say \"\"hi\"\"\"" + EOL;
+        assertThat(out.toString("US-ASCII"), is(expected));
+        assertThat(length, is(expected.length()));
+    }
+
+    @Test
+    public void writeCommand_encodesNonAsciiArgumentsWithCharset() throws Exception {
+        GMBatchCodec sut = new GMBatchCodec(input(""), out, UTF8);
+
+        sut.writeCommand(null, Arrays.asList("convert", "caf\u00e9-\u65e5\u672c.jpg"));
+        sut.flush();
+
+        assertThat(out.toString("UTF-8"), is(" \"convert\" \"caf\u00e9-\u65e5\u672c.jpg\"" + EOL));
+    }
+
+    @Test
+    public void writeCommand_growsBuffer_whenCommandIsLong() throws Exception {
+        GMBatchCodec sut = new GMBatchCodec(input(""), out, UTF8);
+        String arg = StringUtils.repeat("\u00e9", LONG_LINE);
+
+        sut.writeCommand(null, Collections.singletonList(arg));
+        sut.flush();
+
+        assertThat(out.toString("UTF-8"), is(" \"" + arg + "\"" + EOL));
+    }
+
+    @Test
+    public void flush_sendsNothing_untilCalled() throws Exception {
+        GMBatchCodec sut = new GMBatchCodec(input(""), out, ASCII);
+
+        sut.writeCommand(null, Arrays.asList("a"));
+        sut.writeCommand(null, Arrays.asList("b"));
+
+        assertThat(out.size(), is(0));
+        sut.flush();
+        assertThat(out.toString("US-ASCII"), is(" \"a\"" + EOL + " \"b\"" + EOL));
+    }
+
+    @Test
+    public void readResult_returnsTrue_whenPass() throws Exception {
+        GMBatchCodec sut = new GMBatchCodec(input("line1\nline2\nOK\n"), out, ASCII);
+
+        assertThat(sut.readResult(), is(true));
+        assertThat(sut.output(), is("line1" + EOL + "line2" + EOL));
+    }
+
+    @Test
+    public void readResult_returnsFalse_whenFail() throws Exception {
+        GMBatchCodec sut = new GMBatchCodec(input("bad\nNG\n"), out, ASCII);
+
+        assertThat(sut.readResult(), is(false));
+        assertThat(sut.output(), is("bad" + EOL));
+    }
+
+    @Test
+    public void readResult_handlesCrLf() throws Exception {
+        GMBatchCodec sut = new GMBatchCodec(input("a\r\nOK\r\nNG\r\n"), out, ASCII);
+
+        assertThat(sut.readResult(), is(true));
+        assertThat(sut.output(), is("a" + EOL));
+        assertThat(sut.readResult(), is(false));
+        assertThat(sut.output(), is(""));
+    }
+
+    @Test
+    public void readResult_doesNotMatchMarker_whenLineOnlyStartsWithIt() throws Exception {
+        GMBatchCodec sut = new GMBatchCodec(input("OKAY\n NG\nOK\n"), out, ASCII);
+
+        assertThat(sut.readResult(), is(true));
+        assertThat(sut.output(), is("OKAY" + EOL + " NG" + EOL));
+    }
+
+    @Test
+    public void readResult_keepsLeftover_forNextResult() throws Exception {
+        GMBatchCodec sut = new GMBatchCodec(input("1\nOK\n2\nOK\n3\nNG\n"), out, ASCII);
+
+        assertThat(sut.readResult(), is(true));
+        assertThat(sut.output(), is("1" + EOL));
+        assertThat(sut.readResult(), is(true));
+        assertThat(sut.output(), is("2" + EOL));
+        assertThat(sut.readResult(), is(false));
+        assertThat(sut.output(), is("3" + EOL));
+    }
+
+    @Test
+    public void readResult_handlesLinesLongerThanBuffer() throws Exception {
+        String line = StringUtils.repeat('x', LONG_LINE - 1) + "OK";
+        GMBatchCodec sut = new GMBatchCodec(input(line + "\r\n" + line + "\nOK\r\n"), out, ASCII);
+
+        assertThat(sut.readResult(), is(true));
+        assertThat(sut.output(), is(line + EOL + line + EOL));
+        assertThat(sut.outputLength(), is(2 * (line.length() + EOL.length())));
+    }
+
+    @Test
+    public void outputSize_countsBytesReceived_whenLinesAreLongerThanBuffer() throws Exception {
+        String line = StringUtils.repeat('x', LONG_LINE);
+        GMBatchCodec sut = new GMBatchCodec(input(line + "\r\n" + line + "\nOK\r\n"), out, ASCII);
+
+        assertThat(sut.readResult(BasicGMConnection.NO_OUTPUT), is(true));
+        assertThat(sut.outputSize(), is(2L * LONG_LINE + 3));
+    }
+
+    @Test
+    public void readResult_passesLinesToHandler_whenHandlerIsGiven() throws Exception {
+        String line = StringUtils.repeat('x', LONG_LINE);
+        GMBatchCodec sut = new GMBatchCodec(input("a\r\n" + line + "\nOK\nnext\nOK\n"), out, ASCII);
+        final List<String> lines = new ArrayList<String>();
+
+        boolean pass = sut.readResult(new GMOutputHandler() {
+            @Override
+            public boolean handleLine(String l) {
+                return lines.add(l);
+            }
+        });
+
+        assertThat(pass, is(true));
+        assertThat(lines, is(Arrays.asList("a", line)));
+        assertThat(sut.readResult(), is(true));
+        assertThat(sut.output(), is("next" + EOL));
+    }
+
+    @Test
+    public void readResult_decodesOutputWithCharset() throws Exception {
+        String text = "caf\u00e9 \u65e5\u672c";
+        GMBatchCodec sut = new GMBatchCodec(new ByteArrayInputStream((text + "\nOK\n").getBytes(UTF8)), out, UTF8);
+
+        assertThat(sut.readResult(), is(true));
+        assertThat(sut.output(), is(text + EOL));
+    }
+
+    @Test
+    public void readResult_chokes_whenStreamEndsBeforeMarker() throws Exception {
+        GMBatchCodec sut = new GMBatchCodec(input("a\nbroken"), out, ASCII);
+        try {
+            sut.readResult();
+            throw new AssertionError("EOFException expected");
+        } catch (EOFException e) {
+            assertThat(sut.output(), is("a" + EOL + "broken"));
+        }
+    }
+
+    @Test
+    public void roundTrip_allocatesNothing_afterWarmUp() throws Exception {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+        final long threadId = Thread.currentThread().getId();
+        final List<String> command = Arrays.asList("convert", "/tmp/in.jpg", "-resize", "100x100", "/tmp/out.jpg");
+        GMBatchCodec sut = new GMBatchCodec(new CyclicInputStream("output line\nOK\n".getBytes(ASCII)),
+                new NullOutputStream(), ASCII);
+
+        roundTrip(sut, command, WARM_UP);
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        int passed = roundTrip(sut, command, ITERATIONS);
+        long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+
+        assertThat(passed, is(ITERATIONS));
+        assertThat(allocated, lessThan(ALLOCATION_TOLERANCE));
+    }
+
+    private static int roundTrip(GMBatchCodec sut, List<String> command, int times) throws Exception {
+        int passed = 0;
+        for (int i = 0; i < times; i++) {
+            sut.writeCommand(null, command);
+            sut.flush();
+            if (sut.readResult()) passed++;
+        }
+        return passed;
+    }
+
+    private static InputStream input(String s) {
+        return new ByteArrayInputStream(s.getBytes(ASCII));
+    }
+
+    private static class CyclicInputStream extends InputStream {
+        private final byte[] data;
+        private int position;
+
+        CyclicInputStream(byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public int read() {
+            int b = data[position++];
+            if (position == data.length) position = 0;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            int n = Math.min(len, data.length - position);
+            System.arraycopy(data, position, b, off, n);
+            position = (position + n) % data.length;
+            return n;
+        }
+    }
+
+    private static class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
@@ -0,0 +1,373 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Emulates <code>gm batch</code> for load and soak testing on machines without GraphicsMagick. It takes the same
+ * arguments as the real one, e.g. {@link Constants#GM_COMMAND} without the leading <code>gm</code>, and speaks the same
+ * protocol: the command lines read from the standard input are split following the <code>-escape</code> rules, the
+ * <code>-pass</code> or <code>-fail</code> marker is written after the output of each command when
+ * <code>-feedback</code> is on, and the command lines are echoed only when <code>-echo</code> is on. It depends on
+ * nothing but the JDK, run it with
+ *
+ * <pre>
+ * java -cp target/test-classes [-Dgm4java.emulator.xxx=...] org.gm4java.engine.support.GMBatchEmulator batch -escape windows ...
+ * </pre>
+ *
+ * or through {@link GMBatchEmulatorFactory}. The behavior of every command is set by system properties:
+ * <ul>
+ * <li>{@value #LATENCY}: the time each command takes in milliseconds, as a distribution, see below. Default to 0.</li>
+ * <li>{@value #OUTPUT}: the number of output lines of each command, as a distribution. Default to 0.</li>
+ * <li>{@value #FAILURE_RATE}: the probability that a command fails, between 0 and 1. Default to 0.</li>
+ * <li>{@value #HANG_RATE}: the probability that a command never completes. Default to 0.</li>
+ * <li>{@value #CRASH_RATE}: the probability that the process dies in the middle of the output. Default to 0.</li>
+ * <li>{@value #SEED}: the seed of the random numbers, for reproducible runs.</li>
+ * </ul>
+ * A distribution is one of <code>fixed:value</code> (or just <code>value</code>), <code>uniform:min,max</code>,
+ * <code>exponential:mean</code> and <code>lognormal:median,sigma</code>.
+ * <p>
+ * An argument in the form of <code>emulator:fail</code>, <code>emulator:hang</code>, <code>emulator:crash</code>,
+ * <code>emulator:sleep=milliseconds</code> or <code>emulator:output=lines</code> overrides the behavior of the command
+ * it is part of.
+ *
+ * @author Kenneth Xu
+ *
+ */
+public final class GMBatchEmulator {
+    /**
+     * System property of the latency distribution.
+     */
+    public static final String LATENCY = "gm4java.emulator.latency";
+    /**
+     * System property of the output lines distribution.
+     */
+    public static final String OUTPUT = "gm4java.emulator.output";
+    /**
+     * System property of the failure rate.
+     */
+    public static final String FAILURE_RATE = "gm4java.emulator.failureRate";
+    /**
+     * System property of the hang rate.
+     */
+    public static final String HANG_RATE = "gm4java.emulator.hangRate";
+    /**
+     * System property of the crash rate.
+     */
+    public static final String CRASH_RATE = "gm4java.emulator.crashRate";
+    /**
+     * System property of the random seed.
+     */
+    public static final String SEED = "gm4java.emulator.seed";
+
+    private static final String DIRECTIVE = "emulator:";
+    private static final Charset BYTES = Charset.forName("ISO-8859-1");
+    private static final String OUTPUT_LINE = " JPEG 800x600+0+0 DirectClass 8-bit 95.2K 0.000u 0:01";
+    private static final int EXIT_USAGE = 1;
+    private static final int EXIT_CRASH = 139;
+
+    private boolean windowsEscape = true;
+    private boolean feedback;
+    private String pass = "";
+    private String fail = "";
+    private String prompt;
+    private boolean echo;
+
+    private Distribution latency = Distribution.parse(System.getProperty(LATENCY, "0"));
+    private Distribution output = Distribution.parse(System.getProperty(OUTPUT, "0"));
+    private double failureRate = Double.parseDouble(System.getProperty(FAILURE_RATE, "0"));
+    private double hangRate = Double.parseDouble(System.getProperty(HANG_RATE, "0"));
+    private double crashRate = Double.parseDouble(System.getProperty(CRASH_RATE, "0"));
+    private final Random random = System.getProperty(SEED) == null ? new Random() : new Random(
+            Long.parseLong(System.getProperty(SEED)));
+
+    private OutputStream out;
+
+    GMBatchEmulator(String... args) {
+        if (args.length == 0 || !"batch".equals(args[0])) {
+            throw new IllegalArgumentException("Usage: batch [options ...] [file|-]");
+        }
+        for (int i = 1; i < args.length; i++) {
+            String option = args[i];
+            if ("-".equals(option)) {
+                if (i != args.length - 1) throw new IllegalArgumentException("Unexpected argument after -.");
+                return;
+            }
+            if (i == args.length - 1) throw new IllegalArgumentException("Missing an argument for " + option + ".");
+            String value = args[++i];
+            if ("-escape".equals(option)) {
+                windowsEscape = "windows".equals(value);
+                if (!windowsEscape && !"unix".equals(value)) throw unrecognized(option, value);
+            } else if ("-feedback".equals(option)) {
+                feedback = onOff(option, value);
+            } else if ("-pass".equals(option)) {
+                pass = value;
+            } else if ("-fail".equals(option)) {
+                fail = value;
+            } else if ("-prompt".equals(option)) {
+                prompt = "off".equals(value) ? null : value;
+            } else if ("-echo".equals(option)) {
+                echo = onOff(option, value);
+            } else if ("-safe-mode".equals(option) || "-stop-on-error".equals(option)) {
+                onOff(option, value);
+            } else {
+                throw unrecognized("option", option);
+            }
+        }
+        throw new IllegalArgumentException("Reading commands from a file is not supported, use -.");
+    }
+
+    public static void main(String[] args) throws IOException {
+        GMBatchEmulator emulator;
+        try {
+            emulator = new GMBatchEmulator(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println("gm batch: " + e.getMessage());
+            System.exit(EXIT_USAGE);
+            return;
+        }
+        emulator.run(System.in, System.out);
+    }
+
+    /**
+     * Reads the commands until the end of the input, and writes the results to the output.
+     */
+    void run(InputStream in, OutputStream output) throws IOException {
+        out = new BufferedOutputStream(output);
+        writePrompt();
+        for (String line = readLine(in); line != null; line = readLine(in)) {
+            if (echo) writeLine(line);
+            execute(line);
+            writePrompt();
+        }
+        out.flush();
+    }
+
+    /**
+     * Splits a command line into arguments as GraphicsMagick does with the given escape mode.
+     *
+     * @return the arguments
+     * @throws IllegalArgumentException
+     *             when a quote is not closed
+     */
+    static List<String> split(String line, boolean windowsEscape) {
+        List<String> tokens = new ArrayList<String>();
+        StringBuilder token = new StringBuilder();
+        boolean inToken = false;
+        char quote = 0;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quote != 0) {
+                if (!windowsEscape && c == '\\' && quote == '"' && i + 1 < line.length()) {
+                    token.append(line.charAt(++i));
+                } else if (c != quote) {
+                    token.append(c);
+                } else if (windowsEscape && i + 1 < line.length() && line.charAt(i + 1) == quote) {
+                    token.append(c);
+                    i++;
+                } else {
+                    quote = 0;
+                }
+            } else if (c == ' ' || c == '\t') {
+                if (inToken) tokens.add(token.toString());
+                token.setLength(0);
+                inToken = false;
+            } else if (c == '"' || (!windowsEscape && c == '\'')) {
+                quote = c;
+                inToken = true;
+            } else if (!windowsEscape && c == '\\' && i + 1 < line.length()) {
+                token.append(line.charAt(++i));
+                inToken = true;
+            } else {
+                token.append(c);
+                inToken = true;
+            }
+        }
+        if (quote != 0) throw new IllegalArgumentException("Unmatched quote in command line.");
+        if (inToken) tokens.add(token.toString());
+        return tokens;
+    }
+
+    private void execute(String line) throws IOException {
+        List<String> arguments;
+        try {
+            arguments = split(line, windowsEscape);
+        } catch (IllegalArgumentException e) {
+            writeLine("gm batch: " + e.getMessage());
+            writeFeedback(fail);
+            return;
+        }
+        if (arguments.isEmpty()) return;
+        String command = arguments.get(0);
+        double sleep = latency.sample(random);
+        int lines = (int) Math.round(output.sample(random));
+        double roll = random.nextDouble();
+        boolean crash = roll < crashRate;
+        boolean hang = !crash && roll < crashRate + hangRate;
+        boolean failure = !crash && !hang && roll < crashRate + hangRate + failureRate;
+        for (String argument : arguments) {
+            if (!argument.startsWith(DIRECTIVE)) continue;
+            String directive = argument.substring(DIRECTIVE.length());
+            if ("fail".equals(directive)) {
+                failure = true;
+            } else if ("hang".equals(directive)) {
+                hang = true;
+            } else if ("crash".equals(directive)) {
+                crash = true;
+            } else if (directive.startsWith("sleep=")) {
+                sleep = Double.parseDouble(directive.substring("sleep=".length()));
+            } else if (directive.startsWith("output=")) {
+                lines = Integer.parseInt(directive.substring("output=".length()));
+            }
+        }
+        if (hang) {
+            out.flush();
+            for (;;) {
+                LockSupport.park(this);
+            }
+        }
+        if (sleep > 0) LockSupport.parkNanos((long) (sleep * TimeUnit.MILLISECONDS.toNanos(1)));
+        if (crash) {
+            for (int i = 0; i < lines / 2; i++) {
+                writeLine(command + OUTPUT_LINE);
+            }
+            out.flush();
+            Runtime.getRuntime().halt(EXIT_CRASH);
+        }
+        if (failure) {
+            writeLine("gm " + command + ": Emulated failure " + arguments.subList(1, arguments.size()) + ".");
+            writeFeedback(fail);
+            return;
+        }
+        for (int i = 0; i < lines; i++) {
+            writeLine(command + OUTPUT_LINE);
+        }
+        writeFeedback(pass);
+    }
+
+    private void writeFeedback(String marker) throws IOException {
+        if (feedback) writeLine(marker);
+        out.flush();
+    }
+
+    private void writePrompt() throws IOException {
+        if (prompt == null) return;
+        out.write(prompt.getBytes(BYTES));
+        out.flush();
+    }
+
+    private void writeLine(String line) throws IOException {
+        out.write(line.getBytes(BYTES));
+        out.write('\n');
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) >= 0) {
+            if (c == '\n') break;
+            sb.append((char) c);
+        }
+        if (c < 0 && sb.length() == 0) return null;
+        int length = sb.length();
+        if (length > 0 && sb.charAt(length - 1) == '\r') sb.setLength(length - 1);
+        return sb.toString();
+    }
+
+    private static boolean onOff(String option, String value) {
+        if ("on".equals(value)) return true;
+        if ("off".equals(value)) return false;
+        throw unrecognized(option, value);
+    }
+
+    private static IllegalArgumentException unrecognized(String option, String value) {
+        return new IllegalArgumentException("Unrecognized " + option + " (" + value + ").");
+    }
+
+    /**
+     * A distribution of random values.
+     */
+    abstract static class Distribution {
+        abstract double sample(Random random);
+
+        /**
+         * Parses the specification of a distribution.
+         *
+         * @param spec
+         *            one of <code>value</code>, <code>fixed:value</code>, <code>uniform:min,max</code>,
+         *            <code>exponential:mean</code> and <code>lognormal:median,sigma</code>.
+         * @return the distribution
+         * @throws IllegalArgumentException
+         *             when the specification is malformed
+         */
+        static Distribution parse(String spec) {
+            int colon = spec.indexOf(':');
+            String type = colon < 0 ? "fixed" : spec.substring(0, colon);
+            String[] values = spec.substring(colon + 1).split(",");
+            final double[] p = new double[values.length];
+            try {
+                for (int i = 0; i < values.length; i++) {
+                    p[i] = Double.parseDouble(values[i].trim());
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Malformed distribution " + spec, e);
+            }
+            if ("fixed".equals(type) && p.length == 1) {
+                return new Distribution() {
+                    @Override
+                    double sample(Random random) {
+                        return p[0];
+                    }
+                };
+            }
+            if ("uniform".equals(type) && p.length == 2) {
+                return new Distribution() {
+                    @Override
+                    double sample(Random random) {
+                        return p[0] + random.nextDouble() * (p[1] - p[0]);
+                    }
+                };
+            }
+            if ("exponential".equals(type) && p.length == 1) {
+                return new Distribution() {
+                    @Override
+                    double sample(Random random) {
+                        return -p[0] * Math.log(1 - random.nextDouble());
+                    }
+                };
+            }
+            if ("lognormal".equals(type) && p.length == 2) {
+                return new Distribution() {
+                    @Override
+                    double sample(Random random) {
+                        return p[0] * Math.exp(p[1] * random.nextGaussian());
+                    }
+                };
+            }
+            throw new IllegalArgumentException("Malformed distribution " + spec);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link ReaderWriterProcess.Factory} that starts a {@link GMBatchEmulator} in a new JVM in place of GraphicsMagick, so
+ * the processes are talked to through real pipes and cost a real process spawn. The command passed to
+ * {@link #getProcess(String...)} is used as is except for the path to <code>gm</code>, the behavior of the emulator is
+ * set by the properties of this factory.
+ *
+ * @author Kenneth Xu
+ *
+ */
+public final class GMBatchEmulatorFactory implements ReaderWriterProcess.Factory {
+    private static final String[] DEFAULT_JVM_OPTIONS = { "-XX:TieredStopAtLevel=1", "-XX:+UseSerialGC", "-Xmx16m" };
+
+    private final Map<String, String> properties = new LinkedHashMap<String, String>();
+    private List<String> jvmOptions = Arrays.asList(DEFAULT_JVM_OPTIONS);
+
+    /**
+     * Sets the time each command takes in milliseconds.
+     *
+     * @param distribution
+     *            see {@link GMBatchEmulator} for the format
+     */
+    public void setLatency(String distribution) {
+        GMBatchEmulator.Distribution.parse(distribution);
+        properties.put(GMBatchEmulator.LATENCY, distribution);
+    }
+
+    /**
+     * Sets the number of output lines of each command.
+     *
+     * @param distribution
+     *            see {@link GMBatchEmulator} for the format
+     */
+    public void setOutputLines(String distribution) {
+        GMBatchEmulator.Distribution.parse(distribution);
+        properties.put(GMBatchEmulator.OUTPUT, distribution);
+    }
+
+    /**
+     * Sets the probability that a command fails.
+     */
+    public void setFailureRate(double rate) {
+        properties.put(GMBatchEmulator.FAILURE_RATE, rate(rate));
+    }
+
+    /**
+     * Sets the probability that a command never completes.
+     */
+    public void setHangRate(double rate) {
+        properties.put(GMBatchEmulator.HANG_RATE, rate(rate));
+    }
+
+    /**
+     * Sets the probability that the process dies in the middle of a command.
+     */
+    public void setCrashRate(double rate) {
+        properties.put(GMBatchEmulator.CRASH_RATE, rate(rate));
+    }
+
+    /**
+     * Sets the seed of the random numbers. Every process started by this factory uses the same seed.
+     */
+    public void setSeed(long seed) {
+        properties.put(GMBatchEmulator.SEED, String.valueOf(seed));
+    }
+
+    /**
+     * Sets the options of the emulator JVMs. The default favors a fast start over the peak performance.
+     */
+    public void setJvmOptions(String... options) {
+        if (options == null) throw new NullPointerException("options");
+        jvmOptions = Arrays.asList(options.clone());
+    }
+
+    @Override
+    public ReaderWriterProcess getProcess(String... command) throws IOException {
+        if (command == null) throw new NullPointerException("command");
+        List<String> cmd = new ArrayList<String>();
+        cmd.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        cmd.addAll(jvmOptions);
+        for (Map.Entry<String, String> property : properties.entrySet()) {
+            cmd.add("-D" + property.getKey() + "=" + property.getValue());
+        }
+        cmd.add("-cp");
+        cmd.add(classPath());
+        cmd.add(GMBatchEmulator.class.getName());
+        cmd.addAll(Arrays.asList(command).subList(1, command.length));
+        return new ReaderWriterProcessImpl(cmd.toArray(new String[cmd.size()]));
+    }
+
+    private static String classPath() {
+        try {
+            return new File(GMBatchEmulator.class.getProtectionDomain().getCodeSource().getLocation().toURI())
+                    .getPath();
+        } catch (URISyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String rate(double rate) {
+        if (rate < 0 || rate > 1) throw new IllegalArgumentException("rate must be between 0 and 1: " + rate);
+        return String.valueOf(rate);
+    }
+}
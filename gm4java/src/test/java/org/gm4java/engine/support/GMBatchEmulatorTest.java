@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+
+import org.gm4java.engine.GMException;
+import org.gm4java.engine.GMServiceException;
+import org.gm4java.engine.GMServiceTimeoutException;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Test cases for {@link GMBatchEmulator} and {@link GMBatchEmulatorFactory}.
+ *
+ * @author Kenneth Xu
+ *
+ */
+public class GMBatchEmulatorTest {
+    private static final String[] BATCH_ARGS = Arrays.asList(Constants.GM_COMMAND)
+            .subList(1, Constants.GM_COMMAND.length).toArray(new String[0]);
+    private static final int SAMPLES = 1000;
+    private static final long COMMAND_TIMEOUT_MILLIS = 500;
+
+    @Rule
+    public ExpectedException exception = ExpectedException.none();
+
+    private static String run(String input, String... args) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new GMBatchEmulator(args).run(new ByteArrayInputStream(input.getBytes("ISO-8859-1")), out);
+        return out.toString("ISO-8859-1");
+    }
+
+    @Test
+    public void constructor_acceptsGMCommand() {
+        new GMBatchEmulator(BATCH_ARGS);
+    }
+
+    @Test
+    public void constructor_chokes_onUnknownOption() {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("-bogus");
+
+        new GMBatchEmulator("batch", "-bogus", "on", "-");
+    }
+
+    @Test
+    public void constructor_chokes_onMissingBatch() {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("Usage");
+
+        new GMBatchEmulator("convert", "a.jpg", "b.jpg");
+    }
+
+    @Test
+    public void split_windows_groupsQuotedAndUnescapesDoubledQuotes() {
+        assertThat(GMBatchEmulator.split(" convert  \"a b.jpg\" \"say \"\"hi\"\"\" c\\d ", true),
+                is(Arrays.asList("convert", "a b.jpg", "say \"hi\"", "c\\d")));
+    }
+
+    @Test
+    public void split_unix_honorsBackslashAndSingleQuotes() {
+        assertThat(GMBatchEmulator.split("convert a\\ b.jpg 'c \"d' \"e\\\"f\"", false),
+                is(Arrays.asList("convert", "a b.jpg", "c \"d", "e\"f")));
+    }
+
+    @Test
+    public void split_keepsEmptyQuotedArgument() {
+        assertThat(GMBatchEmulator.split("convert \"\" x", true), is(Arrays.asList("convert", "", "x")));
+    }
+
+    @Test
+    public void split_chokes_onUnmatchedQuote() {
+        exception.expect(IllegalArgumentException.class);
+
+        GMBatchEmulator.split("convert \"a.jpg", true);
+    }
+
+    @Test
+    public void run_writesOutputThenPassMarker() throws Exception {
+        String result = run("identify a.jpg emulator:output=2\r\n", BATCH_ARGS);
+
+        assertThat(result, startsWith("identify "));
+        assertThat(result.split("\n").length, is(3));
+        assertThat(result, endsWith("\nOK\n"));
+    }
+
+    @Test
+    public void run_writesFailMarker_whenCommandFails() throws Exception {
+        assertThat(run("convert a.jpg emulator:fail\n", BATCH_ARGS), endsWith("\nNG\n"));
+    }
+
+    @Test
+    public void run_writesFailMarker_whenQuoteIsUnmatched() throws Exception {
+        assertThat(run("convert \"a.jpg\n", BATCH_ARGS), endsWith("\nNG\n"));
+    }
+
+    @Test
+    public void run_ignoresBlankLines() throws Exception {
+        assertThat(run("\n  \nconvert a.jpg b.jpg\n", BATCH_ARGS), is("OK\n"));
+    }
+
+    @Test
+    public void run_echoesAndPrompts_whenTurnedOn() throws Exception {
+        assertThat(run("convert a b\n", "batch", "-echo", "on", "-prompt", "gm> ", "-feedback", "on", "-pass", "P",
+                "-"), is("gm> convert a b\nP\ngm> "));
+    }
+
+    @Test
+    public void run_writesNoMarker_whenFeedbackIsOff() throws Exception {
+        assertThat(run("convert a b\nconvert c d emulator:fail\n", "batch", "-"), is("gm convert: Emulated failure "
+                + "[c, d, emulator:fail].\n"));
+    }
+
+    @Test
+    public void distribution_samplesWithinRange() {
+        GMBatchEmulator.Distribution uniform = GMBatchEmulator.Distribution.parse("uniform:2,5");
+        Random random = new Random(1);
+        for (int i = 0; i < SAMPLES; i++) {
+            double sample = uniform.sample(random);
+            assertThat(sample, greaterThanOrEqualTo(2.0));
+            assertThat(sample, lessThan(5.0));
+        }
+        assertThat(GMBatchEmulator.Distribution.parse("7").sample(random), is(7.0));
+        assertThat(GMBatchEmulator.Distribution.parse("exponential:3").sample(random), greaterThanOrEqualTo(0.0));
+        assertThat(GMBatchEmulator.Distribution.parse("lognormal:3,0.5").sample(random), greaterThan(0.0));
+    }
+
+    @Test
+    public void distribution_chokes_onMalformedSpec() {
+        exception.expect(IllegalArgumentException.class);
+
+        GMBatchEmulator.Distribution.parse("uniform:1");
+    }
+
+    @Test
+    public void factory_speaksBatchProtocolOverRealPipes() throws Exception {
+        GMBatchEmulatorFactory factory = new GMBatchEmulatorFactory();
+        factory.setOutputLines("3");
+        BasicGMConnection connection = new BasicGMConnection(factory.getProcess(Constants.GM_COMMAND));
+        try {
+            assertThat(connection.execute("identify", "a b.jpg").split("\n").length, is(3));
+            try {
+                connection.execute("convert", "a.jpg", "emulator:fail");
+                throw new AssertionError("should have failed");
+            } catch (GMException e) {
+                assertThat(e.getMessage(), containsString("Emulated failure"));
+            }
+            assertThat(connection.execute("identify", "emulator:output=0"), is(""));
+        } finally {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void factory_chokes_whenProcessCrashes() throws Exception {
+        GMBatchEmulatorFactory factory = new GMBatchEmulatorFactory();
+        BasicGMConnection connection = new BasicGMConnection(factory.getProcess(Constants.GM_COMMAND));
+        exception.expect(GMServiceException.class);
+        try {
+            connection.execute("convert", "a.jpg", "emulator:crash");
+        } finally {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void factory_timesOutHungCommandAndReplacesProcess() throws Exception {
+        GMConnectionPoolConfig config = new GMConnectionPoolConfig();
+        config.setCommandTimeoutMillis(COMMAND_TIMEOUT_MILLIS);
+        PooledGMService service = new PooledGMService(config);
+        service.setProcessFactory(new GMBatchEmulatorFactory());
+        try {
+            service.execute("convert", "a.jpg", "emulator:hang");
+            // SUPPRESS CHECKSTYLE EmptyBlock BECAUSE test
+        } catch (GMServiceTimeoutException e) {
+        }
+
+        assertThat(service.execute("identify", "a.jpg"), is(""));
+        assertThat(service.getMetrics().getExceptionEvictions(), is(1L));
+    }
+
+    @Test
+    public void factory_processExposesPidForUsage() throws Exception {
+        Assume.assumeTrue(new File("/proc/self/stat").exists());
+        ReaderWriterProcess process = new GMBatchEmulatorFactory().getProcess(Constants.GM_COMMAND);
+        try {
+            assertThat(process.isAlive(), is(true));
+            assertThat(ProcessUsage.read(process.getPid()), is(notNullValue()));
+        } finally {
+            process.destroy();
+        }
+    }
+
+    @Test
+    public void factory_chokes_onInvalidRate() {
+        exception.expect(IllegalArgumentException.class);
+
+        new GMBatchEmulatorFactory().setFailureRate(2);
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import org.gm4java.engine.GMConnection;
+import org.gm4java.engine.GMException;
+import org.gm4java.engine.GMResult;
+import org.gm4java.engine.GMService;
+import org.gm4java.engine.GMServiceException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Matchers;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test cases for {@link GMBatchExecutor}.
+ *
+ * @author Kenneth Xu
+ *
+ */
+public class GMBatchExecutorTest {
+    private static final long TIMEOUT_SECONDS = 5;
+    private static final int PARALLELISM = 2;
+
+    @Rule
+    public ExpectedException exception = ExpectedException.none();
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    @Mock
+    private GMService service;
+    @Mock
+    private GMConnection connection;
+
+    private GMBatchExecutor sut;
+
+    @Before
+    public void setup() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        when(service.getConnection()).thenReturn(connection);
+        doAnswer(succeeding()).when(connection).executeBatch(Matchers.<List<List<String>>> any());
+        sut = new GMBatchExecutor(service, PARALLELISM);
+    }
+
+    @After
+    public void teardown() {
+        sut.shutdown();
+    }
+
+    private static Answer<List<GMResult>> succeeding() {
+        return new Answer<List<GMResult>>() {
+            @Override
+            public List<GMResult> answer(InvocationOnMock invocation) throws Throwable {
+                List<?> commands = (List<?>) invocation.getArguments()[0];
+                return Collections.nCopies(commands.size(), GMResult.success(""));
+            }
+        };
+    }
+
+    private static List<List<String>> commands(int count) {
+        List<List<String>> commands = new ArrayList<List<String>>(count);
+        for (int i = 0; i < count; i++) {
+            commands.add(Arrays.asList("convert", i + ".jpg", i + ".png"));
+        }
+        return commands;
+    }
+
+    @Test
+    public void constructor_chokes_onNullService() {
+        exception.expect(NullPointerException.class);
+        exception.expectMessage("service");
+
+        new GMBatchExecutor(null);
+    }
+
+    @Test
+    public void submit_doesNotUseManagedBlocking_inWorkers() throws Exception {
+        final List<Boolean> needed = Collections.synchronizedList(new ArrayList<Boolean>());
+        doAnswer(new Answer<GMConnection>() {
+            @Override
+            public GMConnection answer(InvocationOnMock invocation) throws Throwable {
+                needed.add(ManagedBlocking.isNeeded());
+                return connection;
+            }
+        }).when(service).getConnection();
+
+        sut.submit(commands(10)).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        assertThat(needed.isEmpty(), is(false));
+        assertThat(needed.contains(true), is(false));
+    }
+
+    @Test
+    public void submit_chokes_onEmptyCommand() {
+        exception.expect(IllegalArgumentException.class);
+
+        sut.submit(Arrays.asList(Arrays.<String> asList()));
+    }
+
+    @Test
+    public void submit_executesEachChunkWithOneConnection() throws Exception {
+        sut.setChunkSize(3);
+
+        GMBatchProgress progress = sut.submit(commands(10)).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        assertThat(progress.getCompleted(), is(10));
+        assertThat(progress.getFailed(), is(0));
+        assertThat(progress.isDone(), is(true));
+        verify(service, times(4)).getConnection();
+        verify(connection, times(4)).close();
+    }
+
+    @Test
+    public void submit_executesEveryCommandOnce() throws Exception {
+        final List<List<String>> executed = Collections.synchronizedList(new ArrayList<List<String>>());
+        doAnswer(new Answer<List<GMResult>>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public List<GMResult> answer(InvocationOnMock invocation) throws Throwable {
+                List<List<String>> commands = (List<List<String>>) invocation.getArguments()[0];
+                executed.addAll(commands);
+                return Collections.nCopies(commands.size(), GMResult.success(""));
+            }
+        }).when(connection).executeBatch(Matchers.<List<List<String>>> any());
+        List<List<String>> commands = commands(100);
+
+        sut.submit(commands).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        assertThat(executed.size(), is(commands.size()));
+        assertThat(executed.containsAll(commands), is(true));
+    }
+
+    @Test
+    public void submit_doesNotBorrowConnection_whenThereIsNoCommand() throws Exception {
+        GMBatchProgress progress = sut.submit(commands(0)).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        assertThat(progress.getTotal(), is(0));
+        verify(service, never()).getConnection();
+    }
+
+    @Test
+    public void submit_reportsFailedCommands() throws Exception {
+        final GMException failure = new GMException("bad image");
+        doReturn(Arrays.asList(GMResult.success(""), GMResult.failure(failure))).when(connection).executeBatch(
+                Matchers.<List<List<String>>> any());
+        sut.setChunkSize(2);
+
+        GMBatchProgress progress = sut.submit(commands(2)).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        assertThat(progress.getCompleted(), is(2));
+        assertThat(progress.getFailures().keySet().toString(), is("[1]"));
+        assertThat(progress.getFailures().get(1), sameInstance((Exception) failure));
+    }
+
+    @Test
+    public void submit_failsWholeChunk_whenConnectionIsNotAvailable() throws Exception {
+        GMServiceException failure = new GMServiceException("no process");
+        when(service.getConnection()).thenThrow(failure);
+        sut.setChunkSize(3);
+
+        GMBatchProgress progress = sut.submit(commands(3)).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        assertThat(progress.getFailed(), is(3));
+        assertThat(progress.getFailures().get(0), sameInstance((Exception) failure));
+    }
+
+    @Test
+    public void submit_notifiesListener() throws Exception {
+        GMBatchListener listener = mock(GMBatchListener.class);
+        sut.setChunkSize(5);
+
+        sut.submit(commands(10), listener).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        verify(listener, timeout((int) TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS))).onComplete(
+                Matchers.any(GMBatchProgress.class));
+        verify(listener, times(2)).onProgress(Matchers.any(GMBatchProgress.class));
+    }
+
+    @Test
+    public void cancel_skipsChunksNotStarted() throws Exception {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        doAnswer(new Answer<List<GMResult>>() {
+            @Override
+            public List<GMResult> answer(InvocationOnMock invocation) throws Throwable {
+                entered.countDown();
+                assertThat(release.await(TIMEOUT_SECONDS, TimeUnit.SECONDS), is(true));
+                return succeeding().answer(invocation);
+            }
+        }).when(connection).executeBatch(Matchers.<List<List<String>>> any());
+        sut = new GMBatchExecutor(service, 1);
+        sut.setChunkSize(1);
+        GMBatchListener listener = mock(GMBatchListener.class);
+        GMBatchFuture future = sut.submit(commands(10), listener);
+        assertThat(entered.await(TIMEOUT_SECONDS, TimeUnit.SECONDS), is(true));
+
+        assertThat(future.cancel(false), is(true));
+        release.countDown();
+
+        assertThat(future.isCancelled(), is(true));
+        try {
+            future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (CancellationException e) { // SUPPRESS CHECKSTYLE EmptyBlock BECAUSE test
+        }
+        verify(listener, timeout((int) TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS))).onComplete(
+                Matchers.any(GMBatchProgress.class));
+        assertThat(future.getProgress().getCompleted(), is(1));
+        verify(service, times(1)).getConnection();
+    }
+
+    @Test
+    public void commandsFor_substitutesEachFileOfSourceDirectory() throws Exception {
+        File source = folder.newFolder("source");
+        File target = new File(folder.getRoot(), "target");
+        new File(source, "b.jpg").createNewFile();
+        new File(source, "a.jpg").createNewFile();
+        new File(source, "sub").mkdir();
+
+        List<List<String>> commands = GMBatchExecutor.commandsFor(source, target,
+                Arrays.asList("convert", GMService.INPUT, "-resize", "10x10", GMService.OUTPUT));
+
+        assertThat(commands.size(), is(2));
+        assertThat(commands.get(0), is(Arrays.asList("convert", new File(source, "a.jpg").getPath(), "-resize",
+                "10x10", new File(target, "a.jpg").getPath())));
+        assertThat(commands.get(1).get(1), is(new File(source, "b.jpg").getPath()));
+    }
+
+    @Test
+    public void commandsFor_chokes_whenTemplateHasNoPlaceholder() throws Exception {
+        exception.expect(IllegalArgumentException.class);
+
+        GMBatchExecutor.commandsFor(folder.newFolder("empty"), folder.getRoot(), Arrays.asList("convert"));
+    }
+}
@@ -21,6 +21,7 @@ import static org.mockito.Mockito.*;
 
 import org.gm4java.engine.GMServiceException;
 import org.junit.After;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -30,8 +31,14 @@ import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.Writer;
+import java.util.Arrays;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Test cases for {@link GMConnectionPool}.
@@ -42,6 +49,8 @@ import java.io.Writer;
 public class GMConnectionPoolTest {
     private static final String READER_WRITER_PROCESS_FAILURE = "Something bad happended";
     private static final int MOCK_PROCESS_ARRAY_SIZE = 3;
+    private static final long TIMEOUT_SECONDS = 5;
+    private static final long SHORT_WAIT_MILLIS = 10;
 
     @Rule
     public ExpectedException exception = ExpectedException.none();
@@ -124,6 +133,87 @@ public class GMConnectionPoolTest {
         sut.borrowObject();
     }
 
+    @Test
+    public void returnObject_restoresCommandTimeoutOfPool() throws Exception {
+        final long timeout = 1234;
+        sut.setCommandTimeoutMillis(timeout);
+        PooledGMConnection connection = sut.borrowObject();
+        connection.setCommandTimeoutMillis(1);
+
+        sut.returnObject(connection);
+
+        assertThat(connection.getCommandTimeoutMillis(), is(timeout));
+    }
+
+    @Test
+    public void prewarm_createsIdleConnectionsInParallel() throws Exception {
+        final int count = 3;
+        final CyclicBarrier allStarted = new CyclicBarrier(count);
+        sut.setProcessFactory(new ReaderWriterProcess.Factory() {
+            @Override
+            public ReaderWriterProcess getProcess(String... command) throws IOException {
+                try {
+                    allStarted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                } catch (Exception e) {
+                    throw new IOException("Not created in parallel: " + e);
+                }
+                return process;
+            }
+        });
+
+        sut.prewarm(count).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        assertThat(sut.getNumIdle(), is(count));
+    }
+
+    @Test
+    public void prewarm_completesImmediately_whenCountIsZero() throws Exception {
+        Future<Void> readiness = sut.prewarm(0);
+
+        assertThat(readiness.isDone(), is(true));
+        assertThat(sut.getNumIdle(), is(0));
+    }
+
+    @Test
+    public void prewarm_fails_whenCreateReaderWriterFails() throws Exception {
+        when(factory.getProcess(Matchers.<String[]> anyVararg())).thenThrow(
+                new IOException(READER_WRITER_PROCESS_FAILURE));
+
+        try {
+            sut.prewarm(2).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            throw new AssertionError("ExecutionException expected");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), instanceOf(GMServiceException.class));
+            assertThat(e.getCause().getMessage(), is(READER_WRITER_PROCESS_FAILURE));
+        }
+    }
+
+    @Test
+    public void borrowObject_runsWarmUpCommand_onNewConnection() throws Exception {
+        sut.setWarmUpCommand(Arrays.asList("convert", "logo:", "null:"));
+
+        PooledGMConnection connection = sut.borrowObject();
+
+        verify(reader, times(1)).readLine();
+        sut.returnObject(connection);
+        assertThat(sut.borrowObject(), sameInstance(connection));
+        verify(reader, times(1)).readLine();
+    }
+
+    @Test
+    public void borrowObject_chokes_whenWarmUpCommandFails() throws Exception {
+        when(reader.readLine()).thenReturn("bad image", "NG");
+        sut.setWarmUpCommand(Arrays.asList("convert", "logo:", "null:"));
+        exception.expect(GMServiceException.class);
+        exception.expectMessage("Warm-up command failed: bad image");
+
+        try {
+            sut.borrowObject();
+        } finally {
+            verify(process).destroy();
+        }
+    }
+
     @Test
     public void borrowObject_doesNotReturnUnhealthyConnection() throws Exception {
         when(reader.readLine()).thenThrow(new IOException(READER_WRITER_PROCESS_FAILURE));
@@ -204,6 +294,272 @@ public class GMConnectionPoolTest {
         assertThat(connection2, not(is(connection)));
     }
 
+    private GMConnectionPool newTestOnBorrowPool(ValidationStrategy strategy) throws Exception {
+        sut.close();
+        config.setValidationStrategy(strategy);
+        config.setTestOnGet(true);
+        sut = new GMConnectionPool(config);
+        sut.setProcessFactory(factory);
+        when(process.isAlive()).thenReturn(true);
+        return sut;
+    }
+
+    @Test
+    public void validationStrategyAlive_doesNotPing() throws Exception {
+        newTestOnBorrowPool(ValidationStrategy.ALIVE);
+        when(reader.readLine()).thenReturn("NG");
+
+        PooledGMConnection connection = sut.borrowObject();
+        sut.returnObject(connection);
+        PooledGMConnection connection2 = sut.borrowObject();
+
+        assertThat(connection2, is(connection));
+        verify(writer, never()).write("ping");
+    }
+
+    @Test
+    public void validationStrategyAlive_removesDeadProcess() throws Exception {
+        newTestOnBorrowPool(ValidationStrategy.ALIVE);
+
+        PooledGMConnection connection = sut.borrowObject();
+        sut.returnObject(connection);
+        when(process.isAlive()).thenReturn(false, true);
+        PooledGMConnection connection2 = sut.borrowObject();
+
+        assertThat(connection2, not(is(connection)));
+        assertThat(sut.getMetrics().getValidationFailures(), is(1L));
+    }
+
+    @Test
+    public void validationStrategyIdle_doesNotPing_whenRecentlyUsed() throws Exception {
+        config.setValidationIdleMillis(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+        newTestOnBorrowPool(ValidationStrategy.IDLE);
+        when(reader.readLine()).thenReturn("NG");
+
+        PooledGMConnection connection = sut.borrowObject();
+        sut.returnObject(connection);
+        PooledGMConnection connection2 = sut.borrowObject();
+
+        assertThat(connection2, is(connection));
+    }
+
+    @Test
+    public void validationStrategyIdle_pings_whenIdleLongEnough() throws Exception {
+        config.setValidationIdleMillis(1);
+        newTestOnBorrowPool(ValidationStrategy.IDLE);
+
+        PooledGMConnection connection = sut.borrowObject();
+        sut.returnObject(connection);
+        Thread.sleep(SHORT_WAIT_MILLIS);
+        when(reader.readLine()).thenReturn("NG", "OK");
+        PooledGMConnection connection2 = sut.borrowObject();
+
+        assertThat(connection2, not(is(connection)));
+    }
+
+    @Test
+    public void validationStrategySampled_pingsOnEveryNthValidation() throws Exception {
+        config.setValidationInterval(2);
+        newTestOnBorrowPool(ValidationStrategy.SAMPLED);
+        when(reader.readLine()).thenReturn("NG", "OK");
+
+        PooledGMConnection connection = sut.borrowObject();
+        sut.returnObject(connection);
+        PooledGMConnection connection2 = sut.borrowObject();
+
+        assertThat(connection2, not(is(connection)));
+        assertThat(sut.getMetrics().getValidationFailures(), is(1L));
+    }
+
+    @Test
+    public void setValidationInterval_chokes_onNonPositive() {
+        exception.expect(IllegalArgumentException.class);
+
+        config.setValidationInterval(0);
+    }
+
+    private GMConnectionPool newPool() throws Exception {
+        sut.close();
+        sut = new GMConnectionPool(config);
+        sut.setProcessFactory(factory);
+        return sut;
+    }
+
+    @Test
+    public void returnObject_evictsProcess_whenOlderThanMaxProcessAge() throws Exception {
+        config.setMaxProcessAgeMillis(1);
+        newPool();
+        PooledGMConnection connection = sut.borrowObject();
+        Thread.sleep(SHORT_WAIT_MILLIS);
+
+        sut.returnObject(connection);
+
+        assertThat(sut.getNumIdle(), is(0));
+        assertThat(sut.getMetrics().getAgeEvictions(), is(1L));
+    }
+
+    @Test
+    public void returnObject_evictsProcess_whenAboveMaxProcessMemory() throws Exception {
+        Assume.assumeTrue(new File("/proc/self/status").exists());
+        when(process.getPid()).thenReturn(TestUtils.currentPid());
+        config.setMaxProcessMemoryBytes(1);
+        newPool();
+
+        sut.returnObject(sut.borrowObject());
+
+        assertThat(sut.getNumIdle(), is(0));
+        assertThat(sut.getMetrics().getMemoryEvictions(), is(1L));
+        assertThat(sut.getMetrics().getCpuEvictions(), is(0L));
+    }
+
+    @Test
+    public void returnObject_evictsProcess_whenAboveMaxProcessCpu() throws Exception {
+        Assume.assumeTrue(new File("/proc/self/stat").exists());
+        when(process.getPid()).thenReturn(TestUtils.currentPid());
+        config.setMaxProcessCpuMillis(1);
+        newPool();
+
+        sut.returnObject(sut.borrowObject());
+
+        assertThat(sut.getNumIdle(), is(0));
+        assertThat(sut.getMetrics().getCpuEvictions(), is(1L));
+    }
+
+    @Test
+    public void returnObject_checksUsageOncePerInterval() throws Exception {
+        Assume.assumeTrue(new File("/proc/self/status").exists());
+        when(process.getPid()).thenReturn(-1L);
+        config.setMaxProcessMemoryBytes(1);
+        config.setUsageCheckIntervalMillis(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+        newPool();
+        sut.returnObject(sut.borrowObject());
+        when(process.getPid()).thenReturn(TestUtils.currentPid());
+
+        sut.returnObject(sut.borrowObject());
+
+        assertThat(sut.getNumIdle(), is(1));
+        assertThat(sut.getMetrics().getMemoryEvictions(), is(0L));
+    }
+
+    @Test
+    public void returnObject_checksUsageEveryTime_whenIntervalIsZero() throws Exception {
+        Assume.assumeTrue(new File("/proc/self/status").exists());
+        when(process.getPid()).thenReturn(-1L);
+        config.setMaxProcessMemoryBytes(1);
+        config.setUsageCheckIntervalMillis(0);
+        newPool();
+        sut.returnObject(sut.borrowObject());
+        when(process.getPid()).thenReturn(TestUtils.currentPid());
+
+        sut.returnObject(sut.borrowObject());
+
+        assertThat(sut.getNumIdle(), is(0));
+        assertThat(sut.getMetrics().getMemoryEvictions(), is(1L));
+    }
+
+    @Test
+    public void returnObject_keepsProcess_whenUsageIsUnknown() throws Exception {
+        when(process.getPid()).thenReturn(-1L);
+        config.setMaxProcessMemoryBytes(1);
+        config.setMaxProcessCpuMillis(1);
+        newPool();
+
+        sut.returnObject(sut.borrowObject());
+
+        assertThat(sut.getNumIdle(), is(1));
+    }
+
+    @Test
+    public void returnObject_destroysRetiredProcessWithoutSuccessor_whenBackgroundReplacement() throws Exception {
+        when(factory.getProcess(Matchers.<String[]> anyVararg())).thenReturn(process, processes[0]);
+        config.setMaxProcessAgeMillis(1);
+        config.setBackgroundReplacement(true);
+        newPool();
+        PooledGMConnection connection = sut.borrowObject();
+        Thread.sleep(SHORT_WAIT_MILLIS);
+
+        sut.returnObject(connection);
+
+        verify(process, timeout((int) TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS))).destroy();
+        verify(factory, times(1)).getProcess(Matchers.<String[]> anyVararg());
+        assertThat(sut.getNumIdle(), is(0));
+        assertThat(sut.getMetrics().getAgeEvictions(), is(1L));
+    }
+
+    @Test
+    public void tryAddObject_neverAdds() throws Exception {
+        assertThat(sut.tryAddObject(), is(false));
+
+        assertThat(sut.getNumIdle(), is(0));
+        verify(factory, never()).getProcess(Matchers.<String[]> anyVararg());
+    }
+
+    @Test
+    public void returnObject_doesNotReplaceBrokenProcess_whenBackgroundReplacement() throws Exception {
+        config.setBackgroundReplacement(true);
+        newPool();
+        when(reader.readLine()).thenThrow(new IOException(READER_WRITER_PROCESS_FAILURE));
+        PooledGMConnection connection = sut.borrowObject();
+        try {
+            connection.execute(gmCommand);
+            // SUPPRESS CHECKSTYLE EmptyBlock BECAUSE test
+        } catch (GMServiceException e) {
+        }
+
+        sut.returnObject(connection);
+
+        verify(process).destroy();
+        assertThat(sut.getNumIdle(), is(0));
+        verify(factory, times(1)).getProcess(Matchers.<String[]> anyVararg());
+    }
+
+    @Test
+    public void borrowObject_recordsBorrowWaitAndProcessSpawn() throws Exception {
+        sut.returnObject(sut.borrowObject());
+        sut.returnObject(sut.borrowObject());
+
+        GMServiceMetrics metrics = sut.getMetrics().snapshot();
+        assertThat(metrics.getBorrowWaitNanos().getCount(), is(2L));
+        assertThat(metrics.getProcessSpawnNanos().getCount(), is(1L));
+        assertThat(metrics.getNumIdle(), is(1));
+    }
+
+    @Test
+    public void setTestOnReturn_recordsValidationFailure() throws Exception {
+        when(reader.readLine()).thenReturn("NG");
+        sut.setTestOnReturn(true);
+
+        sut.returnObject(sut.borrowObject());
+
+        assertThat(sut.getMetrics().getValidationFailures(), is(1L));
+        assertThat(sut.getMetrics().getIdleEvictions(), is(0L));
+    }
+
+    @Test
+    public void evict_recordsIdleEviction() throws Exception {
+        sut.setMinEvictableIdleTimeMillis(1);
+        sut.returnObject(sut.borrowObject());
+        Thread.sleep(SHORT_WAIT_MILLIS);
+
+        sut.evict();
+
+        assertThat(sut.getNumIdle(), is(0));
+        assertThat(sut.getMetrics().getIdleEvictions(), is(1L));
+    }
+
+    @Test
+    public void evict_doesNotRecordIdleEviction_whenValidationFails() throws Exception {
+        when(reader.readLine()).thenReturn("NG");
+        sut.setTestWhileIdle(true);
+        sut.returnObject(sut.borrowObject());
+
+        sut.evict();
+
+        assertThat(sut.getNumIdle(), is(0));
+        assertThat(sut.getMetrics().getValidationFailures(), is(1L));
+        assertThat(sut.getMetrics().getIdleEvictions(), is(0L));
+    }
+
     @Test
     public void setGMPath_chokes_onNullPath() throws Exception {
         exception.expect(NullPointerException.class);
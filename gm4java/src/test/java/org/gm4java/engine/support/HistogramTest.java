@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Test cases for {@link Histogram} and {@link HistogramSnapshot}.
+ *
+ * @author Kenneth Xu
+ *
+ */
+public class HistogramTest {
+    private static final int THREADS = 4;
+    private static final int LOOP = 10000;
+
+    @Rule
+    public ExpectedException exception = ExpectedException.none();
+
+    private final Histogram sut = new Histogram();
+
+    @Test
+    public void snapshot_returnsZeros_whenNothingRecorded() {
+        HistogramSnapshot snapshot = sut.snapshot();
+
+        assertThat(snapshot.getCount(), is(0L));
+        assertThat(snapshot.getMean(), is(0.0));
+        assertThat(snapshot.getMax(), is(0L));
+        assertThat(snapshot.get99thPercentile(), is(0L));
+    }
+
+    @Test
+    public void snapshot_returnsExactValues_whenValuesAreSmall() {
+        for (long i = 1; i <= 4; i++) {
+            sut.record(i);
+        }
+
+        HistogramSnapshot snapshot = sut.snapshot();
+
+        assertThat(snapshot.getCount(), is(4L));
+        assertThat(snapshot.getSum(), is(10L));
+        assertThat(snapshot.getMean(), is(2.5));
+        assertThat(snapshot.getMax(), is(4L));
+        assertThat(snapshot.getMedian(), is(2L));
+        assertThat(snapshot.getPercentile(1), is(4L));
+    }
+
+    @Test
+    public void getPercentile_isWithinOneEighthAboveRealValue() {
+        final int n = 1000;
+        for (long i = 1; i <= n; i++) {
+            sut.record(i * 1000);
+        }
+
+        HistogramSnapshot snapshot = sut.snapshot();
+
+        long median = snapshot.getMedian();
+        long p90 = snapshot.get90thPercentile();
+        assertThat(median, greaterThanOrEqualTo(500000L));
+        assertThat(median, lessThanOrEqualTo(562500L));
+        assertThat(p90, greaterThanOrEqualTo(900000L));
+        assertThat(p90, lessThanOrEqualTo(1000000L));
+        assertThat(snapshot.get999thPercentile(), is(1000000L));
+    }
+
+    @Test
+    public void add_addsValuesOfOtherHistogram() {
+        Histogram other = new Histogram();
+        sut.record(3);
+        other.record(5);
+        other.record(1000);
+
+        sut.add(other);
+
+        HistogramSnapshot snapshot = sut.snapshot();
+        assertThat(snapshot.getCount(), is(3L));
+        assertThat(snapshot.getSum(), is(1008L));
+        assertThat(snapshot.getMax(), is(1000L));
+        assertThat(snapshot.getMedian(), is(5L));
+    }
+
+    @Test
+    public void record_countsNegativeValueAsZero() {
+        sut.record(-1);
+
+        assertThat(sut.snapshot().getSum(), is(0L));
+        assertThat(sut.snapshot().getCount(), is(1L));
+    }
+
+    @Test
+    public void record_handlesLargestValue() {
+        sut.record(Long.MAX_VALUE);
+
+        assertThat(sut.snapshot().getMedian(), is(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void bucketsAreContiguous() {
+        for (int i = 1; i < Histogram.indexOf(Long.MAX_VALUE); i++) {
+            long upper = Histogram.upperBoundOf(i);
+            assertThat(Histogram.indexOf(upper), is(i));
+            assertThat(Histogram.indexOf(upper + 1), is(i + 1));
+        }
+    }
+
+    @Test
+    public void getPercentile_chokes_onQuantileOutOfRange() {
+        exception.expect(IllegalArgumentException.class);
+        sut.snapshot().getPercentile(1.5);
+    }
+
+    @Test
+    public void record_countsEveryValue_whenRecordedConcurrently() throws Exception {
+        final CountDownLatch done = new CountDownLatch(THREADS);
+        for (int t = 0; t < THREADS; t++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < LOOP; i++) {
+                        sut.record(i);
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+
+        HistogramSnapshot snapshot = sut.snapshot();
+
+        assertThat(snapshot.getCount(), is((long) THREADS * LOOP));
+        assertThat(snapshot.getSum(), is((long) THREADS * LOOP * (LOOP - 1) / 2));
+        assertThat(snapshot.getMax(), is(LOOP - 1L));
+    }
+}
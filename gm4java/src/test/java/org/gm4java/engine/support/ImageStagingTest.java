@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import org.gm4java.engine.GMException;
+import org.gm4java.engine.GMService;
+import org.gm4java.engine.GMServiceException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Matchers;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Test cases for {@link ImageStaging}.
+ *
+ * @author Kenneth Xu
+ *
+ */
+public class ImageStagingTest {
+    private static final byte[] IMAGE = { 'G', 'I', 'F', '8', '9', 'a', 0, (byte) 0xff };
+    private static final List<String> COMMAND = Arrays.asList("convert", "gif:" + GMService.INPUT, "-flip",
+            "png:" + GMService.OUTPUT);
+
+    @Rule
+    public ExpectedException exception = ExpectedException.none();
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    @Mock
+    private GMService service;
+
+    private List<String> executed;
+    private ImageStaging sut;
+
+    @Before
+    public void setup() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        sut = new ImageStaging(folder.getRoot());
+        doAnswer(new Answer<Void>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                executed = (List<String>) invocation.getArguments()[0];
+                copyReversed(executed.get(1).substring("gif:".length()), executed.get(3).substring("png:".length()));
+                return null;
+            }
+        }).when(service).executeNoOutput(Matchers.<List<String>> any());
+    }
+
+    private static void copyReversed(String from, String to) throws IOException {
+        InputStream in = new FileInputStream(from);
+        byte[] content = new byte[(int) new File(from).length()];
+        try {
+            assertThat(in.read(content), is(content.length));
+        } finally {
+            in.close();
+        }
+        byte[] reversed = new byte[content.length];
+        for (int i = 0; i < content.length; i++) {
+            reversed[i] = content[content.length - 1 - i];
+        }
+        OutputStream out = new FileOutputStream(to);
+        try {
+            out.write(reversed);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static byte[] reversed() {
+        byte[] result = new byte[IMAGE.length];
+        for (int i = 0; i < IMAGE.length; i++) {
+            result[i] = IMAGE[IMAGE.length - 1 - i];
+        }
+        return result;
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] result = new byte[buffer.remaining()];
+        buffer.get(result);
+        return result;
+    }
+
+    @Test
+    public void defaultDirectory_isSharedMemory_whenAvailable() {
+        File shm = new File("/dev/shm");
+        File expected = shm.isDirectory() && shm.canWrite() ? shm : new File(System.getProperty("java.io.tmpdir"));
+
+        assertThat(new ImageStaging(null).getDirectory(), is(expected));
+    }
+
+    @Test
+    public void substitute_replacesPlaceholders() {
+        List<String> result = ImageStaging.substitute(COMMAND, "/in", "/out");
+
+        assertThat(result, is(Arrays.asList("convert", "gif:/in", "-flip", "png:/out")));
+    }
+
+    @Test
+    public void substitute_chokes_onMissingInput() {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage(GMService.INPUT);
+        ImageStaging.substitute(Arrays.asList("convert", "logo:", GMService.OUTPUT), "/in", "/out");
+    }
+
+    @Test
+    public void substitute_chokes_onMissingOutput() {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage(GMService.OUTPUT);
+        ImageStaging.substitute(Arrays.asList("convert", GMService.INPUT, "-flip"), "/in", "/out");
+    }
+
+    @Test
+    public void execute_passesBufferThroughStagedFiles() throws Exception {
+        ByteBuffer input = ByteBuffer.allocateDirect(IMAGE.length + 2);
+        input.put((byte) 1).put(IMAGE).flip();
+        input.get();
+
+        ByteBuffer result = sut.execute(service, COMMAND, input);
+
+        assertThat(toArray(result), is(reversed()));
+        assertThat(input.position(), is(1));
+        assertThat(executed.get(1), org.hamcrest.Matchers.startsWith("gif:" + folder.getRoot().getPath()));
+    }
+
+    @Test
+    public void execute_passesStreamThroughStagedFiles() throws Exception {
+        ByteBuffer result = sut.execute(service, COMMAND, new ByteArrayInputStream(IMAGE));
+
+        assertThat(toArray(result), is(reversed()));
+    }
+
+    @Test
+    public void execute_stagesFilesWithoutExtension() throws Exception {
+        sut.execute(service, COMMAND, ByteBuffer.wrap(IMAGE));
+
+        assertThat(new File(executed.get(1)).getName().contains("."), is(false));
+        assertThat(new File(executed.get(3)).getName().contains("."), is(false));
+    }
+
+    @Test
+    public void execute_deletesStagedFiles() throws Exception {
+        sut.execute(service, COMMAND, ByteBuffer.wrap(IMAGE));
+
+        assertThat(folder.getRoot().list().length, is(0));
+    }
+
+    @Test
+    public void execute_deletesStagedFiles_whenCommandFails() throws Exception {
+        GMException error = new GMException("bad image");
+        doThrow(error).when(service).executeNoOutput(Matchers.<List<String>> any());
+        try {
+            sut.execute(service, COMMAND, ByteBuffer.wrap(IMAGE));
+            // SUPPRESS CHECKSTYLE EmptyBlock BECAUSE test
+        } catch (GMException e) {
+        }
+
+        assertThat(folder.getRoot().list().length, is(0));
+    }
+
+    @Test
+    public void execute_chokes_whenStreamFails() throws Exception {
+        exception.expect(GMServiceException.class);
+        exception.expectMessage("broken");
+        sut.execute(service, COMMAND, new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("broken");
+            }
+        });
+    }
+
+    @Test
+    public void execute_doesNotCallService_whenPlaceholderIsMissing() throws Exception {
+        try {
+            sut.execute(service, Arrays.asList("convert", GMService.INPUT), ByteBuffer.wrap(IMAGE));
+            // SUPPRESS CHECKSTYLE EmptyBlock BECAUSE test
+        } catch (IllegalArgumentException e) {
+        }
+
+        verify(service, never()).executeNoOutput(Matchers.<List<String>> any());
+        assertThat(folder.getRoot().list().length, is(0));
+    }
+
+    @Test
+    public void execute_chokes_onNullInput() throws Exception {
+        exception.expect(NullPointerException.class);
+        sut.execute(service, COMMAND, (ByteBuffer) null);
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+
+import org.gm4java.engine.GMException;
+import org.gm4java.engine.GMServiceException;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test cases for {@link ManagedBlocking}.
+ *
+ * @author Kenneth Xu
+ *
+ */
+public class ManagedBlockingTest {
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private final ForkJoinPool pool = new ForkJoinPool(1);
+
+    @After
+    public void teardown() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void isNeeded_returnsFalse_whenNotInForkJoinPool() {
+        assertThat(ManagedBlocking.isNeeded(), is(false));
+    }
+
+    @Test
+    public void isNeeded_returnsTrue_whenInForkJoinPool() throws Exception {
+        Future<Boolean> future = pool.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return ManagedBlocking.isNeeded();
+            }
+        });
+
+        assertThat(future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS), is(true));
+    }
+
+    @Test
+    public void run_returnsResultOfCall() throws Exception {
+        String result = new ManagedBlocking<String, GMException>() {
+            @Override
+            String call() {
+                return "done";
+            }
+        }.run();
+
+        assertThat(result, is("done"));
+    }
+
+    @Test
+    public void run_letsPoolRunOtherTasks_whileBlocked() throws Exception {
+        final CountDownLatch released = new CountDownLatch(1);
+        Future<Boolean> blocked = pool.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return new ManagedBlocking<Boolean, InterruptedException>() {
+                    @Override
+                    Boolean call() throws InterruptedException {
+                        return released.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                    }
+                }.run();
+            }
+        });
+        pool.submit(new Runnable() {
+            @Override
+            public void run() {
+                released.countDown();
+            }
+        });
+
+        assertThat(blocked.get(TIMEOUT_SECONDS * 2, TimeUnit.SECONDS), is(true));
+    }
+
+    @Test(expected = GMException.class)
+    public void run_rethrowsCheckedException() throws Exception {
+        new ManagedBlocking<String, GMException>() {
+            @Override
+            String call() throws GMException {
+                throw new GMException("bad");
+            }
+        }.run();
+    }
+
+    @Test(expected = GMServiceException.class)
+    public void run_rethrowsServiceException() throws Exception {
+        new ManagedBlocking<String, GMException>() {
+            @Override
+            String call() throws GMServiceException {
+                throw new GMServiceException("broken");
+            }
+        }.run();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void run_rethrowsRuntimeException() throws Exception {
+        new ManagedBlocking<String, GMException>() {
+            @Override
+            String call() {
+                throw new IllegalStateException();
+            }
+        }.run();
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import org.gm4java.engine.GMConnection;
+import org.gm4java.engine.GMResult;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the standard connection tests against a connection in pipelined mode, plus tests that need concurrent callers.
+ */
+public class PipelinedGMConnectionTest extends AbstractGMConnectionTest {
+    private static final int DEPTH = 3;
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private BasicGMConnection sut;
+
+    @Before
+    public void setup() throws Exception {
+        super.setup();
+        sut = new BasicGMConnection(process);
+        sut.setPipelineDepth(DEPTH);
+    }
+
+    @Override
+    protected GMConnection sut() {
+        return sut;
+    }
+
+    @Test
+    public void setPipelineDepth_one_disablesPipelining() throws Exception {
+        sut.setPipelineDepth(1);
+
+        assertThat(sut.isPipelined(), is(false));
+    }
+
+    @Test
+    public void execute_writesAhead_andMatchesResultsInOrder() throws Exception {
+        final EchoProcess echo = new EchoProcess(DEPTH);
+        sut = new BasicGMConnection(echo);
+        sut.setPipelineDepth(DEPTH);
+        ExecutorService executor = Executors.newFixedThreadPool(DEPTH);
+        try {
+            @SuppressWarnings("unchecked")
+            Future<String>[] results = new Future[DEPTH];
+            for (int i = 0; i < DEPTH; i++) {
+                final String command = "identify " + i;
+                results[i] = executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        return sut.execute(command);
+                    }
+                });
+            }
+            // the echo process doesn't respond until it receives DEPTH commands.
+            for (int i = 0; i < DEPTH; i++) {
+                assertThat(results[i].get(TIMEOUT_SECONDS, TimeUnit.SECONDS), is("identify " + i + TestUtils.EOL));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void submit__awaitResult_returnsResultsInOrder() throws Exception {
+        final EchoProcess echo = new EchoProcess(2);
+        sut = new BasicGMConnection(echo);
+        sut.setPipelineDepth(DEPTH);
+
+        long first = sut.submit("identify", "a");
+        long second = sut.submit("identify", "b");
+
+        assertThat(sut.awaitResult(first), is("identify \"a\"" + TestUtils.EOL));
+        assertThat(sut.awaitResult(second), is("identify \"b\"" + TestUtils.EOL));
+    }
+
+    @Test
+    public void executeBatch_writesAtMostBatchWindow_beforeReadingResults() throws Exception {
+        final EchoProcess echo = new EchoProcess(1, 2);
+        sut = new BasicGMConnection(echo);
+        sut.setPipelineDepth(1000);
+        char[] chars = new char[1000];
+        Arrays.fill(chars, 'x');
+        String argument = new String(chars);
+        List<List<String>> commands = new ArrayList<List<String>>();
+        for (int i = 0; i < 20; i++) {
+            commands.add(Arrays.asList("identify", argument + i));
+        }
+
+        List<GMResult> results = sut.executeBatch(commands);
+
+        assertThat(results.size(), is(20));
+        for (int i = 0; i < 20; i++) {
+            String line = " \"identify\" \"" + argument + i + "\"" + TestUtils.EOL;
+            assertThat(results.get(i).getOutput(), is(line + line));
+        }
+        assertThat(echo.flushed, lessThan(BasicGMConnection.BATCH_WINDOW + argument.length() + 20));
+    }
+
+    @Test
+    public void close_defersDestroy_untilCommandsInFlightComplete() throws Exception {
+        when(reader.readLine()).thenReturn("OK");
+        long ticket = sut.submit("identify", "a");
+
+        sut.close();
+        verify(process, never()).destroy();
+        sut.awaitResult(ticket);
+
+        verify(process).destroy();
+    }
+
+    /**
+     * Fake GraphicsMagick process that waits until it has received a number of commands, then echos each command back
+     * one or more times followed by the pass marker.
+     */
+    private static final class EchoProcess implements ReaderWriterProcess {
+        private final BlockingQueue<String> output = new LinkedBlockingQueue<String>();
+        private final int batch;
+        private final int copies;
+        private final StringBuilder received = new StringBuilder();
+        private int pending;
+        /** The largest number of characters received between two responses. */
+        private volatile int flushed;
+
+        private EchoProcess(int batch) {
+            this(batch, 1);
+        }
+
+        private EchoProcess(int batch, int copies) {
+            this.batch = batch;
+            this.copies = copies;
+        }
+
+        private final Writer writer = new Writer() {
+                @Override
+                public void write(char[] cbuf, int off, int len) throws IOException {
+                    received.append(cbuf, off, len);
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    if (++pending < batch) return;
+                    flushed = Math.max(flushed, received.length());
+                    for (String line : received.toString().split(TestUtils.EOL)) {
+                        StringBuilder response = new StringBuilder();
+                        for (int i = 0; i < copies; i++) {
+                            response.append(line).append(TestUtils.EOL);
+                        }
+                        output.add(response.append("OK").append(TestUtils.EOL).toString());
+                    }
+                    received.setLength(0);
+                    pending = 0;
+                }
+
+                @Override
+                public void close() throws IOException {
+                }
+            };
+
+        private final BufferedReader reader = new BufferedReader(new Reader() {
+                private String chunk = "";
+                private int position;
+
+                @Override
+                public int read(char[] cbuf, int off, int len) throws IOException {
+                    if (position == chunk.length()) {
+                        try {
+                            chunk = output.take();
+                        } catch (InterruptedException e) {
+                            throw new IOException(e.getMessage());
+                        }
+                        position = 0;
+                    }
+                    int n = Math.min(len, chunk.length() - position);
+                    chunk.getChars(position, position + n, cbuf, off);
+                    position += n;
+                    return n;
+                }
+
+                @Override
+                public void close() throws IOException {
+                }
+            });
+
+        @Override
+        public Writer getWriter() {
+            return writer;
+        }
+
+        @Override
+        public BufferedReader getReader() {
+            return reader;
+        }
+
+        @Override
+        public boolean isAlive() {
+            return true;
+        }
+
+        @Override
+        public long getPid() {
+            return -1;
+        }
+
+        @Override
+        public void destroy() {
+        }
+    }
+}
@@ -15,8 +15,8 @@
  */
 package org.gm4java.engine.support;
 
-//import static org.hamcrest.MatcherAssert.*;
-//import static org.hamcrest.Matchers.*;
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
 import static org.mockito.Mockito.*;
 
 import org.gm4java.engine.GMException;
@@ -115,6 +115,25 @@ public class PooledGMConnectionTest extends AbstractGMConnectionTest {
         sut.ensureHealthy();
     }
 
+    @Test
+    public void ensureHealthy_chokes_afterCommandTimedOut() throws Exception {
+        when(reader.readLine()).thenReturn("OK");
+        sut.execute(gmCommand);
+        sut.expire();
+
+        exception.expect(GMServiceException.class);
+        exception.expectMessage("timed out");
+        sut.ensureHealthy();
+    }
+
+    @Test
+    public void constructor_appliesCommandTimeoutOfPool() throws Exception {
+        final long timeout = 1234;
+        when(pool.getCommandTimeoutMillis()).thenReturn(timeout);
+
+        assertThat(new PooledGMConnection(pool).getCommandTimeoutMillis(), is(timeout));
+    }
+
     @Test
     public void ensureHealthy_happyDay_whenGMExceptionWasThrown() throws Exception {
         when(reader.readLine()).thenReturn("NG");
@@ -127,6 +146,45 @@ public class PooledGMConnectionTest extends AbstractGMConnectionTest {
         sut.ensureHealthy();
     }
 
+    @Test
+    public void ensureHealthy_recordsStaleEvictionOnce() throws Exception {
+        GMMetrics metrics = new GMMetrics();
+        when(pool.getMetrics()).thenReturn(metrics);
+        when(pool.getEvictAfterNumberOfUse()).thenReturn(1);
+        when(reader.readLine()).thenReturn("OK");
+        PooledGMConnection connection = new PooledGMConnection(pool);
+        connection.execute(gmCommand);
+        connection.execute(gmCommand);
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                connection.ensureHealthy();
+                // SUPPRESS CHECKSTYLE EmptyBlock BECAUSE test
+            } catch (GMServiceException e) {
+            }
+        }
+
+        assertThat(metrics.getStaleEvictions(), is(1L));
+        assertThat(metrics.getExceptionEvictions(), is(0L));
+        assertThat(connection.isEvictionRecorded(), is(true));
+    }
+
+    @Test
+    public void ensureHealthy_recordsExceptionEviction_afterCommandTimedOut() throws Exception {
+        GMMetrics metrics = new GMMetrics();
+        when(pool.getMetrics()).thenReturn(metrics);
+        PooledGMConnection connection = new PooledGMConnection(pool);
+        connection.expire();
+
+        exception.expect(GMServiceException.class);
+        try {
+            connection.ensureHealthy();
+        } finally {
+            assertThat(metrics.getExceptionEvictions(), is(1L));
+            assertThat(metrics.getStaleEvictions(), is(0L));
+        }
+    }
+
     @Override
     protected GMConnection sut() {
         return sut;
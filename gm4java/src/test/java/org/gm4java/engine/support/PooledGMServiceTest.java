@@ -19,19 +19,36 @@ import static org.hamcrest.MatcherAssert.*;
 import static org.hamcrest.Matchers.*;
 import static org.mockito.Mockito.*;
 
+import org.gm4java.engine.GMCallback;
 import org.gm4java.engine.GMException;
+import org.gm4java.engine.GMOutputHandler;
+import org.gm4java.engine.GMResult;
 import org.gm4java.engine.GMConnection;
+import org.gm4java.engine.GMService;
 import org.gm4java.engine.GMServiceException;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.Matchers;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
 
 import junit.framework.Assert;
 
@@ -44,6 +61,8 @@ import junit.framework.Assert;
 public class PooledGMServiceTest {
     private static final String PATH_TO_GM = "path to gm";
     private static final String CREATE_PROCESS_FAILURE = "Something bad happended";
+    private static final long TIMEOUT_SECONDS = 5;
+    private static final int TIMEOUT_MILLIS = 5000;
 
     @Rule
     public ExpectedException exception = ExpectedException.none();
@@ -73,6 +92,36 @@ public class PooledGMServiceTest {
         new PooledGMService(config);
     }
 
+    @Test
+    public void constructor_prewarmsPool_whenPrewarmIsEnabled() throws Exception {
+        config = new GMConnectionPoolConfig();
+        config.setPrewarm(true);
+        config.setPrewarmCount(3);
+        @SuppressWarnings("unchecked")
+        Future<Void> readiness = mock(Future.class);
+        when(pool.prewarm(3)).thenReturn(readiness);
+
+        sut = new PooledGMService(pool, config);
+
+        assertThat(sut.getReadiness(), sameInstance(readiness));
+    }
+
+    @Test
+    public void constructor_prewarmsMinIdle_whenPrewarmCountIsNotSet() throws Exception {
+        config = new GMConnectionPoolConfig();
+        config.setPrewarm(true);
+        config.setMinIdle(2);
+
+        sut = new PooledGMService(pool, config);
+
+        verify(pool).prewarm(2);
+    }
+
+    @Test
+    public void constructor_doesNotPrewarm_byDefault() throws Exception {
+        verify(pool).prewarm(0);
+    }
+
     @Test
     public void constructor_passesConfigToPool() throws Exception {
         config = new GMConnectionPoolConfig();
@@ -89,6 +138,113 @@ public class PooledGMServiceTest {
         TestUtils.verifyFactoryCalledWithGMPath(factory, expectedGMPath);
     }
 
+    @Test
+    public void constructor_passesConfigToConcurrentPool_whenSelected() throws Exception {
+        config = new GMConnectionPoolConfig();
+        final String expectedGMPath = PATH_TO_GM;
+        config.setGMPath(expectedGMPath);
+        config.setPoolEngine(PoolEngine.CONCURRENT);
+        sut = new PooledGMService(config);
+        ReaderWriterProcess.Factory factory = mock(ReaderWriterProcess.Factory.class);
+        ReaderWriterProcess process = mock(ReaderWriterProcess.class);
+        sut.setProcessFactory(factory);
+        when(factory.getProcess(Matchers.<String[]> anyVararg())).thenReturn(process);
+
+        sut.getConnection().close();
+
+        TestUtils.verifyFactoryCalledWithGMPath(factory, expectedGMPath);
+    }
+
+    @Test
+    public void getMetrics_returnsSnapshotOfPoolMetrics() throws Exception {
+        GMMetrics metrics = new GMMetrics();
+        when(pool.getMetrics()).thenReturn(metrics);
+        metrics.validationFailed();
+
+        GMServiceMetrics snapshot = sut.getMetrics();
+        metrics.validationFailed();
+
+        assertThat(snapshot.getValidationFailures(), is(1L));
+    }
+
+    @Test
+    public void constructor_doesNotRegisterMetricsToJmx_byDefault() throws Exception {
+        assertThat(sut.getObjectName(), nullValue());
+    }
+
+    @Test
+    public void constructor_registersMetricsToJmx_whenJmxNameIsSet() throws Exception {
+        config = new GMConnectionPoolConfig();
+        config.setJmxName("test, \"1\"");
+        GMMetrics metrics = new GMMetrics();
+        metrics.recordBorrowWait(1);
+        when(pool.getMetrics()).thenReturn(metrics);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+        sut = new PooledGMService(pool, config);
+
+        ObjectName name = sut.getObjectName();
+        try {
+            assertThat(name.getDomain(), is(PooledGMService.JMX_DOMAIN));
+            assertThat(ObjectName.unquote(name.getKeyProperty("name")), is("test, \"1\""));
+            assertThat((Long) server.getAttribute(name, "ValidationFailures"), is(0L));
+            CompositeData borrowWait = (CompositeData) server.getAttribute(name, "BorrowWaitNanos");
+            assertThat((Long) borrowWait.get("count"), is(1L));
+        } finally {
+            server.unregisterMBean(name);
+        }
+    }
+
+    @Test
+    public void constructor_replacesMetricsRegisteredWithSameJmxName() throws Exception {
+        config = new GMConnectionPoolConfig();
+        config.setJmxName("replaced");
+        GMMetrics metrics = new GMMetrics();
+        when(pool.getMetrics()).thenReturn(new GMMetrics(), metrics);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        new PooledGMService(pool, config);
+        metrics.validationFailed();
+
+        sut = new PooledGMService(pool, config);
+
+        try {
+            assertThat((Long) server.getAttribute(sut.getObjectName(), "ValidationFailures"), is(1L));
+        } finally {
+            server.unregisterMBean(sut.getObjectName());
+        }
+    }
+
+    @Test
+    public void close_unregistersMetricsFromJmx_andClosesPool() throws Exception {
+        config = new GMConnectionPoolConfig();
+        config.setJmxName("closed");
+        when(pool.getMetrics()).thenReturn(new GMMetrics());
+        sut = new PooledGMService(pool, config);
+        ObjectName name = sut.getObjectName();
+
+        sut.close();
+
+        assertThat(ManagementFactory.getPlatformMBeanServer().isRegistered(name), is(false));
+        verify(pool).close();
+    }
+
+    @Test
+    public void close_chokes_whenPoolFailsToClose() throws Exception {
+        doThrow(new IllegalStateException(CREATE_PROCESS_FAILURE)).when(pool).close();
+        exception.expect(GMServiceException.class);
+        exception.expectMessage(CREATE_PROCESS_FAILURE);
+
+        sut.close();
+    }
+
+    @Test
+    public void executeAsync_chokes_afterClose() throws Exception {
+        sut.close();
+        exception.expect(GMServiceException.class);
+
+        sut.executeAsync(Arrays.asList(gmCommand));
+    }
+
     @Test
     public void getConnection_chokes_whenBorrowObjectChokes() throws Exception {
         when(pool.borrowObject()).thenThrow(new GMServiceException(CREATE_PROCESS_FAILURE));
@@ -242,4 +398,297 @@ public class PooledGMServiceTest {
 
         verify(pool).returnObject(connection);
     }
+
+    @Test
+    public void executeAsync_delegatesToBorrowedConnection() throws Exception {
+        String expected = "result 9465";
+        final List<String> command = Arrays.asList(gmCommand);
+        when(connection.execute(command)).thenReturn(expected);
+
+        Future<String> result = sut.executeAsync(command);
+
+        assertThat(result.get(TIMEOUT_SECONDS, TimeUnit.SECONDS), is(expected));
+        verify(pool).returnObject(connection);
+    }
+
+    @Test
+    public void executeAsync_notifiesCallback() throws Exception {
+        String expected = "result 9465";
+        final List<String> command = Arrays.asList(gmCommand);
+        when(connection.execute(command)).thenReturn(expected);
+        GMCallback callback = mock(GMCallback.class);
+
+        sut.executeAsync(command, callback);
+
+        verify(callback, timeout(TIMEOUT_MILLIS)).onSuccess(expected);
+    }
+
+    @Test
+    public void executeAsync_failsFuture_whenBorrowObjectChokes() throws Exception {
+        final GMServiceException error = new GMServiceException(CREATE_PROCESS_FAILURE);
+        when(pool.borrowObject()).thenThrow(error);
+
+        Future<String> result = sut.executeAsync(Arrays.asList(gmCommand));
+
+        try {
+            result.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            Assert.fail("shoud get exeception here.");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), is((Throwable) error));
+        }
+    }
+
+    @Test
+    public void executeByList_returnsConnectionBeforeReadingResult_whenPipelined() throws Exception {
+        final List<String> command = Arrays.asList(gmCommand);
+        final long ticket = 7;
+        final String expected = "result 9465";
+        when(connection.isPipelined()).thenReturn(true);
+        when(connection.submit(command)).thenReturn(ticket);
+        when(connection.awaitResult(ticket)).thenReturn(expected);
+
+        String result = sut.execute(command);
+
+        InOrder inOrder = inOrder(connection, pool);
+        inOrder.verify(connection).submit(command);
+        inOrder.verify(pool).returnObject(connection);
+        inOrder.verify(connection).awaitResult(ticket);
+        assertThat(result, is(expected));
+    }
+
+    @Test
+    public void execute_returnsConnectionBeforeReadingResult_whenPipelined() throws Exception {
+        final long ticket = 7;
+        final String expected = "result 9465";
+        when(connection.isPipelined()).thenReturn(true);
+        when(connection.submit(gmCommand)).thenReturn(ticket);
+        when(connection.awaitResult(ticket)).thenReturn(expected);
+
+        String result = sut.execute(gmCommand);
+
+        InOrder inOrder = inOrder(connection, pool);
+        inOrder.verify(connection).submit(gmCommand);
+        inOrder.verify(pool).returnObject(connection);
+        inOrder.verify(connection).awaitResult(ticket);
+        assertThat(result, is(expected));
+    }
+
+    @Test
+    public void executeWithHandler_delegatesToBorrowedConnection() throws Exception {
+        final List<String> command = Arrays.asList(gmCommand);
+        GMOutputHandler handler = mock(GMOutputHandler.class);
+
+        sut.execute(command, handler);
+
+        InOrder inOrder = inOrder(connection, pool);
+        inOrder.verify(connection).execute(null, command, handler);
+        inOrder.verify(pool).returnObject(connection);
+    }
+
+    @Test
+    public void executeWithHandler_returnsConnectionBeforeReadingResult_whenPipelined() throws Exception {
+        final List<String> command = Arrays.asList(gmCommand);
+        final long ticket = 7;
+        GMOutputHandler handler = mock(GMOutputHandler.class);
+        when(connection.isPipelined()).thenReturn(true);
+        when(connection.submit(command)).thenReturn(ticket);
+
+        sut.execute(command, handler);
+
+        InOrder inOrder = inOrder(connection, pool);
+        inOrder.verify(connection).submit(command);
+        inOrder.verify(pool).returnObject(connection);
+        inOrder.verify(connection).awaitResult(ticket, handler);
+    }
+
+    @Test
+    public void executeWithHandler_chokes_onNullHandler() throws Exception {
+        exception.expect(NullPointerException.class);
+        exception.expectMessage("handler");
+
+        sut.execute(Arrays.asList(gmCommand), null);
+    }
+
+    @Test
+    public void executeNoOutput_delegatesToBorrowedConnection() throws Exception {
+        final List<String> command = Arrays.asList(gmCommand);
+
+        sut.executeNoOutput(command);
+
+        InOrder inOrder = inOrder(connection, pool);
+        inOrder.verify(connection).execute(null, command, BasicGMConnection.NO_OUTPUT);
+        inOrder.verify(pool).returnObject(connection);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void executeImage_delegatesStagedCommandToBorrowedConnection() throws Exception {
+        final List<String> command = Arrays.asList("convert", GMService.INPUT, "-flip", "jpg:" + GMService.OUTPUT);
+        ArgumentCaptor<List> staged = ArgumentCaptor.forClass(List.class);
+
+        ByteBuffer result = sut.executeImage(command, new byte[] { 1, 2, 3 });
+
+        assertThat(result.remaining(), is(0));
+        InOrder inOrder = inOrder(connection, pool);
+        inOrder.verify(connection).execute((String) isNull(), staged.capture(), same(BasicGMConnection.NO_OUTPUT));
+        inOrder.verify(pool).returnObject(connection);
+        String directory = ImageStaging.defaultDirectory().getPath();
+        assertThat((String) staged.getValue().get(1), org.hamcrest.Matchers.startsWith(directory));
+        assertThat((String) staged.getValue().get(3), org.hamcrest.Matchers.startsWith("jpg:" + directory));
+    }
+
+    @Test
+    public void executeNoOutput_returnsConnectionBeforeReadingResult_whenPipelined() throws Exception {
+        final List<String> command = Arrays.asList(gmCommand);
+        final long ticket = 7;
+        when(connection.isPipelined()).thenReturn(true);
+        when(connection.submit(command)).thenReturn(ticket);
+
+        sut.executeNoOutput(command);
+
+        InOrder inOrder = inOrder(connection, pool);
+        inOrder.verify(connection).submit(command);
+        inOrder.verify(pool).returnObject(connection);
+        inOrder.verify(connection).awaitResult(ticket, BasicGMConnection.NO_OUTPUT);
+    }
+
+    @Test
+    public void executeBatch_delegatesToBorrowedConnection() throws Exception {
+        final List<List<String>> commands = Arrays.asList(Arrays.asList(gmCommand), Arrays.asList(gmCommand));
+        final List<GMResult> expected = Arrays.asList(GMResult.success("a"), GMResult.success("b"));
+        when(connection.executeBatch(commands)).thenReturn(expected);
+
+        List<GMResult> result = sut.executeBatch(commands);
+
+        assertThat(result, is(expected));
+        verify(pool, times(1)).borrowObject();
+        verify(pool).returnObject(connection);
+    }
+
+    @Test
+    public void getConnection__executeBatch_delegatesToBorrowedConnection() throws Exception {
+        final List<List<String>> commands = Arrays.asList(Arrays.asList(gmCommand));
+        final List<GMResult> expected = Arrays.asList(GMResult.success("a"));
+        when(connection.executeBatch(commands)).thenReturn(expected);
+        GMConnection p = sut.getConnection();
+
+        List<GMResult> result = p.executeBatch(commands);
+        p.close();
+
+        assertThat(result, is(expected));
+    }
+
+    @Test
+    public void withPriority_chokes_onNullPriority() throws Exception {
+        exception.expect(NullPointerException.class);
+        exception.expectMessage("priority");
+
+        sut.withPriority(null);
+    }
+
+    @Test
+    public void withPriority__execute_delegatesToBorrowedConnection() throws Exception {
+        final List<String> command = Arrays.asList(gmCommand);
+        when(connection.execute(command)).thenReturn("result");
+
+        String result = sut.withPriority(Priority.LOW).execute(command);
+
+        assertThat(result, is("result"));
+        verify(pool).returnObject(connection);
+    }
+
+    @Test
+    public void withPriority_handsConnectionToHigherPriorityFirst() throws Exception {
+        config = new GMConnectionPoolConfig();
+        config.setMaxActive(1);
+        config.setPriorityScheduling(true);
+        sut = new PooledGMService(pool, config);
+        GMConnection held = sut.withPriority(Priority.LOW).getConnection();
+        Thread low = executeInBackground(Priority.LOW, "low");
+        Thread high = executeInBackground(Priority.HIGH, "high");
+
+        held.close();
+        low.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+        high.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+
+        InOrder inOrder = inOrder(connection);
+        inOrder.verify(connection).execute(Arrays.asList("high"));
+        inOrder.verify(connection).execute(Arrays.asList("low"));
+    }
+
+    @Test
+    public void forTenant_chokes_onNullTenant() throws Exception {
+        exception.expect(NullPointerException.class);
+        exception.expectMessage("tenant");
+
+        sut.forTenant(null);
+    }
+
+    @Test
+    public void getTenantMetrics_isEmpty_whenFairSharingIsDisabled() throws Exception {
+        sut.forTenant("a").execute(Arrays.asList(gmCommand));
+
+        assertThat(sut.getTenantMetrics().isEmpty(), is(true));
+    }
+
+    @Test
+    public void forTenant__execute_recordsTenantMetrics() throws Exception {
+        config = new GMConnectionPoolConfig();
+        config.setMaxActive(2);
+        config.setFairSharing(true);
+        config.setTenantWeight("a", 1);
+        sut = new PooledGMService(pool, config);
+
+        sut.forTenant("a", Priority.HIGH).execute(Arrays.asList(gmCommand));
+        sut.forTenant("a").getConnection().close();
+        sut.execute(Arrays.asList(gmCommand));
+
+        assertThat(sut.getTenantMetrics().get("a").getWaitNanos().getCount(), is(2L));
+        assertThat(sut.getTenantMetrics().get(PooledGMService.DEFAULT_TENANT).getWaitNanos().getCount(), is(1L));
+        verify(pool, times(3)).returnObject(connection);
+    }
+
+    @Test
+    public void forTenant__execute_chargesTenantUntilResultIsRead_whenPipelined() throws Exception {
+        final List<String> command = Arrays.asList(gmCommand);
+        final long ticket = 7;
+        config = new GMConnectionPoolConfig();
+        config.setMaxActive(2);
+        config.setFairSharing(true);
+        config.setTenantWeight("a", 1);
+        sut = new PooledGMService(pool, config);
+        when(connection.isPipelined()).thenReturn(true);
+        when(connection.submit(command)).thenReturn(ticket);
+        when(connection.awaitResult(ticket)).thenAnswer(new Answer<String>() {
+            @Override
+            public String answer(InvocationOnMock invocation) throws Throwable {
+                Thread.sleep(50);
+                return "result";
+            }
+        });
+
+        sut.forTenant("a").execute(command);
+
+        assertThat(sut.getTenantMetrics().get("a").getProcessNanos(),
+                greaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(50)));
+    }
+
+    private Thread executeInBackground(final Priority priority, final String command) throws InterruptedException {
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    sut.withPriority(priority).execute(Arrays.asList(command));
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+        thread.start();
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS);
+        while (thread.getState() != Thread.State.WAITING && System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+        assertThat(thread.getState(), is(Thread.State.WAITING));
+        return thread;
+    }
 }
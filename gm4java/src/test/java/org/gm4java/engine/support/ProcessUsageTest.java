@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test cases for {@link ProcessUsage}.
+ *
+ * @author Kenneth Xu
+ *
+ */
+public class ProcessUsageTest {
+    private static final String STATUS = "Name:\tgm\nState:\tS (sleeping)\nVmPeak:\t  123456 kB\nVmRSS:\t    2048 kB\n"
+            + "Threads:\t1\n";
+    private static final String STAT = "4242 (g m) (x)) S 1 4242 4242 0 -1 4194304 1234 0 0 0 250 50 0 0 20 0 1 0 "
+            + "98765 123456789 512 18446744073709551615";
+
+    @Rule
+    public ExpectedException exception = ExpectedException.none();
+
+    @Test
+    public void parse_readsResidentMemoryAndCpuTime() {
+        ProcessUsage sut = ProcessUsage.parse(STATUS, STAT);
+
+        assertThat(sut.getResidentBytes(), is(2048L * 1024));
+        assertThat(sut.getCpuNanos(), is(TimeUnit.SECONDS.toNanos(3)));
+    }
+
+    @Test
+    public void parse_returnsZeroMemory_whenRssIsMissing() {
+        assertThat(ProcessUsage.parse("Name:\tgm\n", STAT).getResidentBytes(), is(0L));
+    }
+
+    @Test
+    public void parse_chokes_onMalformedStat() {
+        exception.expect(IllegalArgumentException.class);
+
+        ProcessUsage.parse(STATUS, "4242 gm S 1");
+    }
+
+    @Test
+    public void read_returnsNull_whenPidIsUnknown() {
+        assertThat(ProcessUsage.read(-1), is(nullValue()));
+        assertThat(ProcessUsage.read(Integer.MAX_VALUE), is(nullValue()));
+    }
+
+    @Test
+    public void read_readsUsageOfLiveProcess() {
+        Assume.assumeTrue(new File("/proc/self/stat").exists());
+
+        ProcessUsage sut = ProcessUsage.read(TestUtils.currentPid());
+
+        assertThat(sut, is(notNullValue()));
+        assertThat(sut.getResidentBytes(), greaterThan(0L));
+    }
+}
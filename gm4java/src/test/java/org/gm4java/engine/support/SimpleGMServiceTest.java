@@ -20,16 +20,24 @@ import static org.hamcrest.Matchers.*;
 import static org.mockito.Mockito.*;
 
 import org.gm4java.engine.GMException;
+import org.gm4java.engine.GMOutputHandler;
+import org.gm4java.engine.GMResult;
 import org.gm4java.engine.GMConnection;
+import org.gm4java.engine.GMService;
 import org.gm4java.engine.GMServiceException;
 import org.junit.Assert;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.Matchers;
 import org.mockito.Mock;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.List;
 
 /**
  * Test cases for {@link SimpleGMService}.
@@ -41,6 +49,8 @@ public class SimpleGMServiceTest extends AbstractGMConnectionTest {
     private static final String CREATE_PROCESS_FAILURE = "Something bad happended";
     @Mock
     private ReaderWriterProcess.Factory factory;
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
 
     private SimpleGMService sut;
     private GMConnection connection;
@@ -150,6 +160,50 @@ public class SimpleGMServiceTest extends AbstractGMConnectionTest {
         verify(process).destroy();
     }
 
+    @Test
+    public void executeWithHandler_destroysProcess() throws Exception {
+        when(reader.readLine()).thenReturn("line", "OK");
+        GMOutputHandler handler = mock(GMOutputHandler.class);
+
+        sut.execute(Arrays.asList("any"), handler);
+
+        verify(handler).handleLine("line");
+        verify(process).destroy();
+    }
+
+    @Test
+    public void executeNoOutput_destroysProcess() throws Exception {
+        when(reader.readLine()).thenReturn("OK");
+
+        sut.executeNoOutput(Arrays.asList("any"));
+
+        verify(process).destroy();
+    }
+
+    @Test
+    public void executeImage_stagesImageInStagingDirectory_andDestroysProcess() throws Exception {
+        when(reader.readLine()).thenReturn("OK");
+        sut.setStagingDirectory(folder.getRoot());
+
+        ByteBuffer result = sut.executeImage(Arrays.asList("convert", GMService.INPUT, "png:" + GMService.OUTPUT),
+                new ByteArrayInputStream(new byte[] { 1, 2, 3 }));
+
+        assertThat(result.remaining(), is(0));
+        assertThat(sut.getStagingDirectory(), is(folder.getRoot()));
+        assertThat(folder.getRoot().list().length, is(0));
+        verify(process).destroy();
+    }
+
+    @Test
+    public void executeBatch_destroysProcess() throws Exception {
+        when(reader.readLine()).thenReturn("OK");
+
+        List<GMResult> results = sut.executeBatch(batch(Arrays.asList("any"), Arrays.asList("any")));
+
+        assertThat(results.size(), is(2));
+        verify(process).destroy();
+    }
+
     @Test
     public void setGMPath_chokes_onNullPath() {
         exception.expect(NullPointerException.class);
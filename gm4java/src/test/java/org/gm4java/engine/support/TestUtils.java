@@ -22,6 +22,8 @@ import org.hamcrest.Description;
 import org.mockito.ArgumentMatcher;
 import org.mockito.internal.matchers.VarargMatcher;
 
+import java.lang.management.ManagementFactory;
+
 /**
  * Utilities method to help test.
  * 
@@ -62,6 +64,17 @@ final class TestUtils {
         }));
     }
 
+    /**
+     * Gets the process id of the JVM running the tests, from the name of the runtime which is <i>pid@host</i> on the
+     * common JVMs.
+     * 
+     * @return the process id
+     */
+    public static long currentPid() {
+        String name = ManagementFactory.getRuntimeMXBean().getName();
+        return Long.parseLong(name.substring(0, name.indexOf('@')));
+    }
+
     private abstract static class VarargArgumentMatcher<T> extends ArgumentMatcher<T[]> implements VarargMatcher {
         private static final long serialVersionUID = 1L;
 
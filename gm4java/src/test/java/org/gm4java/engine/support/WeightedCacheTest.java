@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Test cases for {@link WeightedCache}.
+ *
+ * @author Kenneth Xu
+ *
+ */
+public class WeightedCacheTest {
+    private static final long MAX_WEIGHT = 10;
+    private static final int EXPECTED_ENTRIES = 16;
+
+    private final List<String> evicted = new ArrayList<String>();
+
+    private WeightedCache<String, String> newCache(CacheEvictionPolicy policy) {
+        return new WeightedCache<String, String>(MAX_WEIGHT, policy, EXPECTED_ENTRIES);
+    }
+
+    @Test
+    public void put_addsValue_untilMaxWeight() {
+        WeightedCache<String, String> sut = newCache(CacheEvictionPolicy.LRU);
+
+        assertThat(sut.put("a", "A", 4, evicted), is(true));
+        assertThat(sut.put("b", "B", 6, evicted), is(true));
+
+        assertThat(sut.get("a"), is("A"));
+        assertThat(sut.get("b"), is("B"));
+        assertThat(sut.getWeight(), is(MAX_WEIGHT));
+        assertThat(evicted.isEmpty(), is(true));
+    }
+
+    @Test
+    public void put_evictsLeastRecentlyUsed_whenLru() {
+        WeightedCache<String, String> sut = newCache(CacheEvictionPolicy.LRU);
+        sut.put("a", "A", 4, evicted);
+        sut.put("b", "B", 4, evicted);
+        sut.get("a");
+
+        assertThat(sut.put("c", "C", 4, evicted), is(true));
+
+        assertThat(evicted, is(Arrays.asList("B")));
+        assertThat(sut.get("b"), is(nullValue()));
+        assertThat(sut.size(), is(2));
+        assertThat(sut.getEvictions(), is(1L));
+    }
+
+    @Test
+    public void put_evictsAsManyAsNeeded() {
+        WeightedCache<String, String> sut = newCache(CacheEvictionPolicy.LRU);
+        sut.put("a", "A", 3, evicted);
+        sut.put("b", "B", 3, evicted);
+        sut.put("c", "C", 3, evicted);
+
+        sut.put("d", "D", 7, evicted);
+
+        assertThat(evicted, is(Arrays.asList("A", "B")));
+        assertThat(sut.getWeight(), is(MAX_WEIGHT));
+    }
+
+    @Test
+    public void put_rejects_whenHeavierThanCache() {
+        WeightedCache<String, String> sut = newCache(CacheEvictionPolicy.LRU);
+
+        assertThat(sut.put("a", "A", MAX_WEIGHT + 1, evicted), is(false));
+
+        assertThat(sut.size(), is(0));
+        assertThat(sut.getRejections(), is(1L));
+    }
+
+    @Test
+    public void put_keepsExistingValue() {
+        WeightedCache<String, String> sut = newCache(CacheEvictionPolicy.LRU);
+        sut.put("a", "A", 4, evicted);
+
+        assertThat(sut.put("a", "X", 4, evicted), is(false));
+
+        assertThat(sut.get("a"), is("A"));
+        assertThat(sut.getWeight(), is(4L));
+        assertThat(sut.getRejections(), is(0L));
+    }
+
+    @Test
+    public void put_rejectsOneOffKey_whenTinyLfu() {
+        WeightedCache<String, String> sut = newCache(CacheEvictionPolicy.TINY_LFU);
+        sut.put("a", "A", 5, evicted);
+        sut.put("b", "B", 5, evicted);
+        sut.get("a");
+        sut.get("b");
+
+        sut.get("c");
+        assertThat(sut.put("c", "C", 5, evicted), is(false));
+
+        assertThat(sut.get("a"), is("A"));
+        assertThat(sut.get("b"), is("B"));
+        assertThat(evicted.isEmpty(), is(true));
+        assertThat(sut.getRejections(), is(1L));
+    }
+
+    @Test
+    public void put_admitsPopularKey_whenTinyLfu() {
+        WeightedCache<String, String> sut = newCache(CacheEvictionPolicy.TINY_LFU);
+        sut.put("a", "A", 5, evicted);
+        sut.put("b", "B", 5, evicted);
+        sut.get("b");
+        for (int i = 0; i < 3; i++) {
+            sut.get("c");
+        }
+
+        assertThat(sut.put("c", "C", 5, evicted), is(true));
+
+        assertThat(evicted, is(Arrays.asList("A")));
+        assertThat(sut.get("c"), is("C"));
+    }
+
+    @Test
+    public void remove_releasesWeight() {
+        WeightedCache<String, String> sut = newCache(CacheEvictionPolicy.LRU);
+        sut.put("a", "A", 4, evicted);
+
+        assertThat(sut.remove("a"), is("A"));
+
+        assertThat(sut.getWeight(), is(0L));
+        assertThat(sut.remove("a"), is(nullValue()));
+    }
+
+    @Test
+    public void clear_returnsAllValues() {
+        WeightedCache<String, String> sut = newCache(CacheEvictionPolicy.LRU);
+        sut.put("a", "A", 4, evicted);
+        sut.put("b", "B", 4, evicted);
+
+        assertThat(sut.clear(), is(Arrays.asList("A", "B")));
+
+        assertThat(sut.size(), is(0));
+        assertThat(sut.getWeight(), is(0L));
+    }
+}
@@ -129,7 +129,25 @@ public class GMBatchCommandTest {
         // execute the operation
         sut.run(op);
 
-        verify(service).execute(Arrays.asList(command, SOURCE_IMAGE, "-resize", "800x600", TARGET_IMAGE));
+        verify(service).executeNoOutput(Arrays.asList(command, SOURCE_IMAGE, "-resize", "800x600", TARGET_IMAGE));
+        verify(service, never()).execute(anyListOf(String.class));
+    }
+
+    @Test
+    public void run_chokes_whenOutputConsumerIsNullAndServiceChokes() throws Exception {
+        final String command = "bad";
+        sut = new GMBatchCommand(service, command);
+        IMOperation op = new IMOperation();
+        op.addImage(SOURCE_IMAGE);
+        op.resize(800, 600);
+        op.addImage(TARGET_IMAGE);
+        final String message = "bad command";
+        doThrow(new GMException(message)).when(service).executeNoOutput(anyListOf(String.class));
+        sut.setOutputConsumer(null);
+        exception.expect(CommandException.class);
+        exception.expectMessage(message);
+
+        sut.run(op);
     }
 
     @Test